@@ -0,0 +1,225 @@
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a recovery journal for the document of one editor window. Each edit
+ * is turned into a journal record on the EDT, which costs the size of the
+ * edit, and handed to a background thread that does all the file I/O, so
+ * journaling never blocks the EDT.
+ *
+ * A timer forces the journal to disk once per interval if anything changed,
+ * batching the fsyncs of all edits made in between. When the journal has
+ * grown large, the same tick compacts it: a snapshot of the document is
+ * written and a new, empty journal starts on top of it.
+ */
+public class AutosaveService implements DocumentListener {
+    // Milliseconds between autosaves
+    static final int AUTOSAVE_INTERVAL = 2000;
+    // Journal size in bytes above which it is compacted
+    static final long COMPACT_THRESHOLD = 4 * 1024 * 1024;
+
+    private final File directory;
+    private final String id;
+    private final ExecutorService writer;
+    private final Timer timer;
+    private final DocumentWriter snapshotWriter;
+
+    private PieceTableDocument document;
+    private boolean dirty = false;
+    private boolean closed = false;
+
+    // Only touched on the writer thread
+    private RecoveryJournal journal;
+    private byte baseKind = RecoveryJournal.BASE_EMPTY;
+    private String path;
+    private long baseSize;
+    private long baseModified;
+    private volatile long journalSize;
+
+    public AutosaveService(File directory) {
+        this.directory = directory;
+        this.id = Long.toHexString(System.currentTimeMillis()) + "-" + Long.toHexString(System.nanoTime() & 0xffffff);
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "Autosave");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.snapshotWriter = new DocumentWriter(RecoveryJournal.SNAPSHOT_CHARSET);
+        this.snapshotWriter.setForceInterval(AUTOSAVE_INTERVAL);
+        this.timer = new Timer(AUTOSAVE_INTERVAL, e -> autosave());
+        this.timer.start();
+    }
+
+    /**
+     * Returns the directory journals are kept in.
+     */
+    public static File defaultDirectory() {
+        return new File(System.getProperty("texteditor.recovery.dir",
+            System.getProperty("user.home") + File.separator + ".texteditor" + File.separator + "recovery"));
+    }
+
+    /**
+     * Starts journaling the edits to the given document.
+     */
+    public void setDocument(PieceTableDocument doc) {
+        if (document != null) {
+            document.removeDocumentListener(this);
+        }
+        document = doc;
+        document.addDocumentListener(this);
+    }
+
+    /**
+     * Records that the document now matches the file at path, or is empty
+     * when path is null, and drops the journal kept so far. The journal is
+     * stamped with the size and modification time in the layout the file
+     * was just loaded or saved with, not those it has by the first edit.
+     */
+    public void reset(String path, FileLayout layout) {
+        dirty = false;
+        long size = layout == null ? 0 : layout.getByteLength();
+        long modified = layout == null ? 0 : layout.getLastModified();
+        submit(() -> {
+            if (journal != null) {
+                journal.delete();
+            }
+            this.baseKind = path == null ? RecoveryJournal.BASE_EMPTY : RecoveryJournal.BASE_FILE;
+            this.path = path;
+            this.baseSize = size;
+            this.baseModified = modified;
+            journalSize = 0;
+        });
+    }
+
+    /**
+     * Records that the document matches neither a file nor an empty text,
+     * as after a recovery, by compacting the journal onto a snapshot now.
+     */
+    public void resetToSnapshot(String path) {
+        TextSnapshot snapshot = document.snapshot();
+        submit(() -> {
+            this.path = path;
+            compact(snapshot);
+        });
+    }
+
+    /**
+     * Stops journaling. The journal is kept for recovery when keepJournal is
+     * true and deleted otherwise. Waits briefly for pending writes so they
+     * are not lost when the application exits right after.
+     */
+    public void close(boolean keepJournal) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        timer.stop();
+        document.removeDocumentListener(this);
+        submit(() -> {
+            if (journal != null) {
+                if (!keepJournal) {
+                    journal.delete();
+                }
+                journal.close();
+                journal = null;
+            }
+        });
+        writer.shutdown();
+        try {
+            writer.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // --- DocumentListener methods ----------------------------------------
+
+    public void insertUpdate(DocumentEvent e) {
+        int offset = e.getOffset();
+        try {
+            String text = document.getText(offset, e.getLength());
+            dirty = true;
+            submit(() -> journal().appendInsert(offset, text));
+        } catch (BadLocationException ex) {
+            // Cannot happen for the range of an insert that was just made
+        }
+    }
+
+    public void removeUpdate(DocumentEvent e) {
+        int offset = e.getOffset();
+        int length = e.getLength();
+        dirty = true;
+        submit(() -> journal().appendRemove(offset, length));
+    }
+
+    public void changedUpdate(DocumentEvent e) {
+        // Attribute changes do not affect plain text
+    }
+
+    // --- Writer thread ---------------------------------------------------
+
+    // Runs on the EDT once per interval
+    private void autosave() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        if (journalSize > COMPACT_THRESHOLD) {
+            TextSnapshot snapshot = document.snapshot();
+            submit(() -> compact(snapshot));
+        } else {
+            submit(() -> {
+                if (journal != null) {
+                    journal.force();
+                    journalSize = journal.size();
+                }
+            });
+        }
+    }
+
+    // Returns the journal, creating it on the first edit
+    private RecoveryJournal journal() throws IOException {
+        if (journal == null) {
+            journal = new RecoveryJournal(directory, id);
+        }
+        if (!journal.isStarted()) {
+            journal.start(baseKind, path, path, baseSize, baseModified);
+        }
+        return journal;
+    }
+
+    private void compact(TextSnapshot snapshot) throws IOException {
+        if (journal == null) {
+            journal = new RecoveryJournal(directory, id);
+        }
+        File base = journal.nextBaseFile();
+        snapshotWriter.save(snapshot, base);
+        journal.start(RecoveryJournal.BASE_SNAPSHOT, path, base.getName(), 0, 0);
+        journalSize = journal.size();
+    }
+
+    private interface JournalTask {
+        void run() throws IOException;
+    }
+
+    private void submit(JournalTask task) {
+        if (writer.isShutdown()) {
+            return;
+        }
+        writer.execute(() -> {
+            try {
+                task.run();
+            } catch (IOException e) {
+                // Autosave is best effort and must never get in the way of editing
+                e.printStackTrace();
+            }
+        });
+    }
+}
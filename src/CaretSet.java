@@ -0,0 +1,281 @@
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import java.util.Arrays;
+
+/**
+ * The carets of a multi-caret edit, each with the text it selects, in
+ * increasing order and not overlapping. As in MatchList, the starts and
+ * ends are kept in plain int arrays, and the shifts of edits made at one
+ * place, like an undo or a paste, are kept apart in a Fenwick tree over the
+ * caret indices, so such an edit moves every caret after it in O(log n).
+ * Text removed around a caret pulls it back to where the text was; carets
+ * that end up together are merged before the next edit made at them.
+ *
+ * An edit made at every caret goes the other way: the carets are handed to
+ * the document as the ranges of one replaceAll, which makes a single
+ * document edit and undo step of it however many carets there are, and are
+ * moved past their replacements in one pass afterwards.
+ */
+public class CaretSet implements DocumentListener {
+    private int[] starts = new int[64];
+    private int[] ends = new int[64];
+    private int size;
+    // Shifts not yet added to the starts and ends, by index: the caret at
+    // index i is shifted by the sum of the first i + 1 entries. Null while
+    // nothing is shifted.
+    private int[] shifts;
+    // Set while the carets' own edit is made, which moves them itself
+    private boolean replacing;
+
+    public int size() {
+        return size;
+    }
+
+    public int getStart(int index) {
+        return starts[index] + shiftAt(index);
+    }
+
+    public int getEnd(int index) {
+        return ends[index] + shiftAt(index);
+    }
+
+    public void clear() {
+        size = 0;
+        shifts = null;
+    }
+
+    /**
+     * Adds a caret selecting from start to end, which must come after the
+     * last one added, as when the lines of a column are added top down.
+     */
+    public void append(int start, int end) {
+        if (size > 0 && start < getEnd(size - 1)) {
+            throw new IllegalArgumentException("Caret before the last one");
+        }
+        ensureCapacity(size + 1);
+        int shift = shiftAt(size);
+        starts[size] = start - shift;
+        ends[size] = end - shift;
+        size++;
+    }
+
+    /**
+     * Adds a caret anywhere, merging it with the carets it overlaps or
+     * touches. This moves the carets after it in the arrays.
+     */
+    public void add(int start, int end) {
+        applyShifts();
+        int from = indexAtOrAfter(start);
+        while (from > 0 && ends[from - 1] >= start) {
+            from--;
+        }
+        int to = from;
+        while (to < size && starts[to] <= end) {
+            start = Math.min(start, starts[to]);
+            end = Math.max(end, ends[to]);
+            to++;
+        }
+        ensureCapacity(size + 1);
+        System.arraycopy(starts, to, starts, from + 1, size - to);
+        System.arraycopy(ends, to, ends, from + 1, size - to);
+        starts[from] = start;
+        ends[from] = end;
+        size += from + 1 - to;
+    }
+
+    /**
+     * Returns the index of the first caret starting at or after the
+     * offset, or size() if there is none.
+     */
+    public int indexAtOrAfter(int offset) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getStart(mid) < offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Moves every caret by delta, within the text, dropping what they
+     * select. Carets that meet are merged.
+     */
+    public void move(int delta, int length) {
+        applyShifts();
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            int offset = Math.max(0, Math.min(length, (delta < 0 ? starts[i] : ends[i]) + delta));
+            if (kept > 0 && starts[kept - 1] == offset) {
+                continue;
+            }
+            starts[kept] = offset;
+            ends[kept] = offset;
+            kept++;
+        }
+        size = kept;
+    }
+
+    /**
+     * Replaces what each caret selects with the text, as one edit of the
+     * document. A caret selecting nothing takes in the before chars in
+     * front of it and the after chars behind it first, for Backspace and
+     * Delete. Every caret ends up behind its replacement.
+     */
+    public void replace(PieceTableDocument doc, String text, int before, int after) throws BadLocationException {
+        merge();
+        int length = doc.getLength();
+        MatchList ranges = new MatchList();
+        int last = 0;
+        for (int i = 0; i < size; i++) {
+            int start = starts[i];
+            int end = ends[i];
+            if (start == end) {
+                start = Math.max(last, start - before);
+                end = Math.min(length, end + after);
+            }
+            ranges.add(start, end);
+            last = end;
+        }
+        if (size == 0) {
+            return;
+        }
+        replacing = true;
+        try {
+            doc.replaceAll(ranges, text);
+        } finally {
+            replacing = false;
+        }
+        // Each caret moves by how much the ranges before it grew or shrank
+        int shift = 0;
+        for (int i = 0; i < size; i++) {
+            int offset = ranges.getStart(i) + shift + text.length();
+            starts[i] = offset;
+            ends[i] = offset;
+            shift += text.length() - (ranges.getEnd(i) - ranges.getStart(i));
+        }
+        merge();
+    }
+
+    // Joins carets that overlap or sit at the same offset, in O(n)
+    private void merge() {
+        applyShifts();
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (kept > 0 && (starts[i] < ends[kept - 1] || starts[i] == starts[kept - 1])) {
+                ends[kept - 1] = Math.max(ends[kept - 1], ends[i]);
+                continue;
+            }
+            starts[kept] = starts[i];
+            ends[kept] = ends[i];
+            kept++;
+        }
+        size = kept;
+    }
+
+    // --- DocumentListener methods ----------------------------------------
+
+    public void insertUpdate(DocumentEvent e) {
+        if (replacing || size == 0) {
+            return;
+        }
+        int offset = e.getOffset();
+        int length = e.getLength();
+        // A caret at the offset moves on, as the text area's caret does;
+        // a selection ending there stays where it was
+        int from = indexAtOrAfter(offset);
+        if (from > 0 && getEnd(from - 1) > offset) {
+            applyShifts();
+            ends[from - 1] += length;
+        }
+        shift(from, length);
+    }
+
+    public void removeUpdate(DocumentEvent e) {
+        if (replacing || size == 0) {
+            return;
+        }
+        int offset = e.getOffset();
+        int end = offset + e.getLength();
+        int from = indexAtOrAfter(offset);
+        if (from > 0 && getEnd(from - 1) > offset) {
+            from--;
+        }
+        int after = indexAtOrAfter(end);
+        if (from < after) {
+            // Carets inside the removed text are pulled back to where it was
+            applyShifts();
+            for (int i = from; i < size && starts[i] < end; i++) {
+                starts[i] = collapse(starts[i], offset, end);
+                ends[i] = collapse(ends[i], offset, end);
+            }
+        }
+        shift(after, offset - end);
+    }
+
+    public void changedUpdate(DocumentEvent e) {
+    }
+
+    private static int collapse(int value, int offset, int end) {
+        return value <= offset ? value : value < end ? offset : value - (end - offset);
+    }
+
+    // --- Shifts ------------------------------------------------------------
+
+    // Moves the carets from the index on by delta
+    private void shift(int from, int delta) {
+        if (from == size || delta == 0) {
+            return;
+        }
+        if (shifts == null) {
+            shifts = new int[starts.length + 1];
+        }
+        for (int i = from + 1; i < shifts.length; i += i & -i) {
+            shifts[i] += delta;
+        }
+    }
+
+    private int shiftAt(int index) {
+        if (shifts == null) {
+            return 0;
+        }
+        int shift = 0;
+        for (int i = index + 1; i > 0; i -= i & -i) {
+            shift += shifts[i];
+        }
+        return shift;
+    }
+
+    // Adds the shifts into the starts and ends, in O(n), as MatchList does
+    private void applyShifts() {
+        if (shifts == null) {
+            return;
+        }
+        for (int i = shifts.length - 1; i > 0; i--) {
+            int parent = i + (i & -i);
+            if (parent < shifts.length) {
+                shifts[parent] -= shifts[i];
+            }
+        }
+        int shift = 0;
+        for (int i = 0; i < size; i++) {
+            shift += shifts[i + 1];
+            starts[i] += shift;
+            ends[i] += shift;
+        }
+        shifts = null;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > starts.length) {
+            applyShifts();
+            starts = Arrays.copyOf(starts, Math.max(capacity, starts.length * 2));
+            ends = Arrays.copyOf(ends, starts.length);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+import javax.swing.SwingUtilities;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hands the edits to a document to its subscribers once per trip round the
+ * EDT's event queue, rather than once per insert or remove. The edits made
+ * in between are merged into one change: a range of the text as it was
+ * before them, replaced by a range of the text as it is now, which covers
+ * everything they touched, and how many lines they added or took away, from
+ * the document's own line elements. Text outside the range is the same as
+ * before, only moved by the difference in length.
+ *
+ * The first edit of a batch queues the delivery; the rest only widen the
+ * range, which costs a few comparisons. The change handed out is one of two
+ * objects the bus keeps, so subscribers must not hold on to it. Anything
+ * that needs the subscribers up to date before the delivery, like a save
+ * about to start, calls flush().
+ *
+ * Subscribers that must see every edit as it happens, like the index the
+ * caret looks its line up in, stay listeners of the document instead.
+ *
+ * The bus counts the edits and batches it has seen and the time spent
+ * delivering them, so its cost can be read off while editing.
+ */
+public class ChangeBus implements DocumentListener {
+
+    /**
+     * Receives the merged change of a batch of edits.
+     */
+    public interface Subscriber {
+        void changed(Change change);
+    }
+
+    /**
+     * The edits of one batch, merged. Only valid during delivery.
+     */
+    public static final class Change {
+        private int offset;
+        // Ends of the range in the text before and after the batch
+        private int removedEnd;
+        private int insertedEnd;
+        private int lineDelta;
+        private int editCount;
+
+        /**
+         * Returns where the changed range starts.
+         */
+        public int getOffset() {
+            return offset;
+        }
+
+        /**
+         * Returns the length of the range in the text before the batch.
+         */
+        public int getRemovedLength() {
+            return removedEnd - offset;
+        }
+
+        /**
+         * Returns the length of the range in the text after it.
+         */
+        public int getInsertedLength() {
+            return insertedEnd - offset;
+        }
+
+        /**
+         * Returns how many more lines the text has than before the batch.
+         */
+        public int getLineDelta() {
+            return lineDelta;
+        }
+
+        public int getEditCount() {
+            return editCount;
+        }
+
+        // Widens the range to cover [from, to) of the text as it is now
+        private void cover(int from, int to) {
+            if (editCount == 0) {
+                offset = from;
+                removedEnd = to;
+                insertedEnd = to;
+                return;
+            }
+            if (from < offset) {
+                offset = from;
+            }
+            if (to > insertedEnd) {
+                // Past the range, the text is as before but moved
+                removedEnd += to - insertedEnd;
+                insertedEnd = to;
+            }
+        }
+    }
+
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    private Document document;
+    // Collects the edits of the batch while the other is being delivered,
+    // so a subscriber that edits the document starts the next batch
+    private Change pending = new Change();
+    private Change delivering = new Change();
+    private boolean scheduled;
+    private final Runnable flusher = this::flush;
+
+    private long events;
+    private long batches;
+    private long dispatchNanos;
+
+    /**
+     * Starts collecting the edits to the given document, first delivering
+     * those collected from the one before.
+     */
+    public void setDocument(Document doc) {
+        flush();
+        if (document != null) {
+            document.removeDocumentListener(this);
+        }
+        document = doc;
+        document.addDocumentListener(this);
+    }
+
+    public void addSubscriber(Subscriber subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    public void removeSubscriber(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    /**
+     * Delivers the edits collected so far now, instead of when the queued
+     * delivery runs.
+     */
+    public void flush() {
+        scheduled = false;
+        if (pending.editCount == 0) {
+            return;
+        }
+        Change change = pending;
+        pending = delivering;
+        delivering = change;
+        long start = System.nanoTime();
+        for (int i = 0; i < subscribers.size(); i++) {
+            subscribers.get(i).changed(change);
+        }
+        dispatchNanos += System.nanoTime() - start;
+        batches++;
+        change.editCount = 0;
+        change.lineDelta = 0;
+    }
+
+    /**
+     * Returns how many edits the bus has been told of.
+     */
+    public long getEventCount() {
+        return events;
+    }
+
+    /**
+     * Returns how many merged changes it has delivered.
+     */
+    public long getBatchCount() {
+        return batches;
+    }
+
+    /**
+     * Returns the time spent in subscribers, in nanoseconds.
+     */
+    public long getDispatchNanos() {
+        return dispatchNanos;
+    }
+
+    // --- DocumentListener methods ----------------------------------------
+
+    public void insertUpdate(DocumentEvent e) {
+        pending.cover(e.getOffset(), e.getOffset());
+        pending.insertedEnd += e.getLength();
+        added(e);
+    }
+
+    public void removeUpdate(DocumentEvent e) {
+        pending.cover(e.getOffset(), e.getOffset() + e.getLength());
+        pending.insertedEnd -= e.getLength();
+        added(e);
+    }
+
+    public void changedUpdate(DocumentEvent e) {
+        pending.cover(e.getOffset(), e.getOffset() + e.getLength());
+        added(e);
+    }
+
+    // Counts an edit in the batch, queueing its delivery if it is the first
+    private void added(DocumentEvent e) {
+        Element root = e.getDocument().getDefaultRootElement();
+        DocumentEvent.ElementChange lines = e.getChange(root);
+        if (lines != null) {
+            pending.lineDelta += lines.getChildrenAdded().length - lines.getChildrenRemoved().length;
+        }
+        pending.editCount++;
+        events++;
+        if (!scheduled) {
+            scheduled = true;
+            SwingUtilities.invokeLater(flusher);
+        }
+    }
+}
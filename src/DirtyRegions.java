@@ -0,0 +1,205 @@
+import java.util.Arrays;
+
+/**
+ * Tracks which parts of a document differ from the file since it was last
+ * loaded or saved, for incremental saves. It is fed the offset and length
+ * of every insert and remove, in the document's current coordinates.
+ *
+ * Two things are kept. The edited ranges hold the chars that were inserted
+ * and are still there. The shift points record how far text has moved:
+ * text at or after a point is displaced by the sum of the deltas up to it,
+ * so a remove that undoes an insert of the same length cancels it out.
+ * Text that is neither edited nor displaced is where it is in the file.
+ *
+ * After MAX_REGIONS separate regions the tracker gives up and reports that
+ * the whole document must be written.
+ */
+public class DirtyRegions {
+    static final int MAX_REGIONS = 4096;
+
+    // Edited ranges [start, end), sorted and not touching
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private int regions;
+
+    // Shift points, sorted, with a non-zero delta each
+    private int[] points = new int[16];
+    private int[] deltas = new int[16];
+    private int shifts;
+
+    private boolean overflowed;
+
+    public void insert(int offset, int length) {
+        if (overflowed) {
+            return;
+        }
+        for (int i = 0; i < regions; i++) {
+            if (starts[i] > offset) {
+                starts[i] += length;
+            }
+            if (ends[i] > offset) {
+                ends[i] += length;
+            }
+        }
+        for (int i = 0; i < shifts; i++) {
+            if (points[i] > offset) {
+                points[i] += length;
+            }
+        }
+        addShift(offset, length);
+        addRegion(offset, offset + length);
+    }
+
+    public void remove(int offset, int length) {
+        if (overflowed) {
+            return;
+        }
+        int end = offset + length;
+        // Inserted text that is removed again leaves nothing behind, so
+        // empty regions are dropped and the rest merged where they now touch
+        int kept = 0;
+        for (int i = 0; i < regions; i++) {
+            int start = collapse(starts[i], offset, end);
+            int stop = collapse(ends[i], offset, end);
+            if (start == stop) {
+                continue;
+            }
+            if (kept > 0 && ends[kept - 1] >= start) {
+                ends[kept - 1] = stop;
+            } else {
+                starts[kept] = start;
+                ends[kept] = stop;
+                kept++;
+            }
+        }
+        regions = kept;
+        for (int i = 0; i < shifts; i++) {
+            points[i] = collapse(points[i], offset, end);
+        }
+        // The text after the removed range has moved back
+        addShift(offset, -length);
+    }
+
+    // Maps an offset from before a remove of [start, end) to after it
+    private static int collapse(int position, int start, int end) {
+        if (position <= start) {
+            return position;
+        }
+        return position >= end ? position - (end - start) : start;
+    }
+
+    /**
+     * Forgets all changes, as after a save.
+     */
+    public void clear() {
+        regions = 0;
+        shifts = 0;
+        overflowed = false;
+    }
+
+    /**
+     * Marks the whole document as changed, for when the file no longer
+     * matches what was tracked, for example after a failed save.
+     */
+    public void invalidate() {
+        overflowed = true;
+    }
+
+    public DirtyRegions copy() {
+        DirtyRegions copy = new DirtyRegions();
+        copy.starts = Arrays.copyOf(starts, Math.max(1, regions));
+        copy.ends = Arrays.copyOf(ends, Math.max(1, regions));
+        copy.regions = regions;
+        copy.points = Arrays.copyOf(points, Math.max(1, shifts));
+        copy.deltas = Arrays.copyOf(deltas, Math.max(1, shifts));
+        copy.shifts = shifts;
+        copy.overflowed = overflowed;
+        return copy;
+    }
+
+    /**
+     * Returns whether the changes are still known. When they are not, the
+     * whole document has to be written.
+     */
+    public boolean isTracked() {
+        return !overflowed;
+    }
+
+    /**
+     * Returns whether the chars in [start, end) may differ from the file,
+     * either because they were edited or because they have moved.
+     */
+    public boolean isDirty(int start, int end) {
+        for (int i = 0; i < regions && starts[i] < end; i++) {
+            if (ends[i] > start) {
+                return true;
+            }
+        }
+        int shift = 0;
+        for (int i = 0; i < shifts && points[i] < end; i++) {
+            shift += deltas[i];
+            int next = i + 1 < shifts ? points[i + 1] : Integer.MAX_VALUE;
+            if (shift != 0 && next > start) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addShift(int point, int delta) {
+        int i = 0;
+        while (i < shifts && points[i] < point) {
+            i++;
+        }
+        // Points a remove collapsed onto this one are summed with it
+        int merged = delta;
+        int j = i;
+        while (j < shifts && points[j] == point) {
+            merged += deltas[j];
+            j++;
+        }
+        int keep = merged != 0 ? 1 : 0;
+        if (shifts - (j - i) + keep > MAX_REGIONS) {
+            overflowed = true;
+            return;
+        }
+        if (points.length < shifts + 1) {
+            points = Arrays.copyOf(points, points.length * 2);
+            deltas = Arrays.copyOf(deltas, deltas.length * 2);
+        }
+        System.arraycopy(points, j, points, i + keep, shifts - j);
+        System.arraycopy(deltas, j, deltas, i + keep, shifts - j);
+        shifts += keep - (j - i);
+        if (keep == 1) {
+            points[i] = point;
+            deltas[i] = merged;
+        }
+    }
+
+    private void addRegion(int start, int end) {
+        // Find the regions touching [start, end] and merge them into one
+        int first = 0;
+        while (first < regions && ends[first] < start) {
+            first++;
+        }
+        int last = first;
+        while (last < regions && starts[last] <= end) {
+            start = Math.min(start, starts[last]);
+            end = Math.max(end, ends[last]);
+            last++;
+        }
+        if (regions - (last - first) + 1 > MAX_REGIONS) {
+            overflowed = true;
+            return;
+        }
+        if (starts.length < regions + 1) {
+            starts = Arrays.copyOf(starts, starts.length * 2);
+            ends = Arrays.copyOf(ends, ends.length * 2);
+        }
+        System.arraycopy(starts, last, starts, first + 1, regions - last);
+        System.arraycopy(ends, last, ends, first + 1, regions - last);
+        regions += 1 - (last - first);
+        starts[first] = start;
+        ends[first] = end;
+    }
+}
@@ -0,0 +1,433 @@
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Writes documents to files without building a String of the whole text.
+ * The document is walked segment by segment and each segment is encoded
+ * straight into one fixed-size byte buffer, so a save needs the same small
+ * amount of extra memory no matter how large the document is.
+ *
+ * Saves never write into the target file directly: they go to a temporary
+ * file that replaces the target once it is complete. The one exception is
+ * {@link #patch}, which overwrites just the changed parts of a file for
+ * small edits to large files.
+ *
+ * The text is written in a {@link TextFormat}, so a file is saved with the
+ * charset, byte order mark and line endings it was read with.
+ *
+ * An instance keeps its encoder and buffers between saves and is meant to
+ * be used from one thread at a time.
+ */
+public class DocumentWriter {
+    // Size of the byte buffer handed to the channel
+    static final int BUFFER_SIZE = 64 * 1024;
+    // Most chars asked from the document at once, which bounds the copy made
+    // by documents that cannot return their text in place
+    static final int SEGMENT_SIZE = 64 * 1024;
+
+    private static final CharBuffer NO_CHARS = CharBuffer.allocate(0);
+    private static final Random TEMP_NAMES = new Random();
+
+    // Encoders made so far, kept for the next save in the same charset
+    private final Map<Charset, CharsetEncoder> encoders = new HashMap<>();
+    private final ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final Segment segment = new Segment();
+    private TextFormat format;
+    private CharsetEncoder encoder;
+    private long forceInterval;
+    private long lastForce;
+
+    /**
+     * Creates a writer for the given charset, with no byte order mark and
+     * LF line endings.
+     */
+    public DocumentWriter(Charset charset) {
+        segment.setPartialReturn(true);
+        setFormat(new TextFormat(charset, false, TextFormat.LineEnding.LF));
+    }
+
+    public Charset getCharset() {
+        return format.getCharset();
+    }
+
+    public TextFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Sets the format the following saves and writes use.
+     */
+    public void setFormat(TextFormat format) {
+        this.format = format;
+        this.encoder = encoders.computeIfAbsent(format.getCharset(), charset -> charset.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE));
+    }
+
+    /**
+     * Sets how often saves force their data to disk. With an interval of
+     * zero, the default, every save is forced. With a positive interval a
+     * save skips the force when the last forced save is more recent than
+     * that, batching fsyncs for frequent background saves such as autosave.
+     */
+    public void setForceInterval(long millis) {
+        forceInterval = millis;
+    }
+
+    /**
+     * Writes the document to the file without ever truncating it in place.
+     * The text goes to a temporary file next to the target, which is forced
+     * to disk and then renamed over the target in one atomic step, keeping
+     * the target's permissions. A crash or a full disk half way through
+     * leaves the old file as it was.
+     *
+     * Returns the layout of the saved file, for a later {@link #patch}.
+     */
+    public FileLayout save(Document doc, File file) throws IOException {
+        return save(doc.getLength(), doc::getText, file);
+    }
+
+    /**
+     * Saves a snapshot the same way, so it can be done off the EDT while the
+     * document is being edited.
+     */
+    public FileLayout save(TextSnapshot snapshot, File file) throws IOException {
+        return save(snapshot.length(), snapshot::getText, file);
+    }
+
+    private FileLayout save(int length, TextSource source, File file) throws IOException {
+        Path target = file.toPath().toAbsolutePath();
+        if (Files.exists(target)) {
+            // Replacing the file must not get around it being read-only
+            if (!Files.isWritable(target)) {
+                throw new AccessDeniedException(target.toString());
+            }
+            // Replace the file a symbolic link points to, not the link itself
+            target = target.toRealPath();
+        }
+        Path directory = target.getParent();
+        Path temp = createTempFile(directory, target.getFileName().toString());
+
+        FileLayout layout = new FileLayout(file);
+        long written;
+        boolean force = isForceDue();
+        boolean moved = false;
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                written = write(source, 0, length, true, channel, layout, 0);
+                if (force) {
+                    channel.force(true);
+                }
+            }
+            copyPermissions(target, temp);
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            moved = true;
+            if (force) {
+                forceDirectory(directory);
+                lastForce = System.currentTimeMillis();
+            }
+        } finally {
+            if (!moved) {
+                Files.deleteIfExists(temp);
+            }
+        }
+        layout.finish(format, length, written, file.lastModified());
+        return layout;
+    }
+
+    /**
+     * Saves a snapshot by overwriting only the blocks of the file that
+     * changed, given the layout the file was last loaded or saved with and
+     * the changes made since. The layout is updated to match the new file
+     * and returned.
+     *
+     * Changed blocks are rewritten in place when their text encodes to as
+     * many bytes as before. Otherwise everything from the first block that
+     * changed size to the end is rewritten, as long as that is not more than
+     * half the file. When neither works, or the file is not the one the
+     * layout was made for, nothing is written and null is returned, so the
+     * caller can fall back to {@link #save(TextSnapshot, File)}.
+     *
+     * Unlike a full save this is not atomic: a crash half way through can
+     * leave the file partly written.
+     */
+    public FileLayout patch(TextSnapshot snapshot, File file, FileLayout layout, DirtyRegions changes)
+            throws IOException {
+        int length = snapshot.length();
+        if (layout == null || !changes.isTracked() || length == 0 || !format.equals(layout.getFormat())
+                || !Files.isRegularFile(file.toPath()) || !Files.isWritable(file.toPath()) || !layout.matches(file)) {
+            return null;
+        }
+        TextSource source = snapshot::getText;
+
+        // Group the changed blocks into runs that start and end where the
+        // byte offset of the block in the file is known
+        int blockCount = (length + FileLayout.BLOCK_SIZE - 1) / FileLayout.BLOCK_SIZE;
+        List<int[]> runs = new ArrayList<>();
+        for (int block = 0; block < blockCount; block++) {
+            if (!isBlockDirty(block, blockCount, length, layout, changes)) {
+                continue;
+            }
+            int start = block;
+            while (layout.blockOffset(start) < 0) {
+                start--;
+            }
+            int end = block + 1;
+            while (end < blockCount
+                    && (layout.blockOffset(end) < 0 || isBlockDirty(end, blockCount, length, layout, changes))) {
+                end++;
+            }
+            runs.add(new int[] {start, end});
+            block = end - 1;
+        }
+
+        // Find the first run whose size changes; it and everything after it is the tail
+        int tail = runs.size();
+        for (int i = 0; i < runs.size() && tail == runs.size(); i++) {
+            int[] run = runs.get(i);
+            long size = write(source, blockStart(run[0]), blockEnd(run[1], length), false, DISCARD, null, 0);
+            if (size != oldEnd(run[1], blockCount, layout) - layout.blockOffset(run[0])) {
+                tail = i;
+            }
+        }
+        long tailStart = tail < runs.size() ? layout.blockOffset(runs.get(tail)[0]) : layout.getByteLength();
+        if (layout.getByteLength() - tailStart > layout.getByteLength() / 2) {
+            return null;
+        }
+
+        long byteLength = layout.getByteLength();
+        boolean force = isForceDue();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            for (int i = 0; i < tail; i++) {
+                int[] run = runs.get(i);
+                long offset = layout.blockOffset(run[0]);
+                // Block starts inside the run are recorded again as they are written
+                for (int block = run[0] + 1; block < run[1]; block++) {
+                    layout.record(block, -1);
+                }
+                channel.position(offset);
+                write(source, blockStart(run[0]), blockEnd(run[1], length), false, channel, layout, offset);
+            }
+            if (tail < runs.size()) {
+                int first = runs.get(tail)[0];
+                layout.truncate(first + 1);
+                channel.position(tailStart);
+                byteLength = tailStart + write(source, blockStart(first), length, false, channel, layout, tailStart);
+                channel.truncate(byteLength);
+            }
+            if (force) {
+                channel.force(true);
+                lastForce = System.currentTimeMillis();
+            }
+        }
+        layout.finish(format, length, byteLength, file.lastModified());
+        return layout;
+    }
+
+    // A block whose chars were edited or moved, or the last block when the
+    // text got shorter or longer at its very end
+    private static boolean isBlockDirty(int block, int blockCount, int length, FileLayout layout,
+            DirtyRegions changes) {
+        int start = blockStart(block);
+        int end = blockEnd(block + 1, length);
+        return changes.isDirty(start, end) || (block == blockCount - 1 && length != layout.getCharLength());
+    }
+
+    private static int blockStart(int block) {
+        return block * FileLayout.BLOCK_SIZE;
+    }
+
+    private static int blockEnd(int nextBlock, int length) {
+        return (int) Math.min((long) nextBlock * FileLayout.BLOCK_SIZE, length);
+    }
+
+    // Where the text before the given block ends in the file
+    private static long oldEnd(int nextBlock, int blockCount, FileLayout layout) {
+        return nextBlock >= blockCount ? layout.getByteLength() : layout.blockOffset(nextBlock);
+    }
+
+    private boolean isForceDue() {
+        return forceInterval <= 0 || System.currentTimeMillis() - lastForce >= forceInterval;
+    }
+
+    // Creates the temporary file with the default permissions a new file would get
+    private static Path createTempFile(Path directory, String name) throws IOException {
+        while (true) {
+            Path temp = directory.resolve("." + name + "." + Long.toHexString(TEMP_NAMES.nextLong()) + ".tmp");
+            try {
+                Files.newByteChannel(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE).close();
+                return temp;
+            } catch (FileAlreadyExistsException e) {
+                // Try another name
+            }
+        }
+    }
+
+    private static void copyPermissions(Path from, Path to) throws IOException {
+        if (Files.exists(from)
+                && Files.getFileStore(from).supportsFileAttributeView(PosixFileAttributeView.class)) {
+            Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+        }
+    }
+
+    // Makes the rename itself durable. Not every platform can open a directory.
+    private static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    /**
+     * Encodes the whole document into the channel and returns the number of
+     * bytes written.
+     */
+    public long write(Document doc, WritableByteChannel channel) throws IOException {
+        return write(doc::getText, 0, doc.getLength(), true, channel, null, 0);
+    }
+
+    public long write(TextSnapshot snapshot, WritableByteChannel channel) throws IOException {
+        return write(snapshot::getText, 0, snapshot.length(), true, channel, null, 0);
+    }
+
+    // Anything that hands out its text in segments, like a Document
+    private interface TextSource {
+        void getText(int offset, int length, Segment txt) throws BadLocationException;
+    }
+
+    // Counts the bytes a write would take without keeping them
+    private static final WritableByteChannel DISCARD = new WritableByteChannel() {
+        public int write(ByteBuffer src) {
+            int count = src.remaining();
+            src.position(src.limit());
+            return count;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    };
+
+    // Encodes the chars in [from, to), preceded by the byte order mark if
+    // asked for. When given a layout, the offset of every block start that
+    // is written is recorded in it, counting from base.
+    private long write(TextSource source, int from, int to, boolean byteOrderMark, WritableByteChannel channel,
+            FileLayout layout, long base) throws IOException {
+        encoder.reset();
+        bytes.clear();
+        long written = 0;
+        int offset = from;
+        if (byteOrderMark && format.hasByteOrderMark()) {
+            written += encode(CharBuffer.wrap("\uFEFF"), false, channel);
+        }
+        String separator = format.getLineEnding().getSeparator();
+        try {
+            while (offset < to) {
+                // Segments end on block boundaries so each block start is seen
+                int blockLeft = FileLayout.BLOCK_SIZE - offset % FileLayout.BLOCK_SIZE;
+                if (layout != null && blockLeft == FileLayout.BLOCK_SIZE) {
+                    layout.record(offset / FileLayout.BLOCK_SIZE, base + written + bytes.position());
+                }
+                source.getText(offset, Math.min(Math.min(SEGMENT_SIZE, blockLeft), to - offset), segment);
+                int count = segment.count;
+
+                // Never end a segment between the two halves of a surrogate pair
+                if (offset + count < to
+                        && Character.isHighSurrogate(segment.array[segment.offset + count - 1])) {
+                    if (count > 1) {
+                        count--;
+                    } else {
+                        segment.setPartialReturn(false);
+                        source.getText(offset, 2, segment);
+                        segment.setPartialReturn(true);
+                        count = 2;
+                    }
+                }
+
+                if (format.getLineEnding() == TextFormat.LineEnding.LF) {
+                    written += encode(CharBuffer.wrap(segment.array, segment.offset, count), false, channel);
+                } else {
+                    written += encodeLines(segment.array, segment.offset, count, separator, channel);
+                }
+                offset += count;
+            }
+        } catch (BadLocationException e) {
+            throw new IOException("Document changed while saving", e);
+        }
+
+        written += encode(NO_CHARS, true, channel);
+        while (encoder.flush(bytes).isOverflow()) {
+            written += drain(channel);
+        }
+        written += drain(channel);
+        return written;
+    }
+
+    // Encodes the chars with each LF replaced by the separator
+    private long encodeLines(char[] chars, int offset, int count, String separator, WritableByteChannel channel)
+            throws IOException {
+        long written = 0;
+        int start = offset;
+        int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            if (chars[i] == '\n') {
+                written += encode(CharBuffer.wrap(chars, start, i - start), false, channel);
+                written += encode(CharBuffer.wrap(separator), false, channel);
+                start = i + 1;
+            }
+        }
+        written += encode(CharBuffer.wrap(chars, start, end - start), false, channel);
+        return written;
+    }
+
+    private long encode(CharBuffer chars, boolean endOfInput, WritableByteChannel channel) throws IOException {
+        long written = 0;
+        while (encoder.encode(chars, bytes, endOfInput) == CoderResult.OVERFLOW) {
+            written += drain(channel);
+        }
+        return written;
+    }
+
+    // Writes out whatever is in the byte buffer and empties it
+    private long drain(WritableByteChannel channel) throws IOException {
+        bytes.flip();
+        long written = bytes.remaining();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        bytes.clear();
+        return written;
+    }
+}
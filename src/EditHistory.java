@@ -0,0 +1,1112 @@
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.UndoableEditEvent;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import javax.swing.undo.UndoManager;
+import javax.swing.undo.UndoableEdit;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The editor's undo history, kept as a tree of the states the text has been
+ * in. Each node is a state, reached from its parent by one edit, which the
+ * node keeps as the text it took out and put in. Undo goes to the parent,
+ * and an edit made after undoing starts a new branch instead of doing away
+ * with the states that were undone. Redo follows the branch visited last,
+ * so undo and redo work as they do on a stack. earlier() and later() step
+ * through the states in the order they were made, on whatever branch, and
+ * going from one state to another replays only the edits on the path
+ * through their common ancestor.
+ *
+ * Every CHECKPOINT_EDITS edits along a branch, a node also keeps a snapshot
+ * of its text, which copies no text. A path longer than that starts from
+ * the nearest checkpoint above the state gone to instead, replacing only
+ * the text that differs from it, so how long a jump takes does not grow
+ * with the length of the session.
+ *
+ * Keystrokes typed one after another in one place are merged into one edit
+ * per word, so undo takes back a word at a time rather than a char. A
+ * keystroke joins the edit before it if it is of the same kind, right next
+ * to it, within COALESCE_MILLIS of it, and does not start a new word after
+ * a space or line break. Anything else, like a paste, is an edit of its own.
+ *
+ * The history has a budget in bytes instead of a number of edits. Each edit
+ * and checkpoint in memory is charged an estimate of the heap it holds.
+ * When the history goes over budget, its oldest edits are spilled to a log
+ * file as the text they took out and put in, which the document records for
+ * each edit (see {@link PieceTableDocument#getFiredChanges}) without copying
+ * it. The file is written by a background thread, and all the heap keeps
+ * of a spilled edit is its small node, so undo goes back as far as the disk
+ * allows. Undoing a spilled edit reads its record back, which costs the
+ * size of the edit, however long the history is.
+ *
+ * Edits from a document that does not record changes are kept as the
+ * document's own undoable edits. They cannot be spilled, and are dropped
+ * over budget, with the states only they lead to, as a plain UndoManager
+ * drops edits over its limit.
+ *
+ * The history of a document that matches its file can be saved to a
+ * {@link HistoryFile} when the document is left. Opening the file again
+ * only notes where its history would be; the history is read, checked
+ * against the text as opened and added above the first state the first
+ * time undo goes past it.
+ */
+public class EditHistory extends UndoManager {
+    // Longest pause in milliseconds between keystrokes merged into one edit
+    static final long COALESCE_MILLIS = 1000;
+    // Edits along a branch between two checkpoints
+    static final int CHECKPOINT_EDITS = 256;
+    // Heap a node is charged for, each change it keeps, each piece of a
+    // checkpoint, and for the document's own edits their event and each
+    // line element they added or removed
+    static final int NODE_BYTES = 96;
+    static final int CHANGE_BYTES = 192;
+    static final int PIECE_BYTES = 16;
+    static final int EVENT_BYTES = 256;
+    static final int LINE_BYTES = 160;
+
+    /**
+     * A state of the text, and the edit that leads to it from its parent,
+     * held as one of: the changes recorded for it, the document's own
+     * edits, or a record in the log.
+     */
+    private static final class Node {
+        Node parent;
+        // Children, newest first, and the one redo goes to
+        Node firstChild;
+        Node nextSibling;
+        Node redo;
+        // Place in the order states were made, and distance from the first
+        int seq;
+        int depth;
+
+        List<PieceTableDocument.Change> changes;
+        List<UndoableEdit> edits;
+        long position = -1;
+        int size;
+        // Bytes charged while the edit is in memory
+        long bytes;
+
+        TextSnapshot checkpoint;
+        // Edits since the last checkpoint above
+        int sinceCheckpoint;
+
+        Node(Node parent, int seq) {
+            this.seq = seq;
+            if (parent != null) {
+                link(parent);
+            }
+        }
+
+        // Makes this the newest child of parent, and the one redo goes to
+        void link(Node parent) {
+            this.parent = parent;
+            depth = parent.depth + 1;
+            nextSibling = parent.firstChild;
+            parent.firstChild = this;
+            parent.redo = this;
+        }
+
+        void unlink() {
+            if (parent.firstChild == this) {
+                parent.firstChild = nextSibling;
+            } else {
+                Node child = parent.firstChild;
+                while (child.nextSibling != this) {
+                    child = child.nextSibling;
+                }
+                child.nextSibling = nextSibling;
+            }
+            if (parent.redo == this) {
+                parent.redo = parent.firstChild;
+            }
+            parent = null;
+            nextSibling = null;
+        }
+
+        boolean inMemory() {
+            return changes != null || edits != null;
+        }
+    }
+
+    /**
+     * Keystrokes being merged into one node: chars typed, or chars deleted
+     * with Backspace or Delete, one at a time.
+     */
+    private static final class Typing {
+        private final Node node;
+        private final Document document;
+        private final DocumentEvent.EventType type;
+        // Where the next char is typed, or the first char left after the
+        // deleted ones
+        private int offset;
+        private long lastTime;
+        private boolean afterSpace;
+
+        Typing(Node node, DocumentEvent e, long time) {
+            this.node = node;
+            document = e.getDocument();
+            type = e.getType();
+            offset = type == DocumentEvent.EventType.INSERT ? e.getOffset() + 1 : e.getOffset();
+            lastTime = time;
+            afterSpace = type == DocumentEvent.EventType.INSERT && isSpace(e);
+        }
+
+        // Whether an edit is a keystroke that could start or join one
+        static boolean isKeystroke(UndoableEdit edit) {
+            if (!(edit instanceof DocumentEvent)) {
+                return false;
+            }
+            DocumentEvent e = (DocumentEvent) edit;
+            return e.getLength() == 1
+                && (e.getType() == DocumentEvent.EventType.INSERT || e.getType() == DocumentEvent.EventType.REMOVE);
+        }
+
+        // Takes the keystroke in if it carries on from the ones before
+        boolean join(DocumentEvent e, long time) {
+            if (e.getDocument() != document || e.getType() != type || time - lastTime > COALESCE_MILLIS) {
+                return false;
+            }
+            if (type == DocumentEvent.EventType.INSERT) {
+                boolean space = isSpace(e);
+                if (e.getOffset() != offset || (afterSpace && !space)) {
+                    return false;
+                }
+                offset++;
+                afterSpace = space;
+            } else if (e.getOffset() == offset - 1) {
+                // Backspace
+                offset--;
+            } else if (e.getOffset() != offset) {
+                // Delete keeps the offset
+                return false;
+            }
+            lastTime = time;
+            return true;
+        }
+
+        private static boolean isSpace(DocumentEvent e) {
+            try {
+                return Character.isWhitespace(e.getDocument().getText(e.getOffset(), 1).charAt(0));
+            } catch (BadLocationException ex) {
+                return false;
+            }
+        }
+    }
+
+    private final long budget;
+    private Node root;
+    private Node current;
+    // Every state by seq, null for those dropped
+    private List<Node> timeline;
+    // Nodes whose edits are in memory, oldest first, and their bytes
+    private final ArrayDeque<Node> memory = new ArrayDeque<>();
+    private long bytes;
+    private int spilled;
+    private Typing typing;
+    // Set while going from state to state, whose edits to the document are
+    // not new history
+    private boolean applying;
+    private Document document;
+
+    private long logEnd;
+    private File logFile;
+    private FileChannel log;
+    private final ExecutorService writer;
+
+    // The file the document was opened from, whose saved history has not
+    // been read yet, the directory it is kept in, and whether it is there
+    private HistoryFile.Base base;
+    private File historyDirectory;
+    private Boolean baseSaved;
+
+    public EditHistory() {
+        this(budget());
+    }
+
+    EditHistory(long budget) {
+        this.budget = budget;
+        writer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "Undo history");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reset();
+    }
+
+    /**
+     * Returns the most heap the undo history may take, from the
+     * texteditor.undo.budget system property in bytes.
+     */
+    public static long budget() {
+        long fallback = Math.min(32L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 32);
+        return Long.getLong("texteditor.undo.budget", fallback);
+    }
+
+    /**
+     * Returns the estimated bytes held by the edits still in memory.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns how many edits have been spilled to disk.
+     */
+    public synchronized int getSpilledCount() {
+        return spilled;
+    }
+
+    @Override
+    public synchronized void undoableEditHappened(UndoableEditEvent e) {
+        if (applying) {
+            return;
+        }
+        UndoableEdit edit = e.getEdit();
+        List<PieceTableDocument.Change> changes = e.getSource() instanceof PieceTableDocument
+            ? ((PieceTableDocument) e.getSource()).getFiredChanges() : null;
+        if (e.getSource() instanceof Document) {
+            document = (Document) e.getSource();
+        }
+        long cost = cost(edit, changes);
+        long time = System.currentTimeMillis();
+        boolean keystroke = Typing.isKeystroke(edit);
+        if (typing != null && typing.node == current && keystroke && typing.join((DocumentEvent) edit, time)) {
+            if (current.changes != null) {
+                current.changes.addAll(changes);
+            } else {
+                current.edits.add(edit);
+            }
+            if (current.checkpoint != null) {
+                // No longer the text of the node; the next node takes one
+                long pieces = PIECE_BYTES * (long) current.checkpoint.getPieceCount();
+                current.bytes -= pieces;
+                bytes -= pieces;
+                current.checkpoint = null;
+                current.sinceCheckpoint = CHECKPOINT_EDITS - 1;
+            }
+            current.bytes += cost;
+            bytes += cost;
+        } else {
+            Node node = new Node(current, timeline.size());
+            if (changes != null) {
+                node.changes = new ArrayList<>(changes);
+            } else {
+                node.edits = new ArrayList<>(1);
+                node.edits.add(edit);
+            }
+            node.bytes = cost;
+            bytes += cost;
+            timeline.add(node);
+            memory.add(node);
+            current = node;
+            typing = keystroke ? new Typing(node, (DocumentEvent) edit, time) : null;
+            checkpoint(node);
+        }
+        spill();
+    }
+
+    // The heap an edit is charged for
+    private static long cost(UndoableEdit edit, List<PieceTableDocument.Change> changes) {
+        if (changes != null) {
+            // The texts are snapshots, which hold an entry per piece
+            long pieces = 0;
+            for (PieceTableDocument.Change change : changes) {
+                pieces += change.getRemoved().getPieceCount() + change.getInserted().getPieceCount();
+            }
+            return NODE_BYTES + CHANGE_BYTES * (long) changes.size() + PIECE_BYTES * pieces;
+        }
+        long lines = 0;
+        if (edit instanceof DocumentEvent) {
+            DocumentEvent e = (DocumentEvent) edit;
+            DocumentEvent.ElementChange change = e.getChange(e.getDocument().getDefaultRootElement());
+            if (change != null) {
+                lines = change.getChildrenAdded().length + change.getChildrenRemoved().length;
+            }
+        }
+        return NODE_BYTES + EVENT_BYTES + LINE_BYTES * lines;
+    }
+
+    // Snapshots the text of a new node if it is CHECKPOINT_EDITS below the
+    // last checkpoint
+    private void checkpoint(Node node) {
+        node.sinceCheckpoint = node.parent.sinceCheckpoint + 1;
+        if (node.sinceCheckpoint >= CHECKPOINT_EDITS && node.changes != null) {
+            node.checkpoint = ((PieceTableDocument) document).snapshot();
+            long pieces = PIECE_BYTES * (long) node.checkpoint.getPieceCount();
+            node.bytes += pieces;
+            bytes += pieces;
+            node.sinceCheckpoint = 0;
+        }
+    }
+
+    // Moves the oldest edits to the log while the history is over budget,
+    // keeping the newest, which typing may still add to. Checkpoints are
+    // dropped with their edits.
+    private void spill() {
+        while (bytes > budget && memory.size() > 1) {
+            Node oldest = memory.poll();
+            if (!oldest.inMemory()) {
+                // Dropped since
+                continue;
+            }
+            bytes -= oldest.bytes;
+            oldest.bytes = 0;
+            oldest.checkpoint = null;
+            if (oldest.changes != null) {
+                write(oldest);
+                oldest.changes = null;
+                spilled++;
+            } else {
+                drop(oldest);
+            }
+        }
+    }
+
+    // Forgets the edit of a node, which cannot be spilled, along with the
+    // states that can only be reached through it
+    private void drop(Node node) {
+        node.edits = null;
+        if (isAbove(node, current)) {
+            makeRoot(node);
+        } else {
+            node.unlink();
+            detach(node);
+        }
+    }
+
+    // Whether a is b or one of its ancestors
+    private static boolean isAbove(Node a, Node b) {
+        while (b.depth > a.depth) {
+            b = b.parent;
+        }
+        return a == b;
+    }
+
+    // Makes a state the first one, dropping everything not below it
+    private void makeRoot(Node node) {
+        if (node == root) {
+            return;
+        }
+        node.unlink();
+        detach(root);
+        forget(node);
+        timeline.set(node.seq, node);
+        node.checkpoint = null;
+        root = node;
+        // Whatever was saved ends at a state that can no longer be reached
+        base = null;
+    }
+
+    // Takes the nodes of a subtree out of the history
+    private void detach(Node top) {
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        stack.push(top);
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            timeline.set(node.seq, null);
+            forget(node);
+            node.checkpoint = null;
+            for (Node child = node.firstChild; child != null; child = child.nextSibling) {
+                stack.push(child);
+            }
+        }
+    }
+
+    // Forgets the edit of a node, wherever it is kept
+    private void forget(Node node) {
+        if (node.inMemory()) {
+            bytes -= node.bytes;
+            node.bytes = 0;
+            node.changes = null;
+            node.edits = null;
+        } else if (node.position >= 0) {
+            spilled--;
+            node.position = -1;
+        }
+    }
+
+    @Override
+    public synchronized boolean canUndo() {
+        return current.parent != null || (current == root && isBaseSaved());
+    }
+
+    @Override
+    public synchronized boolean canRedo() {
+        return current.redo != null;
+    }
+
+    // Whether a history may be saved for the file opened, which is looked
+    // for once, when undo first gets down to it
+    private boolean isBaseSaved() {
+        if (base == null) {
+            return false;
+        }
+        if (baseSaved == null) {
+            baseSaved = HistoryFile.exists(historyDirectory, base.path);
+        }
+        return baseSaved;
+    }
+
+    @Override
+    public synchronized void undo() throws CannotUndoException {
+        typing = null;
+        if (current == root && isBaseSaved()) {
+            readSaved();
+        }
+        if (current.parent == null || !step(current, true)) {
+            throw new CannotUndoException();
+        }
+    }
+
+    @Override
+    public synchronized void redo() throws CannotRedoException {
+        typing = null;
+        if (current.redo == null || !step(current.redo, false)) {
+            throw new CannotRedoException();
+        }
+    }
+
+    /**
+     * Goes to the state made before the current one, on whatever branch.
+     */
+    public synchronized void earlier() throws CannotUndoException {
+        typing = null;
+        if (current == root && isBaseSaved()) {
+            readSaved();
+        }
+        for (int seq = current.seq - 1; seq >= 0; seq--) {
+            Node target = timeline.get(seq);
+            if (target != null) {
+                if (!jumpTo(target)) {
+                    throw new CannotUndoException();
+                }
+                return;
+            }
+        }
+        throw new CannotUndoException();
+    }
+
+    /**
+     * Goes to the state made after the current one, on whatever branch.
+     */
+    public synchronized void later() throws CannotRedoException {
+        typing = null;
+        for (int seq = current.seq + 1; seq < timeline.size(); seq++) {
+            Node target = timeline.get(seq);
+            if (target != null) {
+                if (!jumpTo(target)) {
+                    throw new CannotRedoException();
+                }
+                return;
+            }
+        }
+        throw new CannotRedoException();
+    }
+
+    // Goes from the current state to another: up to their common ancestor
+    // and down, or from the nearest checkpoint above the target when that
+    // is fewer edits. Returns false if an edit on the way could not be read.
+    private boolean jumpTo(Node target) {
+        Node up = current;
+        Node down = target;
+        int steps = 0;
+        while (down.depth > up.depth) {
+            down = down.parent;
+            steps++;
+        }
+        while (up.depth > down.depth) {
+            up = up.parent;
+            steps++;
+        }
+        while (up != down) {
+            up = up.parent;
+            down = down.parent;
+            steps += 2;
+        }
+        Node ancestor = up;
+
+        Node from = ancestor;
+        int below = 0;
+        Node node = target;
+        for (int i = 0; node != null && i + CHECKPOINT_EDITS < steps; i++) {
+            if (node.checkpoint != null && node != current) {
+                from = node;
+                below = i;
+                break;
+            }
+            node = node.parent;
+        }
+        if (from != ancestor) {
+            try {
+                restore(from.checkpoint);
+            } catch (BadLocationException e) {
+                return false;
+            }
+            current = from;
+        } else {
+            while (current != ancestor) {
+                if (!step(current, true)) {
+                    return false;
+                }
+            }
+            below = target.depth - ancestor.depth;
+        }
+
+        Node[] path = new Node[below];
+        node = target;
+        for (int i = below - 1; i >= 0; i--) {
+            path[i] = node;
+            node = node.parent;
+        }
+        for (Node next : path) {
+            if (!step(next, false)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Undoes the edit of a node, or redoes it. If its record cannot be read,
+    // the states only it leads to are dropped and false is returned.
+    private boolean step(Node node, boolean undo) {
+        try {
+            if (node.changes != null) {
+                apply(node.changes, undo);
+            } else if (node.edits != null) {
+                applying = true;
+                try {
+                    for (int k = 0; k < node.edits.size(); k++) {
+                        if (undo) {
+                            node.edits.get(node.edits.size() - 1 - k).undo();
+                        } else {
+                            node.edits.get(k).redo();
+                        }
+                    }
+                } finally {
+                    applying = false;
+                }
+            } else {
+                apply(read(node), undo);
+            }
+        } catch (IOException | BadLocationException e) {
+            if (undo) {
+                makeRoot(node);
+            } else {
+                node.unlink();
+                detach(node);
+            }
+            return false;
+        }
+        node.parent.redo = node;
+        current = undo ? node.parent : node;
+        return true;
+    }
+
+    // Makes the text that of a checkpoint, replacing only what lies between
+    // the start and end both have in common
+    private void restore(TextSnapshot target) throws BadLocationException {
+        TextSnapshot text = ((PieceTableDocument) document).snapshot();
+        int prefix = commonPrefix(text, target);
+        int suffix = commonSuffix(text, target, Math.min(text.length(), target.length()) - prefix);
+        applying = true;
+        try {
+            if (text.length() - prefix - suffix > 0) {
+                document.remove(prefix, text.length() - prefix - suffix);
+            }
+            if (target.length() - prefix - suffix > 0) {
+                document.insertString(prefix, target.getText(prefix, target.length() - prefix - suffix), null);
+            }
+        } finally {
+            applying = false;
+        }
+    }
+
+    // Length of the start two texts share. Runs of the same piece are
+    // skipped without looking at them.
+    private static int commonPrefix(TextSnapshot a, TextSnapshot b) throws BadLocationException {
+        Segment sa = new Segment();
+        Segment sb = new Segment();
+        sa.setPartialReturn(true);
+        sb.setPartialReturn(true);
+        int length = Math.min(a.length(), b.length());
+        int offset = 0;
+        while (offset < length) {
+            a.getText(offset, length - offset, sa);
+            b.getText(offset, length - offset, sb);
+            int count = Math.min(sa.count, sb.count);
+            if (sa.array != sb.array || sa.offset != sb.offset) {
+                for (int i = 0; i < count; i++) {
+                    if (sa.array[sa.offset + i] != sb.array[sb.offset + i]) {
+                        return offset + i;
+                    }
+                }
+            }
+            offset += count;
+        }
+        return length;
+    }
+
+    // Length of the end two texts share, up to limit, compared a block at
+    // a time from the end
+    private static int commonSuffix(TextSnapshot a, TextSnapshot b, int limit) throws BadLocationException {
+        Segment sa = new Segment();
+        Segment sb = new Segment();
+        int matched = 0;
+        while (matched < limit) {
+            int count = Math.min(4096, limit - matched);
+            a.getText(a.length() - matched - count, count, sa);
+            b.getText(b.length() - matched - count, count, sb);
+            if (sa.array != sb.array || sa.offset != sb.offset) {
+                for (int i = count - 1; i >= 0; i--) {
+                    if (sa.array[sa.offset + i] != sb.array[sb.offset + i]) {
+                        return matched + count - 1 - i;
+                    }
+                }
+            }
+            matched += count;
+        }
+        return limit;
+    }
+
+    @Override
+    public synchronized void discardAllEdits() {
+        reset();
+    }
+
+    private void reset() {
+        root = new Node(null, 0);
+        current = root;
+        timeline = new ArrayList<>();
+        timeline.add(root);
+        memory.clear();
+        bytes = 0;
+        spilled = 0;
+        typing = null;
+        logEnd = 0;
+        base = null;
+    }
+
+    /**
+     * Sets the file the document was just opened from. A history saved for
+     * it in directory is only looked for once undo gets down to the text as
+     * opened.
+     */
+    public synchronized void setBase(Document document, File directory, HistoryFile.Base base) {
+        this.document = document;
+        this.historyDirectory = directory;
+        this.base = base;
+        baseSaved = null;
+        root.checkpoint = base.text;
+    }
+
+    /**
+     * Saves the edits from the first state to the current one, in the
+     * background, as the history of a file whose text the document matches.
+     * A history of the file it was opened from that has not been read yet
+     * is carried over above them.
+     */
+    public synchronized void save(File directory, HistoryFile.Base saved) {
+        if (writer.isShutdown() || current == root) {
+            return;
+        }
+        // Each edit's changes, or where its record is in the log
+        List<Object> path = new ArrayList<>();
+        for (Node node = current; node != root; node = node.parent) {
+            if (node.changes != null) {
+                path.add(new ArrayList<>(node.changes));
+            } else if (node.position >= 0) {
+                path.add(new long[] {node.position, node.size});
+            } else {
+                // The document's own edits cannot be saved
+                return;
+            }
+        }
+        HistoryFile.Base carried = base;
+        writer.execute(() -> {
+            try (HistoryFile.Writer out = new HistoryFile.Writer(directory, saved)) {
+                if (carried != null) {
+                    copySaved(directory, carried, out);
+                }
+                Segment segment = new Segment();
+                segment.setPartialReturn(true);
+                for (int i = path.size() - 1; i >= 0; i--) {
+                    if (path.get(i) instanceof long[]) {
+                        long[] at = (long[]) path.get(i);
+                        Record record = readRecord(at[0], (int) at[1]);
+                        out.startEdit(record.offsets.length);
+                        for (int j = 0; j < record.offsets.length; j++) {
+                            out.writeOffset(record.offsets[j]);
+                            out.writeText(record.removed[j]);
+                            out.writeText(record.inserted[j]);
+                        }
+                    } else {
+                        @SuppressWarnings("unchecked")
+                        List<PieceTableDocument.Change> changes = (List<PieceTableDocument.Change>) path.get(i);
+                        out.startEdit(changes.size());
+                        for (PieceTableDocument.Change change : changes) {
+                            out.writeOffset(change.getOffset());
+                            out.writeText(change.getRemoved(), segment);
+                            out.writeText(change.getInserted(), segment);
+                        }
+                    }
+                }
+                out.commit();
+            } catch (IOException | BadLocationException e) {
+                // Only the history kept for next time is lost
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Forgets the history and deletes the log. Waits briefly for a history
+     * being saved, so it is not lost when the application exits right after.
+     */
+    public synchronized void close() {
+        if (writer.isShutdown()) {
+            return;
+        }
+        reset();
+        writer.execute(() -> {
+            try {
+                if (log != null) {
+                    log.close();
+                    log = null;
+                }
+            } catch (IOException e) {
+                // Only a temp file is lost
+            }
+            if (logFile != null) {
+                logFile.delete();
+            }
+        });
+        writer.shutdown();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // --- The log -----------------------------------------------------------
+
+    // Records the changes of a node's edit at the end of the log: their
+    // count, and for each its offset and the text taken out and put in, as
+    // UTF-16
+    private void write(Node node) {
+        List<PieceTableDocument.Change> changes = node.changes;
+        long size = 4;
+        for (PieceTableDocument.Change change : changes) {
+            size += 12 + 2L * (change.getRemoved().length() + change.getInserted().length());
+        }
+        long position = logEnd;
+        node.position = position;
+        node.size = (int) size;
+        logEnd = position + size;
+        writer.execute(() -> {
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                long at = position;
+                buffer.putInt(changes.size());
+                Segment segment = new Segment();
+                segment.setPartialReturn(true);
+                for (PieceTableDocument.Change change : changes) {
+                    TextSnapshot removed = change.getRemoved();
+                    TextSnapshot inserted = change.getInserted();
+                    if (buffer.remaining() < 12) {
+                        at += flush(buffer, at);
+                    }
+                    buffer.putInt(change.getOffset());
+                    buffer.putInt(removed.length());
+                    at = putText(removed, buffer, at, segment);
+                    if (buffer.remaining() < 4) {
+                        at += flush(buffer, at);
+                    }
+                    buffer.putInt(inserted.length());
+                    at = putText(inserted, buffer, at, segment);
+                }
+                flush(buffer, at);
+            } catch (IOException | BadLocationException e) {
+                // Undo reads a record back and finds it broken
+                e.printStackTrace();
+            }
+        });
+    }
+
+    // Puts the text into the buffer, writing it out whenever it fills up.
+    // Returns where the buffer's contents go in the log.
+    private long putText(TextSnapshot text, ByteBuffer buffer, long at, Segment segment)
+            throws IOException, BadLocationException {
+        int offset = 0;
+        while (offset < text.length()) {
+            text.getText(offset, text.length() - offset, segment);
+            for (int i = 0; i < segment.count; i++) {
+                if (buffer.remaining() < 2) {
+                    at += flush(buffer, at);
+                }
+                buffer.putChar(segment.array[segment.offset + i]);
+            }
+            offset += segment.count;
+        }
+        return at;
+    }
+
+    // Writes out the buffer at the given place in the log, returning how
+    // many bytes were written
+    private long flush(ByteBuffer buffer, long at) throws IOException {
+        if (log == null) {
+            logFile = File.createTempFile("texteditor-undo", ".log");
+            logFile.deleteOnExit();
+            log = FileChannel.open(logFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        buffer.flip();
+        int count = buffer.remaining();
+        long position = at;
+        while (buffer.hasRemaining()) {
+            position += log.write(buffer, position);
+        }
+        buffer.clear();
+        return count;
+    }
+
+    // A spilled edit read back: the offsets, removed and inserted texts
+    private static final class Record {
+        final int[] offsets;
+        final String[] removed;
+        final String[] inserted;
+
+        Record(int count) {
+            offsets = new int[count];
+            removed = new String[count];
+            inserted = new String[count];
+        }
+    }
+
+    // Reads the record of a spilled node back, once the writer has written it
+    private Record read(Node node) throws IOException {
+        long position = node.position;
+        int size = node.size;
+        return await(writer.submit(() -> readRecord(position, size)));
+    }
+
+    // Waits for a task on the writer
+    private static <T> T await(Future<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    // Reads a record from the log, on the writer
+    private Record readRecord(long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            if (log == null || log.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Undo log is shorter than expected");
+            }
+        }
+        buffer.flip();
+        Record record = new Record(buffer.getInt());
+        for (int i = 0; i < record.offsets.length; i++) {
+            record.offsets[i] = buffer.getInt();
+            record.removed[i] = getText(buffer);
+            record.inserted[i] = getText(buffer);
+        }
+        return record;
+    }
+
+    private static String getText(ByteBuffer buffer) {
+        char[] chars = new char[buffer.getInt()];
+        buffer.asCharBuffer().get(chars);
+        buffer.position(buffer.position() + 2 * chars.length);
+        return new String(chars);
+    }
+
+    // Makes the changes of a spilled edit to the document again, or takes
+    // them back in reverse order
+    private void apply(Record record, boolean undo) throws BadLocationException {
+        applying = true;
+        try {
+            int count = record.offsets.length;
+            for (int k = 0; k < count; k++) {
+                int i = undo ? count - 1 - k : k;
+                String out = undo ? record.inserted[i] : record.removed[i];
+                String in = undo ? record.removed[i] : record.inserted[i];
+                if (!out.isEmpty()) {
+                    document.remove(record.offsets[i], out.length());
+                }
+                if (!in.isEmpty()) {
+                    document.insertString(record.offsets[i], in, null);
+                }
+            }
+        } finally {
+            applying = false;
+        }
+    }
+
+    // The same for an edit still in memory, putting the pieces of its
+    // snapshots back rather than copies of their text
+    private void apply(List<PieceTableDocument.Change> changes, boolean undo) throws BadLocationException {
+        applying = true;
+        try {
+            int count = changes.size();
+            for (int k = 0; k < count; k++) {
+                PieceTableDocument.Change change = changes.get(undo ? count - 1 - k : k);
+                TextSnapshot out = undo ? change.getInserted() : change.getRemoved();
+                TextSnapshot in = undo ? change.getRemoved() : change.getInserted();
+                ((PieceTableDocument) document).replace(change.getOffset(), out.length(), in);
+            }
+        } finally {
+            applying = false;
+        }
+    }
+
+    // --- The saved history ---------------------------------------------------
+
+    // Reads the history saved for the file opened into the log, as states
+    // above the first one, which the current one is
+    private void readSaved() {
+        HistoryFile.Base saved = base;
+        File directory = historyDirectory;
+        base = null;
+        long start = logEnd;
+        long[] ends;
+        try {
+            ends = await(writer.submit(() -> appendSaved(directory, saved, start)));
+        } catch (IOException e) {
+            // Nothing more to undo then
+            return;
+        }
+        int count = ends.length - 1;
+        if (count == 0) {
+            return;
+        }
+        logEnd = ends[count];
+        spilled += count;
+
+        // The saved edits lead from a new first state to the old one, which
+        // takes the last of them
+        List<Node> states = new ArrayList<>(count + timeline.size());
+        Node first = new Node(null, 0);
+        states.add(first);
+        Node parent = first;
+        for (int i = 0; i < count; i++) {
+            Node node = i == count - 1 ? root : new Node(parent, i + 1);
+            node.position = ends[i];
+            node.size = (int) (ends[i + 1] - ends[i]);
+            if (node == root) {
+                node.link(parent);
+            } else {
+                states.add(node);
+            }
+            parent = node;
+        }
+        for (Node node : timeline) {
+            if (node != null) {
+                node.seq += count;
+                if (node != root) {
+                    node.depth += count;
+                }
+            }
+        }
+        states.addAll(timeline);
+        timeline = states;
+        root = first;
+    }
+
+    // Copies the saved history of a base to the end of the log, on the
+    // writer, returning where each record starts and where the last ends
+    private long[] appendSaved(File directory, HistoryFile.Base saved, long start)
+            throws IOException, BadLocationException {
+        long[] ends = new long[64];
+        ends[0] = start;
+        int count = 0;
+        try (HistoryFile.Reader in = HistoryFile.Reader.open(directory, saved)) {
+            if (in == null) {
+                return new long[] {start};
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            for (int changes = in.nextEdit(); changes >= 0; changes = in.nextEdit()) {
+                Record record = new Record(changes);
+                for (int i = 0; i < changes; i++) {
+                    record.offsets[i] = in.readOffset();
+                    record.removed[i] = in.readText();
+                    record.inserted[i] = in.readText();
+                }
+                if (count + 1 == ends.length) {
+                    ends = Arrays.copyOf(ends, ends.length * 2);
+                }
+                ends[count + 1] = putRecord(record, buffer, ends[count]);
+                count++;
+            }
+        }
+        return Arrays.copyOf(ends, count + 1);
+    }
+
+    // Writes a record read back at the given place in the log, returning
+    // where it ends
+    private long putRecord(Record record, ByteBuffer buffer, long at) throws IOException {
+        buffer.putInt(record.offsets.length);
+        for (int i = 0; i < record.offsets.length; i++) {
+            if (buffer.remaining() < 8) {
+                at += flush(buffer, at);
+            }
+            buffer.putInt(record.offsets[i]);
+            at = putString(record.removed[i], buffer, at);
+            at = putString(record.inserted[i], buffer, at);
+        }
+        return at + flush(buffer, at);
+    }
+
+    private long putString(String text, ByteBuffer buffer, long at) throws IOException {
+        if (buffer.remaining() < 4) {
+            at += flush(buffer, at);
+        }
+        buffer.putInt(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            if (buffer.remaining() < 2) {
+                at += flush(buffer, at);
+            }
+            buffer.putChar(text.charAt(i));
+        }
+        return at;
+    }
+
+    // Copies the records of a saved history into another
+    private static void copySaved(File directory, HistoryFile.Base saved, HistoryFile.Writer out)
+            throws IOException, BadLocationException {
+        try (HistoryFile.Reader in = HistoryFile.Reader.open(directory, saved)) {
+            if (in == null) {
+                return;
+            }
+            for (int changes = in.nextEdit(); changes >= 0; changes = in.nextEdit()) {
+                out.startEdit(changes);
+                for (int i = 0; i < changes; i++) {
+                    out.writeOffset(in.readOffset());
+                    out.writeText(in.readText());
+                    out.writeText(in.readText());
+                }
+            }
+        }
+    }
+}
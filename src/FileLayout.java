@@ -0,0 +1,94 @@
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Where the text of a document lies in the file it was last loaded from or
+ * saved to: the byte offset of every BLOCK_SIZE-th char, along with the
+ * format, size and modification time of the file at that point. With it an
+ * incremental save can find the bytes of any block of text without reading
+ * or encoding what comes before it.
+ *
+ * Offsets are in document chars, which always use LF line endings. An
+ * offset is unknown (-1) when its char is not at a clean byte boundary,
+ * such as the second half of a surrogate pair or the LF of a CRLF.
+ */
+public class FileLayout {
+    // Chars per block
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    private final File file;
+    private TextFormat format;
+    private long[] offsets = new long[16];
+    private int blocks;
+    private int charLength;
+    private long byteLength;
+    private long lastModified;
+
+    FileLayout(File file) {
+        this.file = file.getAbsoluteFile();
+    }
+
+    public TextFormat getFormat() {
+        return format;
+    }
+
+    public int getCharLength() {
+        return charLength;
+    }
+
+    public long getByteLength() {
+        return byteLength;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Returns the byte offset of the first char of the block, or -1 if not
+     * known. The block after the last one starts at the end of the file.
+     */
+    public long blockOffset(int block) {
+        if (block < blocks) {
+            return offsets[block];
+        }
+        return block * (long) BLOCK_SIZE >= charLength ? byteLength : -1;
+    }
+
+    /**
+     * Returns whether this is the layout of the given file and the file still
+     * has the size and modification time it had when it was recorded.
+     */
+    public boolean matches(File file) {
+        return this.file.equals(file.getAbsoluteFile())
+            && file.length() == byteLength && file.lastModified() == lastModified;
+    }
+
+    // --- Recording -----------------------------------------------------
+
+    /**
+     * Drops the offsets of the given block and those after it, so they can
+     * be recorded again for a rewritten tail.
+     */
+    void truncate(int block) {
+        blocks = Math.min(blocks, block);
+    }
+
+    void record(int block, long offset) {
+        if (block >= offsets.length) {
+            offsets = Arrays.copyOf(offsets, Math.max(block + 1, offsets.length * 2));
+        }
+        for (int i = blocks; i < block; i++) {
+            offsets[i] = -1;
+        }
+        offsets[block] = offset;
+        blocks = Math.max(blocks, block + 1);
+    }
+
+    void finish(TextFormat format, int charLength, long byteLength, long lastModified) {
+        this.format = format;
+        this.charLength = charLength;
+        this.byteLength = byteLength;
+        this.lastModified = lastModified;
+    }
+}
@@ -0,0 +1,244 @@
+import javax.swing.SwingWorker;
+import java.io.File;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Loads a file in the background by memory-mapping it and decoding it in
+ * large chunks. The result is a single buffer holding the whole text, so the
+ * editor can build its document with one insert instead of one per line.
+ *
+ * The charset, byte order mark and line ending of the file are worked out
+ * along the way, from the first bytes of the first chunk and while line
+ * endings are normalized, so they cost no extra pass over the file. Only a
+ * file with bytes past those first ones that the charset cannot read is
+ * decoded again, in a charset that reads them, so saving writes them back
+ * as they were.
+ */
+public class FileLoader extends SwingWorker<CharBuffer, Void> {
+    // Number of bytes mapped and decoded per step
+    static final int CHUNK_SIZE = 32 * 1024 * 1024;
+
+    // Decoders kept between loads, per charset
+    private static final Map<Charset, Queue<CharsetDecoder>> DECODERS = new ConcurrentHashMap<>();
+
+    private final File file;
+    private final Charset charset;
+    private volatile TextFormat format;
+    private volatile FileLayout layout;
+
+    /**
+     * Creates a loader that detects the charset of the file.
+     */
+    public FileLoader(File file) {
+        this(file, null);
+    }
+
+    /**
+     * Creates a loader that decodes the file with the given charset, or
+     * detects it when the charset is null.
+     */
+    public FileLoader(File file, Charset charset) {
+        this.file = file;
+        this.charset = charset;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the format the file was read in, once loading is done.
+     */
+    public TextFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Returns where each block of the loaded text lies in the file, once
+     * loading is done.
+     */
+    public FileLayout getLayout() {
+        return layout;
+    }
+
+    @Override
+    protected CharBuffer doInBackground() throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long lastModified = file.lastModified();
+            long size = channel.size();
+            MappedByteBuffer first = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(CHUNK_SIZE, size));
+            TextFormat detected = TextFormat.detect(first, Charset.defaultCharset());
+            if (charset != null) {
+                if (!charset.equals(detected.getCharset())) {
+                    detected = new TextFormat(charset, false, TextFormat.LineEnding.LF);
+                }
+                return decode(channel, first, size, lastModified, detected, CodingErrorAction.REPLACE);
+            }
+            try {
+                return decode(channel, first, size, lastModified, detected, CodingErrorAction.REPORT);
+            } catch (CharacterCodingException e) {
+                // Bytes past the sample the charset cannot read. Replacing them
+                // would save other bytes in their place, so decode again with
+                // the fallback, or with ISO-8859-1, which reads every byte.
+                TextFormat fallback = TextFormat.fallback(Charset.defaultCharset());
+                if (!fallback.equals(detected)) {
+                    try {
+                        return decode(channel, first, size, lastModified, fallback, CodingErrorAction.REPORT);
+                    } catch (CharacterCodingException again) {
+                        // Nor the fallback
+                    }
+                }
+                TextFormat latin1 = new TextFormat(StandardCharsets.ISO_8859_1, false, TextFormat.LineEnding.LF);
+                return decode(channel, first, size, lastModified, latin1, CodingErrorAction.REPORT);
+            }
+        }
+    }
+
+    // Decodes the whole file in the given format, failing on bytes it cannot
+    // read unless told to replace them
+    private CharBuffer decode(FileChannel channel, MappedByteBuffer first, long size, long lastModified,
+            TextFormat detected, CodingErrorAction onError) throws IOException {
+        CharsetDecoder decoder = acquireDecoder(detected.getCharset(), onError);
+        try {
+            // Size the buffer once for the worst case so decoding never copies
+            long capacity = (long) Math.ceil(size * (double) decoder.maxCharsPerByte());
+            if (capacity >= Integer.MAX_VALUE) {
+                throw new IOException("File is too large to open: " + file.getName());
+            }
+            CharBuffer text = CharBuffer.allocate((int) capacity);
+
+            // The byte order mark is not part of the text
+            long position = detected.byteOrderMarkLength();
+            FileLayout fileLayout = new FileLayout(file);
+            fileLayout.record(0, position);
+            long[] lineEndings = new long[TextFormat.LineEnding.values().length];
+            boolean lastWasCR = false;
+            while (position < size && !isCancelled()) {
+                int window = (int) Math.min(CHUNK_SIZE, size - position);
+                boolean endOfInput = position + window == size;
+                MappedByteBuffer in = position + window <= first.limit()
+                    ? first.position((int) position).slice()
+                    : channel.map(FileChannel.MapMode.READ_ONLY, position, window);
+
+                // Decode a block at a time to note where each block starts in the file
+                CoderResult result;
+                do {
+                    int start = text.position();
+                    int boundary = (start / FileLayout.BLOCK_SIZE + 1) * FileLayout.BLOCK_SIZE;
+                    text.limit((int) Math.min(capacity, boundary));
+                    result = decoder.decode(in, text, endOfInput);
+                    if (result.isOverflow() && text.position() == start) {
+                        // A surrogate pair straddles the boundary, so that block start is not recorded
+                        text.limit((int) Math.min(capacity, boundary + 1));
+                        result = decoder.decode(in, text, endOfInput);
+                    }
+                    if (result.isError()) {
+                        result.throwException();
+                    }
+                    if (result.isOverflow() && text.limit() == capacity) {
+                        throw new IOException("Decoded text does not fit the buffer: " + file.getName());
+                    }
+                    lastWasCR = normalizeLineEndings(text, start, lastWasCR, lineEndings);
+                    if (text.position() == boundary) {
+                        // After a CR the block may start past an LF that is still to come
+                        fileLayout.record(boundary / FileLayout.BLOCK_SIZE,
+                            lastWasCR ? -1 : position + in.position());
+                    }
+                } while (result.isOverflow());
+                if (endOfInput) {
+                    text.limit((int) capacity);
+                    decoder.flush(text);
+                }
+
+                // A character split across the window edge is decoded with the next window
+                position += in.position();
+                setProgress((int) (position * 100 / size));
+            }
+            if (lastWasCR) {
+                lineEndings[TextFormat.LineEnding.CR.ordinal()]++;
+            }
+            format = detected.withLineEnding(mostCommon(lineEndings));
+            fileLayout.finish(format, text.position(), size, lastModified);
+            layout = fileLayout;
+            text.flip();
+            return text;
+        } finally {
+            releaseDecoder(decoder);
+        }
+    }
+
+    private static CharsetDecoder acquireDecoder(Charset charset, CodingErrorAction onError) {
+        CharsetDecoder decoder = DECODERS.computeIfAbsent(charset, c -> new ConcurrentLinkedQueue<>()).poll();
+        if (decoder == null) {
+            decoder = charset.newDecoder();
+        }
+        return decoder.reset().onMalformedInput(onError).onUnmappableCharacter(onError);
+    }
+
+    private static void releaseDecoder(CharsetDecoder decoder) {
+        DECODERS.get(decoder.charset()).offer(decoder);
+    }
+
+    // Returns the line ending counted most often, LF when there are none
+    private static TextFormat.LineEnding mostCommon(long[] counts) {
+        TextFormat.LineEnding result = TextFormat.LineEnding.LF;
+        for (TextFormat.LineEnding ending : TextFormat.LineEnding.values()) {
+            if (counts[ending.ordinal()] > counts[result.ordinal()]) {
+                result = ending;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Converts CRLF and CR line endings to LF in place for the chars decoded
+     * since start, which is what the Swing documents expect, and adds up how
+     * often each line ending was seen. Returns whether the last char was a
+     * CR, so a CRLF split across chunks is still joined and counted once.
+     */
+    static boolean normalizeLineEndings(CharBuffer text, int start, boolean lastWasCR, long[] lineEndings) {
+        char[] chars = text.array();
+        int end = text.position();
+        int write = start;
+        for (int read = start; read < end; read++) {
+            char c = chars[read];
+            if (c == '\r') {
+                if (lastWasCR) {
+                    lineEndings[TextFormat.LineEnding.CR.ordinal()]++;
+                }
+                chars[write++] = '\n';
+                lastWasCR = true;
+            } else if (c == '\n') {
+                if (lastWasCR) {
+                    lineEndings[TextFormat.LineEnding.CRLF.ordinal()]++;
+                } else {
+                    lineEndings[TextFormat.LineEnding.LF.ordinal()]++;
+                    chars[write++] = c;
+                }
+                lastWasCR = false;
+            } else {
+                if (lastWasCR) {
+                    lineEndings[TextFormat.LineEnding.CR.ordinal()]++;
+                }
+                chars[write++] = c;
+                lastWasCR = false;
+            }
+        }
+        text.position(write);
+        return lastWasCR;
+    }
+}
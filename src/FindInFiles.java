@@ -0,0 +1,386 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Finds a literal string in every file under a directory. The tree is
+ * walked with Files.walkFileTree and each file that passes the include and
+ * exclude globs is searched as its own task on the {@link IoExecutor}, so
+ * on a JDK with virtual threads every file gets one. At most PARALLELISM
+ * files are open at a time.
+ *
+ * Files are read as bytes: memory-mapped when large, read in one go when
+ * small, since mapping costs more than reading a small file and mappings
+ * are only released by the garbage collector. A file with a zero byte near
+ * its start, and no byte order mark or zeros saying it is UTF-16, is taken
+ * as binary and skipped. UTF-8 and single-byte files are searched for the
+ * encoded bytes of the text, without decoding them; others are decoded
+ * first. Each match is reported with its line and the offset it has in the
+ * editor once the file is opened, where line endings are LF.
+ */
+public class FindInFiles {
+    // Files searched at the same time
+    static final int PARALLELISM = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+    // Files at least this large are memory-mapped
+    static final int MAP_THRESHOLD = 256 * 1024;
+    // Matches reported per file, at most
+    static final int MAX_HITS_PER_FILE = 1000;
+    // Bytes of the line shown on each side of a match
+    private static final int PREVIEW_BYTES = 120;
+
+    /**
+     * A match in a file.
+     */
+    public static final class Hit {
+        private final Path file;
+        private final int offset;
+        private final int length;
+        private final int line;
+        private final String preview;
+
+        Hit(Path file, int offset, int length, int line, String preview) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+            this.line = line;
+            this.preview = preview;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        /** Returns where the match starts in the text of the opened file. */
+        public int getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /** Returns the line the match is on, counting from 1. */
+        public int getLine() {
+            return line;
+        }
+
+        /** Returns the line the match is on, shortened around it if long. */
+        public String getPreview() {
+            return preview;
+        }
+    }
+
+    private final Path root;
+    private final String pattern;
+    private final List<PathMatcher> includes;
+    private final List<PathMatcher> excludes;
+    private final AtomicInteger filesSearched = new AtomicInteger();
+    private final AtomicInteger binaryFiles = new AtomicInteger();
+    private final AtomicInteger unreadableFiles = new AtomicInteger();
+
+    /**
+     * Creates a search of the files under root. Includes and excludes are
+     * comma-separated globs; one without a slash matches file names, as in
+     * "*.java", and one with a slash matches paths relative to the root, as
+     * in "build/**". Excluded directories are not walked into. No includes
+     * means every file.
+     */
+    public FindInFiles(Path root, String pattern, String includes, String excludes) {
+        if (pattern.isEmpty()) {
+            throw new IllegalArgumentException("Empty search pattern");
+        }
+        this.root = root;
+        this.pattern = pattern;
+        this.includes = globs(includes);
+        this.excludes = globs(excludes);
+    }
+
+    private static List<PathMatcher> globs(String list) {
+        List<PathMatcher> matchers = new ArrayList<>();
+        if (list != null) {
+            for (String glob : list.split(",")) {
+                if (!glob.trim().isEmpty()) {
+                    matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + glob.trim()));
+                }
+            }
+        }
+        return matchers;
+    }
+
+    private static boolean matches(List<PathMatcher> matchers, Path relative) {
+        Path name = relative.getFileName();
+        for (PathMatcher matcher : matchers) {
+            if (matcher.matches(relative) || (name != null && matcher.matches(name))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getFilesSearched() {
+        return filesSearched.get();
+    }
+
+    public int getBinaryFiles() {
+        return binaryFiles.get();
+    }
+
+    public int getUnreadableFiles() {
+        return unreadableFiles.get();
+    }
+
+    /**
+     * Searches every file, passing the matches of each file that has any to
+     * results, from the threads searching them. Returns false if stop
+     * returned true before the search was done.
+     */
+    public boolean run(Consumer<List<Hit>> results, BooleanSupplier stop) throws IOException {
+        Semaphore permits = new Semaphore(PARALLELISM);
+        boolean[] stopped = {false};
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (!dir.equals(root) && matches(excludes, root.relativize(dir))) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (stop.getAsBoolean()) {
+                        stopped[0] = true;
+                        return FileVisitResult.TERMINATE;
+                    }
+                    Path relative = root.relativize(file);
+                    if (!attrs.isRegularFile() || attrs.size() == 0 || matches(excludes, relative)
+                            || (!includes.isEmpty() && !matches(includes, relative))) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    try {
+                        permits.acquire();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        stopped[0] = true;
+                        return FileVisitResult.TERMINATE;
+                    }
+                    IoExecutor.get().execute(() -> {
+                        try {
+                            if (!stop.getAsBoolean()) {
+                                List<Hit> hits = search(file);
+                                if (!hits.isEmpty()) {
+                                    results.accept(hits);
+                                }
+                            }
+                        } catch (IOException | UncheckedIOException e) {
+                            unreadableFiles.incrementAndGet();
+                        } finally {
+                            permits.release();
+                        }
+                    });
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    unreadableFiles.incrementAndGet();
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } finally {
+            // Wait for the files still being searched
+            permits.acquireUninterruptibly(PARALLELISM);
+        }
+        return !stopped[0] && !stop.getAsBoolean();
+    }
+
+    /**
+     * Returns the matches in one file, none if it is binary.
+     */
+    List<Hit> search(Path file) throws IOException {
+        ByteBuffer bytes;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File is too large to search: " + file);
+            }
+            if (size >= MAP_THRESHOLD) {
+                bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                bytes = ByteBuffer.allocate((int) size);
+                while (bytes.hasRemaining() && channel.read(bytes) >= 0) {
+                    // Read until full or the file turns out shorter
+                }
+                bytes.flip();
+            }
+        }
+
+        TextFormat format = TextFormat.detect(bytes, Charset.defaultCharset());
+        if (format.isAsciiCompatible() && hasZero(bytes, TextFormat.SAMPLE_SIZE)) {
+            binaryFiles.incrementAndGet();
+            return List.of();
+        }
+        filesSearched.incrementAndGet();
+        Charset charset = format.getCharset();
+        boolean singleByte = charset.newEncoder().maxBytesPerChar() == 1;
+        if (format.isAsciiCompatible() && (singleByte || charset.equals(StandardCharsets.UTF_8))) {
+            return searchBytes(file, bytes, format, singleByte);
+        }
+        return searchChars(file, bytes, format);
+    }
+
+    private static boolean hasZero(ByteBuffer bytes, int sample) {
+        int end = Math.min(bytes.limit(), sample);
+        for (int i = 0; i < end; i++) {
+            if (bytes.get(i) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Finds the encoded text in the bytes with Boyer-Moore-Horspool,
+    // counting chars and lines up to each match as it goes
+    private List<Hit> searchBytes(Path file, ByteBuffer bytes, TextFormat format, boolean singleByte) {
+        Charset charset = format.getCharset();
+        if (!charset.newEncoder().canEncode(pattern)) {
+            return List.of();
+        }
+        byte[] needle = pattern.getBytes(charset);
+        int m = needle.length;
+        int last = m - 1;
+        int[] shift = new int[256];
+        Arrays.fill(shift, m);
+        for (int i = 0; i < last; i++) {
+            shift[needle[i] & 0xFF] = last - i;
+        }
+
+        List<Hit> hits = new ArrayList<>();
+        int size = bytes.limit();
+        // Chars and lines before counted, which is where counting goes on from
+        int counted = format.byteOrderMarkLength();
+        int chars = 0;
+        int line = 1;
+        boolean lastWasCR = false;
+        int i = counted;
+        while (i <= size - m && hits.size() < MAX_HITS_PER_FILE) {
+            byte b = bytes.get(i + last);
+            if (b == needle[last] && matchesAt(bytes, i, needle, last)) {
+                for (; counted < i; counted++) {
+                    int c = bytes.get(counted) & 0xFF;
+                    if (c == '\n') {
+                        if (!lastWasCR) {
+                            chars++;
+                            line++;
+                        }
+                    } else if (c == '\r') {
+                        chars++;
+                        line++;
+                    } else if (singleByte || (c & 0xC0) != 0x80) {
+                        // Four-byte UTF-8 sequences decode to a surrogate pair
+                        chars += !singleByte && (c & 0xF8) == 0xF0 ? 2 : 1;
+                    }
+                    lastWasCR = c == '\r';
+                }
+                hits.add(new Hit(file, chars, pattern.length(), line, preview(bytes, i, m, charset)));
+                i += m;
+                continue;
+            }
+            i += shift[b & 0xFF];
+        }
+        return hits;
+    }
+
+    private static boolean matchesAt(ByteBuffer bytes, int at, byte[] needle, int last) {
+        for (int j = last - 1; j >= 0; j--) {
+            if (bytes.get(at + j) != needle[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The line around a match, up to PREVIEW_BYTES on each side
+    private static String preview(ByteBuffer bytes, int start, int length, Charset charset) {
+        int from = start;
+        while (from > 0 && start - from < PREVIEW_BYTES && !isLineBreak(bytes.get(from - 1))) {
+            from--;
+        }
+        int to = start + length;
+        while (to < bytes.limit() && to - start - length < PREVIEW_BYTES && !isLineBreak(bytes.get(to))) {
+            to++;
+        }
+        byte[] line = new byte[to - from];
+        bytes.get(from, line);
+        return new String(line, charset).strip();
+    }
+
+    private static boolean isLineBreak(byte b) {
+        return b == '\n' || b == '\r';
+    }
+
+    // Decodes the whole file the way it is opened, with LF line endings,
+    // and finds the text in that
+    private List<Hit> searchChars(Path file, ByteBuffer bytes, TextFormat format) throws IOException {
+        CharBuffer text = format.getCharset().newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE)
+            .decode(bytes.position(format.byteOrderMarkLength()));
+        text.position(text.limit());
+        FileLoader.normalizeLineEndings(text, 0, false, new long[TextFormat.LineEnding.values().length]);
+        char[] chars = text.array();
+        int length = text.position();
+
+        List<Hit> hits = new ArrayList<>();
+        int[] line = {1};
+        int[] counted = {0};
+        TextSearch search = new TextSearch(pattern);
+        search.scan((offset, count, segment) -> {
+            segment.array = chars;
+            segment.offset = offset;
+            segment.count = count;
+        }, 0, length, false, offset -> {
+            for (; counted[0] < offset; counted[0]++) {
+                if (chars[counted[0]] == '\n') {
+                    line[0]++;
+                }
+            }
+            hits.add(new Hit(file, offset, pattern.length(), line[0], preview(chars, offset, pattern.length(), length)));
+            return hits.size() < MAX_HITS_PER_FILE;
+        });
+        return hits;
+    }
+
+    private static String preview(char[] chars, int start, int length, int end) {
+        int from = start;
+        while (from > 0 && start - from < PREVIEW_BYTES && chars[from - 1] != '\n') {
+            from--;
+        }
+        int to = start + length;
+        while (to < end && to - start - length < PREVIEW_BYTES && chars[to] != '\n') {
+            to++;
+        }
+        return new String(chars, from, to - from).strip();
+    }
+}
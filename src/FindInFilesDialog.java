@@ -0,0 +1,235 @@
+import javax.swing.*;
+import javax.swing.border.EmptyBorder;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * The Find in Files window. It searches the files under a directory in the
+ * background and lists the matches as each file is done, so the first ones
+ * can be opened while the rest of the tree is still being searched.
+ * Double-clicking a match, or pressing Enter on it, hands it to the opener.
+ */
+public class FindInFilesDialog extends JDialog {
+    // Matches listed at most; the search stops once there are this many
+    static final int MAX_SHOWN = 10000;
+
+    private final Consumer<FindInFiles.Hit> opener;
+    private final JTextField directoryField = new JTextField(30);
+    private final JTextField textField = new JTextField(30);
+    private final JTextField includeField = new JTextField(30);
+    private final JTextField excludeField = new JTextField(".git, *.class, *.jar", 30);
+    private final JButton findButton = new JButton("Find");
+    private final JLabel statusLabel = new JLabel(" ");
+    private final DefaultListModel<FindInFiles.Hit> hits = new DefaultListModel<>();
+    private final JList<FindInFiles.Hit> hitList = new JList<>(hits);
+    private SwingWorker<Boolean, List<FindInFiles.Hit>> worker;
+    // Root of the search the listed matches come from
+    private Path root;
+
+    public FindInFilesDialog(Frame owner, Consumer<FindInFiles.Hit> opener) {
+        super(owner, "Find in Files", false);
+        this.opener = opener;
+
+        JButton browseButton = new JButton("Browse...");
+        browseButton.addActionListener(e -> browse());
+        findButton.addActionListener(e -> {
+            if (worker != null) {
+                worker.cancel(true);
+            } else {
+                startSearch();
+            }
+        });
+        textField.addActionListener(e -> startSearch());
+        getRootPane().setDefaultButton(findButton);
+
+        JPanel form = new JPanel(new GridBagLayout());
+        form.setBorder(new EmptyBorder(8, 8, 4, 8));
+        addRow(form, 0, "Find:", textField, findButton);
+        addRow(form, 1, "In directory:", directoryField, browseButton);
+        addRow(form, 2, "Include files:", includeField, null);
+        addRow(form, 3, "Exclude:", excludeField, null);
+
+        hitList.setFont(new Font("Monospaced", Font.PLAIN, 12));
+        hitList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                    boolean isSelected, boolean cellHasFocus) {
+                FindInFiles.Hit hit = (FindInFiles.Hit) value;
+                String text = relative(hit.getFile()) + ":" + hit.getLine() + ": " + hit.getPreview();
+                return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+            }
+        });
+        hitList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2) {
+                    openSelected();
+                }
+            }
+        });
+        hitList.getInputMap(JComponent.WHEN_FOCUSED).put(KeyStroke.getKeyStroke(KeyEvent.VK_ENTER, 0), "open");
+        hitList.getActionMap().put("open", new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                openSelected();
+            }
+        });
+
+        statusLabel.setBorder(new EmptyBorder(4, 8, 4, 8));
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.add(form, BorderLayout.NORTH);
+        panel.add(new JScrollPane(hitList), BorderLayout.CENTER);
+        panel.add(statusLabel, BorderLayout.SOUTH);
+        setContentPane(panel);
+        setSize(700, 500);
+        setLocationRelativeTo(owner);
+    }
+
+    private static void addRow(JPanel form, int row, String label, JComponent field, JComponent button) {
+        GridBagConstraints c = new GridBagConstraints();
+        c.gridy = row;
+        c.insets = new Insets(2, 2, 2, 2);
+        c.anchor = GridBagConstraints.WEST;
+        form.add(new JLabel(label), c);
+        c.fill = GridBagConstraints.HORIZONTAL;
+        c.weightx = 1;
+        form.add(field, c);
+        if (button != null) {
+            c.fill = GridBagConstraints.NONE;
+            c.weightx = 0;
+            form.add(button, c);
+        }
+    }
+
+    /**
+     * Shows the window, searching in the given directory unless one was
+     * entered already, and for the given text if not null.
+     */
+    public void open(File directory, String text) {
+        if (directoryField.getText().isEmpty() && directory != null) {
+            directoryField.setText(directory.getPath());
+        }
+        if (text != null) {
+            textField.setText(text);
+        }
+        setVisible(true);
+        textField.selectAll();
+        textField.requestFocusInWindow();
+    }
+
+    private void browse() {
+        JFileChooser chooser = new JFileChooser(directoryField.getText());
+        chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+            directoryField.setText(chooser.getSelectedFile().getPath());
+        }
+    }
+
+    private String relative(Path file) {
+        return root != null && file.startsWith(root) ? root.relativize(file).toString() : file.toString();
+    }
+
+    private void openSelected() {
+        FindInFiles.Hit hit = hitList.getSelectedValue();
+        if (hit != null) {
+            opener.accept(hit);
+        }
+    }
+
+    // Search the files on the I/O executor, listing matches as they come in
+    private void startSearch() {
+        if (worker != null) {
+            worker.cancel(true);
+        }
+        String text = textField.getText();
+        File directory = new File(directoryField.getText());
+        if (text.isEmpty()) {
+            return;
+        }
+        if (!directory.isDirectory()) {
+            JOptionPane.showMessageDialog(this,
+                "Not a directory: " + directory,
+                "Find in Files", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        hits.clear();
+        root = Paths.get(directory.getAbsolutePath());
+        FindInFiles search = new FindInFiles(root, text, includeField.getText(), excludeField.getText());
+        long start = System.nanoTime();
+        statusLabel.setText("Searching...");
+        findButton.setText("Stop");
+
+        SwingWorker<Boolean, List<FindInFiles.Hit>> searchWorker = new SwingWorker<Boolean, List<FindInFiles.Hit>>() {
+            private final AtomicInteger found = new AtomicInteger();
+            private int shown;
+
+            @Override
+            protected Boolean doInBackground() throws Exception {
+                return search.run(batch -> {
+                    found.addAndGet(batch.size());
+                    publish(batch);
+                }, () -> isCancelled() || found.get() >= MAX_SHOWN);
+            }
+
+            @Override
+            protected void process(List<List<FindInFiles.Hit>> batches) {
+                if (worker != this) {
+                    return;
+                }
+                for (List<FindInFiles.Hit> batch : batches) {
+                    for (FindInFiles.Hit hit : batch) {
+                        if (shown < MAX_SHOWN) {
+                            hits.addElement(hit);
+                            shown++;
+                        }
+                    }
+                }
+                statusLabel.setText("Searching... " + shown + " matches in " + search.getFilesSearched() + " files");
+            }
+
+            @Override
+            protected void done() {
+                if (worker != this) {
+                    // A newer search has taken over the list
+                    return;
+                }
+                worker = null;
+                findButton.setText("Find");
+                if (isCancelled()) {
+                    statusLabel.setText("Search stopped");
+                    return;
+                }
+                try {
+                    get();
+                } catch (Exception e) {
+                    statusLabel.setText("Error searching: " + e.getMessage());
+                    return;
+                }
+                StringBuilder status = new StringBuilder();
+                status.append(shown).append(shown == 1 ? " match" : " matches");
+                if (shown >= MAX_SHOWN) {
+                    status.append(" (stopped at ").append(MAX_SHOWN).append(")");
+                }
+                status.append(" in ").append(search.getFilesSearched()).append(" files searched");
+                if (search.getBinaryFiles() > 0) {
+                    status.append(", ").append(search.getBinaryFiles()).append(" binary skipped");
+                }
+                if (search.getUnreadableFiles() > 0) {
+                    status.append(", ").append(search.getUnreadableFiles()).append(" unreadable");
+                }
+                status.append(" in ").append((System.nanoTime() - start) / 1000000).append(" ms");
+                statusLabel.setText(status.toString());
+            }
+        };
+        worker = searchWorker;
+        IoExecutor.get().execute(searchWorker);
+    }
+}
@@ -0,0 +1,407 @@
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Segment;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Finds the lines of a {@link TextSnapshot} that best match a few typed
+ * chars. A line matches if it has the chars of the query in order, not
+ * necessarily next to each other, and scores higher the more of them run
+ * together or start words, and the shorter the stretch they are spread
+ * over. The query matches either case unless it has capitals.
+ *
+ * The text is cut into chunks scored as fork-join tasks, each taking the
+ * lines that start in it. A task keeps the best lines it has seen in a
+ * heap of at most limit entries and hands them on when it is done, so only
+ * that many are ever kept per thread. Each thread reuses its own buffers
+ * and heap from one task to the next, so scoring a line allocates nothing.
+ */
+public class FuzzyLineFinder {
+    // Chars in a chunk; a chunk takes the lines starting in it
+    static final int CHUNK_SIZE = 256 * 1024;
+    // Longest part of a line shown with a result
+    static final int MAX_SHOWN = 300;
+    // Lines scored between checks for cancellation
+    private static final int CHECK_INTERVAL = 1024;
+
+    // Score of each char matched, and bonuses for where it is
+    private static final int MATCH = 16;
+    private static final int CONSECUTIVE = 16;
+    private static final int WORD_START = 10;
+    private static final int LINE_START = 6;
+    // Taken off for each run of chars skipped between matched ones, and for
+    // each char in it after the first, up to MAX_GAP_PENALTY in all
+    private static final int GAP_START = 8;
+    private static final int GAP = 2;
+    private static final int MAX_GAP_PENALTY = 60;
+
+    /**
+     * A line that matches, with where in it the query's chars are.
+     */
+    public static final class Result {
+        private final int lineStart;
+        private final int matchStart;
+        private final int matchEnd;
+        private final int score;
+        private final String text;
+
+        Result(int lineStart, int matchStart, int matchEnd, int score, String text) {
+            this.lineStart = lineStart;
+            this.matchStart = matchStart;
+            this.matchEnd = matchEnd;
+            this.score = score;
+            this.text = text;
+        }
+
+        public int getLineStart() {
+            return lineStart;
+        }
+
+        /** Returns the offset of the first char matched. */
+        public int getMatchStart() {
+            return matchStart;
+        }
+
+        /** Returns the offset just after the last char matched. */
+        public int getMatchEnd() {
+            return matchEnd;
+        }
+
+        public int getScore() {
+            return score;
+        }
+
+        /** Returns the line, or as much of it as is shown. */
+        public String getText() {
+            return text;
+        }
+    }
+
+    // What a thread reuses from one chunk to the next
+    private static final class Scratch {
+        final Segment segment = new Segment();
+        char[] line = new char[256];
+        long[] heap = new long[0];
+        int size;
+
+        Scratch() {
+            segment.setPartialReturn(true);
+        }
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    // The query's chars, and the same in upper case when case is ignored
+    private final char[] query;
+    private final char[] upper;
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+
+    public FuzzyLineFinder(String query) {
+        this(query, ForkJoinPool.commonPool(), CHUNK_SIZE);
+    }
+
+    FuzzyLineFinder(String query, ForkJoinPool pool, int chunkSize) {
+        if (query.isEmpty()) {
+            throw new IllegalArgumentException("Empty query");
+        }
+        this.query = query.toCharArray();
+        // A char at a time, as TextSearch folds case, so that no locale or
+        // char with a longer upper case, like the German sharp s, changes it
+        boolean capitals = false;
+        for (char c : this.query) {
+            capitals |= Character.toLowerCase(c) != c;
+        }
+        this.upper = capitals ? this.query : new char[this.query.length];
+        if (!capitals) {
+            for (int i = 0; i < upper.length; i++) {
+                upper[i] = Character.toUpperCase(this.query[i]);
+            }
+        }
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Returns the lines that match best, at most limit of them, best first
+     * and lines with the same score in order. Returns null if stop returned
+     * true before they were all scored.
+     */
+    public List<Result> find(TextSnapshot snapshot, int limit, BooleanSupplier stop) {
+        int length = snapshot.length();
+        long[] best = new long[limit];
+        int[] bestSize = {0};
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int start = 0; start == 0 || start < length; start += chunkSize) {
+            int from = start;
+            int to = (int) Math.min(length, (long) start + chunkSize);
+            tasks.add(pool.submit(() -> {
+                Scratch scratch = SCRATCH.get();
+                if (scratch.heap.length != limit) {
+                    scratch.heap = new long[limit];
+                }
+                scratch.size = 0;
+                if (scoreLines(snapshot, from, to, scratch, stop)) {
+                    synchronized (best) {
+                        for (int i = 0; i < scratch.size; i++) {
+                            bestSize[0] = offer(best, bestSize[0], scratch.heap[i]);
+                        }
+                    }
+                }
+            }));
+        }
+        try {
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        } finally {
+            for (ForkJoinTask<?> task : tasks) {
+                task.cancel(false);
+            }
+        }
+        if (stop.getAsBoolean()) {
+            return null;
+        }
+
+        long[] sorted = Arrays.copyOf(best, bestSize[0]);
+        Arrays.sort(sorted);
+        List<Result> results = new ArrayList<>();
+        Scratch scratch = new Scratch();
+        try {
+            for (int i = sorted.length - 1; i >= 0; i--) {
+                results.add(result(snapshot, lineStartOf(sorted[i]), scratch));
+            }
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+        return results;
+    }
+
+    // A heap entry: the score above and the line start, inverted so that
+    // earlier lines rank higher, below
+    private static long key(int score, int lineStart) {
+        return ((long) score << 32) | (0xFFFFFFFFL - lineStart);
+    }
+
+    private static int lineStartOf(long key) {
+        return (int) (0xFFFFFFFFL - (key & 0xFFFFFFFFL));
+    }
+
+    // Adds the key to a min-heap of the best keys, returning its new size
+    private static int offer(long[] heap, int size, long key) {
+        if (size < heap.length) {
+            int i = size;
+            while (i > 0 && heap[(i - 1) / 2] > key) {
+                heap[i] = heap[(i - 1) / 2];
+                i = (i - 1) / 2;
+            }
+            heap[i] = key;
+            return size + 1;
+        }
+        if (size == 0 || key <= heap[0]) {
+            return size;
+        }
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1] < heap[child]) {
+                child++;
+            }
+            if (heap[child] >= key) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = key;
+        return size;
+    }
+
+    // Scores the lines starting from from up to to into the scratch heap.
+    // Returns false if stopped.
+    private boolean scoreLines(TextSnapshot snapshot, int from, int to, Scratch scratch, BooleanSupplier stop) {
+        int length = snapshot.length();
+        Segment segment = scratch.segment;
+        try {
+            int lineStart = from;
+            if (from > 0) {
+                // The line running into this chunk belongs to the one before
+                snapshot.getText(from - 1, 1, segment);
+                if (segment.array[segment.offset] != '\n') {
+                    lineStart = lineEnd(snapshot, from, segment) + 1;
+                }
+            }
+            int lines = 0;
+            while (lineStart < to) {
+                if (++lines % CHECK_INTERVAL == 0 && stop.getAsBoolean()) {
+                    return false;
+                }
+                snapshot.getText(lineStart, length - lineStart, segment);
+                char[] array = segment.array;
+                int start = segment.offset;
+                int end = start + segment.count;
+                // Find the end of the line and whether it has the query's
+                // chars in order in one pass, and score only lines that do
+                int m = query.length;
+                int q = 0;
+                int last = -1;
+                int i = start;
+                for (; i < end; i++) {
+                    char c = array[i];
+                    if (c == '\n') {
+                        break;
+                    }
+                    if (q < m && (c == query[q] || c == upper[q]) && ++q == m) {
+                        last = i;
+                    }
+                }
+                int lineLength = i - start;
+                int score;
+                if (i == end && lineStart + segment.count < length) {
+                    // The line goes on into the next piece
+                    lineLength = lineEnd(snapshot, lineStart + segment.count, segment) - lineStart;
+                    score = score(copyLine(snapshot, lineStart, lineLength, scratch), 0, lineLength, null);
+                } else {
+                    score = last >= 0 ? score(array, start, lineLength, last, null) : Integer.MIN_VALUE;
+                }
+                if (score > Integer.MIN_VALUE) {
+                    scratch.size = offer(scratch.heap, scratch.size, key(score, lineStart));
+                }
+                lineStart += lineLength + 1;
+            }
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+        return true;
+    }
+
+    // The offset of the next line break at or after position, or the length
+    private static int lineEnd(TextSnapshot snapshot, int position, Segment segment)
+            throws BadLocationException {
+        int length = snapshot.length();
+        while (position < length) {
+            snapshot.getText(position, length - position, segment);
+            for (int i = 0; i < segment.count; i++) {
+                if (segment.array[segment.offset + i] == '\n') {
+                    return position + i;
+                }
+            }
+            position += segment.count;
+        }
+        return length;
+    }
+
+    // Copies a line that spans pieces into the scratch line buffer
+    private static char[] copyLine(TextSnapshot snapshot, int offset, int count, Scratch scratch)
+            throws BadLocationException {
+        if (scratch.line.length < count) {
+            scratch.line = new char[Math.max(count, 2 * scratch.line.length)];
+        }
+        Segment segment = scratch.segment;
+        int copied = 0;
+        while (copied < count) {
+            snapshot.getText(offset + copied, count - copied, segment);
+            System.arraycopy(segment.array, segment.offset, scratch.line, copied, segment.count);
+            copied += segment.count;
+        }
+        return scratch.line;
+    }
+
+    private boolean same(char c, int q) {
+        return c == query[q] || c == upper[q];
+    }
+
+    /**
+     * Scores one line, or returns Integer.MIN_VALUE if it does not have the
+     * query's chars in order. The chars matched are the ones found going
+     * back from the end of the first run of them, which is the shortest
+     * stretch ending there. If window is not null its first two entries are
+     * set to where that stretch starts and ends in the line.
+     */
+    int score(char[] text, int offset, int length, int[] window) {
+        int m = query.length;
+        int end = offset + length;
+        // First char at which the whole query has been seen
+        int q = 0;
+        int last = -1;
+        for (int i = offset; i < end; i++) {
+            if (same(text[i], q) && ++q == m) {
+                last = i;
+                break;
+            }
+        }
+        if (last < 0) {
+            return Integer.MIN_VALUE;
+        }
+        return score(text, offset, length, last, window);
+    }
+
+    // Scores a line given where the first run of the query's chars ends
+    private int score(char[] text, int offset, int length, int last, int[] window) {
+        int m = query.length;
+        // Back from there for the latest first char
+        int q = m - 1;
+        int first = last;
+        for (int i = last; i >= offset; i--) {
+            if (same(text[i], q)) {
+                if (q == 0) {
+                    first = i;
+                    break;
+                }
+                q--;
+            }
+        }
+        if (window != null) {
+            window[0] = first - offset;
+            window[1] = last + 1 - offset;
+        }
+
+        int score = 0;
+        int gaps = 0;
+        int previous = -2;
+        q = 0;
+        for (int i = first; i <= last && q < m; i++) {
+            if (!same(text[i], q)) {
+                gaps += i == previous + 1 ? GAP_START : GAP;
+                continue;
+            }
+            score += MATCH;
+            if (i == previous + 1) {
+                score += CONSECUTIVE;
+            }
+            if (i == offset) {
+                score += LINE_START + WORD_START;
+            } else {
+                char before = text[i - 1];
+                if (!Character.isLetterOrDigit(before)
+                        || (Character.isLowerCase(before) && Character.isUpperCase(text[i]))) {
+                    score += WORD_START;
+                }
+            }
+            previous = i;
+            q++;
+        }
+        // Longer lines rank a little lower, to break ties between equal matches
+        return score - Math.min(gaps, MAX_GAP_PENALTY) - Math.min(length / 32, 8);
+    }
+
+    // Builds the result for a line that made the top
+    private Result result(TextSnapshot snapshot, int lineStart, Scratch scratch) throws BadLocationException {
+        int lineLength = lineEnd(snapshot, lineStart, scratch.segment) - lineStart;
+        char[] line = copyLine(snapshot, lineStart, lineLength, scratch);
+        int[] window = new int[2];
+        int score = score(line, 0, lineLength, window);
+        // Show the part of a long line around the match
+        int from = Math.max(0, Math.min(window[0] - MAX_SHOWN / 4, lineLength - MAX_SHOWN));
+        int to = Math.min(lineLength, from + MAX_SHOWN);
+        return new Result(lineStart, lineStart + window[0], lineStart + window[1], score,
+            new String(line, from, to - from));
+    }
+}
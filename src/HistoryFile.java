@@ -0,0 +1,286 @@
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Segment;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Keeps the undo history of a file between sessions. When a document that
+ * matches its file is left, its history is written to a history file in a
+ * cache directory, named after the file's path and a hash of its text. The
+ * next session that opens the file with that text reads it back the first
+ * time undo goes past the edits made since.
+ *
+ * The header names the file, its size and modification time, and the length
+ * and hash of its text. A history is only used when all of them match the
+ * file as it was opened, so a file changed in between never has a stale
+ * history applied to it.
+ *
+ * Each record after the header is one edit, oldest first: the number of its
+ * changes, and for each its offset and the text taken out and put in. Chars
+ * take one to three bytes, as in DataOutput's modified UTF-8, so plain text
+ * costs a byte a char and half a surrogate pair survives the round trip.
+ */
+public class HistoryFile {
+    private static final int MAGIC = 0x54454831;
+    private static final String SUFFIX = ".history";
+
+    /**
+     * The text of a file as it was opened or saved, which a history ends at.
+     */
+    public static final class Base {
+        final String path;
+        final long size;
+        final long modified;
+        final TextSnapshot text;
+        private long hash;
+        private boolean hashed;
+
+        public Base(File file, TextSnapshot text) {
+            this.path = file.getPath();
+            this.size = file.length();
+            this.modified = file.lastModified();
+            this.text = text;
+        }
+
+        // Stamped with the size and time the file had when it was read or
+        // written, which the layout noted, rather than with those it has now
+        public Base(File file, FileLayout layout, TextSnapshot text) {
+            this.path = file.getPath();
+            this.size = layout.getByteLength();
+            this.modified = layout.getLastModified();
+            this.text = text;
+        }
+
+        // Hashes the text the first time it is asked, which reads all of it
+        synchronized long hash() throws BadLocationException {
+            if (!hashed) {
+                hash = HistoryFile.hash(text);
+                hashed = true;
+            }
+            return hash;
+        }
+    }
+
+    /**
+     * Returns the directory histories are kept in.
+     */
+    public static File defaultDirectory() {
+        return new File(System.getProperty("texteditor.history.dir",
+            System.getProperty("user.home") + File.separator + ".texteditor" + File.separator + "history"));
+    }
+
+    // 64-bit FNV-1a of the chars
+    static long hash(TextSnapshot text) throws BadLocationException {
+        long hash = 0xcbf29ce484222325L;
+        Segment segment = new Segment();
+        segment.setPartialReturn(true);
+        int offset = 0;
+        while (offset < text.length()) {
+            text.getText(offset, text.length() - offset, segment);
+            for (int i = segment.offset, end = segment.offset + segment.count; i < end; i++) {
+                hash = (hash ^ segment.array[i]) * 0x100000001b3L;
+            }
+            offset += segment.count;
+        }
+        return hash;
+    }
+
+    // Histories of one path share a prefix, so they can be found without
+    // hashing the text
+    private static String prefix(String path) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < path.length(); i++) {
+            hash = (hash ^ path.charAt(i)) * 0x100000001b3L;
+        }
+        return Long.toHexString(hash) + "-";
+    }
+
+    static File fileFor(File directory, Base base) throws BadLocationException {
+        return new File(directory, prefix(base.path) + Long.toHexString(base.hash()) + SUFFIX);
+    }
+
+    /**
+     * Returns whether the directory holds a history of the given path, for
+     * whatever text.
+     */
+    static boolean exists(File directory, String path) {
+        String prefix = prefix(path);
+        String[] names = directory.list((dir, name) -> name.startsWith(prefix) && name.endsWith(SUFFIX));
+        return names != null && names.length > 0;
+    }
+
+    // Deletes the histories of the path other than keep
+    private static void deleteOthers(File directory, String path, File keep) {
+        String prefix = prefix(path);
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                if (!file.equals(keep)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a history for a base. Records go to a temp file, which commit()
+     * renames over the history, so a history is only ever seen whole.
+     */
+    static final class Writer implements Closeable {
+        private final File directory;
+        private final Base base;
+        private final File file;
+        private final File temp;
+        private final DataOutputStream out;
+        private boolean committed;
+
+        Writer(File directory, Base base) throws IOException, BadLocationException {
+            this.directory = directory;
+            this.base = base;
+            Files.createDirectories(directory.toPath());
+            file = fileFor(directory, base);
+            temp = new File(directory, file.getName() + ".tmp");
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeUTF(base.path);
+            out.writeLong(base.size);
+            out.writeLong(base.modified);
+            out.writeInt(base.text.length());
+            out.writeLong(base.hash());
+        }
+
+        void startEdit(int changes) throws IOException {
+            out.writeInt(changes);
+        }
+
+        void writeOffset(int offset) throws IOException {
+            out.writeInt(offset);
+        }
+
+        void writeText(String text) throws IOException {
+            out.writeInt(text.length());
+            for (int i = 0; i < text.length(); i++) {
+                writeChar(text.charAt(i));
+            }
+        }
+
+        void writeText(TextSnapshot text, Segment segment) throws IOException, BadLocationException {
+            out.writeInt(text.length());
+            int offset = 0;
+            while (offset < text.length()) {
+                text.getText(offset, text.length() - offset, segment);
+                for (int i = segment.offset, end = segment.offset + segment.count; i < end; i++) {
+                    writeChar(segment.array[i]);
+                }
+                offset += segment.count;
+            }
+        }
+
+        private void writeChar(char c) throws IOException {
+            if (c != 0 && c < 0x80) {
+                out.write(c);
+            } else if (c < 0x800) {
+                out.write(0xc0 | (c >> 6));
+                out.write(0x80 | (c & 0x3f));
+            } else {
+                out.write(0xe0 | (c >> 12));
+                out.write(0x80 | ((c >> 6) & 0x3f));
+                out.write(0x80 | (c & 0x3f));
+            }
+        }
+
+        /**
+         * Replaces the history of the base with the one written, and deletes
+         * the histories of the same file for other texts.
+         */
+        void commit() throws IOException {
+            out.close();
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+            deleteOthers(directory, base.path, file);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                out.close();
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Reads back the history of a base.
+     */
+    static final class Reader implements Closeable {
+        private final DataInputStream in;
+
+        private Reader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        }
+
+        /**
+         * Opens the history kept for the base, or returns null if there is
+         * none. A history written for the same file with another size,
+         * modification time or text is stale and is deleted.
+         */
+        static Reader open(File directory, Base base) throws IOException, BadLocationException {
+            File file = fileFor(directory, base);
+            if (!file.exists()) {
+                return null;
+            }
+            Reader reader = new Reader(file);
+            try {
+                DataInputStream in = reader.in;
+                if (in.readInt() == MAGIC && in.readUTF().equals(base.path) && in.readLong() == base.size
+                        && in.readLong() == base.modified && in.readInt() == base.text.length()
+                        && in.readLong() == base.hash()) {
+                    return reader;
+                }
+            } catch (EOFException e) {
+                // Cut short, and as stale as a history that does not match
+            }
+            reader.close();
+            file.delete();
+            return null;
+        }
+
+        /**
+         * Returns the number of changes of the next edit, or -1 after the
+         * last one.
+         */
+        int nextEdit() throws IOException {
+            try {
+                return in.readInt();
+            } catch (EOFException e) {
+                return -1;
+            }
+        }
+
+        int readOffset() throws IOException {
+            return in.readInt();
+        }
+
+        String readText() throws IOException {
+            char[] chars = new char[in.readInt()];
+            for (int i = 0; i < chars.length; i++) {
+                int b = in.readUnsignedByte();
+                if (b < 0x80) {
+                    chars[i] = (char) b;
+                } else if (b < 0xe0) {
+                    chars[i] = (char) (((b & 0x1f) << 6) | (in.readUnsignedByte() & 0x3f));
+                } else {
+                    int b2 = in.readUnsignedByte();
+                    chars[i] = (char) (((b & 0x0f) << 12) | ((b2 & 0x3f) << 6) | (in.readUnsignedByte() & 0x3f));
+                }
+            }
+            return new String(chars);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,261 @@
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Segment;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Finds the matches of a search that is typed a char at a time. Each search
+ * keeps the start of every occurrence it has found, overlapping ones
+ * included, and how far into the text it has got, even if it was stopped
+ * by the next keystroke. Every occurrence of a longer text starts with an
+ * occurrence of its prefix, so a search for text that extends an earlier
+ * one on the same snapshot only checks the occurrences the earlier one
+ * found, and scans just the part of the text it did not get to. Going back
+ * to a shorter text, as with backspace, reuses its search the same way.
+ *
+ * Searches run on any thread. A new one may start while the one before is
+ * still stopping, and uses as much of its progress as was published.
+ * Occurrences are kept whether or not they are whole words, so a search
+ * for whole words builds on any earlier one that treated case the same.
+ */
+public class IncrementalSearch {
+    // Chars scanned between publishing progress and checking for stop
+    static final int CHUNK_SIZE = 256 * 1024;
+    // Occurrences kept by a search for later ones to refine; a search that
+    // finds more keeps none, and the next one scans the text again
+    static final int MAX_KEPT = 4 * 1024 * 1024;
+    // Matches handed over at a time
+    static final int BATCH_SIZE = 64 * 1024;
+    // Searches kept, most of them for prefixes of the text being typed
+    private static final int HISTORY = 32;
+
+    // What a search has found so far: every occurrence starting before
+    // scanned, or null if there were too many to keep
+    private static final class Progress {
+        final int[] starts;
+        final int count;
+        final int scanned;
+
+        Progress(int[] starts, int count, int scanned) {
+            this.starts = starts;
+            this.count = count;
+            this.scanned = scanned;
+        }
+    }
+
+    private static final class Search {
+        final String query;
+        final boolean matchCase;
+        final TextSnapshot snapshot;
+        volatile Progress progress;
+
+        Search(String query, boolean matchCase, TextSnapshot snapshot) {
+            this.query = query;
+            this.matchCase = matchCase;
+            this.snapshot = snapshot;
+        }
+    }
+
+    // An earlier search to build on, with the progress of it that was
+    // costed. The search may publish more while it is stopping, so only
+    // this progress is used: its occurrences and how far it got go together.
+    private static final class Base {
+        final Search search;
+        final Progress progress;
+
+        Base(Search search, Progress progress) {
+            this.search = search;
+            this.progress = progress;
+        }
+    }
+
+    private final List<Search> history = new ArrayList<>();
+
+    /**
+     * Finds every match of query in the snapshot, passing them to results
+     * in order and a batch at a time, on the calling thread. Matches do not
+     * overlap, as for Find All. Returns false if stop returned true before
+     * the search was done.
+     */
+    public boolean find(TextSnapshot snapshot, String query, Consumer<MatchList> results, BooleanSupplier stop) {
+        return find(snapshot, new TextSearch(query), results, stop);
+    }
+
+    /**
+     * Same, with the options of the given search: matching case or not and
+     * whole words only or not.
+     */
+    public boolean find(TextSnapshot snapshot, TextSearch options, Consumer<MatchList> results,
+            BooleanSupplier stop) {
+        String query = options.getPattern();
+        Search search = new Search(query, options.isMatchCase(), snapshot);
+        Base base = start(search);
+        Finder finder = new Finder(snapshot, options, results);
+
+        if (base != null) {
+            if (!finder.refine(base.progress, base.search.query.length(), stop)) {
+                return false;
+            }
+            finder.publish(search, base.progress.scanned);
+        }
+
+        int length = snapshot.length();
+        // Every occurrence, to keep, whole word or not
+        TextSearch text = options.isWholeWord() ? new TextSearch(query, options.isMatchCase(), false) : options;
+        int from = base != null ? base.progress.scanned : 0;
+        while (from < length) {
+            if (stop.getAsBoolean()) {
+                return false;
+            }
+            int to = Math.min(length, from + CHUNK_SIZE);
+            // Read on past the chunk for occurrences starting in it
+            text.scan(snapshot::getText, from, Math.min(length, to + query.length() - 1), true, start -> {
+                if (start >= to) {
+                    return false;
+                }
+                finder.found(start);
+                return true;
+            });
+            finder.publish(search, to);
+            from = to;
+        }
+        finder.publish(search, length);
+        return true;
+    }
+
+    /**
+     * Forgets all searches, so their occurrences can be collected.
+     */
+    public synchronized void clear() {
+        history.clear();
+    }
+
+    // Records a search, dropping those on other snapshots, and returns the
+    // earlier one it is cheapest to build on, with the progress costed, or
+    // null
+    private synchronized Base start(Search search) {
+        history.removeIf(s -> s.snapshot != search.snapshot);
+        Base base = null;
+        long bestCost = search.snapshot.length();
+        for (Search s : history) {
+            Progress progress = s.progress;
+            if (progress == null || progress.starts == null || s.matchCase != search.matchCase
+                    || !search.query.startsWith(s.query)) {
+                continue;
+            }
+            // Checking an occurrence costs about as much as scanning its length
+            long cost = (long) search.snapshot.length() - progress.scanned + (long) progress.count * search.query.length();
+            if (cost < bestCost) {
+                bestCost = cost;
+                base = new Base(s, progress);
+            }
+        }
+        if (history.size() == HISTORY) {
+            history.remove(0);
+        }
+        history.add(search);
+        return base;
+    }
+
+    // Collects the occurrences of one search and hands over its matches
+    private static final class Finder {
+        private final TextSnapshot snapshot;
+        private final TextSearch search;
+        private final String query;
+        private final Consumer<MatchList> results;
+        private final Segment segment = new Segment();
+        private int[] starts = new int[64];
+        private int count;
+        private MatchList batch = new MatchList();
+        // Where the last match handed over ends, so matches do not overlap
+        private int lastEnd;
+
+        Finder(TextSnapshot snapshot, TextSearch search, Consumer<MatchList> results) {
+            this.snapshot = snapshot;
+            this.search = search;
+            this.query = search.getPattern();
+            this.results = results;
+        }
+
+        // Finds the occurrences among those of a prefix of the query, which
+        // only need the chars after the prefix checked. The text is read a
+        // segment at a time and an occurrence running past the end of one
+        // is read on its own.
+        boolean refine(Progress known, int prefixLength, BooleanSupplier stop) {
+            int m = query.length();
+            int length = snapshot.length();
+            // At most as many as the prefix has, and usually about as many
+            starts = new int[Math.max(64, Math.min(known.count, MAX_KEPT))];
+            Segment text = new Segment();
+            text.setPartialReturn(true);
+            int textStart = 0;
+            try {
+                for (int i = 0; i < known.count; i++) {
+                    int start = known.starts[i];
+                    if (start + m > length) {
+                        break;
+                    }
+                    if (start + m > textStart + text.count) {
+                        if (start >= textStart + text.count) {
+                            snapshot.getText(start, length - start, text);
+                            textStart = start;
+                        }
+                        if (start + m > textStart + text.count) {
+                            snapshot.getText(start, m, segment);
+                            if (search.regionMatches(segment.array, segment.offset, prefixLength)) {
+                                found(start);
+                            }
+                            continue;
+                        }
+                    }
+                    if (search.regionMatches(text.array, text.offset + start - textStart, prefixLength)) {
+                        found(start);
+                    }
+                    if (i % BATCH_SIZE == 0 && stop.getAsBoolean()) {
+                        return false;
+                    }
+                }
+            } catch (BadLocationException e) {
+                throw new IllegalStateException(e);
+            }
+            return true;
+        }
+
+        void found(int start) {
+            if (starts != null) {
+                if (count == MAX_KEPT) {
+                    starts = null;
+                } else {
+                    if (count == starts.length) {
+                        starts = Arrays.copyOf(starts, count * 2);
+                    }
+                    starts[count++] = start;
+                }
+            }
+            if (start >= lastEnd && (!search.isWholeWord() || search.isWordAt(snapshot::getText, start))) {
+                lastEnd = start + query.length();
+                batch.add(start, lastEnd);
+                if (batch.size() == BATCH_SIZE) {
+                    flush();
+                }
+            }
+        }
+
+        // Hands over the matches found so far and lets later searches see
+        // the occurrences starting before scanned
+        void publish(Search search, int scanned) {
+            flush();
+            search.progress = new Progress(starts, count, scanned);
+        }
+
+        private void flush() {
+            if (batch.size() > 0) {
+                results.accept(batch);
+                batch = new MatchList();
+            }
+        }
+    }
+}
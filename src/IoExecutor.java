@@ -0,0 +1,39 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The executor that file opens and saves run on, so that no disk I/O is
+ * done on the EDT. A task that blocks on a slow or network-mounted disk
+ * holds on to one thread and nothing else.
+ *
+ * On a JDK with virtual threads every task gets its own virtual thread.
+ * The editor still builds for older JDKs, so that executor is looked up
+ * reflectively, and on a JDK without it tasks run on a cached pool of
+ * daemon platform threads instead.
+ */
+public final class IoExecutor {
+    private static final ExecutorService EXECUTOR = create();
+
+    private IoExecutor() {
+    }
+
+    public static ExecutorService get() {
+        return EXECUTOR;
+    }
+
+    private static ExecutorService create() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // No virtual threads on this JDK
+        }
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "File I/O " + count.incrementAndGet());
+            // Pending saves are waited for explicitly before exiting
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
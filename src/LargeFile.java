@@ -0,0 +1,196 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Read-only access to the lines of a file too large to load, for the
+ * large file mode. Lines are found through a sparse {@link LineIndex} and
+ * read through memory-mapped pages. Only the most recently used pages stay
+ * mapped, so the memory used does not depend on the size of the file and
+ * reading any line costs a binary search plus a short scan.
+ *
+ * Lines are read on the EDT while the index is built on another thread.
+ */
+public class LargeFile implements Closeable {
+    // Bytes in a mapped page
+    static final int PAGE_SIZE = 4 * 1024 * 1024;
+    // Most pages mapped at once
+    static final int MAX_PAGES = 16;
+
+    private final File file;
+    private final Charset charset;
+    private final FileChannel channel;
+    private final long size;
+    private final LineIndex index = new LineIndex();
+
+    // Mapped pages by page number, least recently used first
+    private final Map<Long, MappedByteBuffer> pages = new LinkedHashMap<Long, MappedByteBuffer>(MAX_PAGES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest) {
+            // An evicted page is unmapped once it is garbage collected
+            return size() > MAX_PAGES;
+        }
+    };
+
+    // The line last looked up, so scrolling a little scans only from there
+    private long anchorLine = 0;
+    private long anchorOffset = 0;
+
+    /**
+     * Opens the file, detecting its charset from the first bytes. Fails for
+     * charsets in which a '\n' byte does not always end a line.
+     */
+    public LargeFile(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.size = channel.size();
+        TextFormat format = TextFormat.detect(
+            channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(TextFormat.SAMPLE_SIZE, size)),
+            Charset.defaultCharset());
+        if (!format.isAsciiCompatible()) {
+            channel.close();
+            throw new IOException("Files this large cannot be opened in " + format.getCharset().name());
+        }
+        this.charset = format.getCharset();
+    }
+
+    /**
+     * Opens the file to be read in the given ASCII-compatible charset.
+     */
+    public LargeFile(File file, Charset charset) throws IOException {
+        this.file = file;
+        this.charset = charset;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.size = channel.size();
+    }
+
+    /**
+     * Returns the size above which files are opened in large file mode,
+     * from the texteditor.largefile.threshold system property in bytes.
+     * The default keeps a loaded file to a small part of the heap.
+     */
+    public static long threshold() {
+        long fallback = Math.min(256L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 8);
+        return Long.getLong("texteditor.largefile.threshold", fallback);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public LineIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Builds the line index. This reads the whole file and should not run
+     * on the EDT; see {@link LineIndex#build}.
+     */
+    public void buildIndex(BooleanSupplier stop) throws IOException {
+        index.build(channel, stop);
+    }
+
+    /**
+     * Returns up to count lines starting at the given one, each cut to at
+     * most maxBytes bytes and without its line break. Returns fewer lines
+     * when the file, or the part indexed so far, has fewer.
+     */
+    public List<String> getLines(long first, int count, int maxBytes) throws IOException {
+        List<String> lines = new ArrayList<>(count);
+        long lineCount = index.getLineCount();
+        if (first < 0 || first >= lineCount) {
+            return lines;
+        }
+        long start = lineStart(first);
+        byte[] bytes = new byte[maxBytes];
+        for (long line = first; line < first + count && line < lineCount; line++) {
+            long end = indexOfNewline(start);
+            long contentEnd = end < 0 ? size : end;
+            int length = (int) Math.min(contentEnd - start, maxBytes);
+            read(start, bytes, length);
+            if (start + length == contentEnd && length > 0 && bytes[length - 1] == '\r') {
+                length--;
+            }
+            lines.add(new String(bytes, 0, length, charset));
+            if (end < 0) {
+                break;
+            }
+            start = end + 1;
+        }
+        return lines;
+    }
+
+    // Returns the offset the line starts at, which must have been indexed
+    private long lineStart(long line) throws IOException {
+        long[] checkpoint = index.checkpointBefore(line);
+        long fromLine = checkpoint[0];
+        long offset = checkpoint[1];
+        if (anchorLine <= line && anchorLine > fromLine) {
+            fromLine = anchorLine;
+            offset = anchorOffset;
+        }
+        for (; fromLine < line; fromLine++) {
+            offset = indexOfNewline(offset) + 1;
+        }
+        anchorLine = line;
+        anchorOffset = offset;
+        return offset;
+    }
+
+    // Returns the offset of the first '\n' at or after from, or -1 if there is none
+    private long indexOfNewline(long from) throws IOException {
+        long position = from;
+        while (position < size) {
+            long pageStart = position - position % PAGE_SIZE;
+            MappedByteBuffer page = page(pageStart / PAGE_SIZE);
+            int limit = page.limit();
+            for (int i = (int) (position - pageStart); i < limit; i++) {
+                if (page.get(i) == '\n') {
+                    return pageStart + i;
+                }
+            }
+            position = pageStart + limit;
+        }
+        return -1;
+    }
+
+    private void read(long position, byte[] dst, int length) throws IOException {
+        int copied = 0;
+        while (copied < length) {
+            long at = position + copied;
+            MappedByteBuffer page = page(at / PAGE_SIZE);
+            int inPage = (int) (at % PAGE_SIZE);
+            int count = Math.min(length - copied, page.limit() - inPage);
+            page.get(inPage, dst, copied, count);
+            copied += count;
+        }
+    }
+
+    private MappedByteBuffer page(long number) throws IOException {
+        MappedByteBuffer page = pages.get(number);
+        if (page == null) {
+            long start = number * PAGE_SIZE;
+            page = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(PAGE_SIZE, size - start));
+            pages.put(number, page);
+        }
+        return page;
+    }
+
+    public void close() throws IOException {
+        pages.clear();
+        channel.close();
+    }
+}
@@ -0,0 +1,265 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.beans.PropertyChangeListener;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A read-only view of a {@link LargeFile}. Instead of handing the whole text
+ * to a text component it paints only the lines that fit in the window,
+ * reading them from the file as they are scrolled into view, so opening and
+ * scrolling cost the same for a file of any size.
+ *
+ * The scroll bars count lines and columns rather than pixels. Lines can be
+ * scrolled to as soon as the background indexer has reached them.
+ */
+public class LargeFileView extends JPanel {
+    // Most bytes of a line that are read and shown
+    static final int MAX_LINE_BYTES = 16 * 1024;
+    private static final int TAB_SIZE = 8;
+    // Largest value the vertical scroll bar is given; longer files scale onto it
+    private static final int MAX_SCROLL = Integer.MAX_VALUE / 2;
+
+    private final LargeFile file;
+    private final JComponent canvas;
+    private final JScrollBar verticalBar = new JScrollBar(JScrollBar.VERTICAL);
+    private final JScrollBar horizontalBar = new JScrollBar(JScrollBar.HORIZONTAL);
+    private final SwingWorker<Void, Void> indexer;
+
+    private long firstLine = 0;
+    private int firstColumn = 0;
+    private int longestLine = 0;
+    // Lines per vertical scroll bar unit
+    private long scale = 1;
+    private boolean updatingBars = false;
+
+    public LargeFileView(LargeFile file, Font font) {
+        super(new BorderLayout());
+        this.file = file;
+
+        canvas = new JComponent() {
+            @Override
+            protected void paintComponent(Graphics g) {
+                paintLines(g);
+            }
+        };
+        canvas.setFont(font);
+        canvas.setOpaque(true);
+        canvas.setBackground(Color.WHITE);
+        canvas.setFocusable(true);
+        canvas.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                canvas.requestFocusInWindow();
+            }
+        });
+        canvas.addMouseWheelListener(e -> {
+            if (e.isShiftDown()) {
+                scrollColumns(e.getWheelRotation() * 3);
+            } else {
+                scrollLines((long) e.getWheelRotation() * 3);
+            }
+        });
+        canvas.addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                updateScrollBars();
+            }
+        });
+
+        verticalBar.addAdjustmentListener(e -> {
+            if (!updatingBars) {
+                firstLine = Math.min((long) e.getValue() * scale, lastFirstLine());
+                canvas.repaint();
+            }
+        });
+        horizontalBar.addAdjustmentListener(e -> {
+            if (!updatingBars) {
+                firstColumn = e.getValue();
+                canvas.repaint();
+            }
+        });
+
+        add(canvas, BorderLayout.CENTER);
+        add(verticalBar, BorderLayout.EAST);
+        add(horizontalBar, BorderLayout.SOUTH);
+        installKeys();
+
+        indexer = new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws IOException {
+                file.buildIndex(() -> {
+                    if (file.size() > 0) {
+                        setProgress((int) (file.getIndex().getIndexedBytes() * 100 / file.size()));
+                    }
+                    return isCancelled();
+                });
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                updateScrollBars();
+                canvas.repaint();
+            }
+        };
+        // Show lines as soon as they are indexed
+        indexer.addPropertyChangeListener(e -> {
+            if ("progress".equals(e.getPropertyName())) {
+                updateScrollBars();
+                canvas.repaint();
+            }
+        });
+    }
+
+    public LargeFile getLargeFile() {
+        return file;
+    }
+
+    /**
+     * Starts building the line index in the background. The listener gets
+     * the indexer's "progress" and "state" property changes.
+     */
+    public void startIndexing(PropertyChangeListener listener) {
+        indexer.addPropertyChangeListener(listener);
+        IoExecutor.get().execute(indexer);
+    }
+
+    /**
+     * Stops indexing and closes the file.
+     */
+    public void close() {
+        // Not interrupted, which would close the channel under a running map
+        indexer.cancel(false);
+        try {
+            file.close();
+        } catch (IOException e) {
+            // Nothing left to read from it
+        }
+    }
+
+    public long getFirstLine() {
+        return firstLine;
+    }
+
+    /**
+     * Scrolls so the given line is at the top, as far as the lines indexed
+     * so far allow.
+     */
+    public void scrollToLine(long line) {
+        firstLine = Math.max(0, Math.min(line, lastFirstLine()));
+        updateScrollBars();
+        canvas.repaint();
+    }
+
+    private void scrollLines(long delta) {
+        scrollToLine(firstLine + delta);
+    }
+
+    private void scrollColumns(int delta) {
+        firstColumn = Math.max(0, Math.min(firstColumn + delta, longestLine));
+        updateScrollBars();
+        canvas.repaint();
+    }
+
+    private int visibleRows() {
+        int lineHeight = canvas.getFontMetrics(canvas.getFont()).getHeight();
+        return Math.max(1, canvas.getHeight() / lineHeight);
+    }
+
+    private long lastFirstLine() {
+        return Math.max(0, file.getIndex().getLineCount() - visibleRows());
+    }
+
+    private void updateScrollBars() {
+        long lineCount = file.getIndex().getLineCount();
+        scale = Math.max(1, (lineCount + MAX_SCROLL - 1) / MAX_SCROLL);
+        int rows = visibleRows();
+        int columns = Math.max(1, canvas.getWidth() / canvas.getFontMetrics(canvas.getFont()).charWidth('m'));
+
+        updatingBars = true;
+        try {
+            verticalBar.setValues((int) (firstLine / scale), (int) Math.max(1, rows / scale),
+                0, (int) Math.max(1, lineCount / scale));
+            verticalBar.setBlockIncrement(Math.max(1, (int) (rows / scale)));
+            horizontalBar.setValues(firstColumn, columns, 0, Math.max(columns, longestLine));
+            horizontalBar.setBlockIncrement(columns);
+        } finally {
+            updatingBars = false;
+        }
+    }
+
+    private void paintLines(Graphics g) {
+        g.setColor(canvas.getBackground());
+        g.fillRect(0, 0, canvas.getWidth(), canvas.getHeight());
+        g.setColor(Color.BLACK);
+        g.setFont(canvas.getFont());
+        FontMetrics metrics = g.getFontMetrics();
+        int rows = canvas.getHeight() / metrics.getHeight() + 1;
+
+        List<String> lines;
+        try {
+            lines = file.getLines(firstLine, rows, MAX_LINE_BYTES);
+        } catch (IOException e) {
+            lines = Collections.singletonList("Error reading file: " + e.getMessage());
+        }
+
+        int y = metrics.getAscent();
+        int longest = longestLine;
+        for (String line : lines) {
+            String text = expandTabs(line);
+            longest = Math.max(longest, text.length());
+            if (firstColumn < text.length()) {
+                g.drawString(text.substring(firstColumn), 2, y);
+            }
+            y += metrics.getHeight();
+        }
+        if (longest > longestLine) {
+            longestLine = longest;
+            SwingUtilities.invokeLater(this::updateScrollBars);
+        }
+    }
+
+    private static String expandTabs(String line) {
+        if (line.indexOf('\t') < 0) {
+            return line;
+        }
+        StringBuilder expanded = new StringBuilder(line.length() + TAB_SIZE);
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\t') {
+                do {
+                    expanded.append(' ');
+                } while (expanded.length() % TAB_SIZE != 0);
+            } else {
+                expanded.append(c);
+            }
+        }
+        return expanded.toString();
+    }
+
+    private void installKeys() {
+        InputMap inputs = canvas.getInputMap(JComponent.WHEN_FOCUSED);
+        ActionMap actions = canvas.getActionMap();
+        bindKey(inputs, actions, KeyStroke.getKeyStroke(KeyEvent.VK_UP, 0), "lineUp", () -> scrollLines(-1));
+        bindKey(inputs, actions, KeyStroke.getKeyStroke(KeyEvent.VK_DOWN, 0), "lineDown", () -> scrollLines(1));
+        bindKey(inputs, actions, KeyStroke.getKeyStroke(KeyEvent.VK_PAGE_UP, 0), "pageUp", () -> scrollLines(-visibleRows()));
+        bindKey(inputs, actions, KeyStroke.getKeyStroke(KeyEvent.VK_PAGE_DOWN, 0), "pageDown", () -> scrollLines(visibleRows()));
+        bindKey(inputs, actions, KeyStroke.getKeyStroke(KeyEvent.VK_LEFT, 0), "columnLeft", () -> scrollColumns(-1));
+        bindKey(inputs, actions, KeyStroke.getKeyStroke(KeyEvent.VK_RIGHT, 0), "columnRight", () -> scrollColumns(1));
+        bindKey(inputs, actions, KeyStroke.getKeyStroke(KeyEvent.VK_HOME, InputEvent.CTRL_DOWN_MASK), "top", () -> scrollToLine(0));
+        bindKey(inputs, actions, KeyStroke.getKeyStroke(KeyEvent.VK_END, InputEvent.CTRL_DOWN_MASK), "bottom", () -> scrollToLine(Long.MAX_VALUE));
+    }
+
+    private static void bindKey(InputMap inputs, ActionMap actions, KeyStroke key, String name, Runnable action) {
+        inputs.put(key, name);
+        actions.put(name, new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                action.run();
+            }
+        });
+    }
+}
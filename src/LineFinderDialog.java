@@ -0,0 +1,187 @@
+import javax.swing.*;
+import javax.swing.border.EmptyBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * The Find Line window: type a few chars and pick from the lines that match
+ * them best. Lines are scored in the background once typing pauses, each
+ * search stopping the one before. Up and Down move through the lines,
+ * Enter or a double-click picks one and Escape closes the window. The text
+ * cannot change while it is open, so one snapshot serves every search.
+ */
+public class LineFinderDialog extends JDialog {
+    // Lines listed at most
+    static final int LIMIT = 100;
+    // Milliseconds without a keystroke before the lines are scored
+    static final int DELAY = 30;
+
+    private final TextSnapshot snapshot;
+    private final IntUnaryOperator lineOfOffset;
+    private final Consumer<FuzzyLineFinder.Result> opener;
+    private final JTextField field = new JTextField(40);
+    private final DefaultListModel<FuzzyLineFinder.Result> results = new DefaultListModel<>();
+    private final JList<FuzzyLineFinder.Result> resultList = new JList<>(results);
+    private final JLabel statusLabel = new JLabel(" ");
+    private final Timer timer;
+    private SwingWorker<List<FuzzyLineFinder.Result>, Void> worker;
+
+    /**
+     * Creates the window for finding lines in the snapshot. lineOfOffset
+     * gives the line an offset is on, counting from 0, to show with each
+     * result, and opener is given the result picked.
+     */
+    public LineFinderDialog(Frame owner, TextSnapshot snapshot, IntUnaryOperator lineOfOffset,
+            Consumer<FuzzyLineFinder.Result> opener) {
+        super(owner, "Find Line", true);
+        this.snapshot = snapshot;
+        this.lineOfOffset = lineOfOffset;
+        this.opener = opener;
+
+        timer = new Timer(DELAY, e -> search());
+        timer.setRepeats(false);
+        field.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) {
+                timer.restart();
+            }
+
+            public void removeUpdate(DocumentEvent e) {
+                timer.restart();
+            }
+
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
+
+        InputMap inputMap = field.getInputMap(JComponent.WHEN_FOCUSED);
+        inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_DOWN, 0), "next");
+        inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_UP, 0), "previous");
+        inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_ENTER, 0), "pick");
+        field.getActionMap().put("next", action(() -> moveSelection(1)));
+        field.getActionMap().put("previous", action(() -> moveSelection(-1)));
+        field.getActionMap().put("pick", action(this::pick));
+        getRootPane().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW)
+            .put(KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0), "close");
+        getRootPane().getActionMap().put("close", action(this::dispose));
+
+        resultList.setFont(new Font("Monospaced", Font.PLAIN, 12));
+        resultList.setFocusable(false);
+        resultList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                    boolean isSelected, boolean cellHasFocus) {
+                FuzzyLineFinder.Result result = (FuzzyLineFinder.Result) value;
+                String text = (lineOfOffset.applyAsInt(result.getLineStart()) + 1) + ": " + result.getText().strip();
+                return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+            }
+        });
+        resultList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2) {
+                    pick();
+                }
+            }
+        });
+
+        JPanel panel = new JPanel(new BorderLayout(0, 4));
+        panel.setBorder(new EmptyBorder(8, 8, 4, 8));
+        panel.add(field, BorderLayout.NORTH);
+        panel.add(new JScrollPane(resultList), BorderLayout.CENTER);
+        panel.add(statusLabel, BorderLayout.SOUTH);
+        setContentPane(panel);
+        setSize(600, 400);
+        setLocationRelativeTo(owner);
+    }
+
+    private static Action action(Runnable runnable) {
+        return new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                runnable.run();
+            }
+        };
+    }
+
+    private void moveSelection(int delta) {
+        if (results.isEmpty()) {
+            return;
+        }
+        int index = Math.max(0, Math.min(results.size() - 1, resultList.getSelectedIndex() + delta));
+        resultList.setSelectedIndex(index);
+        resultList.ensureIndexIsVisible(index);
+    }
+
+    private void pick() {
+        timer.stop();
+        FuzzyLineFinder.Result result = resultList.getSelectedValue();
+        if (result != null) {
+            dispose();
+            opener.accept(result);
+        }
+    }
+
+    @Override
+    public void dispose() {
+        timer.stop();
+        if (worker != null) {
+            worker.cancel(false);
+        }
+        super.dispose();
+    }
+
+    // Score the lines for the text typed, off the EDT
+    private void search() {
+        if (worker != null) {
+            worker.cancel(false);
+        }
+        String query = field.getText().trim();
+        if (query.isEmpty()) {
+            results.clear();
+            statusLabel.setText(" ");
+            return;
+        }
+        FuzzyLineFinder finder = new FuzzyLineFinder(query);
+        long start = System.nanoTime();
+        SwingWorker<List<FuzzyLineFinder.Result>, Void> search = new SwingWorker<List<FuzzyLineFinder.Result>, Void>() {
+            @Override
+            protected List<FuzzyLineFinder.Result> doInBackground() {
+                return finder.find(snapshot, LIMIT, this::isCancelled);
+            }
+
+            @Override
+            protected void done() {
+                if (worker != this || isCancelled()) {
+                    return;
+                }
+                List<FuzzyLineFinder.Result> found;
+                try {
+                    found = get();
+                } catch (Exception e) {
+                    statusLabel.setText("Error finding lines: " + e.getMessage());
+                    return;
+                }
+                results.clear();
+                for (FuzzyLineFinder.Result result : found) {
+                    results.addElement(result);
+                }
+                if (!results.isEmpty()) {
+                    resultList.setSelectedIndex(0);
+                    resultList.ensureIndexIsVisible(0);
+                }
+                long millis = (System.nanoTime() - start) / 1000000;
+                statusLabel.setText((found.size() == LIMIT ? "Best " + LIMIT + " lines" : found.size() + " lines")
+                    + " in " + millis + " ms");
+            }
+        };
+        worker = search;
+        search.execute();
+    }
+}
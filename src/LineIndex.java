@@ -0,0 +1,112 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A sparse index of where lines start in a file. Rather than one entry per
+ * line it keeps a checkpoint every STRIDE lines, or sooner when the lines
+ * are long, so that any line can be found by scanning at most about
+ * CHECKPOINT_BYTES forward from the checkpoint before it. For a file of
+ * many gigabytes the index stays a few megabytes.
+ *
+ * The index is built by one thread while others read what has been
+ * indexed so far, so its methods are synchronized.
+ */
+public class LineIndex {
+    // Most lines between two checkpoints
+    static final int STRIDE = 1024;
+    // Most bytes between two checkpoints, unless a single line is longer
+    static final int CHECKPOINT_BYTES = 64 * 1024;
+    // Bytes mapped at once while building
+    static final int SCAN_WINDOW = 64 * 1024 * 1024;
+
+    // Line number and byte offset of each checkpoint, the first being line 0 at offset 0
+    private long[] lines = new long[1024];
+    private long[] offsets = new long[1024];
+    private int checkpoints = 1;
+    private long lineCount = 1;
+    private long indexedBytes;
+    private boolean complete;
+
+    /**
+     * Returns the number of lines found so far. A file with no line breaks
+     * still has one line, and a trailing line break starts an empty line.
+     */
+    public synchronized long getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * Returns how many bytes of the file have been indexed.
+     */
+    public synchronized long getIndexedBytes() {
+        return indexedBytes;
+    }
+
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Returns the checkpoint at or before the given line, as {line, offset}.
+     */
+    public synchronized long[] checkpointBefore(long line) {
+        int i = Arrays.binarySearch(lines, 0, checkpoints, line);
+        if (i < 0) {
+            i = -i - 2;
+        }
+        return new long[] {lines[i], offsets[i]};
+    }
+
+    private synchronized void addCheckpoint(long line, long offset) {
+        if (checkpoints == lines.length) {
+            lines = Arrays.copyOf(lines, checkpoints * 2);
+            offsets = Arrays.copyOf(offsets, checkpoints * 2);
+        }
+        lines[checkpoints] = line;
+        offsets[checkpoints] = offset;
+        checkpoints++;
+    }
+
+    private synchronized void update(long lineCount, long indexedBytes, boolean complete) {
+        this.lineCount = lineCount;
+        this.indexedBytes = indexedBytes;
+        this.complete = complete;
+    }
+
+    /**
+     * Scans the whole channel for line breaks, one mapped window at a time,
+     * publishing what has been indexed after each window. Only '\n' ends a
+     * line, which is right for any charset that encodes it as that single
+     * byte, such as UTF-8, ASCII and the ISO-8859 family. Stops early,
+     * leaving the index incomplete, once stop returns true.
+     */
+    public void build(FileChannel channel, BooleanSupplier stop) throws IOException {
+        long size = channel.size();
+        long line = 0;
+        long lastLine = 0;
+        long lastOffset = 0;
+        for (long base = 0; base < size; base += SCAN_WINDOW) {
+            if (stop.getAsBoolean()) {
+                return;
+            }
+            int length = (int) Math.min(SCAN_WINDOW, size - base);
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, base, length);
+            for (int i = 0; i < length; i++) {
+                if (window.get(i) == '\n') {
+                    line++;
+                    long start = base + i + 1;
+                    if (line - lastLine >= STRIDE || start - lastOffset >= CHECKPOINT_BYTES) {
+                        addCheckpoint(line, start);
+                        lastLine = line;
+                        lastOffset = start;
+                    }
+                }
+            }
+            update(line + 1, base + length, false);
+        }
+        update(line + 1, size, true);
+    }
+}
@@ -0,0 +1,152 @@
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+import java.util.Arrays;
+
+/**
+ * Where each line of a document starts, for going to a line and showing
+ * the caret's line and column without walking the document's elements.
+ * The starts are kept in one int array with a gap in it, at the last line
+ * edited. Starts before the gap are offsets; starts after it are kept as
+ * offsets from the end of the text, so an edit moves every line after it
+ * without touching them. An edit moves the gap to its line first, which
+ * costs as many lines as it is from the last edit, and typing in one place
+ * costs nothing more. Finding a line is a binary search either side of the
+ * gap. The array takes 4 bytes per line and at most as many again of gap.
+ *
+ * The index is kept up to date as a listener of the document. The first
+ * line starts at 0 and a line break at the end of the text starts an
+ * empty last line, as with the document's own line elements.
+ */
+public class LineStarts implements DocumentListener {
+    private int[] starts = new int[64];
+    private int gapStart;
+    private int gapEnd;
+    // The length of the text as the index knows it, which the starts after
+    // the gap are counted back from
+    private int length;
+
+    /**
+     * Indexes the lines of the document as it is now. Scanning the text
+     * reads every char once; editing it afterwards needs this listening to
+     * the document.
+     */
+    public LineStarts(Document doc) {
+        gapEnd = starts.length;
+        add(0);
+        length = doc.getLength();
+        addLineStarts(doc, 0, length);
+    }
+
+    public int getLineCount() {
+        return gapStart + starts.length - gapEnd;
+    }
+
+    /**
+     * Returns the offset the line starts at, counting lines from 0.
+     */
+    public int getLineStart(int line) {
+        if (line < 0 || line >= getLineCount()) {
+            throw new IndexOutOfBoundsException("No line " + line + " in " + getLineCount());
+        }
+        return line < gapStart ? starts[line] : starts[line + gapEnd - gapStart] + length;
+    }
+
+    /**
+     * Returns the line the offset is on, counting from 0. The offset at the
+     * end of a line, where its line break is, belongs to that line.
+     */
+    public int getLineOfOffset(int offset) {
+        if (offset < 0 || offset > length) {
+            throw new IndexOutOfBoundsException("Offset " + offset + " outside text of length " + length);
+        }
+        if (gapEnd == starts.length || offset < starts[gapEnd] + length) {
+            return lastAtOrBefore(0, gapStart, offset);
+        }
+        // Compare with the starts after the gap as they are kept
+        return lastAtOrBefore(gapEnd, starts.length, offset - length) - (gapEnd - gapStart);
+    }
+
+    // Returns the index of the last start at or before the key, from is
+    // always one of them
+    private int lastAtOrBefore(int from, int to, int key) {
+        int index = Arrays.binarySearch(starts, from, to, key);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    public void insertUpdate(DocumentEvent e) {
+        int offset = e.getOffset();
+        int added = e.getLength();
+        // Lines starting after the offset move on with the end of the text
+        moveGap(firstAfter(offset));
+        length += added;
+        addLineStarts(e.getDocument(), offset, added);
+    }
+
+    public void removeUpdate(DocumentEvent e) {
+        int offset = e.getOffset();
+        int removed = e.getLength();
+        moveGap(firstAfter(offset));
+        // Drop the lines whose line breaks were removed
+        while (gapEnd < starts.length && starts[gapEnd] + length <= offset + removed) {
+            gapEnd++;
+        }
+        length -= removed;
+    }
+
+    public void changedUpdate(DocumentEvent e) {
+    }
+
+    // The index of the first line starting after the offset
+    private int firstAfter(int offset) {
+        return getLineOfOffset(Math.min(offset, length)) + 1;
+    }
+
+    // Moves the gap to just before the given line
+    private void moveGap(int line) {
+        while (gapStart > line) {
+            starts[--gapEnd] = starts[--gapStart] - length;
+        }
+        while (gapStart < line) {
+            starts[gapStart++] = starts[gapEnd++] + length;
+        }
+    }
+
+    private void add(int start) {
+        if (gapStart == gapEnd) {
+            int[] grown = new int[starts.length * 2];
+            int after = starts.length - gapEnd;
+            System.arraycopy(starts, 0, grown, 0, gapStart);
+            System.arraycopy(starts, gapEnd, grown, grown.length - after, after);
+            gapEnd = grown.length - after;
+            starts = grown;
+        }
+        starts[gapStart++] = start;
+    }
+
+    // Adds a start after each line break in the text, which must be where
+    // the gap is
+    private void addLineStarts(Document doc, int offset, int count) {
+        Segment text = new Segment();
+        text.setPartialReturn(true);
+        int end = offset + count;
+        try {
+            while (offset < end) {
+                doc.getText(offset, end - offset, text);
+                char[] array = text.array;
+                int from = text.offset;
+                int to = text.offset + text.count;
+                for (int i = from; i < to; i++) {
+                    if (array[i] == '\n') {
+                        add(offset + i - from + 1);
+                    }
+                }
+                offset += text.count;
+            }
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -13,7 +13,11 @@ public class Main {
             e.printStackTrace();
         }
 
-        // Create and display the text editor
-        SwingUtilities.invokeLater(() -> new TextEditor());
+        // Create and display the text editor, then bring back any work a
+        // previous session lost by not exiting cleanly
+        SwingUtilities.invokeLater(() -> {
+            TextEditor editor = new TextEditor();
+            editor.offerRecovery();
+        });
     }
 }
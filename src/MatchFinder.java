@@ -0,0 +1,15 @@
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * A search that finds all its matches in a snapshot, for Find All. Matches
+ * are handed over in batches, in order, as they are found, so they can be
+ * shown before the search is done.
+ */
+public interface MatchFinder {
+    /**
+     * Passes all matches to results on the calling thread. Returns false if
+     * stop returned true before the search was done.
+     */
+    boolean findAll(TextSnapshot snapshot, Consumer<MatchList> results, BooleanSupplier stop);
+}
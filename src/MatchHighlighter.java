@@ -0,0 +1,132 @@
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Highlighter;
+import javax.swing.text.JTextComponent;
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.Rectangle2D;
+
+/**
+ * Highlights the matches of a find all in a text component. It adds one
+ * highlight over the whole text and, whenever that is painted, looks up
+ * only the matches inside the area being painted, so painting costs the
+ * same with ten matches or ten million. The matches follow edits to the
+ * text, each in O(log n), so they stay highlighted while it is edited.
+ */
+public class MatchHighlighter implements Highlighter.HighlightPainter {
+    private static final Color COLOR = new Color(255, 230, 120);
+
+    private final JTextComponent component;
+    private MatchList matches;
+    private Object highlight;
+    // Whether the text has been edited since the matches were found, so
+    // some may be missing
+    private boolean edited;
+
+    public MatchHighlighter(JTextComponent component) {
+        this.component = component;
+    }
+
+    public MatchList getMatches() {
+        return matches;
+    }
+
+    /**
+     * Shows the matches, replacing any shown before.
+     */
+    public void setMatches(MatchList matches) {
+        clear();
+        this.matches = matches;
+        edited = false;
+        try {
+            highlight = component.getHighlighter().addHighlight(0, component.getDocument().getLength(), this);
+        } catch (BadLocationException e) {
+            // Cannot happen for the whole text
+        }
+    }
+
+    /**
+     * Hides the matches, if any are shown.
+     */
+    public void clear() {
+        if (highlight != null) {
+            component.getHighlighter().removeHighlight(highlight);
+            highlight = null;
+        }
+        matches = null;
+    }
+
+    /**
+     * Moves the matches along with text inserted into the document, dropping
+     * any the text falls inside.
+     */
+    public void insert(int offset, int length) {
+        if (matches != null) {
+            matches.insert(offset, length);
+            edited = true;
+        }
+    }
+
+    /**
+     * Moves the matches along with text removed from the document, dropping
+     * any that lost text.
+     */
+    public void remove(int offset, int length) {
+        if (matches != null) {
+            matches.remove(offset, length);
+            edited = true;
+        }
+    }
+
+    /**
+     * Returns whether the text has been edited since the matches shown were
+     * set, so that matches the edits made are not among them.
+     */
+    public boolean isEdited() {
+        return edited;
+    }
+
+    public void paint(Graphics g, int p0, int p1, Shape bounds, JTextComponent c) {
+        if (matches == null || matches.size() == 0) {
+            return;
+        }
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = c.getVisibleRect();
+        }
+        int first = c.viewToModel2D(new Point(clip.x, clip.y));
+        int last = c.viewToModel2D(new Point(clip.x + clip.width, clip.y + clip.height));
+        g.setColor(COLOR);
+        try {
+            for (int i = matches.indexAtOrAfter(Math.max(0, first - matches.getMaxLength()));
+                    i < matches.size() && matches.getStart(i) <= last; i++) {
+                if (matches.getEnd(i) > first) {
+                    paintMatch(g, c, matches.getStart(i), matches.getEnd(i));
+                }
+            }
+        } catch (BadLocationException e) {
+            // A match runs past the text, which cannot happen while it follows edits
+        }
+    }
+
+    private static void paintMatch(Graphics g, JTextComponent c, int start, int end) throws BadLocationException {
+        Rectangle2D from = c.modelToView2D(start);
+        Rectangle2D to = c.modelToView2D(end);
+        int x0 = (int) from.getX();
+        int y0 = (int) from.getY();
+        int x1 = (int) to.getX();
+        int y1 = (int) to.getY();
+        if (y0 == y1) {
+            g.fillRect(x0, y0, Math.max(1, x1 - x0), (int) from.getHeight());
+        } else {
+            // The match goes on over the following rows
+            int left = c.getInsets().left;
+            int rowEnd = y0 + (int) from.getHeight();
+            g.fillRect(x0, y0, c.getWidth() - x0, rowEnd - y0);
+            g.fillRect(left, rowEnd, c.getWidth() - left, y1 - rowEnd);
+            g.fillRect(left, y1, x1 - left, (int) to.getHeight());
+        }
+    }
+}
@@ -0,0 +1,186 @@
+import java.util.Arrays;
+
+/**
+ * The matches of a search, in increasing order of their start. Starts and
+ * ends are kept in plain int arrays, so millions of matches take a few
+ * megabytes.
+ *
+ * The list follows edits to the text it was found in. Shifting every match
+ * after an edit would cost as much as the list is long on each keystroke,
+ * so the shifts are kept apart, in a Fenwick tree over the match indices,
+ * and added in when a match is read. An edit then costs O(log n), and so
+ * does reading a match; until the first edit, reads are plain array reads.
+ * An edit inside a match drops it, which does move the matches after it
+ * down in the arrays.
+ */
+public class MatchList {
+    private int[] starts = new int[64];
+    private int[] ends = new int[64];
+    private int size;
+    private int maxLength;
+    // Shifts not yet added to the starts and ends, by index: the match at
+    // index i is shifted by the sum of the first i + 1 entries. Null while
+    // nothing is shifted.
+    private int[] shifts;
+
+    /**
+     * Adds a match, which must start after the last one added.
+     */
+    public void add(int start, int end) {
+        if (size == starts.length) {
+            applyShifts();
+            starts = Arrays.copyOf(starts, size * 2);
+            ends = Arrays.copyOf(ends, size * 2);
+        }
+        int shift = shiftAt(size);
+        starts[size] = start - shift;
+        ends[size] = end - shift;
+        size++;
+        maxLength = Math.max(maxLength, end - start);
+    }
+
+    /**
+     * Adds all the matches of another list, which must start after the last
+     * one added.
+     */
+    public void addAll(MatchList other) {
+        for (int i = 0; i < other.size; i++) {
+            add(other.getStart(i), other.getEnd(i));
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getStart(int index) {
+        return starts[index] + shiftAt(index);
+    }
+
+    public int getEnd(int index) {
+        return ends[index] + shiftAt(index);
+    }
+
+    /**
+     * Returns the length of the longest match, which bounds how far before
+     * an offset a match covering it can start.
+     */
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * Returns the index of the first match starting at or after the offset,
+     * or size() if there is none.
+     */
+    public int indexAtOrAfter(int offset) {
+        if (shifts == null) {
+            int index = Arrays.binarySearch(starts, 0, size, offset);
+            if (index < 0) {
+                return -index - 1;
+            }
+            // An empty regex match can start where the next match does
+            while (index > 0 && starts[index - 1] == offset) {
+                index--;
+            }
+            return index;
+        }
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getStart(mid) < offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Follows text inserted at the offset: matches starting at or after it
+     * move on by the length, and a match it falls inside is dropped.
+     */
+    public void insert(int offset, int length) {
+        int first = indexAtOrAfter(Math.max(0, offset - maxLength));
+        int after = indexAtOrAfter(offset);
+        int drop = first;
+        while (drop < after && getEnd(drop) <= offset) {
+            drop++;
+        }
+        shift(after, length);
+        removeRange(drop, after);
+    }
+
+    /**
+     * Follows the text removed from offset to offset + length: matches
+     * after it move back by the length, and those it overlaps are dropped.
+     */
+    public void remove(int offset, int length) {
+        int end = offset + length;
+        int first = indexAtOrAfter(Math.max(0, offset - maxLength));
+        int after = indexAtOrAfter(end);
+        int drop = first;
+        while (drop < after && getEnd(drop) <= offset && getStart(drop) < offset) {
+            drop++;
+        }
+        shift(after, -length);
+        removeRange(drop, after);
+    }
+
+    // Moves the matches from the index on by delta
+    private void shift(int from, int delta) {
+        if (from == size || delta == 0) {
+            return;
+        }
+        if (shifts == null) {
+            shifts = new int[starts.length + 1];
+        }
+        for (int i = from + 1; i < shifts.length; i += i & -i) {
+            shifts[i] += delta;
+        }
+    }
+
+    private int shiftAt(int index) {
+        if (shifts == null) {
+            return 0;
+        }
+        int shift = 0;
+        for (int i = index + 1; i > 0; i -= i & -i) {
+            shift += shifts[i];
+        }
+        return shift;
+    }
+
+    // Adds the shifts into the starts and ends, in O(n): the tree is turned
+    // back into the shift added at each index, which are then summed up
+    private void applyShifts() {
+        if (shifts == null) {
+            return;
+        }
+        for (int i = shifts.length - 1; i > 0; i--) {
+            int parent = i + (i & -i);
+            if (parent < shifts.length) {
+                shifts[parent] -= shifts[i];
+            }
+        }
+        int shift = 0;
+        for (int i = 0; i < size; i++) {
+            shift += shifts[i + 1];
+            starts[i] += shift;
+            ends[i] += shift;
+        }
+        shifts = null;
+    }
+
+    private void removeRange(int from, int to) {
+        if (from == to) {
+            return;
+        }
+        applyShifts();
+        System.arraycopy(starts, to, starts, from, size - to);
+        System.arraycopy(ends, to, ends, from, size - to);
+        size -= to - from;
+    }
+}
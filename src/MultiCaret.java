@@ -0,0 +1,402 @@
+import javax.swing.AbstractAction;
+import javax.swing.Action;
+import javax.swing.ActionMap;
+import javax.swing.JTextArea;
+import javax.swing.KeyStroke;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultCaret;
+import javax.swing.text.DefaultEditorKit;
+import javax.swing.text.Document;
+import javax.swing.text.Highlighter;
+import javax.swing.text.JTextComponent;
+import javax.swing.text.Keymap;
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Insets;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.event.ActionEvent;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseEvent;
+import java.awt.geom.Rectangle2D;
+import java.util.function.Supplier;
+
+/**
+ * Extra carets and column selections in a text area. Alt+click adds a
+ * caret, Alt+drag selects a column: the same columns on every line the drag
+ * goes over, and addAbove() and addBelow() add a caret at the same column
+ * on the next line. While there is more than one caret, typing, Backspace,
+ * Delete, Enter, Tab and Left and Right act at all of them, each keystroke
+ * as one edit of the document and one undo step (see {@link CaretSet}).
+ * Escape, a plain click or moving the text area's caret any other way goes
+ * back to that caret alone.
+ *
+ * The carets are painted as one highlight over the whole text that looks up
+ * only the carets in view, as MatchHighlighter does for matches, so ten
+ * thousand carets cost no more to paint than ten.
+ */
+public class MultiCaret implements Highlighter.HighlightPainter {
+    private static final Color SELECTION_COLOR = new Color(184, 207, 229);
+
+    private final JTextArea textArea;
+    // The index of the lines of whatever document is shown
+    private final Supplier<LineStarts> lines;
+    private final CaretSet carets = new CaretSet();
+    private Document document;
+    private Object highlight;
+    // Set while the carets move the text area's caret themselves
+    private boolean moving;
+    // Where a column selection started
+    private Point anchor;
+
+    public MultiCaret(JTextArea textArea, Supplier<LineStarts> lines) {
+        this.textArea = textArea;
+        this.lines = lines;
+
+        ColumnCaret caret = new ColumnCaret();
+        caret.setBlinkRate(textArea.getCaret().getBlinkRate());
+        textArea.setCaret(caret);
+        textArea.addCaretListener(e -> {
+            if (!moving && isActive()) {
+                clear();
+            }
+        });
+
+        // Typed chars come through the keymap's default action; a keymap of
+        // its own keeps the shared default one as it is
+        Keymap keymap = JTextComponent.addKeymap(null, textArea.getKeymap());
+        Action typed = keymap.getDefaultAction();
+        keymap.setDefaultAction(new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                if (!isActive()) {
+                    typed.actionPerformed(e);
+                    return;
+                }
+                String content = e.getActionCommand();
+                int modifiers = e.getModifiers();
+                // The same chars the default action types
+                if (content != null && !content.isEmpty()
+                        && (modifiers & ActionEvent.ALT_MASK) == (modifiers & ActionEvent.CTRL_MASK)
+                        && content.charAt(0) >= 0x20 && content.charAt(0) != 0x7F) {
+                    edit(content, 0, 0);
+                }
+            }
+        });
+        textArea.setKeymap(keymap);
+
+        ActionMap actions = textArea.getActionMap();
+        wrap(actions, DefaultEditorKit.deletePrevCharAction, () -> edit("", 1, 0));
+        wrap(actions, DefaultEditorKit.deleteNextCharAction, () -> edit("", 0, 1));
+        wrap(actions, DefaultEditorKit.insertBreakAction, () -> edit("\n", 0, 0));
+        wrap(actions, DefaultEditorKit.insertTabAction, () -> edit("\t", 0, 0));
+        wrap(actions, DefaultEditorKit.backwardAction, () -> move(-1));
+        wrap(actions, DefaultEditorKit.forwardAction, () -> move(1));
+        textArea.getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0), "clear-carets");
+        actions.put("clear-carets", new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                clear();
+            }
+        });
+
+        setDocument(textArea.getDocument());
+    }
+
+    // Runs the edit at every caret instead of the action while there are carets
+    private void wrap(ActionMap actions, String name, Runnable edit) {
+        Action original = actions.get(name);
+        actions.put(name, new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                if (isActive()) {
+                    edit.run();
+                } else {
+                    original.actionPerformed(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Follows the document the text area shows, dropping the carets.
+     */
+    public void setDocument(Document doc) {
+        clear();
+        if (document != null) {
+            document.removeDocumentListener(carets);
+        }
+        document = doc;
+        document.addDocumentListener(carets);
+    }
+
+    /**
+     * Returns whether the carets are in use, which they only are while
+     * there are two or more.
+     */
+    public boolean isActive() {
+        return carets.size() > 1;
+    }
+
+    public CaretSet getCarets() {
+        return carets;
+    }
+
+    /**
+     * Goes back to the text area's caret alone.
+     */
+    public void clear() {
+        carets.clear();
+        if (highlight != null) {
+            textArea.getHighlighter().removeHighlight(highlight);
+            highlight = null;
+            textArea.repaint();
+        }
+    }
+
+    /**
+     * Adds a caret selecting from start to end to the text area's own.
+     */
+    public void addCaret(int start, int end) {
+        if (!isActive()) {
+            carets.add(textArea.getSelectionStart(), textArea.getSelectionEnd());
+        }
+        carets.add(start, end);
+        if (carets.size() == 1) {
+            // Added where the text area's caret already was
+            int from = carets.getStart(0);
+            int to = carets.getEnd(0);
+            clear();
+            textArea.select(from, to);
+            return;
+        }
+        setDot(end);
+        shown();
+    }
+
+    /**
+     * Adds a caret on the line above the first, at the same column.
+     */
+    public void addAbove() {
+        int offset = isActive() ? carets.getEnd(0) : textArea.getCaretPosition();
+        addOnLine(offset, -1);
+    }
+
+    /**
+     * Adds a caret on the line below the last, at the same column.
+     */
+    public void addBelow() {
+        int offset = isActive() ? carets.getEnd(carets.size() - 1) : textArea.getCaretPosition();
+        addOnLine(offset, 1);
+    }
+
+    private void addOnLine(int offset, int direction) {
+        LineStarts starts = lines.get();
+        int line = starts.getLineOfOffset(offset) + direction;
+        if (line < 0 || line >= starts.getLineCount()) {
+            return;
+        }
+        int column = offset - starts.getLineStart(starts.getLineOfOffset(offset));
+        int target = starts.getLineStart(line) + Math.min(column, lineLength(starts, line));
+        addCaret(target, target);
+    }
+
+    private int lineLength(LineStarts starts, int line) {
+        int end = line + 1 < starts.getLineCount() ? starts.getLineStart(line + 1) - 1 : document.getLength();
+        return end - starts.getLineStart(line);
+    }
+
+    /**
+     * Selects the columns between two points on every line between them,
+     * with a caret on each line. Columns are counted in chars of the
+     * monospaced font, so a line shorter than the column gets a caret at
+     * its end.
+     */
+    public void selectColumn(Point from, Point to) {
+        LineStarts starts = lines.get();
+        int firstLine = lineAt(starts, Math.min(from.y, to.y));
+        int lastLine = lineAt(starts, Math.max(from.y, to.y));
+        int left = columnAt(Math.min(from.x, to.x));
+        int right = columnAt(Math.max(from.x, to.x));
+        carets.clear();
+        for (int line = firstLine; line <= lastLine; line++) {
+            int start = starts.getLineStart(line);
+            int length = lineLength(starts, line);
+            carets.append(start + Math.min(left, length), start + Math.min(right, length));
+        }
+        if (carets.size() == 1) {
+            int start = carets.getStart(0);
+            int end = carets.getEnd(0);
+            clear();
+            textArea.select(start, end);
+            return;
+        }
+        setDot(carets.getEnd(to.y < from.y ? 0 : carets.size() - 1));
+        shown();
+    }
+
+    private int lineAt(LineStarts starts, int y) {
+        int offset = textArea.viewToModel2D(new Point(textArea.getInsets().left, y));
+        return starts.getLineOfOffset(Math.max(0, Math.min(offset, document.getLength())));
+    }
+
+    private int columnAt(int x) {
+        int width = textArea.getFontMetrics(textArea.getFont()).charWidth('m');
+        return Math.max(0, Math.round((float) (x - textArea.getInsets().left) / Math.max(1, width)));
+    }
+
+    // Types, or with before or after chars taken in, deletes at every caret
+    private void edit(String text, int before, int after) {
+        if (!textArea.isEditable()) {
+            return;
+        }
+        int primary = primaryIndex();
+        moving = true;
+        try {
+            carets.replace((PieceTableDocument) document, text, before, after);
+        } catch (BadLocationException e) {
+            // The carets follow the text, so their ranges are always in it
+        } finally {
+            moving = false;
+        }
+        settle(primary);
+    }
+
+    private void move(int delta) {
+        int primary = primaryIndex();
+        carets.move(delta, document.getLength());
+        settle(primary);
+    }
+
+    // The caret the text area's own is at
+    private int primaryIndex() {
+        int dot = textArea.getCaretPosition();
+        int index = carets.indexAtOrAfter(dot);
+        return index > 0 && carets.getEnd(index - 1) >= dot ? index - 1 : index;
+    }
+
+    // Puts the text area's caret back on the caret it was at, or on its own
+    // if the carets all met
+    private void settle(int primary) {
+        if (carets.size() == 1) {
+            int offset = carets.getEnd(0);
+            clear();
+            setDot(offset);
+            return;
+        }
+        setDot(carets.getEnd(Math.min(primary, carets.size() - 1)));
+        shown();
+    }
+
+    private void setDot(int offset) {
+        moving = true;
+        try {
+            textArea.getCaret().setDot(offset);
+        } finally {
+            moving = false;
+        }
+    }
+
+    // Makes sure the highlight covers the whole text, and repaints
+    private void shown() {
+        try {
+            if (highlight == null) {
+                highlight = textArea.getHighlighter().addHighlight(0, document.getLength(), this);
+            } else {
+                textArea.getHighlighter().changeHighlight(highlight, 0, document.getLength());
+            }
+        } catch (BadLocationException e) {
+            // Cannot happen for the whole text
+        }
+        textArea.repaint();
+    }
+
+    public void paint(Graphics g, int p0, int p1, Shape bounds, JTextComponent c) {
+        if (!isActive()) {
+            return;
+        }
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = c.getVisibleRect();
+        }
+        int first = c.viewToModel2D(new Point(clip.x, clip.y));
+        int last = c.viewToModel2D(new Point(clip.x + clip.width, clip.y + clip.height));
+        int index = carets.indexAtOrAfter(first);
+        if (index > 0 && carets.getEnd(index - 1) >= first) {
+            index--;
+        }
+        try {
+            for (int i = index; i < carets.size() && carets.getStart(i) <= last; i++) {
+                paintCaret(g, c, carets.getStart(i), carets.getEnd(i));
+            }
+        } catch (BadLocationException e) {
+            // A caret past the text, which cannot happen while they follow edits
+        }
+    }
+
+    private static void paintCaret(Graphics g, JTextComponent c, int start, int end) throws BadLocationException {
+        Rectangle2D to = c.modelToView2D(end);
+        if (end > start) {
+            Rectangle2D from = c.modelToView2D(start);
+            g.setColor(SELECTION_COLOR);
+            if ((int) from.getY() == (int) to.getY()) {
+                g.fillRect((int) from.getX(), (int) from.getY(), (int) (to.getX() - from.getX()),
+                    (int) from.getHeight());
+            } else {
+                // The selection goes on over the following rows
+                Insets insets = c.getInsets();
+                int rowEnd = (int) (from.getY() + from.getHeight());
+                g.fillRect((int) from.getX(), (int) from.getY(), c.getWidth() - (int) from.getX(),
+                    rowEnd - (int) from.getY());
+                g.fillRect(insets.left, rowEnd, c.getWidth() - insets.left, (int) to.getY() - rowEnd);
+                g.fillRect(insets.left, (int) to.getY(), (int) to.getX() - insets.left, (int) to.getHeight());
+            }
+        }
+        g.setColor(c.getCaretColor());
+        g.fillRect((int) to.getX(), (int) to.getY(), 1, (int) to.getHeight());
+    }
+
+    /**
+     * The text area's caret, which hands Alt+click and Alt+drag to the
+     * carets instead of moving itself.
+     */
+    private final class ColumnCaret extends DefaultCaret {
+        @Override
+        public void mousePressed(MouseEvent e) {
+            if (!e.isAltDown() || e.getButton() != MouseEvent.BUTTON1) {
+                clear();
+                anchor = null;
+                super.mousePressed(e);
+                return;
+            }
+            anchor = e.getPoint();
+            int offset = textArea.viewToModel2D(e.getPoint());
+            if (offset >= 0) {
+                textArea.requestFocusInWindow();
+                addCaret(offset, offset);
+            }
+        }
+
+        @Override
+        public void mouseDragged(MouseEvent e) {
+            if (anchor == null) {
+                super.mouseDragged(e);
+                return;
+            }
+            selectColumn(anchor, e.getPoint());
+        }
+
+        @Override
+        public void mouseReleased(MouseEvent e) {
+            if (anchor == null) {
+                super.mouseReleased(e);
+            }
+            anchor = null;
+        }
+
+        @Override
+        public void mouseClicked(MouseEvent e) {
+            if (!e.isAltDown()) {
+                super.mouseClicked(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,1003 @@
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import javax.swing.undo.UndoableEdit;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * Document content stored as a piece table. The text lives in two buffers:
+ * the original text, which is never copied or modified, and an append-only
+ * buffer holding everything inserted since. The document is the sequence of
+ * pieces pointing into those buffers, kept in a treap ordered by position so
+ * that inserts and removes take O(log n) in the number of pieces.
+ *
+ * Positions are tracked the same way GapContent does it: marks before a split
+ * offset store their offset, marks after it store their offset plus a large
+ * virtual gap, so an edit only touches the marks between the old and the new
+ * split instead of every mark after the edit.
+ */
+public class PieceTableContent implements AbstractDocument.Content {
+    private static final int INITIAL_ADD_CAPACITY = 1024;
+    private static final long INITIAL_GAP = Long.MAX_VALUE / 4;
+
+    // Original text, shared with the loader and never written to
+    private char[] original = new char[0];
+
+    // Append-only buffer for inserted text. Growing it copies into a new
+    // array, but pieces keep pointing at the old one, which stays valid.
+    private char[] added = new char[INITIAL_ADD_CAPACITY];
+    private int addedLength;
+
+    private Node root;
+    private final Random random = new Random();
+
+    // Results of split(), kept in fields so splitting does not allocate
+    private Node splitLeft;
+    private Node splitRight;
+
+    // Marks backing the Positions, sorted by their raw value
+    private Mark[] marks = new Mark[16];
+    private int markCount;
+    private int markSplit;
+    private long markGap = INITIAL_GAP;
+    private final ReferenceQueue<StickyPosition> queue = new ReferenceQueue<>();
+    private int unusedMarks;
+
+    // Marks made one after another in increasing order, as the line elements
+    // of a large insert are, wait here and go into the array in one copy at
+    // runIndex, instead of each shifting every mark after them
+    private Mark[] run = new Mark[16];
+    private int runCount;
+    private int runIndex = -1;
+
+    /**
+     * Creates content holding only the implied trailing newline.
+     */
+    public PieceTableContent() {
+        added[addedLength++] = '\n';
+        root = new Node(added, 0, 1, random.nextInt());
+    }
+
+    /**
+     * Makes the given text the original buffer and splices it in at the
+     * start of the content without copying it. Positions move the same way
+     * they would for an insert. Returns the number of chars added.
+     */
+    int setOriginal(CharBuffer text) {
+        if (!text.hasArray()) {
+            throw new IllegalArgumentException("Original text must be backed by an array");
+        }
+        original = text.array();
+        int length = text.remaining();
+        if (length > 0) {
+            Node piece = new Node(original, text.arrayOffset() + text.position(), length, random.nextInt());
+            paste(0, piece);
+        }
+        return length;
+    }
+
+    // --- AbstractDocument.Content methods ------------------------------
+
+    public int length() {
+        return size(root);
+    }
+
+    public Position createPosition(int offset) throws BadLocationException {
+        while (queue.poll() != null) {
+            unusedMarks++;
+        }
+        if (unusedMarks > Math.max(5, markCount / 10)) {
+            removeUnusedMarks();
+        }
+
+        long raw = encode(offset);
+        if (runIndex > 0) {
+            // Each line element starts where the one before it ends, so the
+            // last mark is asked for again before the next one is made
+            Mark last = runCount > 0 ? run[runCount - 1] : marks[runIndex - 1];
+            StickyPosition existing = last.get();
+            if (raw == last.raw && existing != null) {
+                return existing;
+            }
+            if (raw > last.raw && (runIndex == markCount || raw < marks[runIndex].raw)) {
+                return addToRun(raw);
+            }
+        }
+        flushRun();
+        int index = findMark(raw);
+        if (index < markCount && marks[index].raw == raw) {
+            StickyPosition existing = marks[index].get();
+            if (existing != null) {
+                return existing;
+            }
+        }
+        StickyPosition position = new StickyPosition();
+        Mark mark = new Mark(position, queue, raw);
+        position.mark = mark;
+        insertMark(index, mark);
+        runIndex = index + 1;
+        return position;
+    }
+
+    private StickyPosition addToRun(long raw) {
+        StickyPosition position = new StickyPosition();
+        Mark mark = new Mark(position, queue, raw);
+        position.mark = mark;
+        if (runCount == run.length) {
+            run = Arrays.copyOf(run, runCount * 2);
+        }
+        run[runCount++] = mark;
+        return position;
+    }
+
+    // Puts the waiting run of marks into the array. Everything that looks
+    // marks up by index or moves them does this first.
+    private void flushRun() {
+        if (runCount == 0) {
+            return;
+        }
+        if (markCount + runCount > marks.length) {
+            marks = Arrays.copyOf(marks, Math.max(markCount * 2, markCount + runCount));
+        }
+        System.arraycopy(marks, runIndex, marks, runIndex + runCount, markCount - runIndex);
+        System.arraycopy(run, 0, marks, runIndex, runCount);
+        markCount += runCount;
+        runIndex += runCount;
+        Arrays.fill(run, 0, runCount, null);
+        runCount = 0;
+        if (run.length > 1024) {
+            run = new Mark[16];
+        }
+    }
+
+    public UndoableEdit insertString(int where, String str) throws BadLocationException {
+        if (where > length() || where < 0) {
+            throw new BadLocationException("Invalid insert", length());
+        }
+        int length = str.length();
+        if (length == 0) {
+            return null;
+        }
+        int start = append(str);
+
+        split(root, where);
+        Node left = splitLeft;
+        Node right = splitRight;
+        if (!extendLast(left, start, length)) {
+            left = merge(left, new Node(added, start, length, random.nextInt()));
+        }
+        root = merge(left, right);
+        shiftMarksForInsert(where, length);
+        return new PieceEdit(where, length, true);
+    }
+
+    public UndoableEdit remove(int where, int nitems) throws BadLocationException {
+        if (where < 0 || nitems < 0 || where + nitems >= length()) {
+            throw new BadLocationException("Invalid remove", length() + 1);
+        }
+        if (nitems == 0) {
+            return null;
+        }
+        PieceEdit edit = new PieceEdit(where, nitems, false);
+        edit.capturePositions();
+        edit.pieces = cut(where, nitems);
+        return edit;
+    }
+
+    /**
+     * Replaces each of the given ranges, which must be in order and not
+     * overlap, with the same text, as one edit. The pieces are rebuilt in a
+     * single pass and the positions are moved in another: those between
+     * the ranges move by how much the ranges before them grew or shrank,
+     * those inside a range move to the end of its replacement. A position
+     * at the start of a range stays in front of its replacement, so line
+     * starts stay line starts as long as no line break is taken out or put
+     * in, and the document does not have to build its lines again.
+     */
+    UndoableEdit replaceAll(MatchList ranges, String replacement) throws BadLocationException {
+        int start = ranges.getStart(0);
+        int end = ranges.getEnd(ranges.size() - 1);
+        if (start < 0 || start > end || end >= length()) {
+            throw new BadLocationException("Invalid replace", end);
+        }
+        int replacementStart = replacement.isEmpty() ? 0 : append(replacement);
+        split(root, start);
+        Node left = splitLeft;
+        split(splitRight, end - start);
+        Node old = splitLeft;
+        Node right = splitRight;
+        Node pieces = replacePieces(old, start, end, ranges, replacementStart, replacement.length());
+        int newLength = size(pieces);
+        root = merge(merge(left, pieces), right);
+
+        ReplaceEdit edit = new ReplaceEdit(ranges, replacement.length(), start, end - start, newLength);
+        edit.pieces = old;
+        edit.moveMarks();
+        return edit;
+    }
+
+    /**
+     * Puts back the text taken out by a remove, with each of the given
+     * ranges replaced by the same text, in a single pass over its pieces.
+     * The ranges are in document offsets from before the remove and must
+     * lie inside the removed text, in order and not overlapping. This is
+     * the way to go when line breaks are replaced, since positions inside
+     * the removed text have to be made again for the new lines anyway.
+     */
+    UndoableEdit insertReplaced(UndoableEdit removal, MatchList ranges, String replacement) {
+        PieceEdit removed = (PieceEdit) removal;
+        if (removed.insert || removed.pieces == null) {
+            throw new IllegalArgumentException("Not a remove that is done");
+        }
+        int where = removed.offset;
+        int replacementStart = replacement.isEmpty() ? 0 : append(replacement);
+        Node pieces = replacePieces(removed.pieces, where, where + removed.length, ranges,
+            replacementStart, replacement.length());
+
+        int length = size(pieces);
+        if (length == 0) {
+            return null;
+        }
+        paste(where, pieces);
+        return new PieceEdit(where, length, true);
+    }
+
+    /**
+     * Inserts the text of a snapshot, sharing its pieces instead of copying
+     * them, so it costs the same however long the text is.
+     */
+    UndoableEdit insertSnapshot(int where, TextSnapshot text) throws BadLocationException {
+        if (where > length() || where < 0) {
+            throw new BadLocationException("Invalid insert", length());
+        }
+        if (text.length() == 0) {
+            return null;
+        }
+        paste(where, pieces(text));
+        return new PieceEdit(where, text.length(), true);
+    }
+
+    /**
+     * Replaces the range with the text of a snapshot, sharing its pieces,
+     * if both have as many line breaks, and returns false otherwise. Each
+     * position in the range moves to the same line and column of the new
+     * text, or to the end of that line if it is shorter, and one at the end
+     * of the range that does not start a line stays at the end. Line starts
+     * stay line starts, so the document does not have to build its lines
+     * again.
+     */
+    boolean replaceLines(int where, int length, TextSnapshot text) throws BadLocationException {
+        if (where < 0 || length < 0 || where + length >= length()) {
+            throw new BadLocationException("Invalid replace", length());
+        }
+        int newLength = text.length();
+        TextSnapshot old = snapshot(where, where + length);
+        LineBreaks oldBreaks = new LineBreaks(old);
+        LineBreaks newBreaks = new LineBreaks(text);
+        int oldBreak;
+        int newBreak;
+        do {
+            oldBreak = oldBreaks.next();
+            newBreak = newBreaks.next();
+            if ((oldBreak == length) != (newBreak == newLength)) {
+                return false;
+            }
+        } while (oldBreak < length);
+
+        moveSplit(where);
+        int start = findMark(where + markGap);
+        int end = findMark(where + length + 1 + markGap);
+        oldBreaks = new LineBreaks(old);
+        newBreaks = new LineBreaks(text);
+        int oldLineStart = 0;
+        int newLineStart = 0;
+        oldBreak = oldBreaks.next();
+        newBreak = newBreaks.next();
+        for (int i = start; i < end; i++) {
+            int location = offsetOf(marks[i]) - where;
+            while (location > oldBreak) {
+                oldLineStart = oldBreak + 1;
+                oldBreak = oldBreaks.next();
+                newLineStart = newBreak + 1;
+                newBreak = newBreaks.next();
+            }
+            int moved;
+            if (location == length && location > oldLineStart) {
+                moved = newLength;
+            } else {
+                moved = newLineStart + Math.min(location - oldLineStart, newBreak - newLineStart);
+            }
+            marks[i].raw = where + moved;
+        }
+        // Marks after the range move with the gap, those in it are set to their new place
+        markGap -= newLength - length;
+        for (int i = start; i < end; i++) {
+            marks[i].raw += markGap;
+        }
+        swap(where, length, pieces(text));
+        return true;
+    }
+
+    // The pieces of a snapshot's text, joined where they carry on
+    private Node pieces(TextSnapshot text) {
+        Pieces pieces = new Pieces();
+        for (int i = 0; i < text.getPieceCount(); i++) {
+            pieces.add(text.getPieceBuffer(i), text.getPieceStart(i), text.getPieceLength(i));
+        }
+        return pieces.finish();
+    }
+
+    // Finds the line breaks of a snapshot in order, a piece at a time
+    private static final class LineBreaks {
+        private final TextSnapshot text;
+        private int piece;
+        // Offset of the piece, and where in it to look next
+        private int base;
+        private int next;
+
+        LineBreaks(TextSnapshot text) {
+            this.text = text;
+        }
+
+        // Returns where the next line break is, or the length of the text if
+        // there are no more
+        int next() {
+            while (piece < text.getPieceCount()) {
+                char[] buffer = text.getPieceBuffer(piece);
+                int start = text.getPieceStart(piece);
+                int count = text.getPieceLength(piece);
+                for (int i = next; i < count; i++) {
+                    if (buffer[start + i] == '\n') {
+                        next = i + 1;
+                        return base + i;
+                    }
+                }
+                base += count;
+                piece++;
+                next = 0;
+            }
+            return base;
+        }
+    }
+
+    /**
+     * Builds the pieces for the text of old, which starts at where, with
+     * each range replaced by the given span of the add buffer. The replaced
+     * text is shared by every new piece, and the text between the ranges
+     * keeps pointing where it did, so nothing is copied however many ranges
+     * there are. The old pieces are left as they are.
+     *
+     * A piece that goes on in its buffer where the one before it ends is
+     * joined to it. Typing at many carets replaces the same ranges over and
+     * over with the next char of the add buffer, so each caret keeps one
+     * piece for what it typed instead of one per keystroke.
+     */
+    private Node replacePieces(Node old, int where, int end, MatchList ranges,
+            int replacementStart, int replacementLength) {
+        Node[] oldPieces = new Node[count(old)];
+        collect(old, oldPieces, 0);
+
+        // Walk the old pieces once, copying the spans between the ranges
+        Pieces pieces = new Pieces();
+        int piece = 0;
+        int pieceStart = where;
+        int position = where;
+        for (int i = 0; i <= ranges.size(); i++) {
+            int gapEnd = i < ranges.size() ? ranges.getStart(i) : end;
+            if (gapEnd < position || gapEnd > end) {
+                throw new IllegalArgumentException("Range out of order or outside the replaced text");
+            }
+            while (position < gapEnd) {
+                Node n = oldPieces[piece];
+                if (position >= pieceStart + n.length) {
+                    pieceStart += n.length;
+                    piece++;
+                    continue;
+                }
+                int length = Math.min(gapEnd, pieceStart + n.length) - position;
+                pieces.add(n.buffer, n.start + position - pieceStart, length);
+                position += length;
+            }
+            if (i < ranges.size()) {
+                if (replacementLength > 0) {
+                    pieces.add(added, replacementStart, replacementLength);
+                }
+                position = ranges.getEnd(i);
+            }
+        }
+        return pieces.finish();
+    }
+
+    // Pieces added in order, each joined to the last if it carries on from
+    // it in the same buffer
+    private final class Pieces {
+        private Node tree;
+        private char[] buffer;
+        private int start;
+        private int length;
+
+        void add(char[] buffer, int start, int length) {
+            if (buffer == this.buffer && start == this.start + this.length) {
+                this.length += length;
+                return;
+            }
+            finish();
+            this.buffer = buffer;
+            this.start = start;
+            this.length = length;
+        }
+
+        Node finish() {
+            if (buffer != null) {
+                tree = merge(tree, new Node(buffer, start, length, random.nextInt()));
+                buffer = null;
+            }
+            return tree;
+        }
+    }
+
+    private static int count(Node n) {
+        return n == null ? 0 : count(n.left) + 1 + count(n.right);
+    }
+
+    // Puts the pieces of the subtree into the array in order, starting at index
+    private static int collect(Node n, Node[] into, int index) {
+        if (n == null) {
+            return index;
+        }
+        index = collect(n.left, into, index);
+        into[index++] = n;
+        return collect(n.right, into, index);
+    }
+
+    public String getString(int where, int len) throws BadLocationException {
+        Segment s = new Segment();
+        getChars(where, len, s);
+        return new String(s.array, s.offset, s.count);
+    }
+
+    public void getChars(int where, int len, Segment txt) throws BadLocationException {
+        if (where < 0 || len < 0 || where + len > length()) {
+            throw new BadLocationException("Invalid location", length());
+        }
+
+        // Find the piece holding the first char
+        Node n = root;
+        int base = 0;
+        while (n != null) {
+            int pieceStart = base + size(n.left);
+            if (where < pieceStart) {
+                n = n.left;
+            } else if (where >= pieceStart + n.length && n.right != null) {
+                base = pieceStart + n.length;
+                n = n.right;
+            } else {
+                int inPiece = where - pieceStart;
+                int available = n.length - inPiece;
+                if (len <= available || txt.isPartialReturn()) {
+                    // Point straight into the buffer, no copy needed
+                    txt.array = n.buffer;
+                    txt.offset = n.start + inPiece;
+                    txt.count = Math.min(len, available);
+                    return;
+                }
+                break;
+            }
+        }
+
+        char[] chars = new char[len];
+        copy(root, 0, where, where + len, chars, where);
+        txt.array = chars;
+        txt.offset = 0;
+        txt.count = len;
+    }
+
+    /**
+     * Takes an immutable snapshot of the first length chars. Only the piece
+     * boundaries are copied, never the text.
+     */
+    TextSnapshot snapshot(int length) {
+        return snapshot(0, length);
+    }
+
+    /**
+     * Takes an immutable snapshot of the chars from from up to to, whose
+     * offsets count from from. Only the pieces overlapping the range are
+     * visited, so a short range costs O(log n).
+     */
+    TextSnapshot snapshot(int from, int to) {
+        SnapshotBuilder builder = new SnapshotBuilder(from, to);
+        builder.add(root, 0);
+        return builder.build();
+    }
+
+    // Collects the pieces of the chars from from up to limit in document order
+    private static final class SnapshotBuilder {
+        private final int from;
+        private final int limit;
+        private char[][] buffers = new char[4][];
+        private int[] starts = new int[4];
+        private int[] offsets = new int[5];
+        private int count;
+
+        SnapshotBuilder(int from, int limit) {
+            this.from = from;
+            this.limit = limit;
+        }
+
+        void add(Node n, int base) {
+            if (n == null || base >= limit) {
+                return;
+            }
+            int pieceStart = base + size(n.left);
+            if (from < pieceStart) {
+                add(n.left, base);
+            }
+            int start = Math.max(from, pieceStart);
+            int length = Math.min(pieceStart + n.length, limit) - start;
+            if (length > 0) {
+                if (count == starts.length) {
+                    buffers = Arrays.copyOf(buffers, count * 2);
+                    starts = Arrays.copyOf(starts, count * 2);
+                    offsets = Arrays.copyOf(offsets, count * 2 + 1);
+                }
+                buffers[count] = n.buffer;
+                starts[count] = n.start + start - pieceStart;
+                offsets[count] = start - from;
+                count++;
+                offsets[count] = start - from + length;
+            }
+            add(n.right, pieceStart + n.length);
+        }
+
+        TextSnapshot build() {
+            return new TextSnapshot(buffers, starts, offsets, count);
+        }
+    }
+
+    // --- Piece tree ------------------------------------------------------
+
+    private static final class Node {
+        final char[] buffer;
+        final int start;
+        int length;
+        int size;
+        final int priority;
+        Node left;
+        Node right;
+
+        Node(char[] buffer, int start, int length, int priority) {
+            this.buffer = buffer;
+            this.start = start;
+            this.length = length;
+            this.size = length;
+            this.priority = priority;
+        }
+    }
+
+    private static int size(Node n) {
+        return n == null ? 0 : n.size;
+    }
+
+    private static Node update(Node n) {
+        n.size = size(n.left) + n.length + size(n.right);
+        return n;
+    }
+
+    /**
+     * Splits the tree into splitLeft, holding the first offset chars, and
+     * splitRight, holding the rest. A piece straddling the offset is cut.
+     */
+    private void split(Node n, int offset) {
+        if (n == null) {
+            splitLeft = null;
+            splitRight = null;
+            return;
+        }
+        int leftSize = size(n.left);
+        if (offset <= leftSize) {
+            split(n.left, offset);
+            n.left = splitRight;
+            splitRight = update(n);
+        } else if (offset >= leftSize + n.length) {
+            split(n.right, offset - leftSize - n.length);
+            n.right = splitLeft;
+            splitLeft = update(n);
+        } else {
+            int cut = offset - leftSize;
+            Node tail = new Node(n.buffer, n.start + cut, n.length - cut, n.priority);
+            tail.right = n.right;
+            n.length = cut;
+            n.right = null;
+            splitLeft = update(n);
+            splitRight = update(tail);
+        }
+    }
+
+    private static Node merge(Node a, Node b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            return update(a);
+        } else {
+            b.left = merge(a, b.left);
+            return update(b);
+        }
+    }
+
+    /**
+     * Grows the last piece of the tree instead of adding a new one when the
+     * inserted text directly follows it in the add buffer, which is the
+     * common case while typing.
+     */
+    private boolean extendLast(Node n, int start, int length) {
+        if (n == null) {
+            return false;
+        }
+        boolean extended;
+        if (n.right != null) {
+            extended = extendLast(n.right, start, length);
+        } else if (n.buffer == added && n.start + n.length == start) {
+            n.length += length;
+            extended = true;
+        } else {
+            extended = false;
+        }
+        if (extended) {
+            update(n);
+        }
+        return extended;
+    }
+
+    // Copies the chars in [from, to) of the subtree starting at base into dest
+    private static void copy(Node n, int base, int from, int to, char[] dest, int destBase) {
+        if (n == null || to <= base || from >= base + n.size) {
+            return;
+        }
+        int pieceStart = base + size(n.left);
+        copy(n.left, base, from, to, dest, destBase);
+        int s = Math.max(from, pieceStart);
+        int e = Math.min(to, pieceStart + n.length);
+        if (s < e) {
+            System.arraycopy(n.buffer, n.start + s - pieceStart, dest, s - destBase, e - s);
+        }
+        copy(n.right, pieceStart + n.length, from, to, dest, destBase);
+    }
+
+    // Appends to the add buffer and returns where the text starts
+    private int append(String str) {
+        int length = str.length();
+        if (addedLength + length > added.length) {
+            long capacity = Math.max((long) added.length * 2, (long) addedLength + length);
+            added = Arrays.copyOf(added, (int) Math.min(capacity, Integer.MAX_VALUE - 8));
+        }
+        str.getChars(0, length, added, addedLength);
+        int start = addedLength;
+        addedLength += length;
+        return start;
+    }
+
+    // Takes the given range out of the tree and returns it as its own tree
+    private Node cut(int where, int length) {
+        split(root, where);
+        Node left = splitLeft;
+        split(splitRight, length);
+        Node middle = splitLeft;
+        root = merge(left, splitRight);
+        collapseMarksForRemove(where, length);
+        return middle;
+    }
+
+    // Puts pieces in place of the given range without moving any marks,
+    // and returns the pieces taken out
+    private Node swap(int where, int length, Node pieces) {
+        split(root, where);
+        Node left = splitLeft;
+        split(splitRight, length);
+        Node old = splitLeft;
+        root = merge(merge(left, pieces), splitRight);
+        return old;
+    }
+
+    // Puts a tree of pieces back in at the given offset
+    private void paste(int where, Node pieces) {
+        int length = size(pieces);
+        split(root, where);
+        Node right = splitRight;
+        root = merge(merge(splitLeft, pieces), right);
+        shiftMarksForInsert(where, length);
+    }
+
+    // --- Marks -------------------------------------------------------------
+
+    /**
+     * Position returned to the document. It holds its mark strongly while
+     * the mark only holds it weakly, so unused positions can be collected.
+     */
+    private final class StickyPosition implements Position {
+        Mark mark;
+
+        public int getOffset() {
+            return offsetOf(mark);
+        }
+
+        public String toString() {
+            return Integer.toString(getOffset());
+        }
+    }
+
+    private static final class Mark extends WeakReference<StickyPosition> {
+        long raw;
+
+        Mark(StickyPosition position, ReferenceQueue<StickyPosition> queue, long raw) {
+            super(position, queue);
+            this.raw = raw;
+        }
+    }
+
+    private static final Comparator<Mark> BY_RAW = Comparator.comparingLong(m -> m.raw);
+
+    private int offsetOf(Mark mark) {
+        return (int) (mark.raw < markSplit ? mark.raw : mark.raw - markGap);
+    }
+
+    private long encode(int offset) {
+        return offset < markSplit ? offset : offset + markGap;
+    }
+
+    // Returns the index of the first mark whose raw value is >= raw
+    private int findMark(long raw) {
+        int low = 0;
+        int high = markCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (marks[mid].raw < raw) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void insertMark(int index, Mark mark) {
+        if (markCount == marks.length) {
+            marks = Arrays.copyOf(marks, markCount * 2);
+        }
+        System.arraycopy(marks, index, marks, index + 1, markCount - index);
+        marks[index] = mark;
+        markCount++;
+    }
+
+    private void removeUnusedMarks() {
+        flushRun();
+        runIndex = -1;
+        int write = 0;
+        for (int read = 0; read < markCount; read++) {
+            if (marks[read].get() != null) {
+                marks[write++] = marks[read];
+            }
+        }
+        Arrays.fill(marks, write, markCount, null);
+        markCount = write;
+        unusedMarks = 0;
+    }
+
+    /**
+     * Moves the split so that marks below offset store their offset and
+     * marks at or above it store their offset plus the gap. Only the marks
+     * between the old and the new split are touched.
+     */
+    private void moveSplit(int offset) {
+        flushRun();
+        if (offset < markSplit) {
+            int end = findMark(markSplit);
+            for (int i = findMark(offset); i < end; i++) {
+                marks[i].raw += markGap;
+            }
+        } else if (offset > markSplit) {
+            int end = findMark(offset + markGap);
+            for (int i = findMark(markSplit + markGap); i < end; i++) {
+                marks[i].raw -= markGap;
+            }
+        }
+        markSplit = offset;
+    }
+
+    private void shiftMarksForInsert(int where, int length) {
+        moveSplit(where);
+        markGap -= length;
+        markSplit = where + length;
+
+        // Marks at the very start of the document never move
+        if (where == 0) {
+            long moved = length + markGap;
+            for (int i = 0; i < markCount && marks[i].raw == moved; i++) {
+                marks[i].raw = 0;
+            }
+        }
+    }
+
+    private void collapseMarksForRemove(int where, int length) {
+        moveSplit(where + length);
+        int start = findMark(where);
+        int end = findMark(where + length);
+        markGap += length;
+        markSplit = where;
+        for (int i = start; i < end; i++) {
+            marks[i].raw = where + markGap;
+        }
+    }
+
+    /**
+     * Undo record shared by inserts and removes. While the text is out of
+     * the document the edit holds its pieces, so undoing a remove never
+     * needs a copy of the removed text.
+     */
+    private final class PieceEdit extends AbstractUndoableEdit {
+        private final int offset;
+        private final int length;
+        private final boolean insert;
+        private Node pieces;
+        private Mark[] posRefs;
+        private int[] posLocations;
+
+        PieceEdit(int offset, int length, boolean insert) {
+            this.offset = offset;
+            this.length = length;
+            this.insert = insert;
+        }
+
+        public void undo() throws CannotUndoException {
+            super.undo();
+            if (insert) {
+                takeOut();
+            } else {
+                putBack();
+            }
+        }
+
+        public void redo() throws CannotRedoException {
+            super.redo();
+            if (insert) {
+                putBack();
+            } else {
+                takeOut();
+            }
+        }
+
+        private void takeOut() {
+            capturePositions();
+            pieces = cut(offset, length);
+        }
+
+        private void putBack() {
+            paste(offset, pieces);
+            pieces = null;
+            restorePositions();
+        }
+
+        // Remembers where the positions inside the range were before it goes
+        void capturePositions() {
+            moveSplit(offset);
+            int start = findMark(offset + markGap);
+            int end = findMark(offset + length + 1 + markGap);
+            posRefs = Arrays.copyOfRange(marks, start, end);
+            posLocations = new int[posRefs.length];
+            for (int i = 0; i < posRefs.length; i++) {
+                posLocations[i] = offsetOf(posRefs[i]);
+            }
+        }
+
+        // Moves those positions back once the range is in again
+        private void restorePositions() {
+            moveSplit(offset);
+            int start = findMark(offset + markGap);
+            int end = findMark(offset + length + 1 + markGap);
+            for (int i = 0; i < posRefs.length; i++) {
+                posRefs[i].raw = posLocations[i] + markGap;
+            }
+            Arrays.sort(marks, start, end, BY_RAW);
+            posRefs = null;
+            posLocations = null;
+        }
+    }
+
+    /**
+     * Undo record of a replace all. It holds whichever of the old and the
+     * new pieces are out of the document, and where the positions in the
+     * replaced text were, so undo puts them back exactly.
+     */
+    private final class ReplaceEdit extends AbstractUndoableEdit {
+        private final MatchList ranges;
+        private final int replacementLength;
+        private final int offset;
+        private final int length;
+        private final int newLength;
+        private Node pieces;
+        private Mark[] posRefs;
+        private int[] posLocations;
+
+        ReplaceEdit(MatchList ranges, int replacementLength, int offset, int length, int newLength) {
+            this.ranges = ranges;
+            this.replacementLength = replacementLength;
+            this.offset = offset;
+            this.length = length;
+            this.newLength = newLength;
+        }
+
+        public void undo() throws CannotUndoException {
+            super.undo();
+            pieces = swap(offset, newLength, pieces);
+            restoreMarks();
+        }
+
+        public void redo() throws CannotRedoException {
+            super.redo();
+            pieces = swap(offset, length, pieces);
+            moveMarks();
+        }
+
+        // Moves the positions from the old text to the new in one pass,
+        // remembering where those in the replaced text were
+        void moveMarks() {
+            moveSplit(offset);
+            int start = findMark(offset + markGap);
+            int end = findMark(offset + length + 1 + markGap);
+            posRefs = Arrays.copyOfRange(marks, start, end);
+            posLocations = new int[posRefs.length];
+            int range = 0;
+            // How much the ranges before the current one grew
+            int shift = 0;
+            for (int i = 0; i < posRefs.length; i++) {
+                int location = offsetOf(posRefs[i]);
+                posLocations[i] = location;
+                while (range < ranges.size() && location > ranges.getEnd(range)) {
+                    shift += replacementLength - (ranges.getEnd(range) - ranges.getStart(range));
+                    range++;
+                }
+                if (range == ranges.size() || location <= ranges.getStart(range)) {
+                    posRefs[i].raw = location + shift;
+                } else {
+                    posRefs[i].raw = ranges.getStart(range) + shift + replacementLength;
+                }
+            }
+            // Marks after the text move with the gap, those in it are set to their new place
+            markGap -= newLength - length;
+            for (int i = start; i < end; i++) {
+                marks[i].raw += markGap;
+            }
+        }
+
+        private void restoreMarks() {
+            moveSplit(offset);
+            int start = findMark(offset + markGap);
+            int end = findMark(offset + newLength + 1 + markGap);
+            markGap += newLength - length;
+            // Marks made in the new text go to the end of the old one
+            for (int i = start; i < end; i++) {
+                marks[i].raw = offset + length + markGap;
+            }
+            for (int i = 0; i < posRefs.length; i++) {
+                posRefs[i].raw = posLocations[i] + markGap;
+            }
+            Arrays.sort(marks, start, end, BY_RAW);
+            posRefs = null;
+            posLocations = null;
+        }
+    }
+}
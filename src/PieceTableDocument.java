@@ -0,0 +1,308 @@
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.UndoableEditEvent;
+import javax.swing.event.UndoableEditListener;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.PlainDocument;
+import javax.swing.text.Segment;
+import javax.swing.undo.CompoundEdit;
+import javax.swing.undo.UndoableEdit;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A plain text document backed by a {@link PieceTableContent}. It behaves
+ * like the default JTextArea document, so the usual document and undoable
+ * edit listeners work unchanged.
+ *
+ * While it has undoable edit listeners, the document also records each
+ * undoable edit as the text it took out and put in, for an undo history
+ * that keeps old edits as text rather than as edit objects. The texts are
+ * snapshots of the pieces, so recording one copies no text.
+ */
+public class PieceTableDocument extends PlainDocument {
+
+    /**
+     * One change to the text: at offset, removed was taken out and inserted
+     * put in its place.
+     */
+    public static final class Change {
+        private final int offset;
+        private final TextSnapshot removed;
+        private final TextSnapshot inserted;
+
+        Change(int offset, TextSnapshot removed, TextSnapshot inserted) {
+            this.offset = offset;
+            this.removed = removed;
+            this.inserted = inserted;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        public TextSnapshot getRemoved() {
+            return removed;
+        }
+
+        public TextSnapshot getInserted() {
+            return inserted;
+        }
+    }
+
+    // Changes made since the last undoable edit was fired, and those of the
+    // one being fired
+    private List<Change> changes = new ArrayList<>();
+    private List<Change> firedChanges;
+
+    public PieceTableDocument() {
+        super(new PieceTableContent());
+    }
+
+    /**
+     * Creates a document whose text is the given buffer. The buffer becomes
+     * the original text of the piece table as is, without being copied, and
+     * the line map is built in a single pass with no events fired.
+     */
+    public PieceTableDocument(CharBuffer text) {
+        this();
+        writeLock();
+        try {
+            int length = ((PieceTableContent) getContent()).setOriginal(text);
+            if (length > 0) {
+                DefaultDocumentEvent e = new DefaultDocumentEvent(0, length, DocumentEvent.EventType.INSERT);
+                insertUpdate(e, null);
+                e.end();
+            }
+        } finally {
+            writeUnlock();
+        }
+    }
+
+    /**
+     * Returns the changes made by the undoable edit being passed to the
+     * listeners, in order, or null outside of that. AbstractDocument hands
+     * listeners a wrapper of its edit, so it cannot be asked by edit.
+     */
+    public List<Change> getFiredChanges() {
+        return firedChanges;
+    }
+
+    private boolean recordingChanges() {
+        return listenerList.getListenerCount(UndoableEditListener.class) > 0;
+    }
+
+    // Called before the text is taken out
+    @Override
+    protected void removeUpdate(DefaultDocumentEvent chng) {
+        if (recordingChanges()) {
+            int offset = chng.getOffset();
+            PieceTableContent content = (PieceTableContent) getContent();
+            changes.add(new Change(offset, content.snapshot(offset, offset + chng.getLength()),
+                content.snapshot(offset, offset)));
+        }
+        super.removeUpdate(chng);
+    }
+
+    // Called once the text is in
+    @Override
+    protected void insertUpdate(DefaultDocumentEvent chng, AttributeSet attr) {
+        if (recordingChanges()) {
+            int offset = chng.getOffset();
+            PieceTableContent content = (PieceTableContent) getContent();
+            changes.add(new Change(offset, content.snapshot(offset, offset),
+                content.snapshot(offset, offset + chng.getLength())));
+        }
+        super.insertUpdate(chng, attr);
+    }
+
+    @Override
+    protected void fireUndoableEditUpdate(UndoableEditEvent e) {
+        firedChanges = changes;
+        changes = new ArrayList<>();
+        try {
+            super.fireUndoableEditUpdate(e);
+        } finally {
+            firedChanges = null;
+        }
+    }
+
+    /**
+     * Returns an immutable snapshot of the text that other threads can read
+     * while editing goes on.
+     */
+    public TextSnapshot snapshot() {
+        readLock();
+        try {
+            return ((PieceTableContent) getContent()).snapshot(getLength());
+        } finally {
+            readUnlock();
+        }
+    }
+
+    /**
+     * Replaces every match with the same text as one edit. Listeners get
+     * one remove event for the text from the start of the first match to
+     * the end of the last, one insert event for the text put there, and a
+     * single undoable edit however many matches there are. The matches
+     * must be in order and not overlap.
+     */
+    public void replaceAll(MatchList matches, String replacement) throws BadLocationException {
+        if (matches.size() == 0) {
+            return;
+        }
+        int start = matches.getStart(0);
+        int end = matches.getEnd(matches.size() - 1);
+        if (start < 0 || end > getLength()) {
+            throw new BadLocationException("Invalid replace", end);
+        }
+        for (int i = 0; i < matches.size(); i++) {
+            if (matches.getStart(i) > matches.getEnd(i) || i > 0 && matches.getStart(i) < matches.getEnd(i - 1)) {
+                throw new BadLocationException("Matches out of order", matches.getStart(i));
+            }
+        }
+        PieceTableContent content = (PieceTableContent) getContent();
+        CompoundEdit edit = new CompoundEdit();
+        writeLock();
+        try {
+            // Text needing bidi layout, which AbstractDocument flags as "i18n",
+            // keeps its bidi structure up to date only the slow way
+            if (end > start && !Boolean.TRUE.equals(getProperty("i18n"))
+                    && replacement.indexOf('\n') < 0 && !hasLineBreak(matches)) {
+                // The lines stay the same and their positions are moved in
+                // place, so the line map needs no update. The content edit
+                // goes with the remove event, so undo has the old text back
+                // by the time that event fires the insert for it.
+                int before = getLength();
+                TextSnapshot removed = recordingChanges() ? content.snapshot(start, end) : null;
+                UndoableEdit change = content.replaceAll(matches, replacement);
+                if (removed != null) {
+                    int newEnd = end + getLength() - before;
+                    changes.add(new Change(start, removed, content.snapshot(start, newEnd)));
+                }
+                DefaultDocumentEvent removal = new DefaultDocumentEvent(start, end - start,
+                    DocumentEvent.EventType.REMOVE);
+                removal.addEdit(change);
+                removal.end();
+                fireRemoveUpdate(removal);
+                edit.addEdit(removal);
+                int length = end - start + getLength() - before;
+                DefaultDocumentEvent insertion = new DefaultDocumentEvent(start, length,
+                    DocumentEvent.EventType.INSERT);
+                insertion.end();
+                fireInsertUpdate(insertion);
+                edit.addEdit(insertion);
+                edit.end();
+                fireUndoableEditUpdate(new UndoableEditEvent(this, edit));
+                return;
+            }
+
+            // The same steps as AbstractDocument.replace, with the insert made
+            // from the pieces the remove took out
+            UndoableEdit removal = null;
+            if (end > start) {
+                DefaultDocumentEvent e = new DefaultDocumentEvent(start, end - start, DocumentEvent.EventType.REMOVE);
+                removeUpdate(e);
+                removal = content.remove(start, end - start);
+                e.addEdit(removal);
+                postRemoveUpdate(e);
+                e.end();
+                fireRemoveUpdate(e);
+                edit.addEdit(e);
+            }
+            int before = getLength();
+            UndoableEdit insertion = removal != null
+                ? content.insertReplaced(removal, matches, replacement)
+                : content.insertString(start, replacement);
+            if (insertion != null) {
+                int length = getLength() - before;
+                DefaultDocumentEvent e = new DefaultDocumentEvent(start, length, DocumentEvent.EventType.INSERT);
+                e.addEdit(insertion);
+                insertUpdate(e, null);
+                e.end();
+                fireInsertUpdate(e);
+                edit.addEdit(e);
+            }
+            edit.end();
+            if (removal != null || insertion != null) {
+                fireUndoableEditUpdate(new UndoableEditEvent(this, edit));
+            }
+        } finally {
+            writeUnlock();
+        }
+    }
+
+    /**
+     * Replaces length chars at offset with the text of a snapshot, sharing
+     * its pieces instead of copying it, as the undo history puts back text
+     * it kept. When both texts have as many line breaks, the lines are kept
+     * and the positions in them moved in place, as for replaceAll; otherwise
+     * the lines of the range are built again. Listeners get a remove and an
+     * insert event, but no undoable edit, since the history makes this one.
+     */
+    public void replace(int offset, int length, TextSnapshot text) throws BadLocationException {
+        if (offset < 0 || length < 0 || offset + length > getLength()) {
+            throw new BadLocationException("Invalid replace", offset + length);
+        }
+        PieceTableContent content = (PieceTableContent) getContent();
+        writeLock();
+        try {
+            if (!Boolean.TRUE.equals(getProperty("i18n")) && content.replaceLines(offset, length, text)) {
+                if (length > 0) {
+                    DefaultDocumentEvent removal = new DefaultDocumentEvent(offset, length,
+                        DocumentEvent.EventType.REMOVE);
+                    removal.end();
+                    fireRemoveUpdate(removal);
+                }
+                if (text.length() > 0) {
+                    DefaultDocumentEvent insertion = new DefaultDocumentEvent(offset, text.length(),
+                        DocumentEvent.EventType.INSERT);
+                    insertion.end();
+                    fireInsertUpdate(insertion);
+                }
+                return;
+            }
+
+            // The same steps as AbstractDocument.remove and insertString,
+            // without recording them as changes
+            if (length > 0) {
+                DefaultDocumentEvent e = new DefaultDocumentEvent(offset, length, DocumentEvent.EventType.REMOVE);
+                super.removeUpdate(e);
+                e.addEdit(content.remove(offset, length));
+                postRemoveUpdate(e);
+                e.end();
+                fireRemoveUpdate(e);
+            }
+            UndoableEdit insertion = content.insertSnapshot(offset, text);
+            if (insertion != null) {
+                DefaultDocumentEvent e = new DefaultDocumentEvent(offset, text.length(), DocumentEvent.EventType.INSERT);
+                e.addEdit(insertion);
+                super.insertUpdate(e, null);
+                e.end();
+                fireInsertUpdate(e);
+            }
+        } finally {
+            writeUnlock();
+        }
+    }
+
+    private boolean hasLineBreak(MatchList matches) throws BadLocationException {
+        Segment segment = new Segment();
+        segment.setPartialReturn(true);
+        for (int i = 0; i < matches.size(); i++) {
+            int offset = matches.getStart(i);
+            int end = matches.getEnd(i);
+            while (offset < end) {
+                getText(offset, end - offset, segment);
+                for (int j = 0; j < segment.count; j++) {
+                    if (segment.array[segment.offset + j] == '\n') {
+                        return true;
+                    }
+                }
+                offset += segment.count;
+            }
+        }
+        return false;
+    }
+}
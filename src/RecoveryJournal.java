@@ -0,0 +1,340 @@
+import javax.swing.text.BadLocationException;
+import java.io.*;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Append-only log of the edits made to a document since it was last saved,
+ * used to bring back unsaved work after a crash. The journal starts with a
+ * header naming the text the edits apply to: nothing, the file the document
+ * was loaded from, or a snapshot written when the journal was compacted.
+ * Each record after that is one insert or remove, so appending costs the
+ * size of the edit and never the size of the document.
+ *
+ * A journal belongs to one editor window, which holds a lock on it for as
+ * long as it is open. A journal whose lock is free was left behind by a
+ * session that did not exit cleanly.
+ */
+public class RecoveryJournal implements Closeable {
+    private static final int MAGIC = 0x54454A31;
+    private static final String JOURNAL_SUFFIX = ".journal";
+
+    // What the records in a journal apply to
+    static final byte BASE_EMPTY = 0;
+    static final byte BASE_FILE = 1;
+    static final byte BASE_SNAPSHOT = 2;
+
+    private static final byte INSERT = 'I';
+    private static final byte REMOVE = 'R';
+
+    // Snapshots are always written in UTF-8, whatever the document's charset
+    static final Charset SNAPSHOT_CHARSET = StandardCharsets.UTF_8;
+
+    private final File directory;
+    private final String id;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private FileChannel channel;
+    private DataOutputStream out;
+    private int headerLength;
+    private int generation;
+
+    /**
+     * Opens the journal with the given id in the directory and locks it. No
+     * journal file is written until start() is called.
+     */
+    public RecoveryJournal(File directory, String id) throws IOException {
+        this.directory = directory;
+        this.id = id;
+        Files.createDirectories(directory.toPath());
+        lockChannel = FileChannel.open(lockFile(directory, id).toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        lock = lockChannel.lock();
+    }
+
+    /**
+     * Replaces the journal with an empty one whose records apply to the given
+     * base. The new journal is written next to the old one and renamed over
+     * it, so a crash leaves either the old or the new journal, never neither.
+     * For a file base, baseSize and baseModified are those of the file when
+     * its text was read or written, not now, so a file changed on disk since
+     * is not taken for the text the edits apply to.
+     */
+    public void start(byte baseKind, String path, String base, long baseSize, long baseModified)
+            throws IOException {
+        closeJournal();
+
+        File journalFile = journalFile(directory, id);
+        File temp = new File(directory, id + JOURNAL_SUFFIX + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(temp)) {
+            DataOutputStream header = new DataOutputStream(new BufferedOutputStream(fileOut));
+            header.writeInt(MAGIC);
+            header.writeUTF(path == null ? "" : path);
+            header.writeByte(baseKind);
+            header.writeUTF(base == null ? "" : base);
+            header.writeLong(baseSize);
+            header.writeLong(baseModified);
+            header.flush();
+            fileOut.getFD().sync();
+            headerLength = header.size();
+        }
+        Files.move(temp.toPath(), journalFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+        deleteBases(baseKind == BASE_SNAPSHOT ? base : null);
+    }
+
+    public boolean isStarted() {
+        return out != null;
+    }
+
+    public void appendInsert(int offset, String text) throws IOException {
+        out.writeByte(INSERT);
+        out.writeInt(offset);
+        out.writeInt(text.length());
+        out.writeChars(text);
+    }
+
+    public void appendRemove(int offset, int length) throws IOException {
+        out.writeByte(REMOVE);
+        out.writeInt(offset);
+        out.writeInt(length);
+    }
+
+    /**
+     * Writes out buffered records and forces them to disk.
+     */
+    public void force() throws IOException {
+        if (out != null) {
+            out.flush();
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Returns the size of the journal in bytes, including buffered records.
+     */
+    public long size() {
+        return out == null ? 0 : headerLength + (long) out.size();
+    }
+
+    /**
+     * Returns a new file to write a compaction snapshot to.
+     */
+    public File nextBaseFile() {
+        return new File(directory, id + "-" + (++generation) + ".base");
+    }
+
+    /**
+     * Deletes the journal and its snapshots. The lock is kept.
+     */
+    public void delete() throws IOException {
+        closeJournal();
+        journalFile(directory, id).delete();
+        deleteBases(null);
+    }
+
+    /**
+     * Flushes the journal and releases the lock. The journal itself is kept
+     * so it can be recovered, unless it was never started.
+     */
+    public void close() throws IOException {
+        try {
+            force();
+            closeJournal();
+        } finally {
+            lock.release();
+            lockChannel.close();
+            if (!journalFile(directory, id).exists()) {
+                lockFile(directory, id).delete();
+            }
+        }
+    }
+
+    private void closeJournal() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+            channel = null;
+        }
+    }
+
+    // Deletes the snapshots of this journal except the named one
+    private void deleteBases(String keep) {
+        File[] bases = directory.listFiles((dir, name) -> name.startsWith(id + "-") && name.endsWith(".base"));
+        if (bases != null) {
+            for (File base : bases) {
+                if (!base.getName().equals(keep)) {
+                    base.delete();
+                }
+            }
+        }
+    }
+
+    private static File journalFile(File directory, String id) {
+        return new File(directory, id + JOURNAL_SUFFIX);
+    }
+
+    private static File lockFile(File directory, String id) {
+        return new File(directory, id + ".lock");
+    }
+
+    private static String idOf(File journal) {
+        String name = journal.getName();
+        return name.substring(0, name.length() - JOURNAL_SUFFIX.length());
+    }
+
+    // --- Recovery ------------------------------------------------------
+
+    /**
+     * Returns the journals in the directory that no running editor holds.
+     */
+    public static List<File> findAbandoned(File directory) {
+        List<File> abandoned = new ArrayList<>();
+        File[] journals = directory.listFiles((dir, name) -> name.endsWith(JOURNAL_SUFFIX));
+        if (journals == null) {
+            return abandoned;
+        }
+        for (File journal : journals) {
+            File lockFile = lockFile(directory, idOf(journal));
+            try (FileChannel lockChannel = FileChannel.open(lockFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                FileLock lock = lockChannel.tryLock();
+                if (lock != null) {
+                    lock.release();
+                    abandoned.add(journal);
+                }
+            } catch (IOException | OverlappingFileLockException e) {
+                // Held by this or another editor
+            }
+        }
+        return abandoned;
+    }
+
+    /**
+     * Returns the path of the file a journal belongs to, or null when the
+     * document was never saved.
+     */
+    public static String readPath(File journal) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a recovery journal: " + journal.getName());
+            }
+            String path = in.readUTF();
+            return path.isEmpty() ? null : path;
+        }
+    }
+
+    /**
+     * Deletes an abandoned journal along with its lock and snapshots.
+     */
+    public static void discard(File journal) {
+        File directory = journal.getParentFile();
+        String id = idOf(journal);
+        journal.delete();
+        File[] bases = directory.listFiles((dir, name) -> name.startsWith(id + "-") && name.endsWith(".base"));
+        if (bases != null) {
+            for (File base : bases) {
+                base.delete();
+            }
+        }
+        lockFile(directory, id).delete();
+    }
+
+    /**
+     * A document rebuilt from a journal, together with the file it belongs to.
+     */
+    public static class Recovered {
+        public final String path;
+        public final PieceTableDocument document;
+        // Format of the file the edits were made to, or null if unknown
+        public final TextFormat format;
+
+        Recovered(String path, PieceTableDocument document, TextFormat format) {
+            this.path = path;
+            this.document = document;
+            this.format = format;
+        }
+    }
+
+    /**
+     * Rebuilds the document a journal describes by loading its base and
+     * replaying the records on top. A record cut short by the crash ends the
+     * replay. This reads files and should not run on the EDT.
+     */
+    public static Recovered replay(File journal) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a recovery journal: " + journal.getName());
+            }
+            String path = in.readUTF();
+            byte baseKind = in.readByte();
+            String base = in.readUTF();
+            long baseSize = in.readLong();
+            long baseModified = in.readLong();
+
+            PieceTableDocument document;
+            TextFormat format = null;
+            if (baseKind == BASE_FILE) {
+                File file = new File(base);
+                if (file.length() != baseSize || file.lastModified() != baseModified) {
+                    throw new IOException(file.getName() + " has changed since the unsaved edits were made");
+                }
+                FileLoader loader = new FileLoader(file);
+                document = new PieceTableDocument(load(loader));
+                format = loader.getFormat();
+            } else if (baseKind == BASE_SNAPSHOT) {
+                document = new PieceTableDocument(load(new FileLoader(new File(journal.getParentFile(), base), SNAPSHOT_CHARSET)));
+            } else {
+                document = new PieceTableDocument();
+            }
+
+            try {
+                while (true) {
+                    byte type = in.readByte();
+                    int offset = in.readInt();
+                    int length = in.readInt();
+                    if (type == INSERT) {
+                        char[] chars = new char[length];
+                        for (int i = 0; i < length; i++) {
+                            chars[i] = in.readChar();
+                        }
+                        document.insertString(offset, new String(chars), null);
+                    } else if (type == REMOVE) {
+                        document.remove(offset, length);
+                    } else {
+                        break;
+                    }
+                }
+            } catch (EOFException | BadLocationException e) {
+                // The last record was cut short, keep everything before it
+            }
+            return new Recovered(path.isEmpty() ? null : path, document, format);
+        }
+    }
+
+    // Decodes a whole file on the calling thread
+    private static CharBuffer load(FileLoader loader) throws IOException {
+        loader.run();
+        try {
+            return loader.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+}
@@ -0,0 +1,480 @@
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Segment;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds all matches of a regular expression in a {@link TextSnapshot},
+ * using every core. The text is split into chunks that start at line
+ * starts and each chunk is matched as its own fork-join task, so the
+ * matches come out the same as those of one Matcher over the whole text:
+ *
+ * - A task matches a region of the whole text with transparent bounds, so
+ *   lookarounds, \b and anchors see past it, and reports only matches that
+ *   start inside its chunk. Unless the pattern cannot match across lines,
+ *   when its matches end before the line break that ends the chunk, the
+ *   region goes a little past the chunk. Only a match starting inside the
+ *   chunk, or a try at one, that runs into the end of the region makes the
+ *   task read further; tries that start past the chunk never do.
+ * - A match that runs past the end of its chunk hides any match starting
+ *   under it. The chunk after it is then matched again from the end of
+ *   that match when the results are put together, and its own task stops
+ *   early.
+ *
+ * Results are handed over a chunk at a time and in order, as soon as a
+ * chunk and all those before it are done.
+ */
+public class RegexSearch implements MatchFinder {
+    // Chars in a chunk, before moving its end to the next line start
+    static final int CHUNK_SIZE = 1024 * 1024;
+    // Chars read past the end of a chunk at first
+    static final int LOOKAHEAD = 4 * 1024;
+    // Matches found between checks for cancellation
+    private static final int CHECK_INTERVAL = 1024;
+    // A group that may turn on flag x, under which # starts a comment
+    private static final Pattern COMMENTS_FLAG = Pattern.compile("\\(\\?[a-zA-Z-]*x");
+
+    private final Pattern pattern;
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+    // Whether matches end before the line break that ends a chunk, so a
+    // chunk never needs more text after it
+    private final boolean staysOnLine;
+    // The pattern inside a lookahead, so that a find over a region only
+    // tries starts inside it while each try can read all of the text, or
+    // null if the pattern cannot be wrapped safely
+    private final Pattern starts;
+
+    public RegexSearch(Pattern pattern) {
+        this(pattern, ForkJoinPool.commonPool(), CHUNK_SIZE);
+    }
+
+    RegexSearch(Pattern pattern, ForkJoinPool pool, int chunkSize) {
+        this.pattern = pattern;
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+        this.staysOnLine = staysOnLine(pattern);
+        this.starts = staysOnLine ? null : lookahead(pattern);
+    }
+
+    public Pattern getPattern() {
+        return pattern;
+    }
+
+    /**
+     * Finds all matches, passing them to results in order, a chunk at a
+     * time, on the calling thread. Returns false if stop returned true
+     * before the search was done.
+     */
+    public boolean findAll(TextSnapshot snapshot, Consumer<MatchList> results, BooleanSupplier stop) {
+        return findAll(snapshot, null, results, stop);
+    }
+
+    /**
+     * Finds all matches on the lines around the given regions, as narrowed
+     * down by a {@link TrigramIndex}, or in all of the text if regions is
+     * null. Only patterns whose matches stay on one line may be narrowed
+     * down this way.
+     */
+    public boolean findAll(TextSnapshot snapshot, MatchList regions, Consumer<MatchList> results,
+            BooleanSupplier stop) {
+        int[] bounds = chunkBounds(snapshot, regions);
+        // Where the matches handed over so far end; chunks starting before
+        // that are matched again and their own task can give up
+        AtomicInteger covered = new AtomicInteger();
+        List<ForkJoinTask<MatchList>> tasks = new ArrayList<>();
+        for (int i = 0; i < bounds.length; i += 2) {
+            int start = bounds[i];
+            int end = bounds[i + 1];
+            BooleanSupplier skip = () -> stop.getAsBoolean() || covered.get() > start;
+            tasks.add(pool.submit(() -> matchChunk(snapshot, start, end, skip)));
+        }
+
+        int last = tasks.size() - 1;
+        try {
+            for (int i = 0; i <= last; i++) {
+                int start = bounds[2 * i];
+                int end = bounds[2 * i + 1];
+                int previousEnd = covered.get();
+                MatchList chunk;
+                if (previousEnd > end || (previousEnd == end && i < last)) {
+                    // A match before this chunk covers all of it
+                    tasks.get(i).cancel(false);
+                    continue;
+                } else if (previousEnd > start) {
+                    tasks.get(i).cancel(false);
+                    chunk = matchChunk(snapshot, previousEnd, end, stop);
+                } else {
+                    chunk = tasks.get(i).join();
+                }
+                if (stop.getAsBoolean()) {
+                    return false;
+                }
+                if (chunk.size() > 0) {
+                    covered.set(chunk.getEnd(chunk.size() - 1));
+                    results.accept(chunk);
+                }
+            }
+            return true;
+        } finally {
+            for (ForkJoinTask<MatchList> task : tasks) {
+                task.cancel(false);
+            }
+        }
+    }
+
+    // The start and end of each chunk to match, in pairs: all of the text,
+    // or the whole lines around each region, split into chunks of about
+    // chunkSize chars that end after a line break
+    private int[] chunkBounds(TextSnapshot snapshot, MatchList regions) {
+        int length = snapshot.length();
+        List<Integer> bounds = new ArrayList<>();
+        try {
+            if (regions == null) {
+                addChunks(snapshot, 0, length, bounds);
+            } else {
+                int start = -1;
+                int end = -1;
+                for (int i = 0; i < regions.size(); i++) {
+                    int lineStart = lineStart(snapshot, regions.getStart(i));
+                    int lineEnd = nextLineStart(snapshot, Math.max(lineStart, regions.getEnd(i) - 1));
+                    if (start >= 0 && lineStart <= end) {
+                        end = Math.max(end, lineEnd);
+                        continue;
+                    }
+                    if (start >= 0) {
+                        addChunks(snapshot, start, end, bounds);
+                    }
+                    start = lineStart;
+                    end = lineEnd;
+                }
+                if (start >= 0) {
+                    addChunks(snapshot, start, end, bounds);
+                }
+            }
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+        int[] result = new int[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    private void addChunks(TextSnapshot snapshot, int from, int to, List<Integer> bounds)
+            throws BadLocationException {
+        int start = from;
+        while (to - start > chunkSize) {
+            int end = nextLineStart(snapshot, start + chunkSize);
+            if (end >= to) {
+                break;
+            }
+            bounds.add(start);
+            bounds.add(end);
+            start = end;
+        }
+        bounds.add(start);
+        bounds.add(to);
+    }
+
+    // The offset just after the next line break at or after position, or the length
+    private static int nextLineStart(TextSnapshot snapshot, int position) throws BadLocationException {
+        int length = snapshot.length();
+        Segment segment = new Segment();
+        segment.setPartialReturn(true);
+        while (position < length) {
+            snapshot.getText(position, length - position, segment);
+            for (int i = 0; i < segment.count; i++) {
+                if (segment.array[segment.offset + i] == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += segment.count;
+        }
+        return length;
+    }
+
+    // The start of the line holding offset
+    private static int lineStart(TextSnapshot snapshot, int offset) throws BadLocationException {
+        Segment segment = new Segment();
+        int end = offset;
+        while (end > 0) {
+            int start = Math.max(0, end - LOOKAHEAD);
+            snapshot.getText(start, end - start, segment);
+            for (int i = segment.count - 1; i >= 0; i--) {
+                if (segment.array[segment.offset + i] == '\n') {
+                    return start + i + 1;
+                }
+            }
+            end = start;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the matches that start in [start, end), read the way a single
+     * Matcher over the whole text would find them when it gets to start.
+     */
+    MatchList matchChunk(TextSnapshot snapshot, int start, int end, BooleanSupplier stop) {
+        MatchList matches = new MatchList();
+        int length = snapshot.length();
+        int textEnd = (int) Math.min(length, (long) end + LOOKAHEAD);
+        CharSequence text = new SnapshotText(snapshot);
+        Matcher matcher = matcher(pattern, text);
+        Matcher startMatcher = null;
+        int from = start;
+        while (from <= end && !(matches.size() % CHECK_INTERVAL == 0 && stop.getAsBoolean())) {
+            boolean found;
+            if (staysOnLine) {
+                matcher.region(from, end);
+                found = matcher.find();
+            } else {
+                matcher.region(from, textEnd);
+                found = matcher.find();
+                if (matcher.hitEnd() && textEnd < length) {
+                    if (found && matcher.start() < end || starts == null) {
+                        // A try starting in the chunk needs more text. With all
+                        // of it, the first match starts no later than this one,
+                        // so the find stops before it gets past the chunk.
+                        matcher.region(from, length);
+                        found = matcher.find();
+                    } else {
+                        // The tries that ran out of text may all have started
+                        // past the chunk, so look for a start inside it with
+                        // all of the text and match from there
+                        if (startMatcher == null) {
+                            startMatcher = matcher(starts, text);
+                        }
+                        startMatcher.region(from, end);
+                        found = startMatcher.find() && startMatcher.start() < end;
+                        if (found) {
+                            matcher.region(startMatcher.start(), length);
+                            found = matcher.lookingAt();
+                        }
+                    }
+                }
+            }
+            if (!found || matcher.start() >= end && end < length) {
+                break;
+            }
+            int matchStart = matcher.start();
+            int matchEnd = matcher.end();
+            matches.add(matchStart, matchEnd);
+            // After an empty match the next one has to start further on
+            from = matchEnd == matchStart ? matchEnd + 1 : matchEnd;
+        }
+        return matches;
+    }
+
+    // A matcher over the whole text whose regions only limit where matches
+    // are looked for
+    private static Matcher matcher(Pattern pattern, CharSequence text) {
+        Matcher matcher = pattern.matcher(text);
+        matcher.useTransparentBounds(true);
+        matcher.useAnchoringBounds(false);
+        return matcher;
+    }
+
+    // The pattern wrapped in (?=...), or null if its text could run into the
+    // closing parenthesis: a \Q quote, or a comment when flag x may be on
+    private static Pattern lookahead(Pattern pattern) {
+        String regex = pattern.pattern();
+        if ((pattern.flags() & (Pattern.LITERAL | Pattern.COMMENTS)) != 0 || regex.contains("\\Q")
+                || COMMENTS_FLAG.matcher(regex).find()) {
+            return null;
+        }
+        return Pattern.compile("(?=" + regex + ")", pattern.flags());
+    }
+
+    /**
+     * Returns the longest literal text every match of the pattern contains,
+     * if it is at least a trigram long and the matches cannot span lines,
+     * or null.
+     */
+    static String requiredLiteral(Pattern pattern) {
+        String run = literalRun(pattern);
+        return run != null && run.length() >= 3 ? run : null;
+    }
+
+    /**
+     * Returns whether no match of the pattern can span lines, as far as a
+     * simple look at it can tell.
+     */
+    static boolean staysOnLine(Pattern pattern) {
+        return literalRun(pattern) != null;
+    }
+
+    // The longest literal text every match contains, possibly empty, or null
+    // if matches might span lines. Anything unusual, like most escapes,
+    // negated classes, groups other than (?:) or flags other than MULTILINE,
+    // gives null. Literals inside groups are not counted, since the group
+    // may be optional, and none are with alternation.
+    private static String literalRun(Pattern pattern) {
+        if (pattern.flags() != Pattern.MULTILINE) {
+            return null;
+        }
+        String regex = pattern.pattern();
+        int n = regex.length();
+        String best = "";
+        StringBuilder run = new StringBuilder();
+        int depth = 0;
+        boolean alternation = false;
+        int i = 0;
+        while (i < n) {
+            char c = regex.charAt(i++);
+            // The char of this token if it is a literal, or -1
+            int literal = -1;
+            switch (c) {
+                case '|':
+                    alternation = true;
+                    break;
+                case '\\':
+                    if (i == n) {
+                        return null;
+                    }
+                    char escaped = regex.charAt(i++);
+                    if (!Character.isLetterOrDigit(escaped)) {
+                        literal = escaped;
+                    } else if ("dwbB".indexOf(escaped) < 0) {
+                        return null;
+                    }
+                    break;
+                case '[':
+                    if (i < n && regex.charAt(i) == '^') {
+                        return null;
+                    }
+                    if (i < n && regex.charAt(i) == ']') {
+                        i++;
+                    }
+                    while (i < n && regex.charAt(i) != ']') {
+                        char d = regex.charAt(i++);
+                        if (d == '[' || d == '&' || d == '\n' || d == '\r') {
+                            return null;
+                        }
+                        if (d == '\\') {
+                            if (i == n) {
+                                return null;
+                            }
+                            char e = regex.charAt(i++);
+                            if (Character.isLetterOrDigit(e) && "dw".indexOf(e) < 0) {
+                                return null;
+                            }
+                        }
+                    }
+                    i++;
+                    break;
+                case '(':
+                    if (regex.startsWith("?:", i)) {
+                        i += 2;
+                    } else if (regex.startsWith("?", i)) {
+                        return null;
+                    }
+                    depth++;
+                    break;
+                case ')':
+                    depth--;
+                    break;
+                case '.':
+                case '^':
+                case '$':
+                    break;
+                case '\n':
+                case '\r':
+                    return null;
+                default:
+                    literal = c;
+            }
+
+            // A quantifier makes the token optional, or repeats it
+            boolean optional = false;
+            boolean repeated = false;
+            if (i < n) {
+                char q = regex.charAt(i);
+                if (q == '?' || q == '*') {
+                    optional = true;
+                    i++;
+                } else if (q == '+') {
+                    repeated = true;
+                    i++;
+                } else if (q == '{') {
+                    int close = regex.indexOf('}', i);
+                    if (close < 0) {
+                        return null;
+                    }
+                    optional = regex.startsWith("{0", i);
+                    repeated = true;
+                    i = close + 1;
+                }
+                if ((optional || repeated) && i < n && (regex.charAt(i) == '?' || regex.charAt(i) == '+')) {
+                    i++;
+                }
+            }
+
+            if (literal >= 0 && depth == 0 && !optional) {
+                run.append((char) literal);
+            }
+            if (literal < 0 || depth > 0 || optional || repeated || c == ')') {
+                if (run.length() > best.length()) {
+                    best = run.toString();
+                }
+                run.setLength(0);
+            }
+        }
+        if (run.length() > best.length()) {
+            best = run.toString();
+        }
+        return alternation ? "" : best;
+    }
+
+    // The text of a snapshot read in place, a run at a time. Each task has
+    // its own, as it keeps the run it read last.
+    private static final class SnapshotText implements CharSequence {
+        private final TextSnapshot snapshot;
+        private final Segment segment = new Segment();
+        // Offsets of the text the segment holds
+        private int runStart;
+        private int runEnd;
+
+        SnapshotText(TextSnapshot snapshot) {
+            this.snapshot = snapshot;
+            segment.setPartialReturn(true);
+        }
+
+        public int length() {
+            return snapshot.length();
+        }
+
+        public char charAt(int index) {
+            if (index < runStart || index >= runEnd) {
+                try {
+                    snapshot.getText(index, snapshot.length() - index, segment);
+                } catch (BadLocationException e) {
+                    throw new IndexOutOfBoundsException("Invalid index " + index);
+                }
+                runStart = index;
+                runEnd = index + segment.count;
+            }
+            return segment.array[segment.offset + index - runStart];
+        }
+
+        public CharSequence subSequence(int start, int end) {
+            try {
+                return snapshot.getText(start, end - start);
+            } catch (BadLocationException e) {
+                throw new IndexOutOfBoundsException("Invalid range " + start + "-" + end);
+            }
+        }
+
+        public String toString() {
+            return subSequence(0, length()).toString();
+        }
+    }
+}
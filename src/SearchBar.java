@@ -0,0 +1,167 @@
+import javax.swing.*;
+import javax.swing.border.EmptyBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
+
+/**
+ * The bar above the status bar for searching as you type. It does not
+ * search itself: it tells its listener what to search for once typing
+ * pauses for DELAY ms, so a burst of keystrokes starts one search rather
+ * than one each. Enter and Shift+Enter step through the matches and Escape
+ * closes the bar. Turning Match case or Whole word on or off searches
+ * again straight away.
+ */
+public class SearchBar extends JPanel {
+    // Milliseconds without a keystroke before the text is searched for
+    static final int DELAY = 30;
+
+    public interface Listener {
+        void searchChanged(String text);
+
+        void findNext();
+
+        void findPrevious();
+
+        void closed();
+    }
+
+    private final Listener listener;
+    private final JTextField field = new JTextField(24);
+    private final JLabel countLabel = new JLabel(" ");
+    private final JCheckBox matchCaseBox = new JCheckBox("Match case", true);
+    private final JCheckBox wholeWordBox = new JCheckBox("Whole word");
+    private final Timer timer;
+
+    public SearchBar(Listener listener) {
+        super(new FlowLayout(FlowLayout.LEFT, 8, 0));
+        setBackground(Color.WHITE);
+        setBorder(new EmptyBorder(4, 4, 0, 4));
+        this.listener = listener;
+
+        timer = new Timer(DELAY, e -> listener.searchChanged(field.getText()));
+        timer.setRepeats(false);
+        field.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) {
+                timer.restart();
+            }
+
+            public void removeUpdate(DocumentEvent e) {
+                timer.restart();
+            }
+
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
+
+        JButton previousButton = new JButton("Previous");
+        JButton nextButton = new JButton("Next");
+        JButton closeButton = new JButton("Close");
+        previousButton.setFocusPainted(false);
+        nextButton.setFocusPainted(false);
+        closeButton.setFocusPainted(false);
+        previousButton.addActionListener(e -> listener.findPrevious());
+        nextButton.addActionListener(e -> listener.findNext());
+        closeButton.addActionListener(e -> close());
+        for (JCheckBox box : new JCheckBox[] {matchCaseBox, wholeWordBox}) {
+            box.setOpaque(false);
+            box.setFocusPainted(false);
+            box.addActionListener(e -> {
+                timer.stop();
+                listener.searchChanged(field.getText());
+            });
+        }
+
+        InputMap inputMap = field.getInputMap(JComponent.WHEN_FOCUSED);
+        inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_ENTER, 0), "findNext");
+        inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_ENTER, InputEvent.SHIFT_DOWN_MASK), "findPrevious");
+        inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0), "close");
+        field.getActionMap().put("findNext", action(listener::findNext));
+        field.getActionMap().put("findPrevious", action(listener::findPrevious));
+        field.getActionMap().put("close", action(this::close));
+
+        add(new JLabel("Find:"));
+        add(field);
+        add(countLabel);
+        add(matchCaseBox);
+        add(wholeWordBox);
+        add(previousButton);
+        add(nextButton);
+        add(closeButton);
+        setVisible(false);
+    }
+
+    private static Action action(Runnable runnable) {
+        return new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                runnable.run();
+            }
+        };
+    }
+
+    /**
+     * Shows the bar with the given text, or the last one if null, selected
+     * so it can be typed over, and searches for it.
+     */
+    public void open(String text) {
+        setVisible(true);
+        if (text != null && !field.getText().equals(text)) {
+            field.setText(text);
+        }
+        field.selectAll();
+        field.requestFocusInWindow();
+        revalidate();
+        timer.restart();
+    }
+
+    private void close() {
+        timer.stop();
+        setVisible(false);
+        revalidate();
+        listener.closed();
+    }
+
+    /**
+     * Searches for the text now rather than once typing pauses.
+     */
+    public void searchNow() {
+        if (timer.isRunning()) {
+            timer.stop();
+            listener.searchChanged(field.getText());
+        }
+    }
+
+    public String getText() {
+        return field.getText();
+    }
+
+    public boolean isMatchCase() {
+        return matchCaseBox.isSelected();
+    }
+
+    public void setMatchCase(boolean matchCase) {
+        matchCaseBox.setSelected(matchCase);
+    }
+
+    public boolean isWholeWord() {
+        return wholeWordBox.isSelected();
+    }
+
+    public void setWholeWord(boolean wholeWord) {
+        wholeWordBox.setSelected(wholeWord);
+    }
+
+    /**
+     * Shows how many matches there are, or how the search is going.
+     */
+    public void setStatus(String status) {
+        countLabel.setText(status == null || status.isEmpty() ? " " : status);
+    }
+
+    public String getStatus() {
+        return countLabel.getText();
+    }
+}
@@ -0,0 +1,108 @@
+import javax.swing.*;
+import javax.swing.border.EmptyBorder;
+import java.awt.*;
+
+/**
+ * The bar along the bottom of the editor window. While a file is being
+ * opened or saved in the background it shows what is going on, a progress
+ * bar and, for tasks that can be stopped, a cancel button. Only the task
+ * started last is shown; ending an older one leaves it in place. The caret
+ * position is shown on the right.
+ */
+public class StatusBar extends JPanel {
+    private final JLabel messageLabel = new JLabel(" ");
+    private final JProgressBar progressBar = new JProgressBar(0, 100);
+    private final JButton cancelButton = new JButton("Cancel");
+    private final JLabel positionLabel = new JLabel(" ");
+    private Runnable cancelAction;
+    private Object currentTask;
+
+    public StatusBar() {
+        super(new BorderLayout());
+        setBackground(Color.WHITE);
+        setBorder(new EmptyBorder(4, 4, 4, 4));
+        JPanel taskPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 8, 0));
+        taskPanel.setOpaque(false);
+
+        progressBar.setPreferredSize(new Dimension(150, progressBar.getPreferredSize().height));
+        cancelButton.setFocusPainted(false);
+        cancelButton.addActionListener(e -> {
+            if (cancelAction != null) {
+                cancelAction.run();
+            }
+        });
+
+        taskPanel.add(messageLabel);
+        taskPanel.add(progressBar);
+        taskPanel.add(cancelButton);
+        positionLabel.setBorder(new EmptyBorder(0, 8, 0, 8));
+        add(taskPanel, BorderLayout.CENTER);
+        add(positionLabel, BorderLayout.EAST);
+        clear(null);
+    }
+
+    /**
+     * Shows a task with the given message. The progress bar runs
+     * indeterminate until setProgress is called. The cancel button is shown
+     * when a cancel action is given. Returns the task to end it with.
+     */
+    public Object startTask(String message, Runnable cancel) {
+        messageLabel.setText(message);
+        progressBar.setIndeterminate(true);
+        progressBar.setVisible(true);
+        cancelAction = cancel;
+        cancelButton.setVisible(cancel != null);
+        currentTask = new Object();
+        return currentTask;
+    }
+
+    public void setProgress(Object task, int percent) {
+        if (task == currentTask) {
+            progressBar.setIndeterminate(false);
+            progressBar.setValue(percent);
+        }
+    }
+
+    /**
+     * Hides the task and shows the given message, if any, in its place.
+     */
+    public void endTask(Object task, String message) {
+        if (task == currentTask) {
+            clear(message);
+        }
+    }
+
+    /**
+     * Shows a message, unless a task is being shown.
+     */
+    public void setMessage(String message) {
+        if (currentTask == null) {
+            clear(message);
+        }
+    }
+
+    private void clear(String message) {
+        currentTask = null;
+        messageLabel.setText(message == null || message.isEmpty() ? " " : message);
+        progressBar.setIndeterminate(false);
+        progressBar.setVisible(false);
+        cancelAction = null;
+        cancelButton.setVisible(false);
+    }
+
+    public String getMessage() {
+        return messageLabel.getText();
+    }
+
+    /**
+     * Shows the caret's line and column, counting from 1, or nothing if
+     * line is 0.
+     */
+    public void setPosition(int line, int column) {
+        positionLabel.setText(line > 0 ? "Ln " + line + ", Col " + column : " ");
+    }
+
+    public String getPosition() {
+        return positionLabel.getText();
+    }
+}
@@ -1,10 +1,19 @@
 import javax.swing.*;
 import javax.swing.event.*;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
 import javax.swing.undo.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import javax.swing.border.EmptyBorder;
 import javax.swing.border.LineBorder;
 
@@ -17,8 +26,49 @@ public class TextEditor extends JFrame {
     private JTextArea textArea;
     private JFileChooser fileChooser;
     private String currentFile = null;
+    // Charset, byte order mark and line ending the current file is saved with
+    private TextFormat fileFormat = TextFormat.defaultFormat();
     private boolean changed = false;
-    private UndoManager undoManager;
+    // Counts edits, so a finished save can tell whether the text changed since
+    private int modificationCount = 0;
+    // Parts of the text changed since the last load or save, so small edits
+    // can be saved by patching the file where it lies on disk
+    private final DirtyRegions dirtyRegions = new DirtyRegions();
+    private volatile FileLayout fileLayout;
+    // Hands the edits of each trip round the event queue to the change
+    // tracking at once
+    private final ChangeBus changeBus = new ChangeBus();
+    // Where the lines of the document start, for the caret position and Go to Line
+    private LineStarts lineStarts;
+    // Extra carets and column selections
+    private MultiCaret multiCaret;
+    private EditHistory undoManager;
+    private DocumentWriter documentWriter;
+    private AutosaveService autosave;
+    // Completes on the EDT once the last save started has finished
+    private CompletableFuture<Void> pendingSave = CompletableFuture.completedFuture(null);
+    private StatusBar statusBar;
+    // The text or regex last searched for, and the highlighted matches of Find All
+    private TextSearch search;
+    private MatchHighlighter matchHighlighter;
+    private RegexSearch regex;
+    // The text last given to replace matches with
+    private String replacement;
+    private SwingWorker<Boolean, MatchList> findAllWorker;
+    // Whether the highlighted matches are all found, so they can follow edits
+    private boolean matchesFound;
+    // The bar for searching as you type, where it started from, and the
+    // snapshot its searches run on while the text is unchanged
+    private SearchBar searchBar;
+    private final IncrementalSearch incrementalSearch = new IncrementalSearch();
+    private int searchAnchor;
+    private TextSnapshot searchSnapshot;
+    private int searchSnapshotModification;
+    // Trigram index of a large document, once built, and the worker building it
+    private TrigramIndex searchIndex;
+    private SwingWorker<TrigramIndex, Void> indexWorker;
+    // The Find in Files window, made when first opened
+    private FindInFilesDialog findInFilesDialog;
     private JButton plusButton;
     private JPopupMenu optionsMenu;
 
@@ -28,6 +78,10 @@ public class TextEditor extends JFrame {
     private CardLayout cardLayout;
     private static final String TEXT_CARD = "TEXT_EDITOR";
     private static final String CANVAS_CARD = "DRAWING_CANVAS";
+    private static final String LARGE_FILE_CARD = "LARGE_FILE";
+
+    // Read-only view shown instead of the text area for files too large to load
+    private LargeFileView largeFileView;
 
     // Toolbar components
     private JToolBar toolBar;
@@ -42,28 +96,54 @@ public class TextEditor extends JFrame {
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 
         // Initialize components
-        textArea = new JTextArea();
+        textArea = new JTextArea(new PieceTableDocument());
         textArea.setFont(new Font("Monospaced", Font.PLAIN, 12));
         textArea.setLineWrap(true);
         textArea.setWrapStyleWord(true);
-
-        // Add document listener to track changes
-        textArea.getDocument().addDocumentListener(new DocumentListener() {
-            public void insertUpdate(DocumentEvent e) {
-                changed = true;
-            }
-            public void removeUpdate(DocumentEvent e) {
-                changed = true;
+        matchHighlighter = new MatchHighlighter(textArea);
+
+        // Track changes a batch of edits at a time
+        changeBus.addSubscriber(change -> {
+            changed = true;
+            modificationCount++;
+            if (change.getRemovedLength() > 0) {
+                dirtyRegions.remove(change.getOffset(), change.getRemovedLength());
             }
-            public void changedUpdate(DocumentEvent e) {
-                changed = true;
+            if (change.getInsertedLength() > 0) {
+                dirtyRegions.insert(change.getOffset(), change.getInsertedLength());
             }
+            shiftMatches(change);
         });
-
-        // Set up undo manager
-        undoManager = new UndoManager();
+        changeBus.setDocument(textArea.getDocument());
+        // Carets of its own, before the index so their listeners come first
+        multiCaret = new MultiCaret(textArea, () -> lineStarts);
+        // Added after the caret's listener so the index is updated before the caret moves
+        lineStarts = new LineStarts(textArea.getDocument());
+        textArea.getDocument().addDocumentListener(lineStarts);
+        textArea.addCaretListener(e -> updateCaretPosition());
+
+        // Set up the undo history, which merges typing and spills old edits to disk
+        undoManager = new EditHistory();
         textArea.getDocument().addUndoableEditListener(undoManager);
 
+        // Set up the writer used for saving, which reuses its encoder and buffers
+        documentWriter = new DocumentWriter(Charset.defaultCharset());
+
+        // Journal unsaved edits so they can be recovered after a crash
+        autosave = new AutosaveService(AutosaveService.defaultDirectory());
+        autosave.setDocument((PieceTableDocument) textArea.getDocument());
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                // Closing the window does not ask to save, so keep unsaved edits recoverable
+                awaitPendingSave();
+                changeBus.flush();
+                autosave.close(changed);
+                saveHistory();
+                undoManager.close();
+            }
+        });
+
         // Set up file chooser
         fileChooser = new JFileChooser();
         fileChooser.setCurrentDirectory(new File(System.getProperty("user.home")));
@@ -85,6 +165,28 @@ public class TextEditor extends JFrame {
 
         add(contentPanel, BorderLayout.CENTER);
 
+        // Status bar showing background opens and saves
+        statusBar = new StatusBar();
+        updateCaretPosition();
+        searchBar = new SearchBar(new SearchBar.Listener() {
+            public void searchChanged(String text) {
+                incrementalFind(text);
+            }
+
+            public void findNext() {
+                stepSearchBar(true);
+            }
+
+            public void findPrevious() {
+                stepSearchBar(false);
+            }
+
+            public void closed() {
+                clearMatches();
+                textArea.requestFocusInWindow();
+            }
+        });
+
         // Create menu bar
         createMenuBar();
 
@@ -127,29 +229,84 @@ public class TextEditor extends JFrame {
         JMenu editMenu = new JMenu("Edit");
         JMenuItem undoMenuItem = new JMenuItem("Undo");
         JMenuItem redoMenuItem = new JMenuItem("Redo");
+        JMenuItem earlierMenuItem = new JMenuItem("Earlier State");
+        JMenuItem laterMenuItem = new JMenuItem("Later State");
+        JMenuItem caretAboveMenuItem = new JMenuItem("Add Caret Above");
+        JMenuItem caretBelowMenuItem = new JMenuItem("Add Caret Below");
         JMenuItem cutMenuItem = new JMenuItem("Cut");
         JMenuItem copyMenuItem = new JMenuItem("Copy");
         JMenuItem pasteMenuItem = new JMenuItem("Paste");
         JMenuItem findMenuItem = new JMenuItem("Find");
+        JMenuItem findNextMenuItem = new JMenuItem("Find Next");
+        JMenuItem findPreviousMenuItem = new JMenuItem("Find Previous");
+        JMenuItem findAllMenuItem = new JMenuItem("Find All");
+        JMenuItem findRegexMenuItem = new JMenuItem("Find Regex");
+        JMenuItem replaceMenuItem = new JMenuItem("Replace");
+        JMenuItem replaceAllMenuItem = new JMenuItem("Replace All");
+        JMenuItem findInFilesMenuItem = new JMenuItem("Find in Files");
+        JMenuItem goToLineMenuItem = new JMenuItem("Go to Line");
+        JMenuItem findLineMenuItem = new JMenuItem("Find Line");
         JMenuItem selectAllMenuItem = new JMenuItem("Select All");
 
         undoMenuItem.addActionListener(e -> undo());
         redoMenuItem.addActionListener(e -> redo());
+        earlierMenuItem.addActionListener(e -> earlier());
+        laterMenuItem.addActionListener(e -> later());
+        caretAboveMenuItem.addActionListener(e -> multiCaret.addAbove());
+        caretBelowMenuItem.addActionListener(e -> multiCaret.addBelow());
         cutMenuItem.addActionListener(e -> textArea.cut());
         copyMenuItem.addActionListener(e -> textArea.copy());
         pasteMenuItem.addActionListener(e -> textArea.paste());
         findMenuItem.addActionListener(e -> find());
+        findNextMenuItem.addActionListener(e -> findNext());
+        findPreviousMenuItem.addActionListener(e -> findPrevious());
+        findAllMenuItem.addActionListener(e -> findAll());
+        findRegexMenuItem.addActionListener(e -> findRegex());
+        replaceMenuItem.addActionListener(e -> replace());
+        replaceAllMenuItem.addActionListener(e -> replaceAll());
+        findInFilesMenuItem.addActionListener(e -> findInFiles());
+        goToLineMenuItem.addActionListener(e -> goToLine());
+        findLineMenuItem.addActionListener(e -> findLine());
+        findMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F, InputEvent.CTRL_DOWN_MASK));
+        findNextMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F3, 0));
+        findPreviousMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F3, InputEvent.SHIFT_DOWN_MASK));
+        replaceMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_H, InputEvent.CTRL_DOWN_MASK));
+        findInFilesMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F,
+            InputEvent.CTRL_DOWN_MASK | InputEvent.SHIFT_DOWN_MASK));
+        goToLineMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_G, InputEvent.CTRL_DOWN_MASK));
+        findLineMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_L, InputEvent.CTRL_DOWN_MASK));
+        earlierMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z,
+            InputEvent.CTRL_DOWN_MASK | InputEvent.ALT_DOWN_MASK));
+        laterMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y,
+            InputEvent.CTRL_DOWN_MASK | InputEvent.ALT_DOWN_MASK));
+        caretAboveMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_UP,
+            InputEvent.SHIFT_DOWN_MASK | InputEvent.ALT_DOWN_MASK));
+        caretBelowMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_DOWN,
+            InputEvent.SHIFT_DOWN_MASK | InputEvent.ALT_DOWN_MASK));
         selectAllMenuItem.addActionListener(e -> textArea.selectAll());
 
         editMenu.add(undoMenuItem);
         editMenu.add(redoMenuItem);
+        editMenu.add(earlierMenuItem);
+        editMenu.add(laterMenuItem);
         editMenu.addSeparator();
         editMenu.add(cutMenuItem);
         editMenu.add(copyMenuItem);
         editMenu.add(pasteMenuItem);
         editMenu.addSeparator();
         editMenu.add(findMenuItem);
+        editMenu.add(findNextMenuItem);
+        editMenu.add(findPreviousMenuItem);
+        editMenu.add(findAllMenuItem);
+        editMenu.add(findRegexMenuItem);
+        editMenu.add(replaceMenuItem);
+        editMenu.add(replaceAllMenuItem);
+        editMenu.add(findInFilesMenuItem);
+        editMenu.add(goToLineMenuItem);
+        editMenu.add(findLineMenuItem);
         editMenu.add(selectAllMenuItem);
+        editMenu.add(caretAboveMenuItem);
+        editMenu.add(caretBelowMenuItem);
 
         // Add menus to menu bar
         menuBar.add(fileMenu);
@@ -162,10 +319,17 @@ public class TextEditor extends JFrame {
     // File operations
     private void newFile() {
         if (confirmSave()) {
-            textArea.setText("");
+            closeLargeFile();
+            // A fresh document, rather than removing the old text, so the
+            // listeners are not handed one huge edit only to drop it
+            setDocument(new PieceTableDocument());
             undoManager.discardAllEdits();
             currentFile = null;
+            fileFormat = TextFormat.defaultFormat();
+            fileLayout = null;
+            dirtyRegions.clear();
             changed = false;
+            autosave.reset(null, null);
             setTitle("Simple Text Editor");
         }
     }
@@ -173,59 +337,237 @@ public class TextEditor extends JFrame {
     private void openFile() {
         if (confirmSave()) {
             if (fileChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
-                File file = fileChooser.getSelectedFile();
-                try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-                    textArea.setText("");
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        textArea.append(line + "\n");
-                    }
-                    undoManager.discardAllEdits();
-                    currentFile = file.getPath();
-                    changed = false;
-                    setTitle("Simple Text Editor - " + file.getName());
-                } catch (IOException e) {
-                    JOptionPane.showMessageDialog(this, 
-                        "Error reading file: " + e.getMessage(), 
-                        "Error", JOptionPane.ERROR_MESSAGE);
-                }
+                loadFile(fileChooser.getSelectedFile());
             }
         }
     }
 
+    // Decode the file off the EDT and swap it into the text area in one insert
+    private void loadFile(File file) {
+        loadFile(file, null);
+    }
+
+    // Load the file and then, if it opened, run then on the EDT
+    private void loadFile(File file, Runnable then) {
+        if (file.length() > LargeFile.threshold()) {
+            openLargeFile(file, then);
+            return;
+        }
+        FileLoader loader = new FileLoader(file);
+        Object task = statusBar.startTask("Opening " + file.getName() + "...", () -> loader.cancel(true));
+
+        loader.addPropertyChangeListener(e -> {
+            if ("progress".equals(e.getPropertyName())) {
+                statusBar.setProgress(task, (Integer) e.getNewValue());
+            } else if ("state".equals(e.getPropertyName())
+                    && e.getNewValue() == SwingWorker.StateValue.DONE) {
+                finishLoad(loader, task, then);
+            }
+        });
+
+        // Keep the old text read-only until the new one replaces it
+        textArea.setEditable(false);
+        IoExecutor.get().execute(loader);
+    }
+
+    private void finishLoad(FileLoader loader, Object task, Runnable then) {
+        textArea.setEditable(largeFileView == null);
+        if (loader.isCancelled()) {
+            statusBar.endTask(task, "Opening cancelled");
+            return;
+        }
+        statusBar.endTask(task, null);
+        File file = loader.getFile();
+        try {
+            // The decoded buffer becomes the piece table's original text as is
+            PieceTableDocument doc = new PieceTableDocument(loader.get());
+            closeLargeFile();
+            setDocument(doc);
+            textArea.setCaretPosition(0);
+            undoManager.discardAllEdits();
+            // Only noted here; the history saved for the file is read on the first undo that needs it
+            undoManager.setBase(doc, HistoryFile.defaultDirectory(),
+                new HistoryFile.Base(file, loader.getLayout(), doc.snapshot()));
+            currentFile = file.getPath();
+            fileFormat = loader.getFormat();
+            fileLayout = loader.getLayout();
+            dirtyRegions.clear();
+            changed = false;
+            autosave.reset(currentFile, fileLayout);
+            setTitle("Simple Text Editor - " + file.getName());
+            startIndexing();
+            if (then != null) {
+                then.run();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            JOptionPane.showMessageDialog(this, 
+                "Error reading file: " + e.getCause().getMessage(), 
+                "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
     private void saveFile() {
-        if (currentFile == null) {
+        if (largeFileView != null) {
+            showReadOnlyMessage();
+        } else if (currentFile == null) {
             saveFileAs();
         } else {
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter(currentFile))) {
-                writer.write(textArea.getText());
-                changed = false;
-            } catch (IOException e) {
-                JOptionPane.showMessageDialog(this, 
-                    "Error saving file: " + e.getMessage(), 
-                    "Error", JOptionPane.ERROR_MESSAGE);
-            }
+            saveTo(new File(currentFile));
         }
     }
 
     private void saveFileAs() {
-        if (fileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
-            File file = fileChooser.getSelectedFile();
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
-                writer.write(textArea.getText());
-                currentFile = file.getPath();
-                changed = false;
-                setTitle("Simple Text Editor - " + file.getName());
-            } catch (IOException e) {
-                JOptionPane.showMessageDialog(this, 
-                    "Error saving file: " + e.getMessage(), 
-                    "Error", JOptionPane.ERROR_MESSAGE);
+        if (largeFileView != null) {
+            showReadOnlyMessage();
+        } else if (fileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+            saveTo(fileChooser.getSelectedFile());
+        }
+    }
+
+    // Show a file above the large file threshold read-only, reading only the
+    // lines in view from the file instead of loading it into the text area
+    private void openLargeFile(File file, Runnable then) {
+        LargeFile largeFile;
+        try {
+            largeFile = new LargeFile(file);
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, 
+                "Error reading file: " + e.getMessage(), 
+                "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        closeLargeFile();
+
+        // The text area is hidden and keeps no text while the large file is shown
+        setDocument(new PieceTableDocument());
+        undoManager.discardAllEdits();
+        textArea.setEditable(false);
+        largeFileView = new LargeFileView(largeFile, textArea.getFont());
+        updateCaretPosition();
+        contentPanel.add(largeFileView, LARGE_FILE_CARD);
+        cardLayout.show(contentPanel, LARGE_FILE_CARD);
+
+        currentFile = file.getPath();
+        changed = false;
+        autosave.reset(null, null);
+        setTitle("Simple Text Editor - " + file.getName() + " (read-only)");
+
+        Object task = statusBar.startTask("Indexing " + file.getName() + "...", null);
+        largeFileView.startIndexing(e -> {
+            if ("progress".equals(e.getPropertyName())) {
+                statusBar.setProgress(task, (Integer) e.getNewValue());
+            } else if ("state".equals(e.getPropertyName())
+                    && e.getNewValue() == SwingWorker.StateValue.DONE) {
+                statusBar.endTask(task, "Large file opened read-only");
+                if (then != null) {
+                    then.run();
+                }
             }
+        });
+    }
+
+    // Leave large file mode, if on, and go back to the text area
+    private void closeLargeFile() {
+        if (largeFileView != null) {
+            largeFileView.close();
+            contentPanel.remove(largeFileView);
+            largeFileView = null;
+            textArea.setEditable(true);
+            cardLayout.show(contentPanel, TEXT_CARD);
         }
     }
 
+    private void showReadOnlyMessage() {
+        JOptionPane.showMessageDialog(this, 
+            "Large files are opened read-only and cannot be saved.", 
+            "Read-Only", JOptionPane.INFORMATION_MESSAGE);
+    }
+
+    // Write a snapshot of the text off the EDT, so editing can go on during
+    // the save. Saves run one after another, in the order they were started.
+    private void saveTo(File file) {
+        // The regions to patch must include the edits not yet delivered
+        changeBus.flush();
+        Document doc = textArea.getDocument();
+        TextSnapshot snapshot = ((PieceTableDocument) doc).snapshot();
+        int modification = modificationCount;
+        TextFormat format = fileFormat;
+        DirtyRegions changes = dirtyRegions.copy();
+        dirtyRegions.clear();
+        Object task = statusBar.startTask("Saving " + file.getName() + "...", null);
+
+        pendingSave = pendingSave
+            .thenApplyAsync(ignored -> {
+                try {
+                    documentWriter.setFormat(format);
+                    // The layout no longer holds if the save fails half way
+                    FileLayout layout = fileLayout;
+                    fileLayout = null;
+                    FileLayout saved = documentWriter.patch(snapshot, file, layout, changes);
+                    if (saved == null) {
+                        saved = documentWriter.save(snapshot, file);
+                    }
+                    fileLayout = saved;
+                    return saved;
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, IoExecutor.get())
+            .handleAsync((saved, error) -> {
+                finishSave(file, doc, modification, saved, task, error);
+                return null;
+            }, SwingUtilities::invokeLater);
+    }
+
+    private void finishSave(File file, Document doc, int modification, FileLayout saved, Object task,
+            Throwable error) {
+        if (error != null) {
+            // What is on disk is no longer known, so the next save writes everything
+            dirtyRegions.invalidate();
+            statusBar.endTask(task, "Save failed");
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            JOptionPane.showMessageDialog(this, 
+                "Error saving file: " + cause.getMessage(), 
+                "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        statusBar.endTask(task, "Saved " + file.getName());
+        if (doc != textArea.getDocument()) {
+            return;
+        }
+        currentFile = file.getPath();
+        setTitle("Simple Text Editor - " + file.getName());
+        if (modification == modificationCount) {
+            changed = false;
+            autosave.reset(currentFile, saved);
+        } else {
+            // Edits made during the save are not in the file, so journal them on top of the saved text
+            autosave.resetToSnapshot(currentFile);
+        }
+    }
+
+    /**
+     * Waits until the saves started so far have finished. Events keep being
+     * dispatched meanwhile, so the window still repaints.
+     */
+    private void awaitPendingSave() {
+        CompletableFuture<Void> save = pendingSave;
+        if (save.isDone()) {
+            return;
+        }
+        SecondaryLoop loop = Toolkit.getDefaultToolkit().getSystemEventQueue().createSecondaryLoop();
+        // Exit from an event, so the loop cannot be told to exit before it was entered
+        save.whenComplete((result, error) -> SwingUtilities.invokeLater(loop::exit));
+        loop.enter();
+    }
+
     private void exit() {
         if (confirmSave()) {
+            autosave.close(false);
+            saveHistory();
+            undoManager.close();
             System.exit(0);
         }
     }
@@ -251,26 +593,740 @@ public class TextEditor extends JFrame {
         }
     }
 
+    // Step through the states of the text in the order they were made,
+    // across the branches undo and redo keep apart
+    private void earlier() {
+        try {
+            undoManager.earlier();
+        } catch (CannotUndoException e) {
+            // Ignore
+        }
+    }
+
+    private void later() {
+        try {
+            undoManager.later();
+        } catch (CannotRedoException e) {
+            // Ignore
+        }
+    }
+
+    // Ask for a line and move the caret to its start, or scroll a large
+    // file to it
+    private void goToLine() {
+        long lineCount = largeFileView != null
+            ? largeFileView.getLargeFile().getIndex().getLineCount()
+            : lineStarts.getLineCount();
+        long current = largeFileView != null
+            ? largeFileView.getFirstLine() + 1
+            : lineStarts.getLineOfOffset(textArea.getCaretPosition()) + 1;
+        Object input = JOptionPane.showInputDialog(this,
+            "Line number (1 - " + lineCount + "):", "Go to Line", JOptionPane.QUESTION_MESSAGE, null, null,
+            String.valueOf(current));
+        if (input == null) {
+            return;
+        }
+        long line;
+        try {
+            line = Long.parseLong(input.toString().trim());
+        } catch (NumberFormatException e) {
+            JOptionPane.showMessageDialog(this,
+                "Not a line number: " + input,
+                "Go to Line", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        line = Math.max(1, Math.min(line, lineCount));
+        if (largeFileView != null) {
+            largeFileView.scrollToLine(line - 1);
+        } else {
+            textArea.setCaretPosition(lineStarts.getLineStart((int) line - 1));
+            textArea.requestFocusInWindow();
+        }
+    }
+
+    // Pick a line by typing a few of its chars, best matches first, and
+    // select the chars matched in it the way a found match is selected
+    private void findLine() {
+        if (largeFileView != null) {
+            statusBar.setMessage("Find Line works on files loaded into the editor");
+            return;
+        }
+        TextSnapshot snapshot = ((PieceTableDocument) textArea.getDocument()).snapshot();
+        new LineFinderDialog(this, snapshot, lineStarts::getLineOfOffset, result -> {
+            select(result.getMatchStart(), result.getMatchEnd());
+            textArea.requestFocusInWindow();
+        }).setVisible(true);
+    }
+
+    // Show the caret's line and column, or none while a large file is shown
+    private void updateCaretPosition() {
+        if (largeFileView != null) {
+            statusBar.setPosition(0, 0);
+            return;
+        }
+        int caret = textArea.getCaretPosition();
+        int line = lineStarts.getLineOfOffset(caret);
+        statusBar.setPosition(line + 1, caret - lineStarts.getLineStart(line) + 1);
+    }
+
+    // Show the Find in Files window, searching under the current file's
+    // directory and offering the selected text
+    private void findInFiles() {
+        if (findInFilesDialog == null) {
+            findInFilesDialog = new FindInFilesDialog(this, this::openHit);
+        }
+        File directory = currentFile != null
+            ? new File(currentFile).getAbsoluteFile().getParentFile()
+            : new File(System.getProperty("user.dir"));
+        String selected = textArea.getSelectedText();
+        findInFilesDialog.open(directory,
+            selected != null && !selected.isEmpty() && selected.indexOf('\n') < 0 ? selected : null);
+    }
+
+    // Open the file of a Find in Files match, unless it is the one shown,
+    // and select the match, or scroll to its line in a large file
+    private void openHit(FindInFiles.Hit hit) {
+        File file = hit.getFile().toFile();
+        Runnable show = () -> {
+            toFront();
+            if (largeFileView != null) {
+                largeFileView.scrollToLine(hit.getLine() - 1);
+            } else if (hit.getOffset() + hit.getLength() <= textArea.getDocument().getLength()) {
+                showMatch(hit.getOffset(), hit.getOffset() + hit.getLength());
+                textArea.requestFocusInWindow();
+            }
+        };
+        if (currentFile != null && new File(currentFile).getAbsoluteFile().equals(file.getAbsoluteFile())) {
+            show.run();
+        } else if (confirmSave()) {
+            loadFile(file, show);
+        }
+    }
+
+    // Show the search bar, offering the selected text or the last search.
+    // Matches are searched for from the selection as the text is typed.
     private void find() {
-        String searchText = JOptionPane.showInputDialog(this, 
-            "Enter text to search:", "Find", JOptionPane.QUESTION_MESSAGE);
+        searchAnchor = textArea.getSelectionStart();
+        String selected = textArea.getSelectedText();
+        if (selected != null && !selected.isEmpty() && selected.indexOf('\n') < 0) {
+            searchBar.open(selected);
+        } else {
+            searchBar.open(search != null ? search.getPattern() : null);
+        }
+    }
+
+    // Search for the text in the search bar as it is typed. Each search
+    // stops the one before and builds on what it found, and its matches
+    // are highlighted as they come in, so typing never waits for a search.
+    private void incrementalFind(String text) {
+        // Edits not yet delivered would clear the matches about to be found
+        changeBus.flush();
+        clearMatches();
+        if (text.isEmpty()) {
+            return;
+        }
+        TextSearch finder = newSearch(text);
+        search = finder;
+        regex = null;
+        TextSnapshot snapshot = searchSnapshot();
+        MatchList shown = new MatchList();
+        matchHighlighter.setMatches(shown);
+        // Whether a match has been selected yet: the first at or after the anchor
+        boolean[] selected = {false};
+
+        SwingWorker<Boolean, MatchList> worker = new SwingWorker<Boolean, MatchList>() {
+            @Override
+            protected Boolean doInBackground() {
+                return incrementalSearch.find(snapshot, finder, matches -> publish(matches), this::isCancelled);
+            }
+
+            @Override
+            protected void process(List<MatchList> batches) {
+                if (matchHighlighter.getMatches() != shown) {
+                    return;
+                }
+                for (MatchList batch : batches) {
+                    shown.addAll(batch);
+                }
+                textArea.repaint();
+                int next = shown.indexAtOrAfter(searchAnchor);
+                if (!selected[0] && next < shown.size()) {
+                    showMatch(shown.getStart(next), shown.getEnd(next));
+                    selected[0] = true;
+                }
+                searchBar.setStatus(describeMatches(shown.size()) + "...");
+            }
+
+            @Override
+            protected void done() {
+                if (matchHighlighter.getMatches() != shown || isCancelled()) {
+                    return;
+                }
+                matchesFound = true;
+                if (!selected[0] && shown.size() > 0) {
+                    showMatch(shown.getStart(0), shown.getEnd(0));
+                }
+                updateSearchStatus();
+            }
+        };
+        findAllWorker = worker;
+        worker.execute();
+    }
+
+    // The snapshot to search as you type, the same one while the text is
+    // unchanged, so each search can build on the ones before
+    private TextSnapshot searchSnapshot() {
+        changeBus.flush();
+        if (searchSnapshot == null || searchSnapshotModification != modificationCount) {
+            incrementalSearch.clear();
+            searchSnapshot = ((PieceTableDocument) textArea.getDocument()).snapshot();
+            searchSnapshotModification = modificationCount;
+        }
+        return searchSnapshot;
+    }
 
-        if (searchText != null && !searchText.isEmpty()) {
-            String text = textArea.getText();
-            int index = text.indexOf(searchText);
+    // Step to the next or previous match of the text in the search bar
+    private void stepSearchBar(boolean forward) {
+        searchBar.searchNow();
+        MatchList shown = matchHighlighter.getMatches();
+        if (search == null || (shown != null && shown.size() == 0 && findAllWorker.isDone())) {
+            return;
+        }
+        if (forward) {
+            findNext(textArea.getSelectionEnd());
+        } else {
+            findPrevious();
+        }
+        textArea.getCaret().setSelectionVisible(true);
+        // Typing on searches from the match stepped to
+        searchAnchor = textArea.getSelectionStart();
+        updateSearchStatus();
+    }
 
-            if (index != -1) {
-                textArea.setCaretPosition(index);
-                textArea.select(index, index + searchText.length());
+    // Show which of the matches is selected, once all are found
+    private void updateSearchStatus() {
+        MatchList shown = matchHighlighter.getMatches();
+        if (shown == null) {
+            searchBar.setStatus(null);
+        } else if (shown.size() == 0) {
+            searchBar.setStatus("No matches");
+        } else {
+            int index = shown.indexAtOrAfter(textArea.getSelectionStart());
+            if (index < shown.size() && shown.getStart(index) == textArea.getSelectionStart()) {
+                searchBar.setStatus((index + 1) + " of " + describeMatches(shown.size()));
             } else {
-                JOptionPane.showMessageDialog(this, 
-                    "Text not found", "Find", JOptionPane.INFORMATION_MESSAGE);
+                searchBar.setStatus(describeMatches(shown.size()));
             }
         }
     }
 
+    // Select a match while the search bar has the focus, which would
+    // otherwise hide the selection
+    private void showMatch(int start, int end) {
+        select(start, end);
+        textArea.getCaret().setSelectionVisible(true);
+    }
+
+    // A search for the text with the options set in the search bar
+    private TextSearch newSearch(String text) {
+        return new TextSearch(text, searchBar.isMatchCase(), searchBar.isWholeWord());
+    }
+
+    // The regions the index says may hold a match, or null to search all of
+    // the text. The index knows the text's own case only.
+    private MatchList searchRegions(TextSearch finder) {
+        return searchIndex != null && finder.isMatchCase() ? searchIndex.candidates(finder.getPattern()) : null;
+    }
+
+    // Ask for the text to search for, offering the last one. Returns false if cancelled.
+    private boolean askSearchText() {
+        Object searchText = JOptionPane.showInputDialog(this, 
+            "Enter text to search:", "Find", JOptionPane.QUESTION_MESSAGE, null, null,
+            search != null ? search.getPattern() : null);
+
+        if (searchText == null || searchText.toString().isEmpty()) {
+            return false;
+        }
+        search = newSearch(searchText.toString());
+        regex = null;
+        return true;
+    }
+
+    private void findNext() {
+        if (regex != null) {
+            stepMatch(true);
+        } else if (search == null) {
+            find();
+        } else {
+            findNext(textArea.getSelectionEnd());
+        }
+    }
+
+    // Select the first match at or after from, going on from the start if there is none
+    private void findNext(int from) {
+        Document doc = textArea.getDocument();
+        MatchList regions = searchRegions(search);
+        int index = search.findNext(doc, from, regions);
+        if (index == -1 && from > 0) {
+            index = search.findNext(doc, 0, regions);
+            statusBar.setMessage(index != -1 ? "Search wrapped to the start" : null);
+        }
+        selectMatch(index);
+    }
+
+    // Select the last match before the selection, going on from the end if there is none
+    private void findPrevious() {
+        if (regex != null) {
+            stepMatch(false);
+            return;
+        }
+        if (search == null) {
+            find();
+            return;
+        }
+        Document doc = textArea.getDocument();
+        int before = textArea.getSelectionStart();
+        MatchList regions = searchRegions(search);
+        int index = search.findPrevious(doc, before, regions);
+        if (index == -1 && before < doc.getLength()) {
+            index = search.findPrevious(doc, doc.getLength(), regions);
+            statusBar.setMessage(index != -1 ? "Search wrapped to the end" : null);
+        }
+        selectMatch(index);
+    }
+
+    private void selectMatch(int index) {
+        if (index != -1) {
+            select(index, index + search.length());
+        } else {
+            JOptionPane.showMessageDialog(this, 
+                "Text not found", "Find", JOptionPane.INFORMATION_MESSAGE);
+        }
+    }
+
+    private void select(int start, int end) {
+        textArea.setCaretPosition(start);
+        textArea.select(start, end);
+    }
+
+    private void findAll() {
+        if (askSearchText()) {
+            TextSearch finder = search;
+            MatchList regions = searchRegions(finder);
+            startFindAll("\"" + finder.getPattern() + "\"",
+                (snapshot, results, stop) -> finder.findAll(snapshot, regions, results, stop));
+        }
+    }
+
+    // Find all matches of a regular expression, using every core
+    private void findRegex() {
+        Object input = JOptionPane.showInputDialog(this, 
+            "Enter a regular expression:", "Find Regex", JOptionPane.QUESTION_MESSAGE, null, null,
+            regex != null ? regex.getPattern().pattern() : null);
+        if (input == null || input.toString().isEmpty()) {
+            return;
+        }
+        Pattern pattern;
+        try {
+            // ^ and $ match at every line, as users of an editor expect
+            pattern = Pattern.compile(input.toString(), Pattern.MULTILINE);
+        } catch (PatternSyntaxException e) {
+            JOptionPane.showMessageDialog(this, 
+                "Invalid regular expression: " + e.getDescription(), 
+                "Find Regex", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        search = null;
+        regex = new RegexSearch(pattern);
+        findRegexMatches();
+    }
+
+    // Find all matches of the last regex, only on the lines the index says
+    // may hold one if it can tell
+    private void findRegexMatches() {
+        RegexSearch finder = regex;
+        MatchList regions = searchIndex != null ? searchIndex.candidates(finder.getPattern()) : null;
+        startFindAll("/" + finder.getPattern().pattern() + "/",
+            (snapshot, results, stop) -> finder.findAll(snapshot, regions, results, stop));
+    }
+
+    // Ask for the text to replace and what to replace it with, offering the
+    // last ones. Returns false if cancelled.
+    private boolean askReplaceText() {
+        JTextField searchField = new JTextField(search != null ? search.getPattern() : "", 20);
+        JTextField replacementField = new JTextField(replacement != null ? replacement : "", 20);
+        JPanel panel = new JPanel(new GridLayout(0, 1));
+        panel.add(new JLabel("Find:"));
+        panel.add(searchField);
+        panel.add(new JLabel("Replace with:"));
+        panel.add(replacementField);
+        JCheckBox matchCaseBox = new JCheckBox("Match case", searchBar.isMatchCase());
+        JCheckBox wholeWordBox = new JCheckBox("Whole word", searchBar.isWholeWord());
+        panel.add(matchCaseBox);
+        panel.add(wholeWordBox);
+        int result = JOptionPane.showConfirmDialog(this, panel, "Replace",
+            JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE);
+
+        if (result != JOptionPane.OK_OPTION || searchField.getText().isEmpty()) {
+            return false;
+        }
+        // The search bar keeps the options for the next search
+        searchBar.setMatchCase(matchCaseBox.isSelected());
+        searchBar.setWholeWord(wholeWordBox.isSelected());
+        search = newSearch(searchField.getText());
+        regex = null;
+        replacement = replacementField.getText();
+        return true;
+    }
+
+    // Replace the selected match, if the selection is one, and select the next
+    private void replace() {
+        if (largeFileView != null) {
+            showReadOnlyMessage();
+            return;
+        }
+        if (!askReplaceText()) {
+            return;
+        }
+        String selected = textArea.getSelectedText();
+        if (search.matches(selected)) {
+            textArea.replaceSelection(replacement);
+        }
+        findNext(textArea.getSelectionEnd());
+    }
+
+    // Find every match first, then replace them all in one pass over the
+    // pieces, which is a single edit to undo however many matches there are
+    private void replaceAll() {
+        if (largeFileView != null) {
+            showReadOnlyMessage();
+            return;
+        }
+        if (!askReplaceText()) {
+            return;
+        }
+        PieceTableDocument doc = (PieceTableDocument) textArea.getDocument();
+        MatchList matches = new MatchList();
+        int length = search.length();
+        MatchList regions = searchRegions(search);
+        TextSearch.Hits hits = offset -> {
+            matches.add(offset, offset + length);
+            return true;
+        };
+        if (regions != null) {
+            search.findAll(doc.snapshot(), regions, hits);
+        } else {
+            search.findAll(doc.snapshot(), hits);
+        }
+        if (matches.size() == 0) {
+            selectMatch(-1);
+            return;
+        }
+        try {
+            doc.replaceAll(matches, replacement);
+        } catch (BadLocationException e) {
+            // Cannot happen for matches just found in the document
+        }
+        statusBar.setMessage("Replaced " + describeMatches(matches.size()));
+    }
+
+    // Step through the matches of the last regex search, finding them again
+    // if the text has been edited since, which may have made new ones
+    private void stepMatch(boolean forward) {
+        MatchList matches = matchHighlighter.getMatches();
+        if (matches == null || matchHighlighter.isEdited()) {
+            findRegexMatches();
+            return;
+        }
+        if (matches.size() == 0) {
+            return;
+        }
+        int index;
+        if (forward) {
+            index = matches.indexAtOrAfter(textArea.getSelectionStart() + 1);
+            if (index == matches.size()) {
+                index = 0;
+                statusBar.setMessage("Search wrapped to the start");
+            }
+        } else {
+            index = matches.indexAtOrAfter(textArea.getSelectionStart()) - 1;
+            if (index < 0) {
+                index = matches.size() - 1;
+                statusBar.setMessage("Search wrapped to the end");
+            }
+        }
+        select(matches.getStart(index), matches.getEnd(index));
+    }
+
+    // Find every match in a snapshot off the EDT. Matches are highlighted as
+    // they come in and only those in view are ever painted, so any number
+    // can be shown.
+    private void startFindAll(String description, MatchFinder finder) {
+        changeBus.flush();
+        clearMatches();
+        TextSnapshot snapshot = ((PieceTableDocument) textArea.getDocument()).snapshot();
+        long length = Math.max(1, snapshot.length());
+        MatchList shown = new MatchList();
+        matchHighlighter.setMatches(shown);
+
+        SwingWorker<Boolean, MatchList> worker = new SwingWorker<Boolean, MatchList>() {
+            @Override
+            protected Boolean doInBackground() {
+                return finder.findAll(snapshot, matches -> {
+                    publish(matches);
+                    setProgress((int) (matches.getEnd(matches.size() - 1) * 100 / length));
+                }, this::isCancelled);
+            }
+
+            @Override
+            protected void process(List<MatchList> batches) {
+                // An edit clears the highlights, and the matches still to come are dropped with them
+                if (matchHighlighter.getMatches() == shown) {
+                    for (MatchList batch : batches) {
+                        shown.addAll(batch);
+                    }
+                    textArea.repaint();
+                }
+            }
+        };
+        Object task = statusBar.startTask("Finding " + description + "...", () -> worker.cancel(false));
+        worker.addPropertyChangeListener(e -> {
+            if ("progress".equals(e.getPropertyName())) {
+                statusBar.setProgress(task, (Integer) e.getNewValue());
+            } else if ("state".equals(e.getPropertyName())
+                    && e.getNewValue() == SwingWorker.StateValue.DONE) {
+                finishFindAll(worker, task, shown);
+            }
+        });
+        findAllWorker = worker;
+        worker.execute();
+    }
+
+    private void finishFindAll(SwingWorker<Boolean, MatchList> worker, Object task, MatchList shown) {
+        if (matchHighlighter.getMatches() != shown) {
+            // The text changed, so the offsets found no longer match it
+            statusBar.endTask(task, "Find cancelled");
+            return;
+        }
+        if (worker.isCancelled()) {
+            statusBar.endTask(task, "Find cancelled after " + describeMatches(shown.size()));
+            return;
+        }
+        try {
+            worker.get();
+        } catch (InterruptedException | ExecutionException e) {
+            matchHighlighter.clear();
+            statusBar.endTask(task, "Find failed");
+            return;
+        }
+        matchesFound = true;
+        statusBar.endTask(task, describeMatches(shown.size()));
+        if (shown.size() == 0) {
+            selectMatch(-1);
+            return;
+        }
+        int next = shown.indexAtOrAfter(textArea.getSelectionStart());
+        int index = next < shown.size() ? next : 0;
+        select(shown.getStart(index), shown.getEnd(index));
+    }
+
+    private static String describeMatches(int count) {
+        return count == 1 ? "1 match" : count + " matches";
+    }
+
+    // Drop the highlighted matches and stop finding more
+    private void clearMatches() {
+        matchesFound = false;
+        matchHighlighter.clear();
+        searchBar.setStatus(null);
+        if (findAllWorker != null) {
+            findAllWorker.cancel(false);
+        }
+    }
+
+    // Move the highlighted matches along with a batch of edits, unless they
+    // are still being found in a snapshot from before it, whose offsets the
+    // ones still to come would be in
+    private void shiftMatches(ChangeBus.Change change) {
+        if (!matchesFound) {
+            clearMatches();
+            return;
+        }
+        if (change.getRemovedLength() > 0) {
+            matchHighlighter.remove(change.getOffset(), change.getRemovedLength());
+        }
+        if (change.getInsertedLength() > 0) {
+            matchHighlighter.insert(change.getOffset(), change.getInsertedLength());
+        }
+        if (searchBar.isVisible()) {
+            updateSearchStatus();
+        }
+    }
+
+    // Build a trigram index of a large document in the background, so that
+    // searches only look at the blocks that may hold a match. The index
+    // follows edits once it is built; an edit made while it is being built
+    // means it is built again.
+    private void startIndexing() {
+        dropIndex();
+        PieceTableDocument doc = (PieceTableDocument) textArea.getDocument();
+        if (TrigramIndex.filterBits(doc.getLength(), TrigramIndex.budget()) == 0) {
+            return;
+        }
+        changeBus.flush();
+        TextSnapshot snapshot = doc.snapshot();
+        int modification = modificationCount;
+        SwingWorker<TrigramIndex, Void> worker = new SwingWorker<TrigramIndex, Void>() {
+            @Override
+            protected TrigramIndex doInBackground() {
+                return TrigramIndex.build(snapshot, this::isCancelled);
+            }
+
+            @Override
+            protected void done() {
+                if (indexWorker != this || isCancelled()) {
+                    return;
+                }
+                indexWorker = null;
+                changeBus.flush();
+                if (modification != modificationCount) {
+                    startIndexing();
+                    return;
+                }
+                try {
+                    searchIndex = get();
+                    if (searchIndex != null) {
+                        doc.addDocumentListener(searchIndex);
+                    }
+                } catch (InterruptedException | ExecutionException e) {
+                    // Searches go over all of the text without it
+                }
+            }
+        };
+        indexWorker = worker;
+        worker.execute();
+    }
+
+    // Stop building the index and stop keeping the one built up to date
+    private void dropIndex() {
+        if (indexWorker != null) {
+            indexWorker.cancel(false);
+            indexWorker = null;
+        }
+        if (searchIndex != null) {
+            textArea.getDocument().removeDocumentListener(searchIndex);
+            searchIndex = null;
+        }
+    }
+
     // Helper methods
+
+    // Keep the undo history of the text shown for the next time its file is
+    // opened, if the text is what the file holds. Without a layout, as while
+    // a save is under way, that is not known.
+    private void saveHistory() {
+        changeBus.flush();
+        FileLayout layout = fileLayout;
+        if (currentFile != null && !changed && largeFileView == null && layout != null) {
+            PieceTableDocument doc = (PieceTableDocument) textArea.getDocument();
+            undoManager.save(HistoryFile.defaultDirectory(),
+                new HistoryFile.Base(new File(currentFile), layout, doc.snapshot()));
+        }
+    }
+
+    // Swap in a new document, moving the change bus and undo listener over to it.
+    // Whole texts are loaded this way: the document is filled before it has
+    // any listeners, so no undoable edits or change events are made for it.
+    // The undo history of the old document is saved first.
+    private void setDocument(Document doc) {
+        changeBus.flush();
+        saveHistory();
+        Document old = textArea.getDocument();
+        old.removeDocumentListener(lineStarts);
+        old.removeUndoableEditListener(undoManager);
+        clearMatches();
+        dropIndex();
+        searchSnapshot = null;
+        incrementalSearch.clear();
+        changeBus.setDocument(doc);
+        doc.addUndoableEditListener(undoManager);
+        // Indexed before the text area moves its caret to the new text
+        lineStarts = new LineStarts(doc);
+        textArea.setDocument(doc);
+        multiCaret.setDocument(doc);
+        doc.addDocumentListener(lineStarts);
+        updateCaretPosition();
+        autosave.setDocument((PieceTableDocument) doc);
+    }
+
+    /**
+     * Offers to restore the unsaved work of editors that did not exit
+     * cleanly. Each accepted journal is replayed off the EDT and opens in
+     * this window if it is still untouched, or in a new one otherwise.
+     */
+    public void offerRecovery() {
+        for (File journal : RecoveryJournal.findAbandoned(AutosaveService.defaultDirectory())) {
+            String name;
+            try {
+                String path = RecoveryJournal.readPath(journal);
+                name = path == null ? "Untitled" : new File(path).getName();
+            } catch (IOException e) {
+                RecoveryJournal.discard(journal);
+                continue;
+            }
+            int option = JOptionPane.showConfirmDialog(this,
+                "Unsaved changes to " + name + " were found from a previous session. Recover them?",
+                "Recover Unsaved Changes", JOptionPane.YES_NO_OPTION);
+            if (option == JOptionPane.YES_OPTION) {
+                recover(journal);
+            } else {
+                RecoveryJournal.discard(journal);
+            }
+        }
+    }
+
+    private void recover(File journal) {
+        IoExecutor.get().execute(new SwingWorker<RecoveryJournal.Recovered, Void>() {
+            @Override
+            protected RecoveryJournal.Recovered doInBackground() throws IOException {
+                return RecoveryJournal.replay(journal);
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    RecoveryJournal.Recovered recovered = get();
+                    TextEditor editor = currentFile == null && !changed ? TextEditor.this : new TextEditor();
+                    editor.showRecovered(recovered);
+                    RecoveryJournal.discard(journal);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    JOptionPane.showMessageDialog(TextEditor.this,
+                        "Error recovering changes: " + e.getCause().getMessage(),
+                        "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        });
+    }
+
+    private void showRecovered(RecoveryJournal.Recovered recovered) {
+        setDocument(recovered.document);
+        textArea.setCaretPosition(0);
+        undoManager.discardAllEdits();
+        currentFile = recovered.path;
+        fileFormat = recovered.format != null ? recovered.format : TextFormat.defaultFormat();
+        fileLayout = null;
+        changed = true;
+        autosave.resetToSnapshot(currentFile);
+        String name = currentFile == null ? "Untitled" : new File(currentFile).getName();
+        setTitle("Simple Text Editor - " + name + " (recovered)");
+    }
+
     private boolean confirmSave() {
+        // A save still running may leave the file with or without the latest changes
+        awaitPendingSave();
+        changeBus.flush();
         if (changed) {
             int option = JOptionPane.showConfirmDialog(this, 
                 "The current file has been modified. Save changes?", 
@@ -278,6 +1334,7 @@ public class TextEditor extends JFrame {
 
             if (option == JOptionPane.YES_OPTION) {
                 saveFile();
+                awaitPendingSave();
                 return !changed; // Return false if save failed
             } else if (option == JOptionPane.CANCEL_OPTION) {
                 return false;
@@ -291,11 +1348,16 @@ public class TextEditor extends JFrame {
         return textArea;
     }
 
+    public ChangeBus getChangeBus() {
+        return changeBus;
+    }
+
     public String getCurrentFile() {
         return currentFile;
     }
 
     public boolean isChanged() {
+        changeBus.flush();
         return changed;
     }
 
@@ -381,7 +1443,7 @@ public class TextEditor extends JFrame {
 
     private void implementTextTool() {
         // Switch to text editor view
-        cardLayout.show(contentPanel, TEXT_CARD);
+        cardLayout.show(contentPanel, largeFileView != null ? LARGE_FILE_CARD : TEXT_CARD);
 
         textArea.setCursor(new Cursor(Cursor.TEXT_CURSOR));
 
@@ -402,6 +1464,10 @@ public class TextEditor extends JFrame {
     private class TextMouseListener extends MouseAdapter {
         @Override
         public void mousePressed(MouseEvent e) {
+            if (e.isAltDown()) {
+                // Alt+click adds a caret instead, see MultiCaret
+                return;
+            }
             int pos = textArea.viewToModel2D(e.getPoint());
             textArea.setCaretPosition(pos);
         }
@@ -588,7 +1654,12 @@ public class TextEditor extends JFrame {
         buttonPanel.setBackground(Color.WHITE);
         buttonPanel.add(plusButton);
 
-        // Add the panel to the bottom of the frame
-        add(buttonPanel, BorderLayout.SOUTH);
+        // Add the panel to the bottom of the frame, next to the status bar
+        JPanel bottomPanel = new JPanel(new BorderLayout());
+        bottomPanel.setBackground(Color.WHITE);
+        bottomPanel.add(searchBar, BorderLayout.NORTH);
+        bottomPanel.add(statusBar, BorderLayout.CENTER);
+        bottomPanel.add(buttonPanel, BorderLayout.EAST);
+        add(bottomPanel, BorderLayout.SOUTH);
     }
 }
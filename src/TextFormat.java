@@ -0,0 +1,217 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * How a file's text is stored: its charset, whether it starts with a byte
+ * order mark and which line ending it uses. Documents always hold LF line
+ * endings, so the format is remembered when a file is opened and used when
+ * it is saved, to write back the same bytes that were read.
+ */
+public final class TextFormat {
+    // Bytes looked at to guess the charset of a file without a byte order mark
+    static final int SAMPLE_SIZE = 8 * 1024;
+
+    public enum LineEnding {
+        LF("\n"), CRLF("\r\n"), CR("\r");
+
+        private final String separator;
+
+        LineEnding(String separator) {
+            this.separator = separator;
+        }
+
+        public String getSeparator() {
+            return separator;
+        }
+    }
+
+    private static final Charset UTF_32BE = Charset.forName("UTF-32BE");
+    private static final Charset UTF_32LE = Charset.forName("UTF-32LE");
+
+    private final Charset charset;
+    private final boolean byteOrderMark;
+    private final LineEnding lineEnding;
+
+    public TextFormat(Charset charset, boolean byteOrderMark, LineEnding lineEnding) {
+        this.charset = charset;
+        this.byteOrderMark = byteOrderMark;
+        this.lineEnding = lineEnding;
+    }
+
+    /**
+     * Returns the format of new files: the default charset, no byte order
+     * mark and LF line endings.
+     */
+    public static TextFormat defaultFormat() {
+        return new TextFormat(Charset.defaultCharset(), false, LineEnding.LF);
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    public boolean hasByteOrderMark() {
+        return byteOrderMark;
+    }
+
+    public LineEnding getLineEnding() {
+        return lineEnding;
+    }
+
+    public TextFormat withLineEnding(LineEnding lineEnding) {
+        return new TextFormat(charset, byteOrderMark, lineEnding);
+    }
+
+    /**
+     * Returns whether '\n' is the byte 0x0A in this charset and that byte
+     * never appears inside another character, as in UTF-8 and ASCII.
+     */
+    public boolean isAsciiCompatible() {
+        return isAsciiCompatible(charset);
+    }
+
+    private static boolean isAsciiCompatible(Charset charset) {
+        return !charset.name().startsWith("UTF-16") && !charset.name().startsWith("UTF-32");
+    }
+
+    /**
+     * Returns the number of bytes the byte order mark takes up in the file,
+     * or 0 if the format has none.
+     */
+    public int byteOrderMarkLength() {
+        if (!byteOrderMark) {
+            return 0;
+        }
+        if (charset.equals(UTF_32BE) || charset.equals(UTF_32LE)) {
+            return 4;
+        }
+        return charset.equals(StandardCharsets.UTF_8) ? 3 : 2;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof TextFormat)) {
+            return false;
+        }
+        TextFormat other = (TextFormat) o;
+        return charset.equals(other.charset) && byteOrderMark == other.byteOrderMark
+            && lineEnding == other.lineEnding;
+    }
+
+    @Override
+    public int hashCode() {
+        return (charset.hashCode() * 31 + Boolean.hashCode(byteOrderMark)) * 31 + lineEnding.hashCode();
+    }
+
+    /**
+     * Guesses the format of a file from its first bytes, which are read from
+     * position to limit and left untouched. A byte order mark decides the
+     * charset. Without one, text that is valid UTF-8 is taken as UTF-8, text
+     * with many zero bytes as UTF-16 and anything else as the fallback, or
+     * as ISO-8859-1 when the fallback is UTF-8 or ASCII and so cannot read
+     * it; ISO-8859-1 maps every byte and saves it back unchanged. The line
+     * ending is left at LF, since it is only known once the whole text has
+     * been decoded.
+     */
+    public static TextFormat detect(ByteBuffer head, Charset fallback) {
+        int p = head.position();
+        int n = head.remaining();
+        int b0 = n > 0 ? head.get(p) & 0xff : -1;
+        int b1 = n > 1 ? head.get(p + 1) & 0xff : -1;
+        int b2 = n > 2 ? head.get(p + 2) & 0xff : -1;
+        int b3 = n > 3 ? head.get(p + 3) & 0xff : -1;
+
+        if (b0 == 0xEF && b1 == 0xBB && b2 == 0xBF) {
+            return new TextFormat(StandardCharsets.UTF_8, true, LineEnding.LF);
+        }
+        if (b0 == 0x00 && b1 == 0x00 && b2 == 0xFE && b3 == 0xFF) {
+            return new TextFormat(UTF_32BE, true, LineEnding.LF);
+        }
+        if (b0 == 0xFF && b1 == 0xFE && b2 == 0x00 && b3 == 0x00) {
+            return new TextFormat(UTF_32LE, true, LineEnding.LF);
+        }
+        if (b0 == 0xFE && b1 == 0xFF) {
+            return new TextFormat(StandardCharsets.UTF_16BE, true, LineEnding.LF);
+        }
+        if (b0 == 0xFF && b1 == 0xFE) {
+            return new TextFormat(StandardCharsets.UTF_16LE, true, LineEnding.LF);
+        }
+
+        int sample = Math.min(n, SAMPLE_SIZE);
+        int evenZeros = 0;
+        int oddZeros = 0;
+        for (int i = 0; i < sample; i++) {
+            if (head.get(p + i) == 0) {
+                if (i % 2 == 0) {
+                    evenZeros++;
+                } else {
+                    oddZeros++;
+                }
+            }
+        }
+        // ASCII text in UTF-16 has a zero in every other byte
+        if (sample >= 2 && Math.max(evenZeros, oddZeros) > sample / 4 && Math.min(evenZeros, oddZeros) < sample / 40) {
+            Charset charset = evenZeros > oddZeros ? StandardCharsets.UTF_16BE : StandardCharsets.UTF_16LE;
+            return new TextFormat(charset, false, LineEnding.LF);
+        }
+
+        switch (scanUtf8(head, p, sample, sample == n)) {
+            case ASCII:
+                // Any ASCII-compatible charset reads this; keep the fallback unless it cannot
+                // hold more than ASCII, so characters typed later can still be saved
+                return new TextFormat(fallback.equals(StandardCharsets.US_ASCII) || !isAsciiCompatible(fallback)
+                    ? StandardCharsets.UTF_8 : fallback, false, LineEnding.LF);
+            case UTF8:
+                return new TextFormat(StandardCharsets.UTF_8, false, LineEnding.LF);
+            default:
+                return fallback(fallback);
+        }
+    }
+
+    /**
+     * Returns the format text that is not UTF-8 is read in: the fallback, or
+     * ISO-8859-1 when the fallback is UTF-8 or ASCII.
+     */
+    public static TextFormat fallback(Charset fallback) {
+        return new TextFormat(fallback.equals(StandardCharsets.UTF_8) || fallback.equals(StandardCharsets.US_ASCII)
+            ? StandardCharsets.ISO_8859_1 : fallback, false, LineEnding.LF);
+    }
+
+    private enum Utf8Scan { ASCII, UTF8, INVALID }
+
+    // Checks whether the bytes are well-formed UTF-8. A sequence cut off by
+    // the end of a sample that is not the whole file still counts as valid.
+    private static Utf8Scan scanUtf8(ByteBuffer bytes, int start, int length, boolean whole) {
+        boolean multibyte = false;
+        int end = start + length;
+        int i = start;
+        while (i < end) {
+            int b = bytes.get(i) & 0xff;
+            int following;
+            if (b < 0x80) {
+                i++;
+                continue;
+            } else if (b >= 0xC2 && b <= 0xDF) {
+                following = 1;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                following = 2;
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                following = 3;
+            } else {
+                return Utf8Scan.INVALID;
+            }
+            for (int k = 1; k <= following; k++) {
+                if (i + k >= end) {
+                    return whole ? Utf8Scan.INVALID : Utf8Scan.UTF8;
+                }
+                if ((bytes.get(i + k) & 0xC0) != 0x80) {
+                    return Utf8Scan.INVALID;
+                }
+            }
+            multibyte = true;
+            i += following + 1;
+        }
+        return multibyte ? Utf8Scan.UTF8 : Utf8Scan.ASCII;
+    }
+}
@@ -0,0 +1,405 @@
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Finds a literal string in a document without copying its text. The text
+ * is read segment by segment straight out of the piece table's buffers and
+ * each segment is searched with Boyer-Moore-Horspool, which skips ahead by
+ * up to the length of the pattern after a mismatch. Only a match that spans
+ * two segments needs a copy, of at most twice the pattern length.
+ *
+ * Searches can run on a Document from the EDT, for find next and previous,
+ * or on a {@link TextSnapshot} from any thread, for find all.
+ *
+ * A search may ignore case and may match whole words only, without a
+ * lower-cased copy of the text. Ignoring case, each char of the text is
+ * folded through a table as it is compared, the way String.equalsIgnoreCase
+ * folds them, and the pattern is folded once up front. A whole word is a
+ * match with no word char next to it, looked up in a table of which chars
+ * are letters, digits or underscores; an end of the pattern that is not a
+ * word char may have anything next to it.
+ */
+public class TextSearch implements MatchFinder {
+    // Chars searched at a time when going backwards
+    static final int CHUNK_SIZE = 64 * 1024;
+    // Matches handed over at a time by findAll
+    static final int BATCH_SIZE = 64 * 1024;
+
+    // Anything that hands out its text in segments, like a Document
+    public interface Source {
+        void getText(int offset, int length, Segment txt) throws BadLocationException;
+    }
+
+    // Receives the offsets of matches in increasing order
+    public interface Hits {
+        // Returns false to stop the search
+        boolean found(int offset);
+    }
+
+    // Every char folded to one case, as equalsIgnoreCase compares chars
+    private static final char[] FOLD = new char[Character.MAX_VALUE + 1];
+    // Whether each char is a letter, digit or underscore
+    private static final boolean[] WORD = new boolean[Character.MAX_VALUE + 1];
+
+    static {
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            FOLD[c] = Character.toLowerCase(Character.toUpperCase((char) c));
+            WORD[c] = Character.isLetterOrDigit(c) || c == '_';
+        }
+    }
+
+    private final String pattern;
+    private final boolean matchCase;
+    private final boolean wholeWord;
+    // The pattern's chars, folded when case is ignored
+    private final char[] chars;
+    // Whether the pattern starts and ends with word chars, which a whole
+    // word match must not have more of next to it
+    private final boolean startsWord;
+    private final boolean endsWord;
+    // Shift after a mismatch, by the low byte of the char under the last
+    // pattern position; chars sharing a low byte get the smallest shift
+    private final int[] shift = new int[256];
+
+    public TextSearch(String pattern) {
+        this(pattern, true, false);
+    }
+
+    public TextSearch(String pattern, boolean matchCase, boolean wholeWord) {
+        if (pattern.isEmpty()) {
+            throw new IllegalArgumentException("Empty search pattern");
+        }
+        this.pattern = pattern;
+        this.matchCase = matchCase;
+        this.wholeWord = wholeWord;
+        this.chars = pattern.toCharArray();
+        if (!matchCase) {
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = FOLD[chars[i]];
+            }
+        }
+        int last = chars.length - 1;
+        startsWord = WORD[chars[0]];
+        endsWord = WORD[chars[last]];
+        Arrays.fill(shift, chars.length);
+        for (int i = 0; i < last; i++) {
+            shift[chars[i] & 0xFF] = last - i;
+        }
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    public boolean isMatchCase() {
+        return matchCase;
+    }
+
+    public boolean isWholeWord() {
+        return wholeWord;
+    }
+
+    /**
+     * Returns whether the text, such as the selection, is the pattern as
+     * this search matches it. Whether it is a whole word cannot be told
+     * from the text alone.
+     */
+    public boolean matches(String text) {
+        if (text == null || text.length() != chars.length) {
+            return false;
+        }
+        return regionMatches(text.toCharArray(), 0, 0);
+    }
+
+    public int length() {
+        return chars.length;
+    }
+
+    /**
+     * Returns the offset of the first match at or after from, or -1.
+     */
+    public int findNext(Document doc, int from) {
+        int[] found = {-1};
+        scan(doc::getText, Math.max(0, from), doc.getLength(), false, offset -> {
+            found[0] = offset;
+            return false;
+        });
+        return found[0];
+    }
+
+    /**
+     * Returns the offset of the last match that ends at or before the given
+     * offset, or -1.
+     */
+    public int findPrevious(Document doc, int before) {
+        int end = Math.min(before, doc.getLength());
+        int[] found = {-1};
+        while (end >= chars.length) {
+            int start = Math.max(0, end - Math.max(CHUNK_SIZE, 2 * chars.length));
+            scan(doc::getText, start, end, true, offset -> {
+                found[0] = offset;
+                return true;
+            });
+            if (found[0] >= 0 || start == 0) {
+                break;
+            }
+            // Overlap the chunks so matches across their boundary are seen
+            end = start + chars.length - 1;
+        }
+        return found[0];
+    }
+
+    /**
+     * Same as findNext, looking only in the given regions, as narrowed down
+     * by a {@link TrigramIndex}, or everywhere if regions is null.
+     */
+    public int findNext(Document doc, int from, MatchList regions) {
+        if (regions == null) {
+            return findNext(doc, from);
+        }
+        int[] found = {-1};
+        int length = doc.getLength();
+        // The region before the first one starting at from may hold it too
+        for (int i = Math.max(0, regions.indexAtOrAfter(from) - 1); i < regions.size() && found[0] < 0; i++) {
+            scan(doc::getText, Math.max(from, regions.getStart(i)), Math.min(length, regions.getEnd(i)), false,
+                offset -> {
+                    found[0] = offset;
+                    return false;
+                });
+        }
+        return found[0];
+    }
+
+    /**
+     * Same as findPrevious, looking only in the given regions, or everywhere
+     * if regions is null.
+     */
+    public int findPrevious(Document doc, int before, MatchList regions) {
+        if (regions == null) {
+            return findPrevious(doc, before);
+        }
+        int[] found = {-1};
+        int end = Math.min(before, doc.getLength());
+        for (int i = regions.indexAtOrAfter(end) - 1; i >= 0 && found[0] < 0; i--) {
+            scan(doc::getText, regions.getStart(i), Math.min(end, regions.getEnd(i)), true, offset -> {
+                found[0] = offset;
+                return true;
+            });
+        }
+        return found[0];
+    }
+
+    /**
+     * Reports every match in the snapshot that does not overlap an earlier
+     * one. Returns false if the hits stopped the search.
+     */
+    public boolean findAll(TextSnapshot snapshot, Hits hits) {
+        return scan(snapshot::getText, 0, snapshot.length(), false, hits);
+    }
+
+    /**
+     * Reports every match in the given regions, as for findAll over all of
+     * the snapshot. A match found at the end of one region is not reported
+     * again from the next.
+     */
+    public boolean findAll(TextSnapshot snapshot, MatchList regions, Hits hits) {
+        int length = snapshot.length();
+        // Earliest offset the next match may start at
+        int[] next = {0};
+        Hits tracked = offset -> {
+            next[0] = offset + chars.length;
+            return hits.found(offset);
+        };
+        for (int i = 0; i < regions.size(); i++) {
+            int from = Math.max(next[0], regions.getStart(i));
+            if (!scan(snapshot::getText, from, Math.min(length, regions.getEnd(i)), false, tracked)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Hands the matches over BATCH_SIZE at a time
+    public boolean findAll(TextSnapshot snapshot, Consumer<MatchList> results, BooleanSupplier stop) {
+        return findAll(snapshot, null, results, stop);
+    }
+
+    // Same, only in the given regions, or in all of the text if regions is null
+    public boolean findAll(TextSnapshot snapshot, MatchList regions, Consumer<MatchList> results,
+            BooleanSupplier stop) {
+        MatchList[] batch = {new MatchList()};
+        Hits hits = offset -> {
+            batch[0].add(offset, offset + chars.length);
+            if (batch[0].size() == BATCH_SIZE) {
+                results.accept(batch[0]);
+                batch[0] = new MatchList();
+            }
+            return !stop.getAsBoolean();
+        };
+        boolean done = regions != null ? findAll(snapshot, regions, hits) : findAll(snapshot, hits);
+        if (done && batch[0].size() > 0) {
+            results.accept(batch[0]);
+        }
+        return done;
+    }
+
+    /**
+     * Reports the matches that lie within [from, to). Overlapping matches
+     * are all reported when overlapping is true; otherwise the search goes
+     * on after the end of each match. Returns false if the hits stopped it.
+     */
+    public boolean scan(Source source, int from, int to, boolean overlapping, Hits hits) {
+        int m = chars.length;
+        Segment segment = new Segment();
+        segment.setPartialReturn(true);
+        Segment seam = new Segment();
+        Segment edge = new Segment();
+        // Earliest offset the next match may start at
+        int next = from;
+        int offset = from;
+        try {
+            while (offset < to) {
+                source.getText(offset, to - offset, segment);
+                int segmentEnd = offset + segment.count;
+
+                int end = segment.offset + segment.count;
+                int i = segment.offset + Math.max(next, offset) - offset;
+                while ((i = indexIn(segment.array, i, end)) >= 0) {
+                    int match = offset + i - segment.offset;
+                    if (wholeWord && !isWordAt(source, match, segment, offset, edge)) {
+                        i++;
+                        continue;
+                    }
+                    if (!hits.found(match)) {
+                        return false;
+                    }
+                    next = overlapping ? match + 1 : match + m;
+                    i = segment.offset + next - offset;
+                }
+
+                // A match may start in this segment and end in a later one
+                int seamStart = Math.max(next, segmentEnd - (m - 1));
+                int seamEnd = Math.min(to, segmentEnd + m - 1);
+                if (seamStart < segmentEnd && seamEnd - seamStart >= m) {
+                    source.getText(seamStart, seamEnd - seamStart, seam);
+                    int j = seam.offset;
+                    int limit = seam.offset + seam.count;
+                    while ((j = indexIn(seam.array, j, limit)) >= 0) {
+                        int match = seamStart + j - seam.offset;
+                        if (match >= segmentEnd) {
+                            break;
+                        }
+                        if (wholeWord && !isWordAt(source, match, seam, seamStart, edge)) {
+                            j++;
+                            continue;
+                        }
+                        if (!hits.found(match)) {
+                            return false;
+                        }
+                        next = overlapping ? match + 1 : match + m;
+                        j = seam.offset + next - seamStart;
+                    }
+                }
+                offset = segmentEnd;
+            }
+        } catch (BadLocationException e) {
+            // The range was checked against the length, so this cannot happen
+            throw new IllegalStateException(e);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the index of the first match in text[from, to), or -1,
+     * whether or not it is a whole word.
+     */
+    int indexIn(char[] text, int from, int to) {
+        int last = chars.length - 1;
+        char lastChar = chars[last];
+        int i = from;
+        if (!matchCase) {
+            // The same, folding each char of the text read
+            while (i <= to - chars.length) {
+                char c = FOLD[text[i + last]];
+                if (c == lastChar) {
+                    int j = last - 1;
+                    while (j >= 0 && FOLD[text[i + j]] == chars[j]) {
+                        j--;
+                    }
+                    if (j < 0) {
+                        return i;
+                    }
+                }
+                i += shift[c & 0xFF];
+            }
+            return -1;
+        }
+        while (i <= to - chars.length) {
+            char c = text[i + last];
+            if (c == lastChar) {
+                int j = last - 1;
+                while (j >= 0 && text[i + j] == chars[j]) {
+                    j--;
+                }
+                if (j < 0) {
+                    return i;
+                }
+            }
+            i += shift[c & 0xFF];
+        }
+        return -1;
+    }
+
+    /**
+     * Returns whether a match may start at offset in text, checking only
+     * the chars from the pattern's char at from on, and ignoring case if
+     * this search does.
+     */
+    boolean regionMatches(char[] text, int offset, int from) {
+        for (int i = from; i < chars.length; i++) {
+            char c = matchCase ? text[offset + i] : FOLD[text[offset + i]];
+            if (c != chars[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether the match at start in the source is a whole word.
+     */
+    boolean isWordAt(Source source, int start) {
+        return isWordAt(source, start, new Segment(), 0, new Segment());
+    }
+
+    // Same, with the chars next to the match read from text, which starts
+    // at textStart, if it holds them
+    private boolean isWordAt(Source source, int start, Segment text, int textStart, Segment edge) {
+        return (!startsWord || !isWordChar(charAt(source, start - 1, text, textStart, edge)))
+            && (!endsWord || !isWordChar(charAt(source, start + chars.length, text, textStart, edge)));
+    }
+
+    private static boolean isWordChar(int c) {
+        return c >= 0 && WORD[c];
+    }
+
+    // The char at offset, or -1 before the start or after the end
+    private static int charAt(Source source, int offset, Segment text, int textStart, Segment edge) {
+        if (offset >= textStart && offset < textStart + text.count) {
+            return text.array[text.offset + offset - textStart];
+        }
+        if (offset < 0) {
+            return -1;
+        }
+        try {
+            source.getText(offset, 1, edge);
+        } catch (BadLocationException e) {
+            return -1;
+        }
+        return edge.count > 0 ? edge.array[edge.offset] : -1;
+    }
+}
@@ -0,0 +1,98 @@
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Segment;
+import java.util.Arrays;
+
+/**
+ * An immutable view of a document's text at one point in time. It only holds
+ * references into the piece table's buffers, whose used ranges never change,
+ * so taking one costs O(pieces) and it can be read from any thread while the
+ * document keeps being edited on the EDT.
+ */
+public class TextSnapshot {
+    private final char[][] buffers;
+    private final int[] starts;
+    // Document offset of each piece, with the total length as the last entry
+    private final int[] offsets;
+    private final int pieceCount;
+
+    TextSnapshot(char[][] buffers, int[] starts, int[] offsets, int pieceCount) {
+        this.buffers = buffers;
+        this.starts = starts;
+        this.offsets = offsets;
+        this.pieceCount = pieceCount;
+    }
+
+    public int length() {
+        return offsets[pieceCount];
+    }
+
+    // Number of pieces, which is what a snapshot costs to keep
+    int getPieceCount() {
+        return pieceCount;
+    }
+
+    // The buffer a piece lies in, where in it, and its length
+    char[] getPieceBuffer(int piece) {
+        return buffers[piece];
+    }
+
+    int getPieceStart(int piece) {
+        return starts[piece];
+    }
+
+    int getPieceLength(int piece) {
+        return offsets[piece + 1] - offsets[piece];
+    }
+
+    /**
+     * Fetches text the same way Document.getText(int, int, Segment) does:
+     * in place when the range lies in one piece or the segment allows a
+     * partial return, copied otherwise.
+     */
+    public void getText(int where, int len, Segment txt) throws BadLocationException {
+        if (where < 0 || len < 0 || where + len > length()) {
+            throw new BadLocationException("Invalid location", length());
+        }
+        if (len == 0) {
+            txt.array = new char[0];
+            txt.offset = 0;
+            txt.count = 0;
+            return;
+        }
+
+        int piece = findPiece(where);
+        int inPiece = where - offsets[piece];
+        int available = offsets[piece + 1] - where;
+        if (len <= available || txt.isPartialReturn()) {
+            txt.array = buffers[piece];
+            txt.offset = starts[piece] + inPiece;
+            txt.count = Math.min(len, available);
+            return;
+        }
+
+        char[] chars = new char[len];
+        int copied = 0;
+        while (copied < len) {
+            int from = where + copied - offsets[piece];
+            int count = Math.min(len - copied, offsets[piece + 1] - offsets[piece] - from);
+            System.arraycopy(buffers[piece], starts[piece] + from, chars, copied, count);
+            copied += count;
+            piece++;
+        }
+        txt.array = chars;
+        txt.offset = 0;
+        txt.count = len;
+    }
+
+    public String getText(int where, int len) throws BadLocationException {
+        Segment s = new Segment();
+        getText(where, len, s);
+        return new String(s.array, s.offset, s.count);
+    }
+
+    // Returns the index of the piece holding the given offset
+    private int findPiece(int offset) {
+        int index = Arrays.binarySearch(offsets, 0, pieceCount, offset);
+        return index >= 0 ? index : -index - 2;
+    }
+}
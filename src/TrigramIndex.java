@@ -0,0 +1,308 @@
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Pattern;
+
+/**
+ * An index of the trigrams in a large document, for narrowing a search
+ * down to the parts of the text that may hold a match. The text is split
+ * into blocks and each block has a Bloom filter of the trigrams starting
+ * in it. A match starting in a block has all its trigrams in that block
+ * and the few after it, so blocks where one of them is missing need not be
+ * searched, and a search for a rare word looks at a small part of the file.
+ *
+ * Filters only ever tell that a trigram may be there, so the index never
+ * hides a match. It is built from a snapshot off the EDT and then kept up
+ * to date as a document listener: inserted text adds its trigrams to the
+ * block it lands in, and removed text only makes blocks shorter, since a
+ * Bloom filter cannot forget. An index that has seen many edits narrows
+ * less, but stays correct.
+ *
+ * All the filters together take at most the budget set by the
+ * texteditor.index.budget system property.
+ */
+public class TrigramIndex implements DocumentListener {
+    // Chars in a block when the index is built
+    static final int BLOCK_SIZE = 16 * 1024;
+    // Bits in the filter of one block, at most and at least
+    static final int MAX_FILTER_BITS = 64 * 1024;
+    static final int MIN_FILTER_BITS = 64;
+    // Texts shorter than this are scanned fast enough without an index
+    static final int MIN_LENGTH = 1024 * 1024;
+    // Trigrams of a search text looked up, at most
+    private static final int MAX_TRIGRAMS = 32;
+
+    private final int blockCount;
+    // Where each block starts, followed by the length of the text
+    private final int[] starts;
+    private final long[] filters;
+    private final int wordsPerBlock;
+    private final int bitMask;
+
+    private TrigramIndex(int blockCount, int blockSize, int length, int filterBits) {
+        this.blockCount = blockCount;
+        this.starts = new int[blockCount + 1];
+        for (int i = 0; i < blockCount; i++) {
+            starts[i] = i * blockSize;
+        }
+        starts[blockCount] = length;
+        this.wordsPerBlock = filterBits / 64;
+        this.bitMask = filterBits - 1;
+        this.filters = new long[blockCount * wordsPerBlock];
+    }
+
+    /**
+     * Returns the most memory the index of a document may take, from the
+     * texteditor.index.budget system property in bytes. Zero turns indexing
+     * off.
+     */
+    public static long budget() {
+        long fallback = Math.min(64L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 32);
+        return Long.getLong("texteditor.index.budget", fallback);
+    }
+
+    /**
+     * Returns the bits each filter gets for a text of the given length, the
+     * most that fit in the budget, or 0 if the text is too short to be worth
+     * indexing or the budget too small.
+     */
+    static int filterBits(int length, long budget) {
+        if (length < MIN_LENGTH) {
+            return 0;
+        }
+        long blocks = (length + (long) BLOCK_SIZE - 1) / BLOCK_SIZE;
+        long bits = Math.min(MAX_FILTER_BITS, budget * 8 / blocks);
+        return bits < MIN_FILTER_BITS ? 0 : Integer.highestOneBit((int) bits);
+    }
+
+    /**
+     * Builds the index of a snapshot within the budget. Returns null if the
+     * text is not worth indexing, or if stop returned true first.
+     */
+    public static TrigramIndex build(TextSnapshot snapshot, BooleanSupplier stop) {
+        int bits = filterBits(snapshot.length(), budget());
+        return bits == 0 ? null : build(snapshot, BLOCK_SIZE, bits, stop);
+    }
+
+    static TrigramIndex build(TextSnapshot snapshot, int blockSize, int filterBits, BooleanSupplier stop) {
+        int length = snapshot.length();
+        int blockCount = Math.max(1, (int) ((length + (long) blockSize - 1) / blockSize));
+        TrigramIndex index = new TrigramIndex(blockCount, blockSize, length, filterBits);
+        try {
+            for (int i = 0; i < blockCount; i++) {
+                if (stop.getAsBoolean()) {
+                    return null;
+                }
+                index.addTrigrams(snapshot::getText, index.starts[i], index.starts[i + 1], length);
+            }
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+        return index;
+    }
+
+    /**
+     * Returns the memory the filters and block offsets take, in bytes.
+     */
+    public long memoryUsed() {
+        return filters.length * 8L + starts.length * 4L;
+    }
+
+    /**
+     * Returns the regions of the text that may hold a match of the literal,
+     * as ranges in order and not touching, each holding whole matches. A
+     * text shorter than a trigram cannot be narrowed down, so null is
+     * returned for it, which means all of the text.
+     */
+    public MatchList candidates(String literal) {
+        int m = literal.length();
+        if (m < 3) {
+            return null;
+        }
+        long[] keys = keys(literal);
+        // The last block the trigrams of a match starting in each block can reach
+        int[] reach = new int[blockCount];
+        int last = 0;
+        int length = starts[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            int lastTrigram = Math.min(length - 1, starts[i + 1] - 1 + m - 3);
+            while (last < blockCount - 1 && starts[last + 1] <= lastTrigram) {
+                last++;
+            }
+            reach[i] = Math.max(i, last);
+        }
+
+        boolean[] candidate = new boolean[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            candidate[i] = starts[i + 1] > starts[i];
+        }
+        for (long key : keys) {
+            // The first block at or after i that may have the trigram
+            int next = blockCount;
+            for (int i = blockCount - 1; i >= 0; i--) {
+                if (mayContain(i, key)) {
+                    next = i;
+                }
+                if (next > reach[i]) {
+                    candidate[i] = false;
+                }
+            }
+        }
+
+        MatchList regions = new MatchList();
+        int regionStart = -1;
+        int regionEnd = -1;
+        for (int i = 0; i < blockCount; i++) {
+            if (!candidate[i]) {
+                continue;
+            }
+            int end = (int) Math.min(length, (long) starts[i + 1] + m - 1);
+            if (regionStart >= 0 && starts[i] <= regionEnd) {
+                regionEnd = Math.max(regionEnd, end);
+            } else {
+                if (regionStart >= 0) {
+                    regions.add(regionStart, regionEnd);
+                }
+                regionStart = starts[i];
+                regionEnd = end;
+            }
+        }
+        if (regionStart >= 0) {
+            regions.add(regionStart, regionEnd);
+        }
+        return regions;
+    }
+
+    /**
+     * Returns the regions that may hold a match of a regular expression, or
+     * null if the pattern is not simple enough to narrow down. The regions
+     * hold the literal text every match contains, and since such matches
+     * never span lines, the lines around them hold the whole match.
+     */
+    public MatchList candidates(Pattern pattern) {
+        String literal = RegexSearch.requiredLiteral(pattern);
+        return literal != null ? candidates(literal) : null;
+    }
+
+    // --- DocumentListener methods ----------------------------------------
+
+    public void insertUpdate(DocumentEvent e) {
+        int offset = e.getOffset();
+        int length = e.getLength();
+        // The text goes into the block it is inserted in
+        int block = blockOf(offset);
+        for (int i = block + 1; i <= blockCount; i++) {
+            starts[i] += length;
+        }
+        addTrigrams(e.getDocument(), Math.max(0, offset - 2), offset + length);
+    }
+
+    public void removeUpdate(DocumentEvent e) {
+        int offset = e.getOffset();
+        int length = e.getLength();
+        for (int i = 1; i <= blockCount; i++) {
+            if (starts[i] > offset) {
+                starts[i] = Math.max(offset, starts[i] - length);
+            }
+        }
+        // The text on each side of the gap makes trigrams of its own
+        addTrigrams(e.getDocument(), Math.max(0, offset - 2), offset);
+    }
+
+    public void changedUpdate(DocumentEvent e) {
+        // Attribute changes do not affect plain text
+    }
+
+    // --- Filters ---------------------------------------------------------
+
+    private void addTrigrams(Document doc, int from, int to) {
+        try {
+            addTrigrams(doc::getText, from, to, doc.getLength());
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Adds the trigrams starting in [from, to) to the blocks they start in
+    private void addTrigrams(TextSearch.Source source, int from, int to, int length) throws BadLocationException {
+        int end = Math.min(to + 2, length);
+        if (end - from < 3) {
+            return;
+        }
+        Segment segment = new Segment();
+        segment.setPartialReturn(true);
+        int block = blockOf(from);
+        long key = 0;
+        int offset = from;
+        while (offset < end) {
+            source.getText(offset, end - offset, segment);
+            for (int i = 0; i < segment.count; i++) {
+                key = (key << 16 | segment.array[segment.offset + i]) & 0xFFFFFFFFFFFFL;
+                int start = offset + i - 2;
+                if (start >= from) {
+                    while (block < blockCount - 1 && start >= starts[block + 1]) {
+                        block++;
+                    }
+                    add(block, key);
+                }
+            }
+            offset += segment.count;
+        }
+    }
+
+    // The last block starting at or before the offset, which holds it
+    private int blockOf(int offset) {
+        int index = Arrays.binarySearch(starts, 0, blockCount, offset);
+        if (index < 0) {
+            return Math.max(0, -index - 2);
+        }
+        // Blocks emptied by removes start where the next one does
+        while (index < blockCount - 1 && starts[index + 1] == offset) {
+            index++;
+        }
+        return index;
+    }
+
+    // The trigrams of a literal, without repeats and at most MAX_TRIGRAMS
+    // of them, spread over it
+    private static long[] keys(String literal) {
+        int count = literal.length() - 2;
+        long[] keys = new long[Math.min(count, MAX_TRIGRAMS)];
+        for (int i = 0; i < keys.length; i++) {
+            int at = (int) ((long) i * count / keys.length);
+            keys[i] = (long) literal.charAt(at) << 32 | (long) literal.charAt(at + 1) << 16 | literal.charAt(at + 2);
+        }
+        return Arrays.stream(keys).distinct().toArray();
+    }
+
+    // Two bits per trigram, from the two halves of a 64-bit hash
+    private static long hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        return key ^ (key >>> 33);
+    }
+
+    private void add(int block, long key) {
+        long h = hash(key);
+        int base = block * wordsPerBlock;
+        int bit1 = (int) h & bitMask;
+        int bit2 = (int) (h >>> 32) & bitMask;
+        filters[base + (bit1 >>> 6)] |= 1L << bit1;
+        filters[base + (bit2 >>> 6)] |= 1L << bit2;
+    }
+
+    private boolean mayContain(int block, long key) {
+        long h = hash(key);
+        int base = block * wordsPerBlock;
+        int bit1 = (int) h & bitMask;
+        int bit2 = (int) (h >>> 32) & bitMask;
+        return (filters[base + (bit1 >>> 6)] & 1L << bit1) != 0
+            && (filters[base + (bit2 >>> 6)] & 1L << bit2) != 0;
+    }
+}
@@ -31,6 +31,63 @@ public class AllTests {
             System.out.println("\n=== Running EditOperationsTest ===");
             EditOperationsTest.main(args);
             
+            System.out.println("\n=== Running PieceTableTest ===");
+            PieceTableTest.main(args);
+            
+            System.out.println("\n=== Running DocumentWriterTest ===");
+            DocumentWriterTest.main(args);
+            
+            System.out.println("\n=== Running RecoveryJournalTest ===");
+            RecoveryJournalTest.main(args);
+            
+            System.out.println("\n=== Running LargeFileTest ===");
+            LargeFileTest.main(args);
+            
+            System.out.println("\n=== Running TextFormatTest ===");
+            TextFormatTest.main(args);
+            
+            System.out.println("\n=== Running IncrementalSaveTest ===");
+            IncrementalSaveTest.main(args);
+            
+            System.out.println("\n=== Running TextSearchTest ===");
+            TextSearchTest.main(args);
+            
+            System.out.println("\n=== Running RegexSearchTest ===");
+            RegexSearchTest.main(args);
+            
+            System.out.println("\n=== Running ReplaceAllTest ===");
+            ReplaceAllTest.main(args);
+            
+            System.out.println("\n=== Running TrigramIndexTest ===");
+            TrigramIndexTest.main(args);
+            
+            System.out.println("\n=== Running IncrementalSearchTest ===");
+            IncrementalSearchTest.main(args);
+            
+            System.out.println("\n=== Running FindInFilesTest ===");
+            FindInFilesTest.main(args);
+            
+            System.out.println("\n=== Running MatchListTest ===");
+            MatchListTest.main(args);
+            
+            System.out.println("\n=== Running LineStartsTest ===");
+            LineStartsTest.main(args);
+            
+            System.out.println("\n=== Running FuzzyLineFinderTest ===");
+            FuzzyLineFinderTest.main(args);
+            
+            System.out.println("\n=== Running EditHistoryTest ===");
+            EditHistoryTest.main(args);
+            
+            System.out.println("\n=== Running HistoryFileTest ===");
+            HistoryFileTest.main(args);
+            
+            System.out.println("\n=== Running ChangeBusTest ===");
+            ChangeBusTest.main(args);
+            
+            System.out.println("\n=== Running CaretSetTest ===");
+            CaretSetTest.main(args);
+            
             System.out.println("\n=== All tests completed successfully! ===");
         } catch (Exception e) {
             System.err.println("TEST ERROR: " + e.getMessage());
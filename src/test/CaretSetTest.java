@@ -0,0 +1,284 @@
+package test;
+
+import javax.swing.event.DocumentListener;
+import javax.swing.event.UndoableEditListener;
+import javax.swing.text.Document;
+import javax.swing.undo.UndoManager;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Test class for the carets of multi-caret editing: they follow edits made
+ * elsewhere, an edit at all of them is one document edit and one undo step,
+ * and typing at ten thousand carets stays quick however long it goes on.
+ */
+public class CaretSetTest {
+    // Simple assertion methods
+    private static void assertTrue(String message, boolean condition) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+        System.out.println("PASS: " + message);
+    }
+
+    private static void assertEquals(String message, Object expected, Object actual) {
+        if (expected == null && actual == null) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        if (expected != null && expected.equals(actual)) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        throw new AssertionError(message + " expected:<" + expected + "> but was:<" + actual + ">");
+    }
+
+    private static Class<?> caretsClass;
+    private static Class<?> documentClass;
+    private static Method size;
+    private static Method getStart;
+    private static Method getEnd;
+    private static Method add;
+    private static Method append;
+    private static Method replace;
+
+    /**
+     * Main method to run the tests.
+     */
+    public static void main(String[] args) {
+        System.out.println("Running caret set tests...");
+
+        try {
+            caretsClass = Class.forName("CaretSet");
+            documentClass = Class.forName("PieceTableDocument");
+            size = caretsClass.getMethod("size");
+            getStart = caretsClass.getMethod("getStart", int.class);
+            getEnd = caretsClass.getMethod("getEnd", int.class);
+            add = caretsClass.getMethod("add", int.class, int.class);
+            append = caretsClass.getMethod("append", int.class, int.class);
+            replace = caretsClass.getMethod("replace", documentClass, String.class, int.class, int.class);
+
+            testAdd();
+            testFollowEdits();
+            testEditAtCarets();
+            testOneUndoStep();
+            testManyCarets();
+
+            System.out.println("All caret set tests passed!");
+        } catch (AssertionError e) {
+            System.err.println("TEST FAILED: " + e.getMessage());
+            System.exit(1);
+        } catch (Exception e) {
+            System.err.println("TEST ERROR: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+    private static Document document(String text) throws Exception {
+        return (Document) documentClass.getConstructor(CharBuffer.class)
+            .newInstance(CharBuffer.wrap(text.toCharArray()));
+    }
+
+    private static Object carets(Document doc) throws Exception {
+        Object carets = caretsClass.getConstructor().newInstance();
+        doc.addDocumentListener((DocumentListener) carets);
+        return carets;
+    }
+
+    private static String text(Document doc) throws Exception {
+        return doc.getText(0, doc.getLength());
+    }
+
+    // The carets as "start-end" pairs
+    private static String describe(Object carets) throws Exception {
+        StringBuilder s = new StringBuilder();
+        int count = (Integer) size.invoke(carets);
+        for (int i = 0; i < count; i++) {
+            s.append(i > 0 ? " " : "").append(getStart.invoke(carets, i)).append('-').append(getEnd.invoke(carets, i));
+        }
+        return s.toString();
+    }
+
+    private static void replace(Object carets, Document doc, String text, int before, int after) throws Exception {
+        replace.invoke(carets, doc, text, before, after);
+    }
+
+    // A text of the given number of lines, each "line N"
+    private static String lines(int count) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Test that carets added anywhere are kept in order, and merged where
+     * they overlap.
+     */
+    private static void testAdd() throws Exception {
+        Document doc = document("0123456789abcdef");
+        Object carets = carets(doc);
+        add.invoke(carets, 8, 8);
+        add.invoke(carets, 2, 4);
+        add.invoke(carets, 12, 12);
+        assertEquals("Kept in order", "2-4 8-8 12-12", describe(carets));
+        add.invoke(carets, 3, 8);
+        assertEquals("Merged where they overlap", "2-8 12-12", describe(carets));
+    }
+
+    /**
+     * Test that carets follow random edits made elsewhere the same way as
+     * a plain list of them moved one by one.
+     */
+    private static void testFollowEdits() throws Exception {
+        Document doc = document(lines(50));
+        Object carets = carets(doc);
+        Random random = new Random(25);
+        List<int[]> model = new ArrayList<>();
+        for (int offset = 3; offset < doc.getLength(); offset += 7 + random.nextInt(10)) {
+            int end = random.nextInt(3) == 0 ? offset : offset + random.nextInt(4);
+            append.invoke(carets, offset, end);
+            model.add(new int[] {offset, end});
+            offset = end;
+        }
+        boolean same = true;
+        for (int round = 0; round < 500; round++) {
+            int length = doc.getLength();
+            if (random.nextBoolean() || length < 20) {
+                int offset = random.nextInt(length + 1);
+                int added = 1 + random.nextInt(5);
+                doc.insertString(offset, "abcde".substring(0, added), null);
+                for (int[] caret : model) {
+                    if (caret[0] >= offset) {
+                        caret[0] += added;
+                        caret[1] += added;
+                    } else if (caret[1] > offset) {
+                        caret[1] += added;
+                    }
+                }
+            } else {
+                int offset = random.nextInt(length);
+                int end = Math.min(length, offset + 1 + random.nextInt(6));
+                doc.remove(offset, end - offset);
+                for (int[] caret : model) {
+                    caret[0] = collapse(caret[0], offset, end);
+                    caret[1] = collapse(caret[1], offset, end);
+                }
+            }
+            StringBuilder expected = new StringBuilder();
+            for (int i = 0; i < model.size(); i++) {
+                expected.append(i > 0 ? " " : "").append(model.get(i)[0]).append('-').append(model.get(i)[1]);
+            }
+            same &= expected.toString().equals(describe(carets));
+        }
+        assertTrue("Carets move with inserts and removes around them", same);
+    }
+
+    private static int collapse(int value, int offset, int end) {
+        return value <= offset ? value : value < end ? offset : value - (end - offset);
+    }
+
+    /**
+     * Test typing, Backspace and Delete at carets and over selections.
+     */
+    private static void testEditAtCarets() throws Exception {
+        Document doc = document("abc\ndef\nghi\n");
+        Object carets = carets(doc);
+        append.invoke(carets, 1, 1);
+        append.invoke(carets, 5, 5);
+        append.invoke(carets, 9, 10);
+        replace(carets, doc, "X", 0, 0);
+        assertEquals("Typed at each caret, over the selection", "aXbc\ndXef\ngXi\n", text(doc));
+        assertEquals("Each caret behind what it typed", "2-2 7-7 12-12", describe(carets));
+        replace(carets, doc, "YZ", 0, 0);
+        replace(carets, doc, "", 1, 0);
+        assertEquals("Backspace at each", "aXYbc\ndXYef\ngXYi\n", text(doc));
+        replace(carets, doc, "", 0, 1);
+        assertEquals("Delete at each", "aXYc\ndXYf\ngXY\n", text(doc));
+        replace(carets, doc, "", 3, 0);
+        replace(carets, doc, "", 1, 0);
+        assertEquals("Backspace across line breaks", "cf\n", text(doc));
+        assertEquals("Carets kept apart", "0-0 1-1 2-2", describe(carets));
+        replace(carets, doc, "", 1, 0);
+        assertEquals("Backspace at the start takes nothing", "\n", text(doc));
+        assertEquals("Carets that meet are merged", "0-0", describe(carets));
+    }
+
+    /**
+     * Test that each edit at all the carets is undone and redone in one
+     * step.
+     */
+    private static void testOneUndoStep() throws Exception {
+        Document doc = document(lines(100));
+        Object carets = carets(doc);
+        UndoManager history = history(doc, 1L << 30);
+        for (int line = 0; line < 100; line++) {
+            int start = doc.getDefaultRootElement().getElement(line).getStartOffset();
+            append.invoke(carets, start, start);
+        }
+        String before = text(doc);
+        replace(carets, doc, "> ", 0, 0);
+        String typed = text(doc);
+        replace(carets, doc, "\n", 0, 0);
+        history.undo();
+        assertEquals("One undo takes the line breaks out at every caret", typed, text(doc));
+        history.undo();
+        assertEquals("And the next the text typed before", before, text(doc));
+        history.redo();
+        assertEquals("Redone in one step", typed, text(doc));
+        close(history);
+    }
+
+    // A history listening to the document, with the given budget
+    private static UndoManager history(Document doc, long budget) throws Exception {
+        Constructor<?> constructor = Class.forName("EditHistory").getDeclaredConstructor(long.class);
+        constructor.setAccessible(true);
+        UndoManager history = (UndoManager) constructor.newInstance(budget);
+        doc.addUndoableEditListener((UndoableEditListener) history);
+        return history;
+    }
+
+    private static void close(UndoManager history) throws Exception {
+        history.getClass().getMethod("close").invoke(history);
+    }
+
+    /**
+     * Test that typing at a caret on each of ten thousand lines takes a few
+     * milliseconds a keystroke, and no longer after a few hundred of them.
+     */
+    private static void testManyCarets() throws Exception {
+        int count = 10000;
+        Document doc = document(lines(count));
+        Object carets = carets(doc);
+        UndoManager history = history(doc, 32L << 20);
+        for (int line = 0; line < count; line++) {
+            int end = doc.getDefaultRootElement().getElement(line).getEndOffset() - 1;
+            append.invoke(carets, end, end);
+        }
+        int keystrokes = 300;
+        long firstNanos = 0;
+        long lastNanos = 0;
+        for (int i = 0; i < keystrokes; i++) {
+            long start = System.nanoTime();
+            replace(carets, doc, i % 10 == 9 ? " " : "k", 0, 0);
+            long nanos = System.nanoTime() - start;
+            if (i >= 50 && i < 100) {
+                firstNanos += nanos;
+            } else if (i >= keystrokes - 50) {
+                lastNanos += nanos;
+            }
+        }
+        System.out.println("A keystroke at " + count + " carets: " + firstNanos / 50 / 1000 + " us early on, "
+            + lastNanos / 50 / 1000 + " us after " + keystrokes);
+        assertEquals("Every caret typed every key", lines(count).length() + count * keystrokes, doc.getLength());
+        assertTrue("Typing stays interactive", lastNanos / 50 < 50_000_000L);
+        assertTrue("And does not slow down as it goes on", lastNanos < 3 * firstNanos + 50 * 2_000_000L);
+        close(history);
+    }
+}
@@ -0,0 +1,126 @@
+package test;
+
+import javax.swing.text.Document;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.nio.CharBuffer;
+
+/**
+ * Benchmark for finding every match ignoring case, and whole words only,
+ * in a large document. It compares the obvious way, copying the text out
+ * of the document, lower-casing the copy and calling indexOf on it, with
+ * TextSearch folding each char as it compares it and checking word
+ * boundaries in its table, straight out of the piece table.
+ *
+ * For each search it prints the time of both, the bytes each allocated on
+ * the searching thread and the number of matches, which has to be the same.
+ *
+ * Usage: java -cp src test.CaseSearchBenchmark [lines]
+ */
+public class CaseSearchBenchmark {
+    private static final int ROUNDS = 5;
+
+    private interface Search {
+        int run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        String[] levels = {"INFO", "Info", "WARN", "Error", "ERROR", "error_count"};
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            text.append(levels[i % levels.length]).append(" Request ").append(i).append(" from host")
+                .append(i % 1000).append(" took ").append(i % 997).append(" ms\n");
+        }
+        Document doc = (Document) Class.forName("PieceTableDocument").getConstructor(CharBuffer.class)
+            .newInstance(CharBuffer.wrap(text.toString().toCharArray()));
+        Object snapshot = doc.getClass().getMethod("snapshot").invoke(doc);
+        System.out.println(lines + " lines, " + doc.getLength() / 1024 + " KB");
+        System.out.println("search                           naive(ms)  folded(ms)  naive(MB)  folded(MB)  matches");
+
+        for (String word : new String[] {"error", "request 4242", "HOST999 ", "absent"}) {
+            measure("ignore case \"" + word + "\"", () -> naive(doc, word, false),
+                () -> folded(snapshot, word, false));
+            measure("whole word \"" + word + "\"", () -> naive(doc, word, true),
+                () -> folded(snapshot, word, true));
+        }
+    }
+
+    private static void measure(String name, Search naive, Search folded) throws Exception {
+        long naiveTime = Long.MAX_VALUE;
+        long foldedTime = Long.MAX_VALUE;
+        long naiveBytes = 0;
+        long foldedBytes = 0;
+        int naiveCount = 0;
+        int foldedCount = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            naiveCount = naive.run();
+            naiveTime = Math.min(naiveTime, System.nanoTime() - start);
+            naiveBytes = allocatedBytes() - bytes;
+
+            bytes = allocatedBytes();
+            start = System.nanoTime();
+            foldedCount = folded.run();
+            foldedTime = Math.min(foldedTime, System.nanoTime() - start);
+            foldedBytes = allocatedBytes() - bytes;
+        }
+        if (naiveCount != foldedCount) {
+            throw new AssertionError(name + ": " + naiveCount + " matches naive, " + foldedCount + " folded");
+        }
+        System.out.printf("%-32s %10.2f %11.2f %10.1f %11.1f %8d%n", name, naiveTime / 1e6, foldedTime / 1e6,
+            naiveBytes / 1048576.0, foldedBytes / 1048576.0, naiveCount);
+    }
+
+    // Bytes allocated by the current thread so far, or 0 where the JVM cannot tell
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    /**
+     * The obvious way: a lower-cased copy of all of the text, searched with
+     * indexOf, and the chars either side of each match looked at for whole
+     * words. Lower-casing the text may change its length for a few chars,
+     * which the text here does not have.
+     */
+    private static int naive(Document doc, String word, boolean wholeWord) throws Exception {
+        String text = doc.getText(0, doc.getLength()).toLowerCase();
+        String query = word.toLowerCase();
+        int m = query.length();
+        boolean startsWord = isWordChar(query.charAt(0));
+        boolean endsWord = isWordChar(query.charAt(m - 1));
+        int count = 0;
+        int index = text.indexOf(query);
+        while (index >= 0) {
+            if (wholeWord && ((startsWord && index > 0 && isWordChar(text.charAt(index - 1)))
+                    || (endsWord && index + m < text.length() && isWordChar(text.charAt(index + m))))) {
+                index = text.indexOf(query, index + 1);
+                continue;
+            }
+            count++;
+            index = text.indexOf(query, index + m);
+        }
+        return count;
+    }
+
+    private static int folded(Object snapshot, String word, boolean wholeWord) throws Exception {
+        Class<?> searchClass = Class.forName("TextSearch");
+        Object search = searchClass.getConstructor(String.class, boolean.class, boolean.class)
+            .newInstance(word, false, wholeWord);
+        Class<?> hitsClass = Class.forName("TextSearch$Hits");
+        int[] count = {0};
+        Object hits = Proxy.newProxyInstance(hitsClass.getClassLoader(), new Class<?>[] {hitsClass},
+            (proxy, method, args) -> ++count[0] > 0);
+        searchClass.getMethod("findAll", Class.forName("TextSnapshot"), hitsClass).invoke(search, snapshot, hits);
+        return count[0];
+    }
+}
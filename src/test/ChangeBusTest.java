@@ -0,0 +1,280 @@
+package test;
+
+import javax.swing.SwingUtilities;
+import javax.swing.text.Document;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Test class for the change bus: the edits of one trip round the event
+ * queue are delivered once, as a single range that turns the text before
+ * them into the text after them, with the right change in line count, and
+ * without a new object per delivery.
+ */
+public class ChangeBusTest {
+    // Simple assertion methods
+    private static void assertTrue(String message, boolean condition) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+        System.out.println("PASS: " + message);
+    }
+
+    private static void assertEquals(String message, Object expected, Object actual) {
+        if (expected == null && actual == null) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        if (expected != null && expected.equals(actual)) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        throw new AssertionError(message + " expected:<" + expected + "> but was:<" + actual + ">");
+    }
+
+    private static Class<?> busClass;
+    private static Class<?> subscriberClass;
+    private static Class<?> changeClass;
+
+    /**
+     * Main method to run the tests.
+     */
+    public static void main(String[] args) {
+        System.out.println("Running change bus tests...");
+
+        try {
+            busClass = Class.forName("ChangeBus");
+            subscriberClass = Class.forName("ChangeBus$Subscriber");
+            changeClass = Class.forName("ChangeBus$Change");
+
+            testOnePerCycle();
+            testMergedRange();
+            testEditWhileDelivering();
+            testDispatchCost();
+
+            System.out.println("All change bus tests passed!");
+        } catch (AssertionError e) {
+            System.err.println("TEST FAILED: " + e.getMessage());
+            System.exit(1);
+        } catch (Exception e) {
+            System.err.println("TEST ERROR: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+    private static Document document(String text) throws Exception {
+        return (Document) Class.forName("PieceTableDocument").getConstructor(CharBuffer.class)
+            .newInstance(CharBuffer.wrap(text.toCharArray()));
+    }
+
+    private static String text(Document doc) throws Exception {
+        return doc.getText(0, doc.getLength());
+    }
+
+    // What a subscriber is handed, copied out of the change
+    private static final class Delivery {
+        Object change;
+        int offset;
+        int removed;
+        int inserted;
+        int lineDelta;
+        int edits;
+        String text;
+    }
+
+    // A bus on the document recording every delivery, which also runs the
+    // given action after recording
+    private static Object bus(Document doc, List<Delivery> deliveries, Runnable then) throws Exception {
+        Object bus = busClass.getConstructor().newInstance();
+        Object subscriber = Proxy.newProxyInstance(subscriberClass.getClassLoader(), new Class<?>[] {subscriberClass},
+            (proxy, method, args) -> {
+                if (!method.getName().equals("changed")) {
+                    return method.getName().equals("hashCode") ? 0 : method.getName().equals("equals") && proxy == args[0];
+                }
+                Delivery delivery = new Delivery();
+                delivery.change = args[0];
+                delivery.offset = get(args[0], "getOffset");
+                delivery.removed = get(args[0], "getRemovedLength");
+                delivery.inserted = get(args[0], "getInsertedLength");
+                delivery.lineDelta = get(args[0], "getLineDelta");
+                delivery.edits = get(args[0], "getEditCount");
+                delivery.text = text(doc);
+                deliveries.add(delivery);
+                if (then != null) {
+                    then.run();
+                }
+                return null;
+            });
+        busClass.getMethod("addSubscriber", subscriberClass).invoke(bus, subscriber);
+        busClass.getMethod("setDocument", Document.class).invoke(bus, doc);
+        return bus;
+    }
+
+    private static int get(Object change, String getter) throws Exception {
+        return (Integer) changeClass.getMethod(getter).invoke(change);
+    }
+
+    private static long count(Object bus, String getter) throws Exception {
+        return (Long) busClass.getMethod(getter).invoke(bus);
+    }
+
+    // Runs the task on the EDT and waits for the deliveries it queued
+    private static void onEdt(Callable task) throws Exception {
+        Exception[] error = {null};
+        SwingUtilities.invokeAndWait(() -> {
+            try {
+                task.call();
+            } catch (Exception e) {
+                error[0] = e;
+            }
+        });
+        if (error[0] != null) {
+            throw error[0];
+        }
+        SwingUtilities.invokeAndWait(() -> { });
+    }
+
+    private interface Callable {
+        void call() throws Exception;
+    }
+
+    private static int lines(String text) {
+        int lines = 1;
+        for (int i = text.indexOf('\n'); i >= 0; i = text.indexOf('\n', i + 1)) {
+            lines++;
+        }
+        return lines;
+    }
+
+    /**
+     * Test that many edits in one event are delivered once, after it.
+     */
+    private static void testOnePerCycle() throws Exception {
+        Document doc = document("one\ntwo\n");
+        List<Delivery> deliveries = new ArrayList<>();
+        Object bus = bus(doc, deliveries, null);
+        onEdt(() -> {
+            for (int i = 0; i < 100; i++) {
+                doc.insertString(4, "x", null);
+            }
+            if (!deliveries.isEmpty()) {
+                throw new AssertionError("Delivered during the event");
+            }
+        });
+        assertEquals("A hundred edits in one event are delivered once", 1, deliveries.size());
+        assertEquals("As a hundred edits", 100, deliveries.get(0).edits);
+        assertEquals("Starting where they were made", 4, deliveries.get(0).offset);
+        assertEquals("Taking nothing out", 0, deliveries.get(0).removed);
+        assertEquals("And putting a hundred chars in", 100, deliveries.get(0).inserted);
+
+        onEdt(() -> doc.insertString(0, "a\n", null));
+        onEdt(() -> doc.remove(0, 2));
+        assertEquals("Edits in separate events are delivered separately", 3, deliveries.size());
+        assertTrue("Out of the same two objects", deliveries.get(2).change == deliveries.get(0).change
+            && deliveries.get(1).change != deliveries.get(0).change);
+        assertEquals("Every edit is counted", 102L, count(bus, "getEventCount"));
+        assertEquals("And every delivery", 3L, count(bus, "getBatchCount"));
+
+        onEdt(() -> {
+            doc.insertString(0, "flushed", null);
+            busClass.getMethod("flush").invoke(bus);
+        });
+        assertEquals("flush() delivers at once, and nothing is delivered twice", 4, deliveries.size());
+    }
+
+    /**
+     * Test that the merged range of random edits, applied to the text from
+     * before them, gives the text after them, and the line delta matches.
+     */
+    private static void testMergedRange() throws Exception {
+        Document doc = document("first line\nsecond line\nthird line\n");
+        List<Delivery> deliveries = new ArrayList<>();
+        bus(doc, deliveries, null);
+        Random random = new Random(24);
+        boolean right = true;
+        for (int round = 0; round < 300; round++) {
+            String before = text(doc);
+            int edits = 1 + random.nextInt(8);
+            onEdt(() -> {
+                for (int i = 0; i < edits; i++) {
+                    int length = doc.getLength();
+                    if (random.nextBoolean() || length < 10) {
+                        doc.insertString(random.nextInt(length + 1), random.nextBoolean() ? "ab" : "\nc\n", null);
+                    } else {
+                        int offset = random.nextInt(length);
+                        doc.remove(offset, Math.min(length - offset, 1 + random.nextInt(6)));
+                    }
+                }
+            });
+            Delivery last = deliveries.get(deliveries.size() - 1);
+            String after = text(doc);
+            String merged = before.substring(0, last.offset)
+                + after.substring(last.offset, last.offset + last.inserted)
+                + before.substring(last.offset + last.removed);
+            right &= merged.equals(after) && last.lineDelta == lines(after) - lines(before)
+                && last.edits == edits;
+        }
+        assertEquals("One delivery per round", 300, deliveries.size());
+        assertTrue("Each range turns the old text into the new, with the right line delta", right);
+    }
+
+    /**
+     * Test that a subscriber editing the document starts the next batch
+     * rather than changing the one it is handed.
+     */
+    private static void testEditWhileDelivering() throws Exception {
+        Document doc = document("text\n");
+        List<Delivery> deliveries = new ArrayList<>();
+        bus(doc, deliveries, () -> {
+            if (deliveries.size() == 1) {
+                try {
+                    doc.insertString(0, ">> ", null);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        onEdt(() -> doc.insertString(5, "more\n", null));
+        SwingUtilities.invokeAndWait(() -> { });
+        assertEquals("The edit made in delivery comes in a batch of its own", 2, deliveries.size());
+        assertEquals("Which starts where it was made", 0, deliveries.get(1).offset);
+        assertEquals("And only holds it", 3, deliveries.get(1).inserted);
+    }
+
+    /**
+     * Test that typing a large number of chars costs one delivery per
+     * event, and report the time spent in subscribers.
+     */
+    private static void testDispatchCost() throws Exception {
+        Document doc = document("");
+        List<Delivery> deliveries = new ArrayList<>();
+        Object bus = bus(doc, deliveries, null);
+        int events = 2000;
+        int perEvent = 10;
+        for (int i = 0; i < events; i++) {
+            SwingUtilities.invokeLater(() -> {
+                try {
+                    for (int j = 0; j < perEvent; j++) {
+                        doc.insertString(doc.getLength(), "k", null);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        }
+        SwingUtilities.invokeAndWait(() -> { });
+        SwingUtilities.invokeAndWait(() -> { });
+        long batches = count(bus, "getBatchCount");
+        long nanos = count(bus, "getDispatchNanos");
+        System.out.println(count(bus, "getEventCount") + " edits in " + batches + " deliveries, "
+            + nanos / Math.max(1, batches) + " ns each");
+        assertEquals("Every edit is seen", (long) events * perEvent, count(bus, "getEventCount"));
+        assertTrue("At most one delivery per event", batches <= events && batches > 0);
+        assertEquals("Ending on the whole text", events * perEvent, doc.getLength());
+    }
+}
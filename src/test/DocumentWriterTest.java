@@ -0,0 +1,154 @@
+package test;
+
+import javax.swing.text.Document;
+import java.io.File;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+/**
+ * Test class for the streaming document writer used by save and save as.
+ */
+public class DocumentWriterTest {
+    // Simple assertion methods
+    private static void assertTrue(String message, boolean condition) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+        System.out.println("PASS: " + message);
+    }
+
+    private static void assertEquals(String message, Object expected, Object actual) {
+        if (expected == null && actual == null) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        if (expected != null && expected.equals(actual)) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        throw new AssertionError(message + " expected:<" + expected + "> but was:<" + actual + ">");
+    }
+
+    // Test file path
+    private static final String TEST_FILE_PATH = System.getProperty("java.io.tmpdir") + "/texteditor_test_writer.txt";
+
+    /**
+     * Main method to run the tests.
+     */
+    public static void main(String[] args) {
+        System.out.println("Running document writer tests...");
+
+        try {
+            testEmptyDocument();
+            testLargeDocument();
+            testSurrogatePairAcrossPieces();
+            testAtomicReplace();
+
+            System.out.println("All document writer tests passed!");
+        } catch (AssertionError e) {
+            System.err.println("TEST FAILED: " + e.getMessage());
+            System.exit(1);
+        } catch (Exception e) {
+            System.err.println("TEST ERROR: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(2);
+        } finally {
+            new File(TEST_FILE_PATH).delete();
+        }
+    }
+
+    /**
+     * Save a document through a DocumentWriter using reflection.
+     */
+    private static void save(Document doc, Charset charset) throws Exception {
+        Class<?> writerClass = Class.forName("DocumentWriter");
+        Object writer = writerClass.getConstructor(Charset.class).newInstance(charset);
+        Method saveMethod = writerClass.getMethod("save", Document.class, File.class);
+        saveMethod.invoke(writer, doc, new File(TEST_FILE_PATH));
+    }
+
+    private static String readBack(Charset charset) throws Exception {
+        return new String(Files.readAllBytes(new File(TEST_FILE_PATH).toPath()), charset);
+    }
+
+    /**
+     * Test that an empty document saves as an empty file.
+     */
+    private static void testEmptyDocument() throws Exception {
+        System.out.println("Testing empty document...");
+
+        Files.write(new File(TEST_FILE_PATH).toPath(), "old content".getBytes(StandardCharsets.UTF_8));
+        save(PieceTableTest.createDocument(null), StandardCharsets.UTF_8);
+        assertEquals("Empty document should truncate the file", "", readBack(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Test a document much larger than the writer's buffers, made of many pieces.
+     */
+    private static void testLargeDocument() throws Exception {
+        System.out.println("Testing large document...");
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            text.append("Line ").append(i).append(" with some \u00e9\u00e8 accents\n");
+        }
+        Document doc = PieceTableTest.createDocument(text.toString());
+        for (int i = 0; i < 100; i++) {
+            int offset = i * 5000;
+            doc.insertString(offset, "[" + i + "]", null);
+            text.insert(offset, "[" + i + "]");
+        }
+
+        save(doc, StandardCharsets.UTF_8);
+        String saved = readBack(StandardCharsets.UTF_8);
+        assertTrue("Saved file should be larger than the write buffer", saved.length() > 64 * 1024);
+        assertEquals("Saved text should match the document", text.toString(), saved);
+    }
+
+    /**
+     * Test that a surrogate pair split between two pieces is encoded correctly.
+     */
+    private static void testSurrogatePairAcrossPieces() throws Exception {
+        System.out.println("Testing surrogate pair across pieces...");
+
+        String emoji = new String(Character.toChars(0x1F600));
+        Document doc = PieceTableTest.createDocument("ab" + emoji.charAt(0));
+        doc.insertString(3, emoji.charAt(1) + "cd", null);
+
+        save(doc, StandardCharsets.UTF_8);
+        assertEquals("Surrogate pair should be saved as one character", "ab" + emoji + "cd",
+            readBack(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Test that saving replaces the file through a temporary file and keeps its permissions.
+     */
+    private static void testAtomicReplace() throws Exception {
+        System.out.println("Testing atomic replace...");
+
+        Path path = new File(TEST_FILE_PATH).toPath();
+        Files.write(path, "old content".getBytes(StandardCharsets.UTF_8));
+        boolean posix = Files.getFileStore(path).supportsFileAttributeView(PosixFileAttributeView.class);
+        Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rw-r-----");
+        if (posix) {
+            Files.setPosixFilePermissions(path, permissions);
+        }
+
+        save(PieceTableTest.createDocument("new content"), StandardCharsets.UTF_8);
+        assertEquals("File should hold the new content", "new content", readBack(StandardCharsets.UTF_8));
+        if (posix) {
+            assertEquals("File permissions should be kept", permissions, Files.getPosixFilePermissions(path));
+        }
+
+        File[] leftovers = path.getParent().toFile().listFiles(
+            (dir, name) -> name.startsWith("." + path.getFileName()) && name.endsWith(".tmp"));
+        assertTrue("No temporary files should be left behind", leftovers == null || leftovers.length == 0);
+    }
+}
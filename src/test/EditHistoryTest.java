@@ -0,0 +1,573 @@
+package test;
+
+import javax.swing.event.UndoableEditListener;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.PlainDocument;
+import javax.swing.undo.UndoManager;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Test class for the undo history: typing merged into words, edits
+ * spilled to disk over the byte budget still undone and redone exactly,
+ * in about the same time as edits kept in memory, branches kept when an
+ * edit is made after undoing, and a large replace undone without copying
+ * the document.
+ */
+public class EditHistoryTest {
+    // Simple assertion methods
+    private static void assertTrue(String message, boolean condition) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+        System.out.println("PASS: " + message);
+    }
+
+    private static void assertEquals(String message, Object expected, Object actual) {
+        if (expected == null && actual == null) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        if (expected != null && expected.equals(actual)) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        throw new AssertionError(message + " expected:<" + expected + "> but was:<" + actual + ">");
+    }
+
+    private static Class<?> historyClass;
+
+    /**
+     * Main method to run the tests.
+     */
+    public static void main(String[] args) {
+        System.out.println("Running edit history tests...");
+
+        try {
+            historyClass = Class.forName("EditHistory");
+
+            testTypingMerged();
+            testPause();
+            testSpilledEdits();
+            testNewEditAfterUndo();
+            testWithoutChanges();
+            testBranches();
+            testLines();
+            testCheckpointJump();
+            testLatency();
+            testLargeReplaceAll();
+
+            System.out.println("All edit history tests passed!");
+        } catch (AssertionError e) {
+            System.err.println("TEST FAILED: " + e.getMessage());
+            System.exit(1);
+        } catch (Exception e) {
+            System.err.println("TEST ERROR: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+    private static Document document(String text) throws Exception {
+        return (Document) Class.forName("PieceTableDocument").getConstructor(CharBuffer.class)
+            .newInstance(CharBuffer.wrap(text.toCharArray()));
+    }
+
+    // A history with the given budget, listening to the document
+    private static UndoManager history(Document doc, long budget) throws Exception {
+        Constructor<?> constructor = historyClass.getDeclaredConstructor(long.class);
+        constructor.setAccessible(true);
+        UndoManager history = (UndoManager) constructor.newInstance(budget);
+        doc.addUndoableEditListener((UndoableEditListener) history);
+        return history;
+    }
+
+    private static void close(UndoManager history) throws Exception {
+        historyClass.getMethod("close").invoke(history);
+    }
+
+    private static long bytes(UndoManager history) throws Exception {
+        return (Long) historyClass.getMethod("getBytes").invoke(history);
+    }
+
+    private static int spilled(UndoManager history) throws Exception {
+        return (Integer) historyClass.getMethod("getSpilledCount").invoke(history);
+    }
+
+    private static String text(Document doc) throws Exception {
+        return doc.getText(0, doc.getLength());
+    }
+
+    private static void type(Document doc, int offset, String text) throws Exception {
+        for (int i = 0; i < text.length(); i++) {
+            doc.insertString(offset + i, text.substring(i, i + 1), null);
+        }
+    }
+
+    /**
+     * Test that typing is undone a word at a time, deleting as one edit,
+     * and that inserts of more than a char are never merged.
+     */
+    private static void testTypingMerged() throws Exception {
+        Document doc = document("");
+        UndoManager history = history(doc, 1L << 30);
+        type(doc, 0, "hello big world");
+        history.undo();
+        assertEquals("Undo takes back the last word", "hello big ", text(doc));
+        history.undo();
+        assertEquals("And the one before with its space", "hello ", text(doc));
+        history.redo();
+        assertEquals("Redo puts a word back", "hello big ", text(doc));
+
+        // Backspace three times, then Delete twice
+        for (int i = 0; i < 3; i++) {
+            doc.remove(doc.getLength() - 1, 1);
+        }
+        assertEquals("Backspaced", "hello b", text(doc));
+        history.undo();
+        assertEquals("Backspaces undone as one", "hello big ", text(doc));
+        doc.remove(0, 1);
+        doc.remove(0, 1);
+        assertEquals("Deleted", "llo big ", text(doc));
+        history.undo();
+        assertEquals("Deletes undone as one", "hello big ", text(doc));
+
+        doc.insertString(doc.getLength(), "pasted", null);
+        doc.insertString(doc.getLength(), " more", null);
+        history.undo();
+        assertEquals("Inserts of several chars are undone one by one", "hello big pasted", text(doc));
+
+        type(doc, 0, "ab");
+        type(doc, 5, "cd");
+        history.undo();
+        assertEquals("Typing somewhere else is a new edit", "abhello big pasted", text(doc));
+        close(history);
+    }
+
+    /**
+     * Test that a pause in typing starts a new edit.
+     */
+    private static void testPause() throws Exception {
+        Document doc = document("");
+        UndoManager history = history(doc, 1L << 30);
+        type(doc, 0, "abc");
+        Field coalesce = historyClass.getDeclaredField("COALESCE_MILLIS");
+        coalesce.setAccessible(true);
+        long millis = (Long) coalesce.get(null);
+        Thread.sleep(millis + 100);
+        type(doc, 3, "def");
+        history.undo();
+        assertEquals("Typing after a pause is undone on its own", "abc", text(doc));
+        close(history);
+    }
+
+    // Makes a random edit: typing, a paste or a remove of some lines, or a
+    // replace of every match
+    private static void randomEdit(Document doc, Random random) throws Exception {
+        int length = doc.getLength();
+        int kind = random.nextInt(10);
+        if (kind < 4 || length < 20) {
+            type(doc, random.nextInt(length + 1), random.nextBoolean() ? "word " : "x\n");
+        } else if (kind < 7) {
+            doc.insertString(random.nextInt(length + 1), "pasted line " + random.nextInt(100) + "\nand more\n", null);
+        } else if (kind < 9) {
+            int offset = random.nextInt(length);
+            doc.remove(offset, Math.min(length - offset, 1 + random.nextInt(40)));
+        } else {
+            Class<?> listClass = Class.forName("MatchList");
+            Object matches = listClass.getConstructor().newInstance();
+            Method add = listClass.getMethod("add", int.class, int.class);
+            String text = text(doc);
+            String find = random.nextBoolean() ? "e" : "d\n";
+            for (int i = text.indexOf(find); i >= 0; i = text.indexOf(find, i + find.length())) {
+                add.invoke(matches, i, i + find.length());
+            }
+            doc.getClass().getMethod("replaceAll", listClass, String.class)
+                .invoke(doc, matches, random.nextBoolean() ? "E" : "D\n\n");
+        }
+    }
+
+    /**
+     * Test that with a budget of a few edits, most go to disk, the heap
+     * held stays within the budget, and every edit is undone and redone to
+     * the exact text it was made on.
+     */
+    private static void testSpilledEdits() throws Exception {
+        Document doc = document("line one\nline two\nthe end\n");
+        long budget = 16 * 1024;
+        UndoManager history = history(doc, budget);
+        Random random = new Random(21);
+        List<String> texts = new ArrayList<>();
+        texts.add(text(doc));
+        long mostBytes = 0;
+        boolean within = true;
+        for (int i = 0; i < 1500; i++) {
+            randomEdit(doc, random);
+            forgetTyping(history);
+            // A replace that found nothing made no edit
+            if (!text(doc).equals(texts.get(texts.size() - 1))) {
+                texts.add(text(doc));
+            }
+            // Only the last edit is kept over budget, however big it is
+            within &= bytes(history) <= budget || spilled(history) == texts.size() - 2;
+            mostBytes = Math.max(mostBytes, bytes(history));
+        }
+        System.out.println(spilled(history) + " of 1500 edits spilled, at most " + mostBytes + " bytes in memory");
+        assertTrue("Most edits are spilled", spilled(history) > 1000);
+        assertTrue("The heap held stays within the budget", within);
+
+        boolean same = true;
+        for (int i = texts.size() - 2; i >= 0 && same; i--) {
+            history.undo();
+            same = text(doc).equals(texts.get(i));
+        }
+        assertTrue("Every edit is undone to the text before it", same);
+        assertTrue("Nothing more to undo", !history.canUndo());
+        for (int i = 1; i < texts.size() && same; i++) {
+            history.redo();
+            same = text(doc).equals(texts.get(i));
+        }
+        assertTrue("Every edit is redone to the text after it", same);
+        assertTrue("Nothing more to redo", !history.canRedo());
+        close(history);
+    }
+
+    // Ends the typing edit, as a pause would, so the next keystrokes make
+    // an edit of their own
+    private static void forgetTyping(UndoManager history) throws Exception {
+        Field typing = historyClass.getDeclaredField("typing");
+        typing.setAccessible(true);
+        typing.set(history, null);
+    }
+
+    /**
+     * Test that a new edit after undoing into the spilled edits starts a
+     * branch redo follows, and the ones before can still be undone.
+     */
+    private static void testNewEditAfterUndo() throws Exception {
+        Document doc = document("");
+        UndoManager history = history(doc, 4 * 1024);
+        List<String> texts = new ArrayList<>();
+        texts.add(text(doc));
+        for (int i = 0; i < 200; i++) {
+            doc.insertString(doc.getLength(), "line " + i + "\n", null);
+            texts.add(text(doc));
+        }
+        for (int i = 0; i < 150; i++) {
+            history.undo();
+        }
+        assertEquals("Undone into the spilled edits", texts.get(50), text(doc));
+        doc.insertString(0, "new\n", null);
+        assertTrue("A new edit has nothing to redo", !history.canRedo());
+        history.undo();
+        assertEquals("The new edit is undone", texts.get(50), text(doc));
+        history.undo();
+        assertEquals("Then the spilled edit before it", texts.get(49), text(doc));
+        history.redo();
+        history.redo();
+        assertEquals("Redo goes back to the new edit", "new\n" + texts.get(50), text(doc));
+        assertTrue("And no further", !history.canRedo());
+        close(history);
+    }
+
+    /**
+     * Test that edits of a document that does not record its changes are
+     * dropped over budget, as a plain UndoManager drops them over its limit.
+     */
+    private static void testWithoutChanges() throws Exception {
+        Document doc = new PlainDocument();
+        UndoManager history = history(doc, 10 * 1024);
+        for (int i = 0; i < 500; i++) {
+            doc.insertString(doc.getLength(), "line " + i + "\n", null);
+        }
+        int undone = 0;
+        while (history.canUndo()) {
+            history.undo();
+            undone++;
+        }
+        assertTrue("Only the edits within budget are kept", undone > 0 && undone < 500);
+        assertTrue("Nothing was spilled", spilled(history) == 0);
+        close(history);
+    }
+
+    private static void earlier(UndoManager history) throws Exception {
+        historyClass.getMethod("earlier").invoke(history);
+    }
+
+    private static void later(UndoManager history) throws Exception {
+        historyClass.getMethod("later").invoke(history);
+    }
+
+    /**
+     * Test that an edit after undoing keeps the states undone on a branch
+     * of their own, which earlier() and later() step through in the order
+     * they were made, and that redo follows the branch visited last.
+     */
+    private static void testBranches() throws Exception {
+        Document doc = document("");
+        UndoManager history = history(doc, 1L << 30);
+        // Each keystroke an edit of its own
+        doc.insertString(0, "a", null);
+        forgetTyping(history);
+        doc.insertString(1, "b", null);
+        forgetTyping(history);
+        doc.insertString(2, "c", null);
+        history.undo();
+        history.undo();
+        doc.insertString(1, "d", null);
+        assertEquals("A new edit after undoing", "ad", text(doc));
+
+        String[] states = {"", "a", "ab", "abc", "ad"};
+        boolean same = true;
+        for (int i = states.length - 2; i >= 0; i--) {
+            earlier(history);
+            same &= text(doc).equals(states[i]);
+        }
+        assertTrue("earlier() goes back through every state made, on both branches", same);
+        for (int i = 1; i < states.length; i++) {
+            later(history);
+            same &= text(doc).equals(states[i]);
+        }
+        assertTrue("later() comes forward through them again", same);
+
+        for (int i = 0; i < 2; i++) {
+            earlier(history);
+        }
+        assertEquals("On the undone branch", "ab", text(doc));
+        history.undo();
+        history.redo();
+        history.redo();
+        assertEquals("Redo follows the branch visited last", "abc", text(doc));
+        history.undo();
+        history.undo();
+        later(history);
+        later(history);
+        later(history);
+        history.undo();
+        history.redo();
+        assertEquals("And the other once it is visited", "ad", text(doc));
+        close(history);
+    }
+
+    // Whether the document's lines are where the line breaks of its text are
+    private static boolean linesMatch(Document doc) throws Exception {
+        String text = text(doc) + "\n";
+        Element root = doc.getDefaultRootElement();
+        int line = 0;
+        int start = 0;
+        for (int i = text.indexOf('\n'); i >= 0; i = text.indexOf('\n', i + 1)) {
+            if (line >= root.getElementCount()) {
+                return false;
+            }
+            Element element = root.getElement(line++);
+            if (element.getStartOffset() != start || element.getEndOffset() != i + 1) {
+                return false;
+            }
+            start = i + 1;
+        }
+        return line == root.getElementCount();
+    }
+
+    /**
+     * Test that the document's lines stay right as edits are undone and
+     * redone, some from memory and some from disk, across branches.
+     */
+    private static void testLines() throws Exception {
+        Document doc = document("line one\nline two\n");
+        UndoManager history = history(doc, 3000);
+        Random random = new Random(1);
+        boolean right = true;
+        for (int round = 0; round < 30; round++) {
+            for (int i = 0; i < 50; i++) {
+                int length = doc.getLength();
+                if (random.nextInt(3) > 0 || length < 5) {
+                    doc.insertString(random.nextInt(length + 1), random.nextBoolean() ? "ab\ncd" : "\n", null);
+                } else {
+                    int offset = random.nextInt(length);
+                    doc.remove(offset, Math.min(length - offset, 1 + random.nextInt(8)));
+                }
+                forgetTyping(history);
+            }
+            int undos = random.nextInt(60);
+            for (int i = 0; i < undos && history.canUndo(); i++) {
+                history.undo();
+                right &= linesMatch(doc);
+            }
+            int redos = random.nextInt(undos + 1);
+            for (int i = 0; i < redos && history.canRedo(); i++) {
+                history.redo();
+                right &= linesMatch(doc);
+            }
+            if (random.nextBoolean()) {
+                earlier(history);
+                right &= linesMatch(doc);
+            }
+        }
+        assertTrue("Lines match the text after every undo and redo", right);
+        close(history);
+    }
+
+    /**
+     * Test that jumping to the end of a long branch from another starts
+     * from a checkpoint on the way, which is far faster than replaying
+     * every edit and ends on the same text.
+     */
+    private static void testCheckpointJump() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        Document doc = document(text.toString());
+        UndoManager history = history(doc, 1L << 30);
+        Field checkpointEdits = historyClass.getDeclaredField("CHECKPOINT_EDITS");
+        checkpointEdits.setAccessible(true);
+        int edits = 20 * (Integer) checkpointEdits.get(null);
+        Random random = new Random(7);
+        for (int i = 0; i < edits; i++) {
+            int offset = random.nextInt(doc.getLength());
+            if (random.nextInt(3) == 0) {
+                doc.remove(offset, Math.min(doc.getLength() - offset, 12));
+            } else {
+                doc.insertString(offset, "edit " + i + "\n", null);
+            }
+        }
+        String tip = text(doc);
+
+        long start = System.nanoTime();
+        while (history.canUndo()) {
+            history.undo();
+        }
+        long replayNanos = System.nanoTime() - start;
+        doc.insertString(0, "branch\n", null);
+        start = System.nanoTime();
+        earlier(history);
+        long jumpNanos = System.nanoTime() - start;
+        System.out.println("Replaying " + edits + " edits: " + replayNanos / 1000 + " us, jumping back: "
+            + jumpNanos / 1000 + " us");
+        assertEquals("earlier() goes to the end of the old branch", tip, text(doc));
+        assertTrue("Far faster than replaying it", jumpNanos < replayNanos / 4);
+        assertTrue("Lines match the text jumped to", linesMatch(doc));
+        close(history);
+    }
+
+    /**
+     * Test that undoing and redoing an edit read back from disk takes about
+     * as long as undoing one held in memory, in a large document with a long
+     * history. Both are mostly the document updating its lines.
+     */
+    private static void testLatency() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200000; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        Document doc = document(text.toString());
+        UndoManager history = history(doc, 256 * 1024);
+        Random random = new Random(5);
+        int edits = 50000;
+        for (int i = 0; i < edits; i++) {
+            int offset = random.nextInt(doc.getLength());
+            if (random.nextInt(3) == 0) {
+                doc.remove(offset, Math.min(doc.getLength() - offset, 12));
+            } else {
+                doc.insertString(offset, "edit " + i + "\n", null);
+            }
+        }
+        int inMemory = edits - spilled(history);
+        System.out.println(spilled(history) + " of " + edits + " edits spilled, " + bytes(history) / 1024
+            + " KB in memory");
+        assertTrue("Most of the history is on disk", inMemory < edits / 2);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < inMemory; i++) {
+            history.undo();
+        }
+        long memoryNanos = (System.nanoTime() - start) / inMemory;
+        int count = Math.min(20000, edits - inMemory);
+        long worst = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            long one = System.nanoTime();
+            history.undo();
+            worst = Math.max(worst, System.nanoTime() - one);
+        }
+        long diskNanos = (System.nanoTime() - start) / count;
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            history.redo();
+        }
+        long redoNanos = (System.nanoTime() - start) / count;
+        System.out.println("Undo in memory: " + memoryNanos / 1000 + " us, from disk: " + diskNanos / 1000
+            + " us (worst " + worst / 1000 + " us), redo from disk: " + redoNanos / 1000 + " us");
+        assertTrue("Undo from disk takes about as long as in memory", diskNanos < 2 * memoryNanos + 100000);
+        assertTrue("And so does redo", redoNanos < 2 * memoryNanos + 100000);
+        close(history);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // Replaces every match of find in the document with replacement
+    private static void replaceAll(Document doc, String find, String replacement) throws Exception {
+        Class<?> listClass = Class.forName("MatchList");
+        Object matches = listClass.getConstructor().newInstance();
+        Method add = listClass.getMethod("add", int.class, int.class);
+        String text = text(doc);
+        for (int i = text.indexOf(find); i >= 0; i = text.indexOf(find, i + find.length())) {
+            add.invoke(matches, i, i + find.length());
+        }
+        doc.getClass().getMethod("replaceAll", listClass, String.class).invoke(doc, matches, replacement);
+    }
+
+    /**
+     * Test that a replace of every match in a large document is undone and
+     * redone again and again to the right text and lines, without the heap
+     * growing by a copy of the text each time, whether the replace kept the
+     * lines or added some.
+     */
+    private static void testLargeReplaceAll() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200000; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        String original = text.toString();
+        String[][] replaces = {{"line", "row"}, {"0\n", "zero\n\n"}};
+        for (String[] replace : replaces) {
+            Document doc = document(original);
+            UndoManager history = history(doc, 1L << 30);
+            replaceAll(doc, replace[0], replace[1]);
+            String replaced = text(doc);
+            boolean right = true;
+            long worst = 0;
+            long heap = 0;
+            for (int round = 0; round < 6; round++) {
+                if (round == 1) {
+                    heap = usedHeap();
+                }
+                long start = System.nanoTime();
+                history.undo();
+                worst = Math.max(worst, System.nanoTime() - start);
+                right &= original.equals(text(doc)) && linesMatch(doc);
+                start = System.nanoTime();
+                history.redo();
+                worst = Math.max(worst, System.nanoTime() - start);
+                right &= replaced.equals(text(doc)) && linesMatch(doc);
+            }
+            long grown = usedHeap() - heap;
+            System.out.println("Replacing \"" + replace[0].replace("\n", "\\n") + "\": worst undo or redo "
+                + worst / 1000 + " us, heap grown by " + grown / 1024 + " KB");
+            assertTrue("Undone and redone to the same text and lines", right);
+            assertTrue("Each in under a second", worst < 1000000000L);
+            assertTrue("Without keeping copies of the text", grown < 4L * original.length());
+            close(history);
+        }
+    }
+}
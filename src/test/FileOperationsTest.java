@@ -325,6 +325,11 @@ public class FileOperationsTest {
                 Method saveFileMethod = textEditor[0].getClass().getDeclaredMethod("saveFile");
                 saveFileMethod.setAccessible(true);
                 saveFileMethod.invoke(textEditor[0]);
+
+                // Saves run in the background, wait for this one to finish
+                Method awaitMethod = textEditor[0].getClass().getDeclaredMethod("awaitPendingSave");
+                awaitMethod.setAccessible(true);
+                awaitMethod.invoke(textEditor[0]);
             } catch (Exception e) {
                 throw new RuntimeException("Failed to call saveFile method: " + e.getMessage(), e);
             }
@@ -419,6 +424,11 @@ public class FileOperationsTest {
                 Method saveFileAsMethod = textEditor[0].getClass().getDeclaredMethod("saveFileAs");
                 saveFileAsMethod.setAccessible(true);
                 saveFileAsMethod.invoke(textEditor[0]);
+
+                // Saves run in the background, wait for this one to finish
+                Method awaitMethod = textEditor[0].getClass().getDeclaredMethod("awaitPendingSave");
+                awaitMethod.setAccessible(true);
+                awaitMethod.invoke(textEditor[0]);
             } catch (Exception e) {
                 throw new RuntimeException("Failed to call saveFileAs method: " + e.getMessage(), e);
             }
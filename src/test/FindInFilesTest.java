@@ -0,0 +1,291 @@
+package test;
+
+import javax.swing.SwingWorker;
+import java.io.File;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Test class for Find in Files: which files are searched, skipping binary
+ * files, and that every match is reported at the offset and line it has
+ * once the file is opened in the editor.
+ */
+public class FindInFilesTest {
+    // Simple assertion methods
+    private static void assertTrue(String message, boolean condition) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+        System.out.println("PASS: " + message);
+    }
+
+    private static void assertEquals(String message, Object expected, Object actual) {
+        if (expected == null && actual == null) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        if (expected != null && expected.equals(actual)) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        throw new AssertionError(message + " expected:<" + expected + "> but was:<" + actual + ">");
+    }
+
+    private static Path root;
+
+    /**
+     * Main method to run the tests.
+     */
+    public static void main(String[] args) {
+        System.out.println("Running find in files tests...");
+
+        try {
+            root = Files.createTempDirectory("texteditor_find_in_files");
+            testGlobs();
+            testBinaryFiles();
+            testOffsets();
+            testStop();
+            testManyFiles();
+
+            System.out.println("All find in files tests passed!");
+        } catch (AssertionError e) {
+            System.err.println("TEST FAILED: " + e.getMessage());
+            System.exit(1);
+        } catch (Exception e) {
+            System.err.println("TEST ERROR: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(2);
+        } finally {
+            delete(root);
+        }
+    }
+
+    private static void delete(Path dir) {
+        if (dir == null) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        } catch (IOException e) {
+            // Leave it to the temp directory cleanup
+        }
+    }
+
+    private static void write(Path file, byte[] bytes) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, bytes);
+    }
+
+    private static void write(Path file, String text) throws IOException {
+        write(file, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Object finder(Path dir, String pattern, String includes, String excludes) throws Exception {
+        return Class.forName("FindInFiles").getConstructor(Path.class, String.class, String.class, String.class)
+            .newInstance(dir, pattern, includes, excludes);
+    }
+
+    /**
+     * Runs a search using reflection, returning the matches in the order of
+     * their file paths and offsets.
+     */
+    private static List<Object> run(Object finder, BooleanSupplier stop, boolean[] completed) throws Exception {
+        List<Object> hits = Collections.synchronizedList(new ArrayList<>());
+        Consumer<List<?>> results = hits::addAll;
+        boolean done = (Boolean) finder.getClass().getMethod("run", Consumer.class, BooleanSupplier.class)
+            .invoke(finder, results, stop);
+        if (completed != null) {
+            completed[0] = done;
+        }
+        List<Object> sorted = new ArrayList<>(hits);
+        sorted.sort(Comparator.comparing((Object h) -> file(h).toString()).thenComparing(h -> offset(h)));
+        return sorted;
+    }
+
+    private static List<Object> run(Path dir, String pattern, String includes, String excludes) throws Exception {
+        return run(finder(dir, pattern, includes, excludes), () -> false, null);
+    }
+
+    private static Object get(Object hit, String name) {
+        try {
+            return hit.getClass().getMethod(name).invoke(hit);
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Path file(Object hit) {
+        return (Path) get(hit, "getFile");
+    }
+
+    private static int offset(Object hit) {
+        return (Integer) get(hit, "getOffset");
+    }
+
+    private static int count(Object finder, String name) throws Exception {
+        return (Integer) finder.getClass().getMethod(name).invoke(finder);
+    }
+
+    /**
+     * Test that includes pick files by name or path and excludes leave out
+     * files and whole directories.
+     */
+    private static void testGlobs() throws Exception {
+        Path dir = root.resolve("globs");
+        write(dir.resolve("src/Main.java"), "class Main { // needle\n}\n");
+        write(dir.resolve("src/notes.txt"), "a needle here\n");
+        write(dir.resolve("src/deep/More.java"), "needle needle\n");
+        write(dir.resolve("build/Main.java"), "needle\n");
+        write(dir.resolve(".git/objects/needle.java"), "needle\n");
+        write(dir.resolve("empty.java"), "");
+
+        List<Object> hits = run(dir, "needle", null, null);
+        assertEquals("Every file is searched without globs", 6, hits.size());
+
+        hits = run(dir, "needle", "*.java", "build, .git");
+        assertEquals("Includes and excludes leave the Java files outside build", 3, hits.size());
+        assertEquals("First match file", dir.resolve("src/Main.java"), file(hits.get(0)));
+        assertEquals("Second match file", dir.resolve("src/deep/More.java"), file(hits.get(1)));
+        assertEquals("Second match line", 1, get(hits.get(1), "getLine"));
+        assertEquals("Third match offset", 7, offset(hits.get(2)));
+
+        hits = run(dir, "needle", "src/deep/**", null);
+        assertEquals("A glob with a slash matches the relative path", 2, hits.size());
+
+        hits = run(dir, "needle", "*.txt, *.md", "");
+        assertEquals("Includes are a comma-separated list", 1, hits.size());
+        assertEquals("Preview is the line of the match", "a needle here", get(hits.get(0), "getPreview"));
+    }
+
+    /**
+     * Test that files with zero bytes are skipped as binary, while UTF-16
+     * files, which have zero bytes too, are searched.
+     */
+    private static void testBinaryFiles() throws Exception {
+        Path dir = root.resolve("binary");
+        write(dir.resolve("image.bin"), new byte[] {(byte) 0x89, 'P', 'N', 'G', 0, 0, 0, 13, 'n', 'e', 'e', 'd', 'l', 'e'});
+        write(dir.resolve("text.txt"), "needle\n");
+        write(dir.resolve("wide.txt"), "x needle\nand some more wide text to tell it from binary\n".getBytes(StandardCharsets.UTF_16LE));
+
+        Object finder = finder(dir, "needle", null, null);
+        List<Object> hits = run(finder, () -> false, null);
+        assertEquals("Only the text files have matches", 2, hits.size());
+        assertEquals("Binary files skipped", 1, count(finder, "getBinaryFiles"));
+        assertEquals("Text files searched", 2, count(finder, "getFilesSearched"));
+        assertEquals("UTF-16 match offset", 2, offset(hits.get(1)));
+    }
+
+    /**
+     * Load the file the way the editor opens it, using reflection.
+     */
+    private static String load(Path file) throws Exception {
+        SwingWorker<?, ?> loader = (SwingWorker<?, ?>) Class.forName("FileLoader").getConstructor(File.class)
+            .newInstance(file.toFile());
+        loader.run();
+        return ((CharBuffer) loader.get()).toString();
+    }
+
+    /**
+     * Test that, whatever the encoding and line endings, each match is at
+     * its offset and line in the text the editor opens, and none is missed.
+     */
+    private static void testOffsets() throws Exception {
+        Path dir = root.resolve("offsets");
+        String needle = "needle";
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 40000; i++) {
+            big.append(i % 3 == 0 ? "line \u00e9 " : "line ").append(i).append(i % 997 == 0 ? " needle" : "")
+                .append(i % 2 == 0 ? "\r\n" : "\n");
+        }
+
+        String mixed = "needle\r\nab\u00e9 needle\rx \u4e2d\uD83D\uDE00 needle\n\r\nneedleneedle\n\nend needle";
+        write(dir.resolve("mixed.txt"), mixed);
+        byte[] bom = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+        byte[] text = mixed.getBytes(StandardCharsets.UTF_8);
+        byte[] withBom = new byte[bom.length + text.length];
+        System.arraycopy(bom, 0, withBom, 0, bom.length);
+        System.arraycopy(text, 0, withBom, bom.length, text.length);
+        write(dir.resolve("bom.txt"), withBom);
+        write(dir.resolve("latin1.txt"), "caf\u00e9\r\nneedle \u00ff needle\r".getBytes(StandardCharsets.ISO_8859_1));
+        byte[] utf16 = ("\ufeff" + mixed).getBytes(StandardCharsets.UTF_16BE);
+        write(dir.resolve("utf16.txt"), utf16);
+        write(dir.resolve("big.txt"), big.toString());
+
+        List<Object> hits = run(dir, needle, null, null);
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files.sorted()::iterator) {
+                String loaded = load(file);
+                int expected = 0;
+                for (int i = loaded.indexOf(needle); i >= 0; i = loaded.indexOf(needle, i + needle.length())) {
+                    expected++;
+                }
+                int found = 0;
+                boolean placed = true;
+                for (Object hit : hits) {
+                    if (!file(hit).equals(file)) {
+                        continue;
+                    }
+                    found++;
+                    int offset = offset(hit);
+                    int line = 1;
+                    for (int i = 0; i < offset && i < loaded.length(); i++) {
+                        if (loaded.charAt(i) == '\n') {
+                            line++;
+                        }
+                    }
+                    placed &= loaded.startsWith(needle, offset) && line == (Integer) get(hit, "getLine");
+                }
+                assertTrue(file.getFileName() + ": has matches", expected > 0);
+                assertEquals(file.getFileName() + ": every match found", expected, found);
+                assertTrue(file.getFileName() + ": every match at its offset and line once opened", placed);
+            }
+        }
+    }
+
+    /**
+     * Test that a stopped search says it did not finish.
+     */
+    private static void testStop() throws Exception {
+        boolean[] completed = {true};
+        run(finder(root.resolve("globs"), "needle", null, null), () -> true, completed);
+        assertTrue("A stopped search does not complete", !completed[0]);
+        run(finder(root.resolve("globs"), "needle", null, null), () -> false, completed);
+        assertTrue("An unstopped search completes", completed[0]);
+    }
+
+    /**
+     * Test searching a tree of many small files, timing it.
+     */
+    private static void testManyFiles() throws Exception {
+        Path dir = root.resolve("many");
+        int files = 20000;
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            body.append("some ordinary line of source text, number ").append(i).append('\n');
+        }
+        for (int i = 0; i < files; i++) {
+            String text = i % 100 == 0 ? body + "the needle\n" : body.toString();
+            write(dir.resolve("d" + i % 50).resolve("d" + i % 7).resolve("f" + i + ".txt"), text);
+        }
+
+        Object finder = finder(dir, "needle", null, null);
+        long start = System.nanoTime();
+        List<Object> hits = run(finder, () -> false, null);
+        long millis = (System.nanoTime() - start) / 1000000;
+        System.out.println("Searched " + files + " files in " + millis + " ms");
+        assertEquals("Every file searched", files, count(finder, "getFilesSearched"));
+        assertEquals("Every match found", files / 100, hits.size());
+        assertEquals("Match line", 41, get(hits.get(0), "getLine"));
+        assertTrue("Many files are searched in a few seconds", millis < 5000);
+    }
+}
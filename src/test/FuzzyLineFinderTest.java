@@ -0,0 +1,259 @@
+package test;
+
+import javax.swing.text.Document;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Test class for the fuzzy line finder: how lines are ranked, that scoring
+ * in parallel chunks gives the same lines as scoring them one by one, and
+ * that a million lines are scored in under 100 ms on four cores.
+ */
+public class FuzzyLineFinderTest {
+    // Simple assertion methods
+    private static void assertTrue(String message, boolean condition) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+        System.out.println("PASS: " + message);
+    }
+
+    private static void assertEquals(String message, Object expected, Object actual) {
+        if (expected == null && actual == null) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        if (expected != null && expected.equals(actual)) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        throw new AssertionError(message + " expected:<" + expected + "> but was:<" + actual + ">");
+    }
+
+    private static final BooleanSupplier NEVER = () -> false;
+    private static Class<?> finderClass;
+    private static Method find;
+
+    /**
+     * Main method to run the tests.
+     */
+    public static void main(String[] args) {
+        System.out.println("Running fuzzy line finder tests...");
+
+        try {
+            finderClass = Class.forName("FuzzyLineFinder");
+            find = finderClass.getMethod("find", Class.forName("TextSnapshot"), int.class, BooleanSupplier.class);
+
+            testRanking();
+            testCase();
+            testSameAsOneByOne();
+            testStop();
+            testTiming();
+
+            System.out.println("All fuzzy line finder tests passed!");
+        } catch (AssertionError e) {
+            System.err.println("TEST FAILED: " + e.getMessage());
+            System.exit(1);
+        } catch (Exception e) {
+            System.err.println("TEST ERROR: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+    private static Document document(String text) throws Exception {
+        return (Document) Class.forName("PieceTableDocument").getConstructor(CharBuffer.class)
+            .newInstance(CharBuffer.wrap(text.toCharArray()));
+    }
+
+    private static Object snapshot(Document doc) throws Exception {
+        return doc.getClass().getMethod("snapshot").invoke(doc);
+    }
+
+    private static Object finder(String query) throws Exception {
+        return finderClass.getConstructor(String.class).newInstance(query);
+    }
+
+    // A finder cutting the text into small chunks, to have lines cross them
+    private static Object finder(String query, int chunkSize) throws Exception {
+        Constructor<?> constructor = finderClass.getDeclaredConstructor(String.class, ForkJoinPool.class, int.class);
+        constructor.setAccessible(true);
+        return constructor.newInstance(query, ForkJoinPool.commonPool(), chunkSize);
+    }
+
+    private static List<?> find(Object finder, Document doc, int limit) throws Exception {
+        return (List<?>) find.invoke(finder, snapshot(doc), limit, NEVER);
+    }
+
+    private static Object get(Object result, String name) throws Exception {
+        return result.getClass().getMethod(name).invoke(result);
+    }
+
+    /**
+     * Test that lines with the chars together and at word starts come
+     * first, and lines without them all in order do not come at all.
+     */
+    private static void testRanking() throws Exception {
+        String text = "sales of vegetables\n"
+            + "void saveFile() {\n"
+            + "s-a-v-e\n"
+            + "nothing to see here\n"
+            + "save\n"
+            + "private void autosave()\n"
+            + "evas";
+        Document doc = document(text);
+        List<?> results = find(finder("save"), doc, 10);
+        List<String> lines = new ArrayList<>();
+        for (Object result : results) {
+            lines.add((String) get(result, "getText"));
+        }
+        assertEquals("Lines without the chars in order are left out", 5, results.size());
+        assertEquals("The line that is the query comes first", "save", lines.get(0));
+        assertEquals("A word starting with the query comes next", "void saveFile() {", lines.get(1));
+        assertEquals("Chars together come before chars spread out", "private void autosave()", lines.get(2));
+        assertTrue("Chars spread over the line come last",
+            lines.subList(3, 5).contains("sales of vegetables") && lines.subList(3, 5).contains("s-a-v-e"));
+        assertTrue("Every line found has the chars", !lines.contains("evas") && !lines.contains("nothing to see here"));
+
+        Object best = results.get(1);
+        int lineStart = text.indexOf("void saveFile");
+        assertEquals("Line start", lineStart, get(best, "getLineStart"));
+        assertEquals("Match start", lineStart + 5, get(best, "getMatchStart"));
+        assertEquals("Match end", lineStart + 9, get(best, "getMatchEnd"));
+
+        results = find(finder("save"), doc, 2);
+        assertEquals("At most the limit is returned", 2, results.size());
+        assertEquals("The best of them", "save", get(results.get(0), "getText"));
+
+        assertEquals("No lines for chars that are not there", 0, find(finder("xyz"), doc, 10).size());
+        assertEquals("An empty document has no lines", 0, find(finder("a"), document(""), 10).size());
+    }
+
+    /**
+     * Test that a lower case query matches either case, and one with
+     * capitals only that case, also for chars not in ASCII.
+     */
+    private static void testCase() throws Exception {
+        Document doc = document("SaveAs\nsaveAs\nSAVE\n");
+        assertEquals("Lower case matches any case", 3, find(finder("save"), doc, 10).size());
+        List<?> results = find(finder("Save"), doc, 10);
+        assertEquals("Capitals match that case", 1, results.size());
+        assertEquals("The line with that case", "SaveAs", get(results.get(0), "getText"));
+        results = find(finder("sA"), doc, 10);
+        assertEquals("CamelCase query", "saveAs", get(results.get(0), "getText"));
+
+        // Queries whose upper case is longer, or another letter in the
+        // default locale, fold a char at a time
+        doc = document("Strasse\nSTRA\u00dfE\n\ufb01le\nFILE\nprofile\n");
+        assertEquals("Sharp s matches its own upper case", 1, find(finder("stra\u00dfe"), doc, 10).size());
+        assertEquals("A ligature matches itself", 1, find(finder("\ufb01le"), doc, 10).size());
+        Locale locale = Locale.getDefault();
+        Locale.setDefault(Locale.forLanguageTag("tr-TR"));
+        try {
+            assertEquals("In Turkish, i still matches I", 2, find(finder("file"), doc, 10).size());
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    /**
+     * Test that scoring in chunks on every core picks the same lines in
+     * the same order as scoring each line on its own, with lines crossing
+     * chunks and pieces of the document.
+     */
+    private static void testSameAsOneByOne() throws Exception {
+        Random random = new Random(19);
+        String[] words = {"open", "file", "save", "read", "write", "close", "buffer", "line", "piece", "table"};
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            int count = random.nextInt(8);
+            for (int j = 0; j < count; j++) {
+                text.append(j == 0 ? "" : random.nextBoolean() ? " " : "_").append(words[random.nextInt(words.length)]);
+            }
+            text.append('\n');
+        }
+        Document doc = document(text.toString());
+        // Edits split the text into pieces
+        for (int i = 0; i < 200; i++) {
+            doc.insertString(random.nextInt(doc.getLength()), random.nextInt(4) == 0 ? "\n" : "fi", null);
+        }
+        String current = doc.getText(0, doc.getLength());
+
+        Method score = finderClass.getDeclaredMethod("score", char[].class, int.class, int.class, int[].class);
+        score.setAccessible(true);
+        for (String query : new String[] {"sf", "open", "rw", "pcl", "fifi", "e"}) {
+            Object finder = finder(query, 100);
+            // Scores of every line, one by one, as {score, line start}
+            List<long[]> all = new ArrayList<>();
+            int lineStart = 0;
+            for (String line : current.split("\n", -1)) {
+                int s = (Integer) score.invoke(finder, line.toCharArray(), 0, line.length(), null);
+                if (s > Integer.MIN_VALUE) {
+                    all.add(new long[] {s, lineStart});
+                }
+                lineStart += line.length() + 1;
+            }
+            all.sort((a, b) -> a[0] != b[0] ? Long.compare(b[0], a[0]) : Long.compare(a[1], b[1]));
+
+            List<?> results = find(finder, doc, 25);
+            boolean same = results.size() == Math.min(25, all.size());
+            for (int i = 0; same && i < results.size(); i++) {
+                same = all.get(i)[1] == (Integer) get(results.get(i), "getLineStart")
+                    && all.get(i)[0] == (Integer) get(results.get(i), "getScore");
+            }
+            assertTrue("\"" + query + "\": same lines as scoring one by one", same);
+        }
+    }
+
+    /**
+     * Test that a stopped search returns nothing.
+     */
+    private static void testStop() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        Object result = find.invoke(finder("li"), snapshot(document(text.toString())), 10, (BooleanSupplier) () -> true);
+        assertEquals("A stopped search returns null", null, result);
+    }
+
+    /**
+     * Test the time to find the best lines of a million.
+     */
+    private static void testTiming() throws Exception {
+        Random random = new Random(7);
+        String[] levels = {"INFO", "WARN", "ERROR", "DEBUG"};
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000000; i++) {
+            text.append(levels[random.nextInt(levels.length)]).append(" request ").append(i)
+                .append(" handled by worker-").append(i % 64).append(" in ").append(random.nextInt(1000))
+                .append(" ms\n");
+        }
+        Document doc = document(text.toString());
+        Object snapshot = snapshot(doc);
+        // 100 ms is for four cores or more; with fewer the chunks take turns
+        int cores = Runtime.getRuntime().availableProcessors();
+        long limitMillis = 100L * Math.max(1, 4 / cores);
+        for (String query : new String[] {"errw63", "req 4242", "zzz"}) {
+            Object finder = finder(query);
+            long best = Long.MAX_VALUE;
+            List<?> results = null;
+            for (int round = 0; round < 5; round++) {
+                long start = System.nanoTime();
+                results = (List<?>) find.invoke(finder, snapshot, 100, NEVER);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.println("\"" + query + "\": " + results.size() + " lines in " + best / 1000000 + " ms"
+                + (results.isEmpty() ? "" : ", best: " + get(results.get(0), "getText")));
+            assertTrue("\"" + query + "\": a million lines in under " + limitMillis + " ms on " + cores + " cores",
+                best < limitMillis * 1000000L);
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package test;
+
+import javax.swing.SwingWorker;
+import javax.swing.event.UndoableEditListener;
+import javax.swing.text.Document;
+import javax.swing.undo.UndoManager;
+import java.io.File;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test class for the undo history kept between sessions: saved when a
+ * document matching its file is left, read back only on the first undo
+ * that needs it, and never applied to a file that has changed since.
+ */
+public class HistoryFileTest {
+    // Simple assertion methods
+    private static void assertTrue(String message, boolean condition) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+        System.out.println("PASS: " + message);
+    }
+
+    private static void assertEquals(String message, Object expected, Object actual) {
+        if (expected == null && actual == null) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        if (expected != null && expected.equals(actual)) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        throw new AssertionError(message + " expected:<" + expected + "> but was:<" + actual + ">");
+    }
+
+    private static Class<?> historyClass;
+    private static Class<?> baseClass;
+    private static File directory;
+
+    /**
+     * Main method to run the tests.
+     */
+    public static void main(String[] args) {
+        System.out.println("Running history file tests...");
+
+        try {
+            historyClass = Class.forName("EditHistory");
+            baseClass = Class.forName("HistoryFile$Base");
+            directory = Files.createTempDirectory("history-test").toFile();
+
+            testAcrossSessions();
+            testCarriedOver();
+            testStale();
+            testAnyChars();
+            testStampedAsLoaded();
+
+            System.out.println("All history file tests passed!");
+        } catch (AssertionError e) {
+            System.err.println("TEST FAILED: " + e.getMessage());
+            System.exit(1);
+        } catch (Exception e) {
+            System.err.println("TEST ERROR: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(2);
+        } finally {
+            deleteAll(directory);
+        }
+    }
+
+    private static void deleteAll(File dir) {
+        File[] files = dir == null ? null : dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        if (dir != null) {
+            dir.delete();
+        }
+    }
+
+    // One session with a file: the document opened from it and its history
+    private static final class Session {
+        final File file;
+        final Document doc;
+        final UndoManager history;
+        final Object base;
+
+        Session(File file) throws Exception {
+            this.file = file;
+            String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            doc = (Document) Class.forName("PieceTableDocument").getConstructor(CharBuffer.class)
+                .newInstance(CharBuffer.wrap(text.toCharArray()));
+            history = history(doc);
+            base = base(file, doc);
+            historyClass.getMethod("setBase", Document.class, File.class, baseClass).invoke(history, doc, directory, base);
+        }
+
+        String text() throws Exception {
+            return doc.getText(0, doc.getLength());
+        }
+
+        // Saves the text to the file, then the history as that of the file,
+        // and closes the session
+        void saveAndClose() throws Exception {
+            Files.write(file.toPath(), text().getBytes(StandardCharsets.UTF_8));
+            save(history, base(file, doc));
+            close(history);
+        }
+    }
+
+    private static File file;
+
+    private static UndoManager history(Document doc) throws Exception {
+        Constructor<?> constructor = historyClass.getDeclaredConstructor(long.class);
+        constructor.setAccessible(true);
+        UndoManager history = (UndoManager) constructor.newInstance(1L << 30);
+        doc.addUndoableEditListener((UndoableEditListener) history);
+        return history;
+    }
+
+    private static void save(UndoManager history, Object base) throws Exception {
+        historyClass.getMethod("save", File.class, baseClass).invoke(history, directory, base);
+    }
+
+    private static void close(UndoManager history) throws Exception {
+        historyClass.getMethod("close").invoke(history);
+    }
+
+    private static Object base(File file, Document doc) throws Exception {
+        Object snapshot = doc.getClass().getMethod("snapshot").invoke(doc);
+        return baseClass.getConstructor(File.class, Class.forName("TextSnapshot")).newInstance(file, snapshot);
+    }
+
+    private static int histories() {
+        return directory.list((dir, name) -> name.endsWith(".history")).length;
+    }
+
+    private static boolean hashed(Object base) throws Exception {
+        Field hashed = baseClass.getDeclaredField("hashed");
+        hashed.setAccessible(true);
+        return (Boolean) hashed.get(base);
+    }
+
+    private static File newFile(String text) throws Exception {
+        file = new File(directory, "file" + System.nanoTime() + ".txt");
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    // Makes a few edits, returning the texts before each and after the last
+    private static List<String> edit(Session session, String tag) throws Exception {
+        List<String> texts = new ArrayList<>();
+        texts.add(session.text());
+        session.doc.insertString(session.doc.getLength(), tag + " one\n", null);
+        texts.add(session.text());
+        session.doc.insertString(0, tag + " two\n", null);
+        texts.add(session.text());
+        session.doc.remove(2, 3);
+        texts.add(session.text());
+        return texts;
+    }
+
+    // Undoes every edit, checking each text along the way
+    private static boolean undoesTo(Session session, List<String> texts) throws Exception {
+        for (int i = texts.size() - 2; i >= 0; i--) {
+            if (!session.history.canUndo()) {
+                return false;
+            }
+            session.history.undo();
+            if (!session.text().equals(texts.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Test that the history of a session is undone in the next one, and
+     * that it is only read when undo first needs it.
+     */
+    private static void testAcrossSessions() throws Exception {
+        Session first = new Session(newFile("first line\nsecond line\n"));
+        List<String> texts = edit(first, "a");
+        first.saveAndClose();
+
+        Session second = new Session(file);
+        assertTrue("Opening a file does not read its history", !hashed(second.base));
+        assertTrue("The saved history can be undone", second.history.canUndo());
+        assertTrue("Every saved edit is undone in order", undoesTo(second, texts));
+        assertTrue("And nothing before them", !second.history.canUndo());
+        second.history.redo();
+        assertEquals("Saved edits can be redone", texts.get(1), second.text());
+        close(second.history);
+    }
+
+    /**
+     * Test that a history not read in a session is kept below the edits of
+     * that session when it is saved again.
+     */
+    private static void testCarriedOver() throws Exception {
+        Session first = new Session(newFile("text\n"));
+        List<String> texts = edit(first, "a");
+        first.saveAndClose();
+
+        Session second = new Session(file);
+        List<String> more = edit(second, "b");
+        second.saveAndClose();
+
+        texts.addAll(more.subList(1, more.size()));
+        Session third = new Session(file);
+        assertTrue("Both sessions' edits are undone", undoesTo(third, texts));
+        assertTrue("Down to the text first opened", !third.history.canUndo());
+        close(third.history);
+    }
+
+    /**
+     * Test that a history is not applied once the file has been modified
+     * since, whether its text or only its time changed.
+     */
+    private static void testStale() throws Exception {
+        Session first = new Session(newFile("some text\n"));
+        edit(first, "a");
+        first.saveAndClose();
+        int histories = histories();
+        assertTrue("Touched", file.setLastModified(file.lastModified() - 10000));
+        Session second = new Session(file);
+        String text = second.text();
+        try {
+            second.history.undo();
+        } catch (javax.swing.undo.CannotUndoException e) {
+            // Expected when the history is stale
+        }
+        assertEquals("A history of another time is not applied", text, second.text());
+        assertTrue("Nor kept", !second.history.canUndo());
+        close(second.history);
+        assertEquals("The stale history is deleted", histories - 1, histories());
+
+        Session third = new Session(newFile("other text\n"));
+        edit(third, "b");
+        third.saveAndClose();
+        long modified = file.lastModified();
+        String saved = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        Files.write(file.toPath(), saved.replace('o', 'x').getBytes(StandardCharsets.UTF_8));
+        file.setLastModified(modified);
+        Session fourth = new Session(file);
+        text = fourth.text();
+        try {
+            fourth.history.undo();
+        } catch (javax.swing.undo.CannotUndoException e) {
+            // Expected when the history is stale
+        }
+        assertEquals("A history of another text is not applied", text, fourth.text());
+        close(fourth.history);
+    }
+
+    /**
+     * Test that every char survives the round trip: accents, a surrogate
+     * pair, half of one and a NUL.
+     */
+    private static void testAnyChars() throws Exception {
+        Session first = new Session(newFile("plain\n"));
+        String odd = "caf\u00e9 \u4e2d \ud83d\ude00 \u0000";
+        first.doc.insertString(0, odd, null);
+        String before = first.text();
+        first.doc.insertString(3, "\ud800", null);
+        // Saved against the text in memory, which UTF-8 in the file could not hold
+        Object base = base(file, first.doc);
+        save(first.history, base);
+        close(first.history);
+
+        UndoManager history = history(first.doc);
+        historyClass.getMethod("setBase", Document.class, File.class, baseClass).invoke(history, first.doc, directory, base);
+        history.undo();
+        assertEquals("Undoing the lone surrogate", before, first.text());
+        history.undo();
+        assertEquals("Undoing the accents and the pair", "plain\n", first.text());
+        close(history);
+    }
+
+    /**
+     * Test that a base made from the layout of a load is stamped with the
+     * file as it was read, not as it is once touched after.
+     */
+    private static void testStampedAsLoaded() throws Exception {
+        newFile("loaded text\n");
+        long loaded = file.lastModified();
+        Class<?> loaderClass = Class.forName("FileLoader");
+        SwingWorker<?, ?> loader = (SwingWorker<?, ?>) loaderClass.getConstructor(File.class).newInstance(file);
+        loader.run();
+        Document doc = (Document) Class.forName("PieceTableDocument").getConstructor(CharBuffer.class)
+            .newInstance((CharBuffer) loader.get());
+        Object layout = loaderClass.getMethod("getLayout").invoke(loader);
+        assertTrue("Touched", file.setLastModified(loaded - 10000));
+        Files.write(file.toPath(), "changed after loading\n".getBytes(StandardCharsets.UTF_8));
+        file.setLastModified(loaded - 10000);
+
+        Object snapshot = doc.getClass().getMethod("snapshot").invoke(doc);
+        Object base = baseClass.getConstructor(File.class, Class.forName("FileLayout"), Class.forName("TextSnapshot"))
+            .newInstance(file, layout, snapshot);
+        Field size = baseClass.getDeclaredField("size");
+        Field modified = baseClass.getDeclaredField("modified");
+        size.setAccessible(true);
+        modified.setAccessible(true);
+        assertEquals("The size the file had when loaded", (long) "loaded text\n".length(), size.get(base));
+        assertEquals("The time it had then", loaded, modified.get(base));
+    }
+}
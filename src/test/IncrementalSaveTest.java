@@ -0,0 +1,275 @@
+package test;
+
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.Document;
+import java.io.File;
+import java.lang.reflect.Method;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import javax.swing.SwingWorker;
+
+/**
+ * Test class for saves that patch only the changed blocks of a file.
+ */
+public class IncrementalSaveTest {
+    // Simple assertion methods
+    private static void assertTrue(String message, boolean condition) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+        System.out.println("PASS: " + message);
+    }
+
+    private static void assertEquals(String message, Object expected, Object actual) {
+        if (expected == null && actual == null) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        if (expected != null && expected.equals(actual)) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        throw new AssertionError(message + " expected:<" + expected + "> but was:<" + actual + ">");
+    }
+
+    // Test file paths
+    private static final String TEST_FILE_PATH = System.getProperty("java.io.tmpdir") + "/texteditor_test_patch.txt";
+    private static final String EXPECTED_FILE_PATH = System.getProperty("java.io.tmpdir") + "/texteditor_test_patch_full.txt";
+
+    /**
+     * Main method to run the tests.
+     */
+    public static void main(String[] args) {
+        System.out.println("Running incremental save tests...");
+
+        try {
+            testSameLengthEdit();
+            testEditsInTail();
+            testUndoneEdit();
+            testEditNearStart();
+            testChangedOnDisk();
+            testTiming();
+
+            System.out.println("All incremental save tests passed!");
+        } catch (AssertionError e) {
+            System.err.println("TEST FAILED: " + e.getMessage());
+            System.exit(1);
+        } catch (Exception e) {
+            System.err.println("TEST ERROR: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(2);
+        } finally {
+            new File(TEST_FILE_PATH).delete();
+            new File(EXPECTED_FILE_PATH).delete();
+        }
+    }
+
+    /**
+     * A file loaded into a document, with the changes made to it tracked the
+     * way the editor tracks them.
+     */
+    private static class Opened {
+        Document doc;
+        Object format;
+        Object layout;
+        Object changes;
+    }
+
+    /**
+     * Write the text as UTF-8 with CRLF line endings and load it through a
+     * FileLoader using reflection.
+     */
+    private static Opened open(String text) throws Exception {
+        Files.write(new File(TEST_FILE_PATH).toPath(),
+            text.replace("\n", "\r\n").getBytes(StandardCharsets.UTF_8));
+        Class<?> loaderClass = Class.forName("FileLoader");
+        SwingWorker<?, ?> loader = (SwingWorker<?, ?>) loaderClass.getConstructor(File.class)
+            .newInstance(new File(TEST_FILE_PATH));
+        loader.run();
+
+        Opened opened = new Opened();
+        opened.doc = (Document) Class.forName("PieceTableDocument").getConstructor(CharBuffer.class)
+            .newInstance((CharBuffer) loader.get());
+        opened.format = loaderClass.getMethod("getFormat").invoke(loader);
+        opened.layout = loaderClass.getMethod("getLayout").invoke(loader);
+        opened.changes = Class.forName("DirtyRegions").getConstructor().newInstance();
+        Method insert = opened.changes.getClass().getMethod("insert", int.class, int.class);
+        Method remove = opened.changes.getClass().getMethod("remove", int.class, int.class);
+        opened.doc.addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) {
+                call(insert, opened.changes, e.getOffset(), e.getLength());
+            }
+            public void removeUpdate(DocumentEvent e) {
+                call(remove, opened.changes, e.getOffset(), e.getLength());
+            }
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
+        return opened;
+    }
+
+    private static void call(Method method, Object target, Object... args) {
+        try {
+            method.invoke(target, args);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Object newWriter(Object format) throws Exception {
+        Class<?> writerClass = Class.forName("DocumentWriter");
+        Object writer = writerClass.getConstructor(Charset.class).newInstance(Charset.defaultCharset());
+        writerClass.getMethod("setFormat", Class.forName("TextFormat")).invoke(writer, format);
+        return writer;
+    }
+
+    private static Object snapshot(Document doc) throws Exception {
+        return doc.getClass().getMethod("snapshot").invoke(doc);
+    }
+
+    /**
+     * Patch the file with the tracked changes using reflection and clear
+     * them, as the editor does. Returns the new layout, or null if the file
+     * could not be patched.
+     */
+    private static Object patch(Opened opened) throws Exception {
+        Object writer = newWriter(opened.format);
+        Class<?> snapshotClass = Class.forName("TextSnapshot");
+        Method patchMethod = writer.getClass().getMethod("patch", snapshotClass, File.class,
+            Class.forName("FileLayout"), opened.changes.getClass());
+        Object layout = patchMethod.invoke(writer, snapshot(opened.doc), new File(TEST_FILE_PATH),
+            opened.layout, opened.changes);
+        opened.changes.getClass().getMethod("clear").invoke(opened.changes);
+        opened.layout = layout;
+        return layout;
+    }
+
+    /**
+     * Check the file holds the same bytes a full save of the document writes.
+     */
+    private static void assertSavedAsFull(String message, Opened opened) throws Exception {
+        Object writer = newWriter(opened.format);
+        writer.getClass().getMethod("save", Document.class, File.class)
+            .invoke(writer, opened.doc, new File(EXPECTED_FILE_PATH));
+        byte[] expected = Files.readAllBytes(new File(EXPECTED_FILE_PATH).toPath());
+        byte[] actual = Files.readAllBytes(new File(TEST_FILE_PATH).toPath());
+        assertTrue(message, Arrays.equals(expected, actual));
+    }
+
+    /**
+     * Text of many blocks with multi-byte characters, surrogate pairs and
+     * line breaks landing on block boundaries.
+     */
+    private static String sampleText(int lines) {
+        Random random = new Random(11);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            text.append("line ").append(i);
+            if (i % 3 == 0) {
+                text.append(" caf\u00e9");
+            }
+            if (i % 7 == 0) {
+                text.append(" \ud83d\ude00");
+            }
+            text.append(" ").append("z".repeat(random.nextInt(30))).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Test that replacing a char with one of the same encoded size is
+     * written in place.
+     */
+    private static void testSameLengthEdit() throws Exception {
+        Opened opened = open(sampleText(40000));
+        int middle = opened.doc.getLength() / 2;
+        opened.doc.remove(middle, 1);
+        opened.doc.insertString(middle, "#", null);
+        opened.doc.insertString(10, "x", null);
+        opened.doc.remove(12, 1);
+        assertTrue("A same-size edit should be patched", patch(opened) != null);
+        assertSavedAsFull("The patched file should match a full save", opened);
+    }
+
+    /**
+     * Test that edits changing the size of the second half of the file
+     * rewrite only the tail, and that the updated layout allows more patches.
+     */
+    private static void testEditsInTail() throws Exception {
+        Opened opened = open(sampleText(40000));
+        opened.doc.insertString(opened.doc.getLength(), "appended \u00e9\n", null);
+        assertTrue("Appending should be patched", patch(opened) != null);
+        assertSavedAsFull("The file with the appended text should match a full save", opened);
+
+        int offset = opened.doc.getLength() * 3 / 4;
+        opened.doc.insertString(offset, "\u4e00\u4e01\n", null);
+        opened.doc.remove(offset - 100, 50);
+        assertTrue("Edits in the last quarter should be patched", patch(opened) != null);
+        assertSavedAsFull("The file with the tail rewritten should match a full save", opened);
+
+        opened.doc.remove(opened.doc.getLength() - 1000, 1000);
+        assertTrue("Removing from the end should be patched", patch(opened) != null);
+        assertSavedAsFull("The shortened file should match a full save", opened);
+    }
+
+    /**
+     * Test that text inserted and removed again leaves nothing to write.
+     */
+    private static void testUndoneEdit() throws Exception {
+        Opened opened = open(sampleText(40000));
+        byte[] before = Files.readAllBytes(new File(TEST_FILE_PATH).toPath());
+        opened.doc.insertString(5000, "temporary", null);
+        opened.doc.remove(5000, 9);
+        assertTrue("An undone edit should be patched", patch(opened) != null);
+        assertTrue("The file should be unchanged",
+            Arrays.equals(before, Files.readAllBytes(new File(TEST_FILE_PATH).toPath())));
+    }
+
+    /**
+     * Test that an edit changing the size of the first half of the file is
+     * left to a full save.
+     */
+    private static void testEditNearStart() throws Exception {
+        Opened opened = open(sampleText(40000));
+        opened.doc.insertString(100, "longer", null);
+        assertEquals("A size change near the start should not be patched", null, patch(opened));
+    }
+
+    /**
+     * Test that a file changed on disk since it was loaded is not patched.
+     */
+    private static void testChangedOnDisk() throws Exception {
+        Opened opened = open(sampleText(40000));
+        File file = new File(TEST_FILE_PATH);
+        file.setLastModified(file.lastModified() + 5000);
+        opened.doc.remove(200, 1);
+        opened.doc.insertString(200, "#", null);
+        assertEquals("A file changed on disk should not be patched", null, patch(opened));
+    }
+
+    /**
+     * Compare fixing one char in a large file by patching with saving it in
+     * full.
+     */
+    private static void testTiming() throws Exception {
+        Opened opened = open(sampleText(1000000));
+        long start = System.nanoTime();
+        Object writer = newWriter(opened.format);
+        writer.getClass().getMethod("save", Document.class, File.class)
+            .invoke(writer, opened.doc, new File(EXPECTED_FILE_PATH));
+        long fullMicros = (System.nanoTime() - start) / 1000;
+
+        opened.doc.remove(opened.doc.getLength() / 3, 1);
+        opened.doc.insertString(opened.doc.getLength() / 3, "#", null);
+        start = System.nanoTime();
+        assertTrue("A one-char fix should be patched", patch(opened) != null);
+        long patchMicros = (System.nanoTime() - start) / 1000;
+        System.out.println("Full save of " + new File(TEST_FILE_PATH).length() / 1024 + " KB: "
+            + fullMicros + " us, one-char patch: " + patchMicros + " us");
+    }
+}
@@ -0,0 +1,347 @@
+package test;
+
+import javax.swing.text.Document;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Test class for searching as you type, where each search builds on the
+ * ones before.
+ */
+public class IncrementalSearchTest {
+    // Simple assertion methods
+    private static void assertTrue(String message, boolean condition) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+        System.out.println("PASS: " + message);
+    }
+
+    private static void assertEquals(String message, Object expected, Object actual) {
+        if (expected == null && actual == null) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        if (expected != null && expected.equals(actual)) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        throw new AssertionError(message + " expected:<" + expected + "> but was:<" + actual + ">");
+    }
+
+    /**
+     * Main method to run the tests.
+     */
+    public static void main(String[] args) {
+        System.out.println("Running incremental search tests...");
+
+        try {
+            testTyping();
+            testOptions();
+            testStoppedSearches();
+            testStillStopping();
+            testEditedText();
+            testTiming();
+
+            System.out.println("All incremental search tests passed!");
+        } catch (AssertionError e) {
+            System.err.println("TEST FAILED: " + e.getMessage());
+            System.exit(1);
+        } catch (Exception e) {
+            System.err.println("TEST ERROR: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+    private static Object newSearch() throws Exception {
+        return Class.forName("IncrementalSearch").getConstructor().newInstance();
+    }
+
+    private static Object snapshot(Document doc) throws Exception {
+        return doc.getClass().getMethod("snapshot").invoke(doc);
+    }
+
+    /**
+     * Search for the text the way the search bar does, returning the start
+     * of each match, or null if stop ended the search.
+     */
+    private static List<Integer> find(Object search, Object snapshot, String query, BooleanSupplier stop)
+            throws Exception {
+        Class<?> listClass = Class.forName("MatchList");
+        Method size = listClass.getMethod("size");
+        Method getStart = listClass.getMethod("getStart", int.class);
+        List<Integer> found = new ArrayList<>();
+        Consumer<Object> results = batch -> {
+            try {
+                int count = (Integer) size.invoke(batch);
+                for (int i = 0; i < count; i++) {
+                    found.add((Integer) getStart.invoke(batch, i));
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        };
+        boolean done = (Boolean) search.getClass().getMethod("find", Class.forName("TextSnapshot"), String.class,
+            Consumer.class, BooleanSupplier.class).invoke(search, snapshot, query, results, stop);
+        return done ? found : null;
+    }
+
+    // Same, with the options of a text search
+    private static List<Integer> find(Object search, Object snapshot, Object options) throws Exception {
+        Class<?> listClass = Class.forName("MatchList");
+        Method size = listClass.getMethod("size");
+        Method getStart = listClass.getMethod("getStart", int.class);
+        List<Integer> found = new ArrayList<>();
+        Consumer<Object> results = batch -> {
+            try {
+                int count = (Integer) size.invoke(batch);
+                for (int i = 0; i < count; i++) {
+                    found.add((Integer) getStart.invoke(batch, i));
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        };
+        BooleanSupplier never = () -> false;
+        search.getClass().getMethod("find", Class.forName("TextSnapshot"), Class.forName("TextSearch"),
+            Consumer.class, BooleanSupplier.class).invoke(search, snapshot, options, results, never);
+        return found;
+    }
+
+    // The matches Find All reports with the same options
+    private static List<Integer> findAll(Object snapshot, Object options) throws Exception {
+        Class<?> hitsClass = Class.forName("TextSearch$Hits");
+        List<Integer> found = new ArrayList<>();
+        Object hits = java.lang.reflect.Proxy.newProxyInstance(hitsClass.getClassLoader(),
+            new Class<?>[] {hitsClass}, (proxy, method, args) -> found.add((Integer) args[0]));
+        options.getClass().getMethod("findAll", Class.forName("TextSnapshot"), hitsClass)
+            .invoke(options, snapshot, hits);
+        return found;
+    }
+
+    // The matches Find All reports: each occurrence that does not overlap the one before
+    private static List<Integer> expected(String text, String query) {
+        List<Integer> expected = new ArrayList<>();
+        int index = text.indexOf(query);
+        while (index >= 0) {
+            expected.add(index);
+            index = text.indexOf(query, index + query.length());
+        }
+        return expected;
+    }
+
+    /**
+     * Test typing and deleting chars, including texts that overlap
+     * themselves, whose matches are not all among those of their prefix.
+     */
+    private static void testTyping() throws Exception {
+        Random random = new Random(1);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 300000; i++) {
+            builder.append("aab \n".charAt(random.nextInt(5)));
+        }
+        Document doc = PieceTableTest.createDocument(builder.toString());
+        for (int i = 0; i < 500; i++) {
+            doc.insertString(random.nextInt(doc.getLength()), "aab", null);
+        }
+        String text = doc.getText(0, doc.getLength());
+        Object snapshot = snapshot(doc);
+        Object search = newSearch();
+
+        String[] typed = {"a", "aa", "aab", "aa", "aaa", "aaab", "aaab ", "aaa", "a", "ab", "aba", "abab", ""};
+        String mismatch = null;
+        for (String query : typed) {
+            if (!query.isEmpty() && !find(search, snapshot, query, () -> false).equals(expected(text, query))) {
+                mismatch = query;
+            }
+        }
+        assertEquals("Each text typed should find the same matches as Find All", null, mismatch);
+    }
+
+    /**
+     * Test typing with case ignored or whole words only, turned on and off
+     * between keystrokes, so searches build on ones with other options.
+     */
+    private static void testOptions() throws Exception {
+        Random random = new Random(20);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 200000; i++) {
+            builder.append("aAb _\n".charAt(random.nextInt(6)));
+        }
+        Document doc = PieceTableTest.createDocument(builder.toString());
+        for (int i = 0; i < 500; i++) {
+            doc.insertString(random.nextInt(doc.getLength()), "Aab", null);
+        }
+        Object snapshot = snapshot(doc);
+        Object search = newSearch();
+        Constructor<?> textSearch = Class.forName("TextSearch").getConstructor(String.class, boolean.class, boolean.class);
+
+        String[] typed = {"a", "aa", "aab", "aa", "aab", "aab ", "ab", "a", "ab", "aba", "b", "b_"};
+        String mismatch = null;
+        for (String query : typed) {
+            Object options = textSearch.newInstance(query, random.nextBoolean(), random.nextBoolean());
+            if (!find(search, snapshot, options).equals(findAll(snapshot, options))) {
+                mismatch = query;
+            }
+        }
+        assertEquals("Each text typed with options should find the same matches as Find All", null, mismatch);
+    }
+
+    /**
+     * Test that searches stopped part of the way by the next keystroke
+     * leave progress the next search can build on correctly.
+     */
+    private static void testStoppedSearches() throws Exception {
+        Random random = new Random(2);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 2000000; i++) {
+            builder.append("abc \n".charAt(random.nextInt(5)));
+        }
+        Document doc = PieceTableTest.createDocument(builder.toString());
+        String text = doc.getText(0, doc.getLength());
+        Object snapshot = snapshot(doc);
+        Object search = newSearch();
+
+        String query = "abcab c";
+        String mismatch = null;
+        for (int length = 1; length <= query.length(); length++) {
+            String prefix = query.substring(0, length);
+            int[] calls = {0};
+            int limit = random.nextInt(8);
+            assertEquals("A stopped search should report it", null,
+                find(search, snapshot, prefix, () -> ++calls[0] > limit));
+        }
+        for (int length = query.length(); length > 0; length--) {
+            String prefix = query.substring(0, length);
+            if (!find(search, snapshot, prefix, () -> false).equals(expected(text, prefix))) {
+                mismatch = prefix;
+            }
+        }
+        assertEquals("Searches after stopped ones should find every match", null, mismatch);
+    }
+
+    /**
+     * Test that a search building on one that is still stopping, and
+     * publishes another chunk after the new search has started, neither
+     * skips the text between the two nor finds less.
+     */
+    private static void testStillStopping() throws Exception {
+        Random random = new Random(15);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 2000000; i++) {
+            builder.append("abc \n".charAt(random.nextInt(5)));
+        }
+        Document doc = PieceTableTest.createDocument(builder.toString());
+        String text = doc.getText(0, doc.getLength());
+        Object snapshot = snapshot(doc);
+        Object search = newSearch();
+
+        // The first search waits after its first chunk, then scans one more
+        // before it sees it was stopped
+        CountDownLatch waiting = new CountDownLatch(1);
+        CountDownLatch go = new CountDownLatch(1);
+        int[] calls = {0};
+        Thread first = new Thread(() -> {
+            try {
+                find(search, snapshot, "ab", () -> {
+                    calls[0]++;
+                    if (calls[0] == 2) {
+                        waiting.countDown();
+                        try {
+                            go.await();
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                    return calls[0] > 2;
+                });
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        first.start();
+        waiting.await();
+
+        // The second lets it publish as soon as it has chosen what to build on
+        boolean[] released = {false};
+        List<Integer> found = find(search, snapshot, "abc", () -> {
+            if (!released[0]) {
+                released[0] = true;
+                go.countDown();
+                try {
+                    first.join();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return false;
+        });
+        assertTrue("The earlier search published past where the new one started", calls[0] == 3 && released[0]);
+        assertTrue("Every match is found", expected(text, "abc").equals(found));
+        assertTrue("And by the searches building on it",
+            expected(text, "abc ").equals(find(search, snapshot, "abc ", () -> false)));
+    }
+
+    /**
+     * Test that a search on a new snapshot does not build on what was found
+     * in the old text.
+     */
+    private static void testEditedText() throws Exception {
+        Document doc = PieceTableTest.createDocument("one two one two");
+        Object search = newSearch();
+        assertEquals("Matches before the edit", List.of(0, 8), find(search, snapshot(doc), "one", () -> false));
+        doc.insertString(4, "one ", null);
+        String text = doc.getText(0, doc.getLength());
+        assertEquals("Matches after the edit", expected(text, "one t"),
+            find(search, snapshot(doc), "one t", () -> false));
+    }
+
+    /**
+     * Time each keystroke of a search typed into a 100 MB document, from
+     * the keystroke until all matches are found.
+     */
+    private static void testTiming() throws Exception {
+        int lines = 1000000;
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            text.append(i % 100 == 0 ? "ERROR " : "INFO ").append("request ").append(i).append(" from host")
+                .append(i % 1000).append(" took ").append(i % 997).append(" ms, queue ").append(i % 31)
+                .append(" of 32, all is well\n");
+        }
+        Document doc = (Document) Class.forName("PieceTableDocument").getConstructor(CharBuffer.class)
+            .newInstance(CharBuffer.wrap(text.toString().toCharArray()));
+        Object snapshot = snapshot(doc);
+        Object search = newSearch();
+
+        String query = "request 42424 ";
+        long first = 0;
+        long slowestRefined = 0;
+        StringBuilder report = new StringBuilder();
+        for (int length = 1; length <= query.length(); length++) {
+            long start = System.nanoTime();
+            List<Integer> found = find(search, snapshot, query.substring(0, length), () -> false);
+            long nanos = System.nanoTime() - start;
+            if (length == 1) {
+                first = nanos;
+            } else if (length > 3) {
+                slowestRefined = Math.max(slowestRefined, nanos);
+            }
+            report.append(String.format(" %.1f", nanos / 1e6));
+            if (length == query.length()) {
+                assertEquals("The whole text should be found once", 1, found.size());
+            }
+        }
+        System.out.println("Typing \"" + query + "\" into " + doc.getLength() / (1024 * 1024) + " MB, ms per keystroke:"
+            + report);
+        assertTrue("Searches building on the ones before should beat scanning the text",
+            slowestRefined < first);
+    }
+}
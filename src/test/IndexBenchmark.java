@@ -0,0 +1,138 @@
+package test;
+
+import javax.swing.text.Document;
+import java.lang.reflect.Method;
+import java.nio.CharBuffer;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmark for searching a large document with and without the trigram
+ * index. It builds a log-like text, times building the index, and then
+ * times Find All and Find Next from the start for words of different
+ * rarity, and a regex, both over all of the text and over the regions the
+ * index leaves.
+ *
+ * For each search it prints the time of both, the share of the text left
+ * to search and the number of matches, which has to be the same.
+ *
+ * Usage: java -cp src test.IndexBenchmark [lines]
+ */
+public class IndexBenchmark {
+    private static final int ROUNDS = 5;
+
+    private interface Search {
+        int run(Object regions) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            String level = i % 50000 == 7 ? "FATAL" : i % 100 == 0 ? "ERROR" : "INFO";
+            text.append(level).append(" request ").append(i).append(" from host").append(i % 1000)
+                .append(" took ").append(i % 997).append(" ms\n");
+        }
+        Document doc = (Document) Class.forName("PieceTableDocument").getConstructor(CharBuffer.class)
+            .newInstance(CharBuffer.wrap(text.toString().toCharArray()));
+        Object snapshot = doc.getClass().getMethod("snapshot").invoke(doc);
+        Class<?> indexClass = Class.forName("TrigramIndex");
+        Method build = indexClass.getMethod("build", Class.forName("TextSnapshot"), BooleanSupplier.class);
+        BooleanSupplier never = () -> false;
+
+        long start = System.nanoTime();
+        Object index = build.invoke(null, snapshot, never);
+        long buildMillis = (System.nanoTime() - start) / 1000000;
+        if (index == null) {
+            System.out.println("The text is too short to index, or indexing is turned off");
+            return;
+        }
+        long memory = (Long) indexClass.getMethod("memoryUsed").invoke(index);
+        System.out.println(lines + " lines, " + doc.getLength() / 1024 + " KB; index built in " + buildMillis
+            + " ms, " + memory / 1024 + " KB");
+        System.out.println("search                          linear(ms)  indexed(ms)  searched  matches");
+
+        for (String word : new String[] {"FATAL", "host999 ", "request 123456 ", "ERROR", "absent"}) {
+            Object regions = indexClass.getMethod("candidates", String.class).invoke(index, word);
+            measure("find all \"" + word + "\"", doc, regions, r -> findAll(doc, word, r));
+            measure("find next \"" + word + "\"", doc, regions, r -> findNext(doc, word, r));
+        }
+        Pattern pattern = Pattern.compile("FATAL request \\d+", Pattern.MULTILINE);
+        Object regions = indexClass.getMethod("candidates", Pattern.class).invoke(index, pattern);
+        measure("regex /" + pattern.pattern() + "/", doc, regions, r -> findRegex(snapshot, pattern, r));
+    }
+
+    private static void measure(String name, Document doc, Object regions, Search search) throws Exception {
+        long linear = Long.MAX_VALUE;
+        long indexed = Long.MAX_VALUE;
+        int linearCount = 0;
+        int indexedCount = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            linearCount = search.run(null);
+            linear = Math.min(linear, System.nanoTime() - start);
+            start = System.nanoTime();
+            indexedCount = search.run(regions);
+            indexed = Math.min(indexed, System.nanoTime() - start);
+        }
+        if (linearCount != indexedCount) {
+            throw new AssertionError(name + ": " + linearCount + " matches linear, " + indexedCount + " indexed");
+        }
+        double share = regions == null ? 100 : 100.0 * covered(regions) / Math.max(1, doc.getLength());
+        System.out.printf("%-30s %11.2f %12.2f %8.2f%% %8d%n", name, linear / 1e6, indexed / 1e6, share,
+            linearCount);
+    }
+
+    private static int covered(Object regions) throws Exception {
+        Class<?> listClass = regions.getClass();
+        int total = 0;
+        int size = (Integer) listClass.getMethod("size").invoke(regions);
+        for (int i = 0; i < size; i++) {
+            total += (Integer) listClass.getMethod("getEnd", int.class).invoke(regions, i)
+                - (Integer) listClass.getMethod("getStart", int.class).invoke(regions, i);
+        }
+        return total;
+    }
+
+    // Counts the matches handed over in batches
+    private static Consumer<Object> counter(int[] count) {
+        return batch -> {
+            try {
+                count[0] += (Integer) batch.getClass().getMethod("size").invoke(batch);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        };
+    }
+
+    private static int findAll(Document doc, String word, Object regions) throws Exception {
+        Class<?> searchClass = Class.forName("TextSearch");
+        Object search = searchClass.getConstructor(String.class).newInstance(word);
+        Object snapshot = doc.getClass().getMethod("snapshot").invoke(doc);
+        int[] count = {0};
+        BooleanSupplier never = () -> false;
+        searchClass.getMethod("findAll", Class.forName("TextSnapshot"), Class.forName("MatchList"),
+            Consumer.class, BooleanSupplier.class).invoke(search, snapshot, regions, counter(count), never);
+        return count[0];
+    }
+
+    // Returns 1 if there is a match, so the count can be compared
+    private static int findNext(Document doc, String word, Object regions) throws Exception {
+        Class<?> searchClass = Class.forName("TextSearch");
+        Object search = searchClass.getConstructor(String.class).newInstance(word);
+        int offset = (Integer) searchClass.getMethod("findNext", Document.class, int.class,
+            Class.forName("MatchList")).invoke(search, doc, 0, regions);
+        return offset >= 0 ? 1 : 0;
+    }
+
+    private static int findRegex(Object snapshot, Pattern pattern, Object regions) throws Exception {
+        Class<?> searchClass = Class.forName("RegexSearch");
+        Object search = searchClass.getConstructor(Pattern.class).newInstance(pattern);
+        int[] count = {0};
+        BooleanSupplier never = () -> false;
+        searchClass.getMethod("findAll", Class.forName("TextSnapshot"), Class.forName("MatchList"),
+            Consumer.class, BooleanSupplier.class).invoke(search, snapshot, regions, counter(count), never);
+        return count[0];
+    }
+}
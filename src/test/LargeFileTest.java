@@ -0,0 +1,159 @@
+package test;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Test class for the line index and paged reading behind large file mode.
+ */
+public class LargeFileTest {
+    // Simple assertion methods
+    private static void assertTrue(String message, boolean condition) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+        System.out.println("PASS: " + message);
+    }
+
+    private static void assertEquals(String message, Object expected, Object actual) {
+        if (expected == null && actual == null) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        if (expected != null && expected.equals(actual)) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        throw new AssertionError(message + " expected:<" + expected + "> but was:<" + actual + ">");
+    }
+
+    // Test file path
+    private static final String TEST_FILE_PATH = System.getProperty("java.io.tmpdir") + "/texteditor_test_large.txt";
+
+    /**
+     * Main method to run the tests.
+     */
+    public static void main(String[] args) {
+        System.out.println("Running large file tests...");
+
+        try {
+            testEmptyFile();
+            testLineEndings();
+            testRandomLines();
+
+            System.out.println("All large file tests passed!");
+        } catch (AssertionError e) {
+            System.err.println("TEST FAILED: " + e.getMessage());
+            System.exit(1);
+        } catch (Exception e) {
+            System.err.println("TEST ERROR: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(2);
+        } finally {
+            new File(TEST_FILE_PATH).delete();
+        }
+    }
+
+    /**
+     * Open the test file as a LargeFile and build its index using reflection.
+     */
+    private static Object open(String text) throws Exception {
+        Files.write(new File(TEST_FILE_PATH).toPath(), text.getBytes(StandardCharsets.UTF_8));
+        Object largeFile = Class.forName("LargeFile").getConstructor(File.class, Charset.class)
+            .newInstance(new File(TEST_FILE_PATH), StandardCharsets.UTF_8);
+        BooleanSupplier neverStop = () -> false;
+        largeFile.getClass().getMethod("buildIndex", BooleanSupplier.class).invoke(largeFile, neverStop);
+        return largeFile;
+    }
+
+    private static long lineCount(Object largeFile) throws Exception {
+        Object index = largeFile.getClass().getMethod("getIndex").invoke(largeFile);
+        return (Long) index.getClass().getMethod("getLineCount").invoke(index);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> getLines(Object largeFile, long first, int count) throws Exception {
+        try {
+            return (List<String>) largeFile.getClass().getMethod("getLines", long.class, int.class, int.class)
+                .invoke(largeFile, first, count, 1 << 20);
+        } catch (InvocationTargetException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+
+    private static void close(Object largeFile) throws Exception {
+        largeFile.getClass().getMethod("close").invoke(largeFile);
+    }
+
+    /**
+     * Test that an empty file has a single empty line.
+     */
+    private static void testEmptyFile() throws Exception {
+        Object largeFile = open("");
+        assertEquals("Empty file should have one line", 1L, lineCount(largeFile));
+        assertEquals("The line should be empty", List.of(""), getLines(largeFile, 0, 10));
+        close(largeFile);
+    }
+
+    /**
+     * Test that CRLF line breaks are dropped and a trailing break starts an
+     * empty last line, the same as in the text area.
+     */
+    private static void testLineEndings() throws Exception {
+        Object largeFile = open("one\r\ntwo\n\nfour\n");
+        assertEquals("Line count should include the empty last line", 5L, lineCount(largeFile));
+        assertEquals("Lines should be read without line breaks",
+            List.of("one", "two", "", "four", ""), getLines(largeFile, 0, 10));
+        assertEquals("Reading past the end should return nothing", List.of(), getLines(largeFile, 5, 1));
+        close(largeFile);
+    }
+
+    /**
+     * Test random lines of a file with many short lines and some longer
+     * than a checkpoint, read both in jumps and while scrolling.
+     */
+    private static void testRandomLines() throws Exception {
+        Random random = new Random(7);
+        List<String> expected = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200000; i++) {
+            String line;
+            if (i % 50000 == 7) {
+                line = "long line " + i + " " + "x".repeat(100 * 1024);
+            } else {
+                line = "line " + i + " \u00e9 " + "y".repeat(random.nextInt(40));
+            }
+            expected.add(line);
+            text.append(line).append('\n');
+        }
+        text.append("last");
+        expected.add("last");
+
+        Object largeFile = open(text.toString());
+        assertEquals("Line count should match", (long) expected.size(), lineCount(largeFile));
+
+        boolean allMatch = true;
+        long start = System.nanoTime();
+        for (int i = 0; i < 2000; i++) {
+            int line = random.nextInt(expected.size());
+            List<String> lines = getLines(largeFile, line, 40);
+            allMatch &= lines.equals(expected.subList(line, Math.min(line + 40, expected.size())));
+        }
+        long jumpMicros = (System.nanoTime() - start) / 1000 / 2000;
+        assertTrue("Random screens should match the file", allMatch);
+
+        for (int line = 99000; line < 101000; line++) {
+            allMatch &= getLines(largeFile, line, 1).get(0).equals(expected.get(line));
+        }
+        assertTrue("Scrolling line by line should match the file", allMatch);
+        System.out.println("Average time to read a screen at a random line: " + jumpMicros + " us");
+        close(largeFile);
+    }
+}
@@ -0,0 +1,265 @@
+package test;
+
+import javax.swing.event.DocumentListener;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.undo.UndoManager;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.CharBuffer;
+import java.util.Random;
+
+/**
+ * Test class for the line start index: it has to agree with the document's
+ * own line elements through any edits, take less than 8 bytes a line, and
+ * find lines in a large document quickly.
+ */
+public class LineStartsTest {
+    // Simple assertion methods
+    private static void assertTrue(String message, boolean condition) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+        System.out.println("PASS: " + message);
+    }
+
+    private static void assertEquals(String message, Object expected, Object actual) {
+        if (expected == null && actual == null) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        if (expected != null && expected.equals(actual)) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        throw new AssertionError(message + " expected:<" + expected + "> but was:<" + actual + ">");
+    }
+
+    private static Class<?> indexClass;
+    private static Method getLineCount;
+    private static Method getLineStart;
+    private static Method getLineOfOffset;
+
+    /**
+     * Main method to run the tests.
+     */
+    public static void main(String[] args) {
+        System.out.println("Running line starts tests...");
+
+        try {
+            indexClass = Class.forName("LineStarts");
+            getLineCount = indexClass.getMethod("getLineCount");
+            getLineStart = indexClass.getMethod("getLineStart", int.class);
+            getLineOfOffset = indexClass.getMethod("getLineOfOffset", int.class);
+
+            testLines();
+            testRandomEdits();
+            testReplaceAllAndUndo();
+            testLargeDocument();
+
+            System.out.println("All line starts tests passed!");
+        } catch (AssertionError e) {
+            System.err.println("TEST FAILED: " + e.getMessage());
+            System.exit(1);
+        } catch (Exception e) {
+            System.err.println("TEST ERROR: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+    private static Document document(String text) throws Exception {
+        return (Document) Class.forName("PieceTableDocument").getConstructor(CharBuffer.class)
+            .newInstance(CharBuffer.wrap(text.toCharArray()));
+    }
+
+    // Indexes the document and keeps the index up to date with it
+    private static Object index(Document doc) throws Exception {
+        Object index = indexClass.getConstructor(Document.class).newInstance(doc);
+        doc.addDocumentListener((DocumentListener) index);
+        return index;
+    }
+
+    private static int lineCount(Object index) throws Exception {
+        return (Integer) getLineCount.invoke(index);
+    }
+
+    private static int lineStart(Object index, int line) throws Exception {
+        return (Integer) getLineStart.invoke(index, line);
+    }
+
+    private static int lineOf(Object index, int offset) throws Exception {
+        return (Integer) getLineOfOffset.invoke(index, offset);
+    }
+
+    // Whether the index agrees with the document's line elements on every
+    // line, and on the line of every offset
+    private static boolean agrees(Object index, Document doc) throws Exception {
+        Element root = doc.getDefaultRootElement();
+        if (lineCount(index) != root.getElementCount()) {
+            return false;
+        }
+        for (int i = 0; i < root.getElementCount(); i++) {
+            if (lineStart(index, i) != root.getElement(i).getStartOffset()) {
+                return false;
+            }
+        }
+        for (int offset = 0; offset <= doc.getLength(); offset++) {
+            if (lineOf(index, offset) != root.getElementIndex(offset)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Test the lines of a few texts, and the edges of lines.
+     */
+    private static void testLines() throws Exception {
+        Document doc = document("");
+        Object index = index(doc);
+        assertEquals("An empty text has one line", 1, lineCount(index));
+        assertEquals("Offset 0 is on it", 0, lineOf(index, 0));
+
+        doc = document("one\ntwo\n\nfour\n");
+        index = index(doc);
+        assertEquals("A trailing line break starts an empty line", 5, lineCount(index));
+        assertEquals("Second line start", 4, lineStart(index, 1));
+        assertEquals("Empty line start", 8, lineStart(index, 2));
+        assertEquals("Last line start", 14, lineStart(index, 4));
+        assertEquals("A line break is on the line it ends", 0, lineOf(index, 3));
+        assertEquals("Offset after a line break is on the next line", 1, lineOf(index, 4));
+        assertEquals("End of the text is on the last line", 4, lineOf(index, 14));
+        assertTrue("Agrees with the line elements", agrees(index, doc));
+
+        doc.insertString(0, "zero\n", null);
+        assertEquals("Insert before moves the lines", 9, lineStart(index, 2));
+        doc.insertString(doc.getLength(), "five", null);
+        doc.remove(3, 3);
+        assertTrue("Agrees with the line elements after edits", agrees(index, doc));
+        boolean thrown = false;
+        try {
+            lineStart(index, lineCount(index));
+        } catch (java.lang.reflect.InvocationTargetException e) {
+            thrown = e.getCause() instanceof IndexOutOfBoundsException;
+        }
+        assertTrue("A line past the last is out of bounds", thrown);
+    }
+
+    /**
+     * Test random inserts and removes, some far apart and some where the
+     * last edit was, against the document's line elements.
+     */
+    private static void testRandomEdits() throws Exception {
+        Random random = new Random(18);
+        String[] inserts = {"a", "\n", "ab\ncd", "\n\n\n", "xyz", "line\nline\n"};
+        for (int round = 0; round < 10; round++) {
+            Document doc = document("first\nsecond\nthird");
+            Object index = index(doc);
+            int caret = 0;
+            boolean same = true;
+            for (int edit = 0; edit < 400 && same; edit++) {
+                if (random.nextInt(4) == 0) {
+                    caret = random.nextInt(doc.getLength() + 1);
+                }
+                caret = Math.min(caret, doc.getLength());
+                if (random.nextInt(3) > 0 || doc.getLength() < 10) {
+                    String text = inserts[random.nextInt(inserts.length)];
+                    doc.insertString(caret, text, null);
+                    caret += text.length();
+                } else {
+                    int count = Math.min(doc.getLength() - caret, 1 + random.nextInt(8));
+                    doc.remove(caret, count);
+                }
+                same = agrees(index, doc);
+            }
+            assertTrue("Round " + round + ": agrees with the line elements after random edits", same);
+        }
+    }
+
+    /**
+     * Test that Replace All, which fires its events in its own way, and
+     * undoing it keep the index right.
+     */
+    private static void testReplaceAllAndUndo() throws Exception {
+        Document doc = document("a cat\nthe cat sat\n\ncat cat\nend");
+        Object index = index(doc);
+        UndoManager undo = new UndoManager();
+        doc.addUndoableEditListener(undo);
+        Class<?> listClass = Class.forName("MatchList");
+        Method replaceAll = doc.getClass().getMethod("replaceAll", listClass, String.class);
+        Method add = listClass.getMethod("add", int.class, int.class);
+
+        String text = doc.getText(0, doc.getLength());
+        for (String replacement : new String[] {"dog", "big\ncat", ""}) {
+            Object matches = listClass.getConstructor().newInstance();
+            text = doc.getText(0, doc.getLength());
+            for (int i = text.indexOf("cat"); i >= 0; i = text.indexOf("cat", i + 3)) {
+                add.invoke(matches, i, i + 3);
+            }
+            replaceAll.invoke(doc, matches, replacement);
+            assertTrue("Agrees after replacing with \"" + replacement.replace("\n", "\\n") + "\"", agrees(index, doc));
+        }
+        while (undo.canUndo()) {
+            undo.undo();
+        }
+        assertTrue("Agrees after undoing them all", agrees(index, doc));
+        assertEquals("Back to the first text", "a cat\nthe cat sat\n\ncat cat\nend", doc.getText(0, doc.getLength()));
+    }
+
+    /**
+     * Test the size of the index and the time to build it and look up lines
+     * in a document of a million lines.
+     */
+    private static void testLargeDocument() throws Exception {
+        int lines = 1000000;
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        Document doc = document(text.toString());
+        long start = System.nanoTime();
+        Object index = index(doc);
+        long buildMillis = (System.nanoTime() - start) / 1000000;
+        assertEquals("Every line indexed", lines + 1, lineCount(index));
+
+        Field startsField = indexClass.getDeclaredField("starts");
+        startsField.setAccessible(true);
+        int capacity = ((int[]) startsField.get(index)).length;
+        double bytesPerLine = 4.0 * capacity / lineCount(index);
+        System.out.printf("Built in %d ms, %.2f bytes per line%n", buildMillis, bytesPerLine);
+        assertTrue("Less than 8 bytes per line", bytesPerLine < 8);
+
+        Random random = new Random(5);
+        int lookups = 1000000;
+        start = System.nanoTime();
+        long sum = 0;
+        for (int i = 0; i < lookups; i++) {
+            int offset = random.nextInt(doc.getLength() + 1);
+            sum += lineOf(index, offset);
+        }
+        long lookupNanos = (System.nanoTime() - start) / lookups;
+        System.out.println("Line lookup: " + lookupNanos + " ns (" + sum % 10 + ")");
+
+        // Type in a few places, as when going to lines and editing them
+        start = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            int line = random.nextInt(lineCount(index));
+            int offset = lineStart(index, line);
+            for (int j = 0; j < 20; j++) {
+                doc.insertString(offset + j, j % 10 == 9 ? "\n" : "x", null);
+            }
+        }
+        long editMillis = (System.nanoTime() - start) / 1000000;
+        System.out.println("20000 keystrokes on 1000 lines: " + editMillis + " ms");
+        assertEquals("Line breaks typed are indexed", lines + 1 + 2000, lineCount(index));
+        Element root = doc.getDefaultRootElement();
+        boolean same = true;
+        for (int i = 0; i < 10000 && same; i++) {
+            int line = random.nextInt(root.getElementCount());
+            same = lineStart(index, line) == root.getElement(line).getStartOffset();
+        }
+        assertTrue("Agrees with the line elements after typing", same);
+        assertTrue("A line lookup takes microseconds", lookupNanos < 20000);
+    }
+}
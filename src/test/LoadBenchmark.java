@@ -0,0 +1,159 @@
+package test;
+
+import javax.swing.SwingWorker;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.Document;
+import javax.swing.undo.UndoManager;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Benchmark for opening a file into a document. It compares appending the
+ * file line by line to a document that has the editor's undo manager and
+ * change listener attached, as opening used to work, with the same appends
+ * and no listeners, and with the bulk load the editor does now: decode the
+ * file in one go and fill a new document before any listener is attached.
+ *
+ * For each it prints the lines loaded per second and the bytes allocated
+ * per line on the loading thread.
+ *
+ * Usage: java -cp src test.LoadBenchmark [lines]
+ */
+public class LoadBenchmark {
+    private static final String BENCH_FILE_PATH = System.getProperty("java.io.tmpdir") + "/texteditor_bench_load.txt";
+    private static final int ROUNDS = 3;
+
+    private interface Load {
+        Document run(File file) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        File file = new File(BENCH_FILE_PATH);
+        try {
+            createFile(file, lines);
+            System.out.println(lines + " lines, " + file.length() / 1024 + " KB");
+            System.out.println("method                      lines/s    alloc(MB)  bytes/line");
+            measure("append with listeners", file, lines, LoadBenchmark::appendWithListeners);
+            measure("append, listeners detached", file, lines, LoadBenchmark::appendDetached);
+            measure("bulk load", file, lines, LoadBenchmark::bulkLoad);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void createFile(File file, int lines) throws Exception {
+        try (Writer out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < lines; i++) {
+                out.write("Line " + i + ": the quick brown fox jumps over the lazy dog\n");
+            }
+        }
+    }
+
+    private static void measure(String name, File file, int lines, Load load) throws Exception {
+        // Warm up, then keep the best round
+        load.run(file);
+        double best = Double.MAX_VALUE;
+        long allocated = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            System.gc();
+            long bytesBefore = allocatedBytes();
+            long start = System.nanoTime();
+            Document doc = load.run(file);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long bytes = allocatedBytes() - bytesBefore;
+            if (doc.getLength() == 0) {
+                throw new IllegalStateException("Nothing was loaded");
+            }
+            if (seconds < best) {
+                best = seconds;
+                allocated = bytes;
+            }
+        }
+        System.out.printf("%-26s %9.0f  %10.1f  %10.1f%n",
+            name, lines / best, allocated / 1048576.0, (double) allocated / lines);
+    }
+
+    // Bytes allocated by the current thread so far, or 0 where the JVM cannot tell
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static Document newDocument() throws Exception {
+        return (Document) Class.forName("PieceTableDocument").getConstructor().newInstance();
+    }
+
+    /**
+     * The old way of opening a file: every line is an insert that the undo
+     * manager records and the change listener hears about.
+     */
+    private static Document appendWithListeners(File file) throws Exception {
+        Document doc = newDocument();
+        UndoManager undoManager = new UndoManager();
+        // Keep every edit, as an editor that opens a long file has to
+        undoManager.setLimit(Integer.MAX_VALUE);
+        doc.addUndoableEditListener(undoManager);
+        doc.addDocumentListener(new ChangeCounter());
+        appendLines(doc, file);
+        undoManager.discardAllEdits();
+        return doc;
+    }
+
+    private static Document appendDetached(File file) throws Exception {
+        Document doc = newDocument();
+        appendLines(doc, file);
+        return doc;
+    }
+
+    private static void appendLines(Document doc, File file) throws Exception {
+        try (BufferedReader reader = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                doc.insertString(doc.getLength(), line + "\n", null);
+            }
+        }
+    }
+
+    /**
+     * The way the editor opens a file now, through a FileLoader and a
+     * document made from the decoded buffer, with the listeners added after.
+     */
+    private static Document bulkLoad(File file) throws Exception {
+        SwingWorker<?, ?> loader = (SwingWorker<?, ?>) Class.forName("FileLoader").getConstructor(File.class)
+            .newInstance(file);
+        loader.run();
+        Document doc = (Document) Class.forName("PieceTableDocument").getConstructor(CharBuffer.class)
+            .newInstance((CharBuffer) loader.get());
+        doc.addUndoableEditListener(new UndoManager());
+        doc.addDocumentListener(new ChangeCounter());
+        return doc;
+    }
+
+    // Stands in for the editor's change listener
+    private static class ChangeCounter implements DocumentListener {
+        int changes;
+
+        public void insertUpdate(DocumentEvent e) {
+            changes++;
+        }
+
+        public void removeUpdate(DocumentEvent e) {
+            changes++;
+        }
+
+        public void changedUpdate(DocumentEvent e) {
+            changes++;
+        }
+    }
+}
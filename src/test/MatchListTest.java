@@ -0,0 +1,241 @@
+package test;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Test class for the match list following edits: matches after an edit
+ * move with it, matches it breaks are dropped, and edits cost about the
+ * same however many matches there are.
+ */
+public class MatchListTest {
+    // Simple assertion methods
+    private static void assertTrue(String message, boolean condition) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+        System.out.println("PASS: " + message);
+    }
+
+    private static void assertEquals(String message, Object expected, Object actual) {
+        if (expected == null && actual == null) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        if (expected != null && expected.equals(actual)) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        throw new AssertionError(message + " expected:<" + expected + "> but was:<" + actual + ">");
+    }
+
+    private static Class<?> listClass;
+    private static Method add;
+    private static Method size;
+    private static Method getStart;
+    private static Method getEnd;
+    private static Method indexAtOrAfter;
+    private static Method insert;
+    private static Method remove;
+
+    /**
+     * Main method to run the tests.
+     */
+    public static void main(String[] args) {
+        System.out.println("Running match list tests...");
+
+        try {
+            listClass = Class.forName("MatchList");
+            add = listClass.getMethod("add", int.class, int.class);
+            size = listClass.getMethod("size");
+            getStart = listClass.getMethod("getStart", int.class);
+            getEnd = listClass.getMethod("getEnd", int.class);
+            indexAtOrAfter = listClass.getMethod("indexAtOrAfter", int.class);
+            insert = listClass.getMethod("insert", int.class, int.class);
+            remove = listClass.getMethod("remove", int.class, int.class);
+
+            testEdits();
+            testRandomEdits();
+            testAddAfterEdits();
+            testTiming();
+
+            System.out.println("All match list tests passed!");
+        } catch (AssertionError e) {
+            System.err.println("TEST FAILED: " + e.getMessage());
+            System.exit(1);
+        } catch (Exception e) {
+            System.err.println("TEST ERROR: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+    private static Object list(int... bounds) throws Exception {
+        Object list = listClass.getConstructor().newInstance();
+        for (int i = 0; i < bounds.length; i += 2) {
+            add.invoke(list, bounds[i], bounds[i + 1]);
+        }
+        return list;
+    }
+
+    private static String describe(Object list) throws Exception {
+        StringBuilder text = new StringBuilder();
+        int count = (Integer) size.invoke(list);
+        for (int i = 0; i < count; i++) {
+            text.append(i == 0 ? "" : " ").append(getStart.invoke(list, i)).append('-').append(getEnd.invoke(list, i));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Test inserts and removes before, after, at the edges of and inside
+     * matches.
+     */
+    private static void testEdits() throws Exception {
+        Object list = list(10, 15, 20, 25, 30, 35);
+        insert.invoke(list, 0, 3);
+        assertEquals("Insert before every match moves them all", "13-18 23-28 33-38", describe(list));
+        insert.invoke(list, 18, 2);
+        assertEquals("Insert right after a match keeps it", "13-18 25-30 35-40", describe(list));
+        insert.invoke(list, 25, 1);
+        assertEquals("Insert right before a match moves it", "13-18 26-31 36-41", describe(list));
+        insert.invoke(list, 28, 4);
+        assertEquals("Insert inside a match drops it", "13-18 40-45", describe(list));
+        remove.invoke(list, 20, 5);
+        assertEquals("Remove between matches moves the later ones", "13-18 35-40", describe(list));
+        remove.invoke(list, 18, 17);
+        assertEquals("Remove up to the edges of matches keeps them", "13-18 18-23", describe(list));
+        remove.invoke(list, 17, 2);
+        assertEquals("Remove overlapping two matches drops both", "", describe(list));
+
+        list = list(0, 4, 8, 12, 16, 20);
+        remove.invoke(list, 2, 16);
+        assertEquals("Remove over many matches drops them all", "", describe(list));
+        assertEquals("Nothing is left to find", 0, indexAtOrAfter.invoke(list, 0));
+
+        list = list(0, 4, 8, 12, 16, 20);
+        insert.invoke(list, 8, 100);
+        assertEquals("Binary search sees the shifts", 1, indexAtOrAfter.invoke(list, 9));
+        assertEquals("Binary search finds the shifted match", 1, indexAtOrAfter.invoke(list, 108));
+        assertEquals("Binary search past the shifted match", 2, indexAtOrAfter.invoke(list, 109));
+    }
+
+    // The matches kept the plain way, shifting each on every edit
+    private static void modelInsert(List<int[]> model, int offset, int length) {
+        model.removeIf(m -> m[0] < offset && m[1] > offset);
+        for (int[] m : model) {
+            if (m[0] >= offset) {
+                m[0] += length;
+                m[1] += length;
+            }
+        }
+    }
+
+    private static void modelRemove(List<int[]> model, int offset, int length) {
+        int end = offset + length;
+        model.removeIf(m -> m[0] < end && (m[1] > offset || m[0] >= offset));
+        for (int[] m : model) {
+            if (m[0] >= end) {
+                m[0] -= length;
+                m[1] -= length;
+            }
+        }
+    }
+
+    /**
+     * Test random edits against matches shifted one by one.
+     */
+    private static void testRandomEdits() throws Exception {
+        Random random = new Random(17);
+        for (int round = 0; round < 20; round++) {
+            Object list = listClass.getConstructor().newInstance();
+            List<int[]> model = new ArrayList<>();
+            int length = 0;
+            for (int i = 0; i < 500; i++) {
+                int start = length + random.nextInt(10);
+                int end = start + random.nextInt(6);
+                add.invoke(list, start, end);
+                model.add(new int[] {start, end});
+                length = end;
+            }
+            length += 10;
+            boolean same = true;
+            for (int edit = 0; edit < 300 && same; edit++) {
+                int offset = random.nextInt(length + 1);
+                if (random.nextBoolean() || length < 20) {
+                    int added = 1 + random.nextInt(8);
+                    insert.invoke(list, offset, added);
+                    modelInsert(model, offset, added);
+                    length += added;
+                } else {
+                    int removed = Math.min(length - offset, 1 + random.nextInt(12));
+                    if (removed == 0) {
+                        continue;
+                    }
+                    remove.invoke(list, offset, removed);
+                    modelRemove(model, offset, removed);
+                    length -= removed;
+                }
+                same = describe(list).equals(describeModel(model));
+            }
+            assertTrue("Round " + round + ": matches follow random edits like the plain way", same);
+        }
+    }
+
+    private static String describeModel(List<int[]> model) {
+        StringBuilder text = new StringBuilder();
+        for (int[] m : model) {
+            text.append(text.length() == 0 ? "" : " ").append(m[0]).append('-').append(m[1]);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Test that matches added after edits, past the ones shifted, and past
+     * the room the list started with, keep their offsets.
+     */
+    private static void testAddAfterEdits() throws Exception {
+        Object list = list(0, 2, 10, 12);
+        insert.invoke(list, 5, 3);
+        remove.invoke(list, 0, 1);
+        StringBuilder expected = new StringBuilder("12-14");
+        for (int i = 0; i < 200; i++) {
+            add.invoke(list, 20 + i * 3, 21 + i * 3);
+            expected.append(' ').append(20 + i * 3).append('-').append(21 + i * 3);
+            if (i == 100) {
+                insert.invoke(list, 0, 0);
+            }
+        }
+        assertEquals("Matches added after edits keep their offsets", expected.toString(), describe(list));
+        insert.invoke(list, 13, 1);
+        assertEquals("An edit after growing drops the broken match", 200, size.invoke(list));
+        assertEquals("An edit after growing moves the last match", 21 + 199 * 3, getStart.invoke(list, 199));
+    }
+
+    /**
+     * Test that typing among a million matches costs little per keystroke.
+     */
+    private static void testTiming() throws Exception {
+        int matches = 1000000;
+        Object list = listClass.getConstructor().newInstance();
+        for (int i = 0; i < matches; i++) {
+            add.invoke(list, i * 10, i * 10 + 5);
+        }
+        Random random = new Random(3);
+        int edits = 100000;
+        long start = System.nanoTime();
+        for (int i = 0; i < edits; i++) {
+            int match = random.nextInt(matches);
+            // Type between matches, then take it back, so none is dropped
+            insert.invoke(list, match * 10 + 7, 1);
+            remove.invoke(list, match * 10 + 7, 1);
+        }
+        long nanos = System.nanoTime() - start;
+        System.out.println((2 * edits) + " edits among " + matches + " matches in " + nanos / 1000000 + " ms");
+        assertEquals("No match was dropped", matches, size.invoke(list));
+        assertEquals("The last match is where it was", (matches - 1) * 10, getStart.invoke(list, matches - 1));
+        assertTrue("An edit takes well under a millisecond", nanos / (2 * edits) < 100000);
+    }
+}
@@ -0,0 +1,202 @@
+package test;
+
+import javax.swing.text.*;
+import javax.swing.undo.UndoManager;
+import java.nio.CharBuffer;
+import java.util.Random;
+
+/**
+ * Test class for the piece table document backing the text area.
+ * Every check runs the same edits against a stock PlainDocument and
+ * compares the text, the line structure and the positions.
+ */
+public class PieceTableTest {
+    // Simple assertion methods
+    private static void assertTrue(String message, boolean condition) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+        System.out.println("PASS: " + message);
+    }
+
+    private static void assertEquals(String message, Object expected, Object actual) {
+        if (expected == null && actual == null) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        if (expected != null && expected.equals(actual)) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        throw new AssertionError(message + " expected:<" + expected + "> but was:<" + actual + ">");
+    }
+
+    /**
+     * Main method to run the tests.
+     */
+    public static void main(String[] args) {
+        System.out.println("Running piece table tests...");
+
+        try {
+            testLoadOriginal();
+            testRandomEdits();
+            testUndoRedo();
+            testPartialSegments();
+
+            System.out.println("All piece table tests passed!");
+        } catch (AssertionError e) {
+            System.err.println("TEST FAILED: " + e.getMessage());
+            System.exit(1);
+        } catch (Exception e) {
+            System.err.println("TEST ERROR: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Create a piece table document using reflection, since it lives in the default package.
+     */
+    static Document createDocument(String text) throws Exception {
+        Class<?> documentClass = Class.forName("PieceTableDocument");
+        if (text == null) {
+            return (Document) documentClass.getConstructor().newInstance();
+        }
+        return (Document) documentClass.getConstructor(CharBuffer.class)
+            .newInstance(CharBuffer.wrap(text.toCharArray()));
+    }
+
+    /**
+     * Test that a document built from a buffer has the right text and lines.
+     */
+    private static void testLoadOriginal() throws Exception {
+        System.out.println("Testing loading original text...");
+
+        String text = "first line\nsecond line\n\nlast line";
+        Document doc = createDocument(text);
+        PlainDocument expected = new PlainDocument();
+        expected.insertString(0, text, null);
+
+        assertEquals("Loaded text should match", text, doc.getText(0, doc.getLength()));
+        assertLinesEqual("Loaded lines should match", expected, doc);
+    }
+
+    /**
+     * Test a long run of random inserts and removes against PlainDocument.
+     */
+    private static void testRandomEdits() throws Exception {
+        System.out.println("Testing random edits...");
+
+        Random random = new Random(42);
+        Document doc = createDocument("The quick brown fox\njumps over\nthe lazy dog.\n");
+        PlainDocument expected = new PlainDocument();
+        expected.insertString(0, doc.getText(0, doc.getLength()), null);
+
+        Position[] positions = new Position[20];
+        Position[] expectedPositions = new Position[20];
+
+        for (int i = 0; i < 2000; i++) {
+            int length = expected.getLength();
+            if (i % 100 == 0) {
+                int slot = random.nextInt(positions.length);
+                int offset = random.nextInt(length + 1);
+                positions[slot] = doc.createPosition(offset);
+                expectedPositions[slot] = expected.createPosition(offset);
+            }
+            if (length > 0 && random.nextInt(3) == 0) {
+                int offset = random.nextInt(length);
+                int count = 1 + random.nextInt(Math.min(10, length - offset));
+                doc.remove(offset, count);
+                expected.remove(offset, count);
+            } else {
+                int offset = random.nextInt(length + 1);
+                String str = random.nextInt(4) == 0 ? "\n" : "ab c".substring(random.nextInt(4));
+                doc.insertString(offset, str, null);
+                expected.insertString(offset, str, null);
+            }
+        }
+
+        assertEquals("Text should match after random edits",
+            expected.getText(0, expected.getLength()), doc.getText(0, doc.getLength()));
+        assertLinesEqual("Lines should match after random edits", expected, doc);
+        for (int i = 0; i < positions.length; i++) {
+            if (positions[i] != null && positions[i].getOffset() != expectedPositions[i].getOffset()) {
+                throw new AssertionError("Position " + i + " expected:<" + expectedPositions[i].getOffset()
+                    + "> but was:<" + positions[i].getOffset() + ">");
+            }
+        }
+        System.out.println("PASS: Positions should match after random edits");
+    }
+
+    /**
+     * Test that undo and redo restore both text and line structure.
+     */
+    private static void testUndoRedo() throws Exception {
+        System.out.println("Testing undo and redo...");
+
+        String text = "one\ntwo\nthree\nfour\n";
+        Document doc = createDocument(text);
+        UndoManager undoManager = new UndoManager();
+        doc.addUndoableEditListener(undoManager);
+
+        doc.remove(2, 9);
+        doc.insertString(1, "X\nY", null);
+        doc.remove(0, 3);
+
+        undoManager.undo();
+        undoManager.undo();
+        undoManager.undo();
+        assertEquals("Undo should restore the original text", text, doc.getText(0, doc.getLength()));
+
+        PlainDocument expected = new PlainDocument();
+        expected.insertString(0, text, null);
+        assertLinesEqual("Undo should restore the original lines", expected, doc);
+
+        undoManager.redo();
+        undoManager.redo();
+        undoManager.redo();
+        expected.remove(2, 9);
+        expected.insertString(1, "X\nY", null);
+        expected.remove(0, 3);
+        assertEquals("Redo should repeat the edits",
+            expected.getText(0, expected.getLength()), doc.getText(0, doc.getLength()));
+        assertLinesEqual("Redo should repeat the line changes", expected, doc);
+    }
+
+    /**
+     * Test that partial segments point into the buffers without copying.
+     */
+    private static void testPartialSegments() throws Exception {
+        System.out.println("Testing partial segments...");
+
+        Document doc = createDocument("0123456789");
+        doc.insertString(5, "abc", null);
+
+        Segment segment = new Segment();
+        segment.setPartialReturn(true);
+        doc.getText(0, doc.getLength(), segment);
+        assertEquals("Partial segment should stop at the first piece", "01234", segment.toString());
+
+        segment.setPartialReturn(false);
+        doc.getText(0, doc.getLength(), segment);
+        assertEquals("Full segment should span all pieces", "01234abc56789", segment.toString());
+        assertTrue("Document length should include the insert", doc.getLength() == 13);
+    }
+
+    /**
+     * Compare the line elements of two documents.
+     */
+    private static void assertLinesEqual(String message, Document expected, Document actual) {
+        Element expectedRoot = expected.getDefaultRootElement();
+        Element actualRoot = actual.getDefaultRootElement();
+        assertEquals(message + " (line count)", expectedRoot.getElementCount(), actualRoot.getElementCount());
+        for (int i = 0; i < expectedRoot.getElementCount(); i++) {
+            Element e = expectedRoot.getElement(i);
+            Element a = actualRoot.getElement(i);
+            if (e.getStartOffset() != a.getStartOffset() || e.getEndOffset() != a.getEndOffset()) {
+                throw new AssertionError(message + " line " + i + " expected:<" + e.getStartOffset() + "-"
+                    + e.getEndOffset() + "> but was:<" + a.getStartOffset() + "-" + a.getEndOffset() + ">");
+            }
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package test;
+
+import javax.swing.text.Document;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Test class for the recovery journal that autosave writes unsaved edits to.
+ */
+public class RecoveryJournalTest {
+    // Simple assertion methods
+    private static void assertTrue(String message, boolean condition) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+        System.out.println("PASS: " + message);
+    }
+
+    private static void assertEquals(String message, Object expected, Object actual) {
+        if (expected == null && actual == null) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        if (expected != null && expected.equals(actual)) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        throw new AssertionError(message + " expected:<" + expected + "> but was:<" + actual + ">");
+    }
+
+    // Test directory and base file paths
+    private static final File TEST_DIR = new File(System.getProperty("java.io.tmpdir"), "texteditor_test_recovery");
+    private static final File BASE_FILE = new File(System.getProperty("java.io.tmpdir"), "texteditor_test_recovery.txt");
+
+    private static Class<?> journalClass;
+
+    /**
+     * Main method to run the tests.
+     */
+    public static void main(String[] args) {
+        System.out.println("Running recovery journal tests...");
+
+        try {
+            journalClass = Class.forName("RecoveryJournal");
+            clean();
+
+            testReplayOnEmptyBase();
+            testReplayOnFileBase();
+            testFileChangedBeforeFirstEdit();
+            testTruncatedRecord();
+            testOpenJournalIsNotAbandoned();
+
+            System.out.println("All recovery journal tests passed!");
+        } catch (AssertionError e) {
+            System.err.println("TEST FAILED: " + e.getMessage());
+            System.exit(1);
+        } catch (Exception e) {
+            System.err.println("TEST ERROR: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(2);
+        } finally {
+            clean();
+        }
+    }
+
+    private static void clean() {
+        File[] files = TEST_DIR.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        TEST_DIR.delete();
+        BASE_FILE.delete();
+    }
+
+    /**
+     * Open a journal and start it on the given base using reflection.
+     */
+    private static Object startJournal(String id, byte baseKind, String path) throws Exception {
+        File file = path == null ? null : new File(path);
+        return startJournal(id, baseKind, path, file == null ? 0 : file.length(), file == null ? 0 : file.lastModified());
+    }
+
+    // Same, stamped with the given size and modification time of the base
+    private static Object startJournal(String id, byte baseKind, String path, long size, long modified)
+            throws Exception {
+        Object journal = journalClass.getConstructor(File.class, String.class).newInstance(TEST_DIR, id);
+        journalClass.getMethod("start", byte.class, String.class, String.class, long.class, long.class)
+            .invoke(journal, baseKind, path, path, size, modified);
+        return journal;
+    }
+
+    private static void insert(Object journal, int offset, String text) throws Exception {
+        journalClass.getMethod("appendInsert", int.class, String.class).invoke(journal, offset, text);
+    }
+
+    private static void remove(Object journal, int offset, int length) throws Exception {
+        journalClass.getMethod("appendRemove", int.class, int.class).invoke(journal, offset, length);
+    }
+
+    private static void close(Object journal) throws Exception {
+        journalClass.getMethod("close").invoke(journal);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<File> findAbandoned() throws Exception {
+        return (List<File>) journalClass.getMethod("findAbandoned", File.class).invoke(null, TEST_DIR);
+    }
+
+    private static void discard(File journal) throws Exception {
+        journalClass.getMethod("discard", File.class).invoke(null, journal);
+    }
+
+    /**
+     * Replay a journal and return the recovered document, unwrapping the
+     * exception replay throws.
+     */
+    private static Document replay(File journal) throws Exception {
+        try {
+            Object recovered = journalClass.getMethod("replay", File.class).invoke(null, journal);
+            return (Document) recovered.getClass().getField("document").get(recovered);
+        } catch (InvocationTargetException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+
+    private static String text(Document doc) throws Exception {
+        return doc.getText(0, doc.getLength());
+    }
+
+    /**
+     * Test replaying inserts and removes made to a new document.
+     */
+    private static void testReplayOnEmptyBase() throws Exception {
+        Object journal = startJournal("empty", (byte) 0, null);
+        insert(journal, 0, "hello world");
+        remove(journal, 5, 6);
+        insert(journal, 5, " there\n\u00e9");
+        close(journal);
+
+        List<File> abandoned = findAbandoned();
+        assertEquals("Closed journal should be found", 1, abandoned.size());
+        assertEquals("Journal should be replayed onto an empty document",
+            "hello there\n\u00e9", text(replay(abandoned.get(0))));
+
+        discard(abandoned.get(0));
+        assertEquals("Discarded journal should not be found again", 0, findAbandoned().size());
+    }
+
+    /**
+     * Test replaying onto the file the document was loaded from, which must
+     * not have changed since.
+     */
+    private static void testReplayOnFileBase() throws Exception {
+        Files.write(BASE_FILE.toPath(), "first\nthird\n".getBytes(Charset.defaultCharset()));
+        Object journal = startJournal("file", (byte) 1, BASE_FILE.getPath());
+        insert(journal, 6, "second\n");
+        close(journal);
+
+        File journalFile = findAbandoned().get(0);
+        assertEquals("Journal should be replayed onto the file", "first\nsecond\nthird\n", text(replay(journalFile)));
+
+        Files.write(BASE_FILE.toPath(), "changed\n".getBytes(Charset.defaultCharset()));
+        boolean rejected = false;
+        try {
+            replay(journalFile);
+        } catch (IOException e) {
+            rejected = true;
+        }
+        assertTrue("Journal should not be replayed onto a file that changed", rejected);
+        discard(journalFile);
+    }
+
+    /**
+     * Test that a file changed on disk after it was loaded but before the
+     * first edit started the journal is not taken for the loaded text.
+     */
+    private static void testFileChangedBeforeFirstEdit() throws Exception {
+        Files.write(BASE_FILE.toPath(), "loaded\n".getBytes(Charset.defaultCharset()));
+        long size = BASE_FILE.length();
+        long modified = BASE_FILE.lastModified();
+        Files.write(BASE_FILE.toPath(), "changed on disk\n".getBytes(Charset.defaultCharset()));
+
+        Object journal = startJournal("late", (byte) 1, BASE_FILE.getPath(), size, modified);
+        insert(journal, 7, "edited\n");
+        close(journal);
+
+        File journalFile = findAbandoned().get(0);
+        boolean rejected = false;
+        try {
+            replay(journalFile);
+        } catch (IOException e) {
+            rejected = true;
+        }
+        assertTrue("Journal should not be replayed onto a file that changed before it started", rejected);
+        discard(journalFile);
+    }
+
+    /**
+     * Test that a record cut short by a crash is dropped and the ones before
+     * it are kept.
+     */
+    private static void testTruncatedRecord() throws Exception {
+        Object journal = startJournal("truncated", (byte) 0, null);
+        insert(journal, 0, "kept");
+        insert(journal, 4, " and lost");
+        close(journal);
+
+        File journalFile = findAbandoned().get(0);
+        try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+        assertEquals("Only complete records should be replayed", "kept", text(replay(journalFile)));
+        discard(journalFile);
+    }
+
+    /**
+     * Test that the journal of a running editor is not offered for recovery.
+     */
+    private static void testOpenJournalIsNotAbandoned() throws Exception {
+        Object journal = startJournal("open", (byte) 0, null);
+        insert(journal, 0, "in use");
+        journalClass.getMethod("force").invoke(journal);
+        assertEquals("Locked journal should not be found", 0, findAbandoned().size());
+
+        journalClass.getMethod("delete").invoke(journal);
+        close(journal);
+        assertEquals("Deleted journal should leave nothing behind", 0, TEST_DIR.list().length);
+    }
+}
@@ -0,0 +1,232 @@
+package test;
+
+import javax.swing.text.Document;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Test class for the parallel regex search over line-aligned chunks.
+ */
+public class RegexSearchTest {
+    // Simple assertion methods
+    private static void assertTrue(String message, boolean condition) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+        System.out.println("PASS: " + message);
+    }
+
+    private static void assertEquals(String message, Object expected, Object actual) {
+        if (expected == null && actual == null) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        if (expected != null && expected.equals(actual)) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        throw new AssertionError(message + " expected:<" + expected + "> but was:<" + actual + ">");
+    }
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+    /**
+     * Main method to run the tests.
+     */
+    public static void main(String[] args) {
+        System.out.println("Running regex search tests...");
+
+        try {
+            testMatchesAcrossChunks();
+            testCancel();
+            testFailedFindsInLookahead();
+            testTiming();
+
+            System.out.println("All regex search tests passed!");
+        } catch (AssertionError e) {
+            System.err.println("TEST FAILED: " + e.getMessage());
+            System.exit(1);
+        } catch (Exception e) {
+            System.err.println("TEST ERROR: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(2);
+        } finally {
+            POOL.shutdown();
+        }
+    }
+
+    /**
+     * Create a RegexSearch with the given pool and chunk size using reflection.
+     */
+    private static Object newSearch(String regex, ForkJoinPool pool, int chunkSize) throws Exception {
+        Constructor<?> constructor = Class.forName("RegexSearch")
+            .getDeclaredConstructor(Pattern.class, ForkJoinPool.class, int.class);
+        constructor.setAccessible(true);
+        return constructor.newInstance(Pattern.compile(regex), pool, chunkSize);
+    }
+
+    /**
+     * Find all matches in a snapshot of the document, as start and end
+     * pairs, checking they arrive in order.
+     */
+    private static List<Integer> findAll(Object search, Document doc, BooleanSupplier stop) throws Exception {
+        Object snapshot = doc.getClass().getMethod("snapshot").invoke(doc);
+        Class<?> listClass = Class.forName("MatchList");
+        Method size = listClass.getMethod("size");
+        Method getStart = listClass.getMethod("getStart", int.class);
+        Method getEnd = listClass.getMethod("getEnd", int.class);
+        List<Integer> found = new ArrayList<>();
+        Consumer<Object> results = batch -> {
+            try {
+                for (int i = 0; i < (Integer) size.invoke(batch); i++) {
+                    found.add((Integer) getStart.invoke(batch, i));
+                    found.add((Integer) getEnd.invoke(batch, i));
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        };
+        Method findAllMethod = search.getClass().getMethod("findAll", Class.forName("TextSnapshot"),
+            Consumer.class, BooleanSupplier.class);
+        findAllMethod.invoke(search, snapshot, results, stop);
+        return found;
+    }
+
+    private static List<Integer> expected(String regex, String text) {
+        List<Integer> expected = new ArrayList<>();
+        Matcher matcher = Pattern.compile(regex).matcher(text);
+        while (matcher.find()) {
+            expected.add(matcher.start());
+            expected.add(matcher.end());
+        }
+        return expected;
+    }
+
+    /**
+     * Test patterns whose matches cross chunk borders, look around them or
+     * are anchored, in a document of many pieces split into small chunks,
+     * against one Matcher over the whole text.
+     */
+    private static void testMatchesAcrossChunks() throws Exception {
+        Random random = new Random(5);
+        StringBuilder text = new StringBuilder("start of text\n");
+        for (int i = 0; i < 20000; i++) {
+            text.append("line ").append(i).append(random.nextInt(3) == 0 ? " word" : " words");
+            text.append(random.nextInt(50) == 0 ? " xy\n\n" : " y\n");
+            if (i == 12345) {
+                // A match much longer than the lookahead
+                text.append("BEGIN ").append("z".repeat(20000)).append(" END\n");
+            }
+        }
+        text.append("end of text");
+        Document doc = PieceTableTest.createDocument(text.toString());
+        for (int i = 0; i < 2000; i++) {
+            doc.insertString(random.nextInt(doc.getLength()), random.nextBoolean() ? "\n" : "y", null);
+        }
+        String content = doc.getText(0, doc.getLength());
+
+        String[] patterns = {
+            "\\d+", "(?m)^line 1\\d*", "(?m)\\d$", "\\bword\\b", "(?<=x)y", "y\\n\\n",
+            "(?s)BEGIN.*?END", "x*", "^start", "text$", "(?s)line 19999.*", "\\n", "\\w+\\s+xy",
+            "(?x) \\d \\s+ line  # across lines"
+        };
+        String mismatch = null;
+        for (String regex : patterns) {
+            for (int chunkSize : new int[] {100, 4096, 1 << 20}) {
+                Object search = newSearch(regex, POOL, chunkSize);
+                if (!findAll(search, doc, () -> false).equals(expected(regex, content))) {
+                    mismatch = regex + " in chunks of " + chunkSize;
+                }
+            }
+        }
+        assertEquals("Matches in chunks should be the same as for one Matcher", null, mismatch);
+    }
+
+    /**
+     * Test that the search stops when asked to.
+     */
+    private static void testCancel() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        Document doc = PieceTableTest.createDocument(text.toString());
+        Object search = newSearch("\\d+", POOL, 1000);
+        int[] calls = {0};
+        List<Integer> found = findAll(search, doc, () -> ++calls[0] > 20);
+        assertTrue("A stopped search should find only some of the matches", found.size() < 2 * 100000);
+    }
+
+    /**
+     * Test that finds that fail only after running into the end of the text
+     * read past a chunk do not make it read the rest of the document: in
+     * small chunks the search takes no more than a few times as long as in
+     * one, however long the document is.
+     */
+    private static void testFailedFindsInLookahead() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200000; i++) {
+            text.append("line ").append(i).append(i % 20000 == 0 ? " never\n" : "\n");
+        }
+        Document doc = PieceTableTest.createDocument(text.toString());
+        String regex = "\\w+\\s+never";
+        List<Integer> expected = expected(regex, text.toString());
+        ForkJoinPool single = new ForkJoinPool(1);
+        long oneChunk = Long.MAX_VALUE;
+        long smallChunks = Long.MAX_VALUE;
+        boolean same = true;
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            same &= findAll(newSearch(regex, single, 1 << 30), doc, () -> false).equals(expected);
+            oneChunk = Math.min(oneChunk, System.nanoTime() - start);
+            start = System.nanoTime();
+            same &= findAll(newSearch(regex, single, 64 * 1024), doc, () -> false).equals(expected);
+            smallChunks = Math.min(smallChunks, System.nanoTime() - start);
+        }
+        single.shutdown();
+        System.out.println("Failing finds in " + text.length() / 1024 + " KB: one chunk " + oneChunk / 1000000
+            + " ms, chunks of 64 KB " + smallChunks / 1000000 + " ms");
+        assertTrue("Every match is found", same);
+        assertTrue("Small chunks take a few times as long as one at most", smallChunks < 4 * oneChunk + 50000000L);
+    }
+
+    /**
+     * Compare the time of a search on one thread with one on all cores.
+     */
+    private static void testTiming() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000000; i++) {
+            text.append(i % 100 == 0 ? "ERROR " : "INFO ").append("request ").append(i)
+                .append(" took ").append(i % 997).append(" ms\n");
+        }
+        Document doc = PieceTableTest.createDocument(text.toString());
+        String regex = "ERROR request \\d+ took (\\d{3}) ms";
+
+        ForkJoinPool single = new ForkJoinPool(1);
+        long oneThread = Long.MAX_VALUE;
+        long allCores = Long.MAX_VALUE;
+        int expectedCount = expected(regex, text.toString()).size();
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            assertEquals("One thread should find every match", expectedCount,
+                findAll(newSearch(regex, single, 1 << 20), doc, () -> false).size());
+            oneThread = Math.min(oneThread, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            assertEquals("All cores should find every match", expectedCount,
+                findAll(newSearch(regex, ForkJoinPool.commonPool(), 1 << 20), doc, () -> false).size());
+            allCores = Math.min(allCores, System.nanoTime() - start);
+        }
+        single.shutdown();
+        System.out.println("Regex search of " + text.length() / 1024 + " KB: one thread " + oneThread / 1000000
+            + " ms, " + Runtime.getRuntime().availableProcessors() + " cores " + allCores / 1000000 + " ms");
+    }
+}
@@ -0,0 +1,258 @@
+package test;
+
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.Document;
+import javax.swing.text.PlainDocument;
+import javax.swing.text.Position;
+import javax.swing.undo.UndoManager;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Test class for replacing all matches as a single edit.
+ */
+public class ReplaceAllTest {
+    // Simple assertion methods
+    private static void assertTrue(String message, boolean condition) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+        System.out.println("PASS: " + message);
+    }
+
+    private static void assertEquals(String message, Object expected, Object actual) {
+        if (expected == null && actual == null) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        if (expected != null && expected.equals(actual)) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        throw new AssertionError(message + " expected:<" + expected + "> but was:<" + actual + ">");
+    }
+
+    /**
+     * Main method to run the tests.
+     */
+    public static void main(String[] args) {
+        System.out.println("Running replace all tests...");
+
+        try {
+            testSimpleReplace();
+            testReplaceAcrossPieces();
+            testPositions();
+            testTiming();
+
+            System.out.println("All replace all tests passed!");
+        } catch (AssertionError e) {
+            System.err.println("TEST FAILED: " + e.getMessage());
+            System.exit(1);
+        } catch (Exception e) {
+            System.err.println("TEST ERROR: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Find every match of the text in a snapshot and replace them all, the
+     * way the editor does it, using reflection. Returns the number of matches.
+     */
+    private static int replaceAll(Document doc, String pattern, String replacement) throws Exception {
+        Class<?> listClass = Class.forName("MatchList");
+        Object matches = listClass.getConstructor().newInstance();
+        Method add = listClass.getMethod("add", int.class, int.class);
+        Class<?> searchClass = Class.forName("TextSearch");
+        Class<?> hitsClass = Class.forName("TextSearch$Hits");
+        Object search = searchClass.getConstructor(String.class).newInstance(pattern);
+        Object hits = Proxy.newProxyInstance(hitsClass.getClassLoader(), new Class<?>[] {hitsClass},
+            (proxy, method, args) -> {
+                int offset = (Integer) args[0];
+                add.invoke(matches, offset, offset + pattern.length());
+                return true;
+            });
+        Object snapshot = doc.getClass().getMethod("snapshot").invoke(doc);
+        searchClass.getMethod("findAll", Class.forName("TextSnapshot"), hitsClass).invoke(search, snapshot, hits);
+        doc.getClass().getMethod("replaceAll", listClass, String.class).invoke(doc, matches, replacement);
+        return (Integer) listClass.getMethod("size").invoke(matches);
+    }
+
+    // Counts the events fired for each edit
+    private static class EventCounter implements DocumentListener {
+        int events;
+
+        public void insertUpdate(DocumentEvent e) {
+            events++;
+        }
+
+        public void removeUpdate(DocumentEvent e) {
+            events++;
+        }
+
+        public void changedUpdate(DocumentEvent e) {
+            events++;
+        }
+    }
+
+    /**
+     * Test replacing with shorter, longer and empty text, and undoing each
+     * in one step.
+     */
+    private static void testSimpleReplace() throws Exception {
+        String text = "one two three two one";
+        for (String replacement : new String[] {"2", "two and a half", ""}) {
+            Document doc = PieceTableTest.createDocument(text);
+            UndoManager undo = new UndoManager();
+            doc.addUndoableEditListener(undo);
+            EventCounter counter = new EventCounter();
+            doc.addDocumentListener(counter);
+
+            assertEquals("Both matches should be replaced", 2, replaceAll(doc, "two", replacement));
+            assertEquals("Text after replacing with \"" + replacement + "\"",
+                text.replace("two", replacement), doc.getText(0, doc.getLength()));
+            assertEquals("Replacing should fire one remove and one insert", 2, counter.events);
+            undo.undo();
+            assertEquals("One undo should restore the text", text, doc.getText(0, doc.getLength()));
+            assertTrue("Nothing more should be left to undo", !undo.canUndo());
+            undo.redo();
+            assertEquals("Redo should replace again", text.replace("two", replacement),
+                doc.getText(0, doc.getLength()));
+        }
+
+        Document doc = PieceTableTest.createDocument(text);
+        assertEquals("Nothing to replace", 0, replaceAll(doc, "four", "4"));
+        assertEquals("Text without matches should not change", text, doc.getText(0, doc.getLength()));
+    }
+
+    /**
+     * Test replacing many matches spread over many pieces, including ones
+     * holding line breaks, against String.replace and the lines of a
+     * PlainDocument with the same text.
+     */
+    private static void testReplaceAcrossPieces() throws Exception {
+        Random random = new Random(7);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200000; i++) {
+            text.append("ab\nc".charAt(random.nextInt(4)));
+        }
+        Document doc = PieceTableTest.createDocument(text.toString());
+        for (int i = 0; i < 3000; i++) {
+            int offset = random.nextInt(doc.getLength());
+            if (random.nextBoolean()) {
+                doc.insertString(offset, "abc\n".substring(random.nextInt(4)), null);
+            } else {
+                doc.remove(offset, Math.min(1 + random.nextInt(3), doc.getLength() - offset));
+            }
+        }
+        String before = doc.getText(0, doc.getLength());
+        UndoManager undo = new UndoManager();
+        doc.addUndoableEditListener(undo);
+
+        String[][] cases = {{"ab", "x"}, {"c\n", "\n\n-"}, {"\n", ""}, {"b", "b\nb"}};
+        String after = null;
+        for (String[] replace : cases) {
+            String expected = doc.getText(0, doc.getLength()).replace(replace[0], replace[1]);
+            replaceAll(doc, replace[0], replace[1]);
+            assertEquals("Replace \"" + replace[0].replace("\n", "\\n") + "\" across pieces",
+                expected, doc.getText(0, doc.getLength()));
+            assertEquals("Lines after replacing \"" + replace[0].replace("\n", "\\n") + "\"",
+                Arrays.toString(lineStarts(plainDocument(expected))), Arrays.toString(lineStarts(doc)));
+            after = expected;
+        }
+        for (int i = 0; i < cases.length; i++) {
+            undo.undo();
+        }
+        assertEquals("Undoing each replace all should restore the text", before, doc.getText(0, doc.getLength()));
+        assertEquals("Undoing should restore the lines",
+            Arrays.toString(lineStarts(plainDocument(before))), Arrays.toString(lineStarts(doc)));
+        for (int i = 0; i < cases.length; i++) {
+            undo.redo();
+        }
+        assertEquals("Redoing each replace all should make the same text", after, doc.getText(0, doc.getLength()));
+    }
+
+    private static Document plainDocument(String text) throws Exception {
+        PlainDocument doc = new PlainDocument();
+        doc.insertString(0, text, null);
+        return doc;
+    }
+
+    private static int[] lineStarts(Document doc) {
+        int count = doc.getDefaultRootElement().getElementCount();
+        int[] starts = new int[count];
+        for (int i = 0; i < count; i++) {
+            starts[i] = doc.getDefaultRootElement().getElement(i).getStartOffset();
+        }
+        return starts;
+    }
+
+    /**
+     * Test that positions around the replaced text move with it, and that
+     * those inside it go back where they were on undo.
+     */
+    private static void testPositions() throws Exception {
+        String text = "keep one two one two keep";
+        Document doc = PieceTableTest.createDocument(text);
+        UndoManager undo = new UndoManager();
+        doc.addUndoableEditListener(undo);
+        Position start = doc.createPosition(2);
+        Position inside = doc.createPosition(10);
+        Position end = doc.createPosition(text.length() - 2);
+
+        replaceAll(doc, "one", "1");
+        String replaced = doc.getText(0, doc.getLength());
+        assertEquals("A position before the matches should stay", 2, start.getOffset());
+        assertEquals("A position after the matches should move with the text",
+            replaced.length() - 2, end.getOffset());
+
+        undo.undo();
+        assertEquals("Undo should put a position inside the matches back", 10, inside.getOffset());
+        assertEquals("Undo should move a position after the matches back", text.length() - 2, end.getOffset());
+    }
+
+    /**
+     * Test replacing 100k matches in a 100 MB document, and undoing that,
+     * and report how long it takes.
+     */
+    private static void testTiming() throws Exception {
+        int lines = 1000000;
+        int lineLength = 100;
+        char[] chars = new char[lines * lineLength];
+        for (int i = 0; i < lines; i++) {
+            int start = i * lineLength;
+            Arrays.fill(chars, start, start + lineLength - 1, 'x');
+            if (i % 10 == 0) {
+                "needle".getChars(0, 6, chars, start + 40);
+            }
+            chars[start + lineLength - 1] = '\n';
+        }
+        Document doc = (Document) Class.forName("PieceTableDocument").getConstructor(CharBuffer.class)
+            .newInstance(CharBuffer.wrap(chars));
+        UndoManager undo = new UndoManager();
+        doc.addUndoableEditListener(undo);
+
+        long start = System.nanoTime();
+        int count = replaceAll(doc, "needle", "pin");
+        long replaceMillis = (System.nanoTime() - start) / 1000000;
+        assertEquals("Every tenth line should match", lines / 10, count);
+        assertEquals("The text should shrink by 3 chars a match", chars.length - 3 * count, doc.getLength());
+        assertEquals("The lines should stay the same", lines + 1, doc.getDefaultRootElement().getElementCount());
+        // Line 10 moved back by the match on line 0
+        assertEquals("A replaced line", "x".repeat(40) + "pin" + "x".repeat(53) + "\n",
+            doc.getText(lineLength * 10 - 3, lineLength - 3));
+
+        start = System.nanoTime();
+        undo.undo();
+        long undoMillis = (System.nanoTime() - start) / 1000000;
+        assertEquals("Undo should restore the length", chars.length, doc.getLength());
+        assertEquals("Undo should restore a line", new String(chars, lineLength * 10, lineLength),
+            doc.getText(lineLength * 10, lineLength));
+        System.out.println("Replace all of " + count + " matches in " + chars.length / (1024 * 1024)
+            + " MB: " + replaceMillis + " ms (finding them included), undo: " + undoMillis + " ms");
+    }
+}
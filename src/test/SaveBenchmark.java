@@ -0,0 +1,77 @@
+package test;
+
+import javax.swing.text.Document;
+import java.io.File;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Benchmark for the crash-safe save path. It measures how much of the save
+ * time goes to forcing the data to disk, for several document sizes, and
+ * what batching forces the way autosave does saves on repeated saves.
+ *
+ * Usage: java -cp src test.SaveBenchmark [size in MB...]
+ */
+public class SaveBenchmark {
+    private static final String BENCH_FILE_PATH = System.getProperty("java.io.tmpdir") + "/texteditor_bench_save.txt";
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = {1, 16, 128};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.println("size(MB)  no-force(ms)  force(ms)  fsync cost(ms)  batched 1s(ms)");
+        try {
+            for (int size : sizes) {
+                Document doc = createDocument(size);
+                double plain = timeSaves(doc, -1);
+                double forced = timeSaves(doc, 0);
+                double batched = timeSaves(doc, 1000);
+                System.out.printf("%8d  %12.1f  %9.1f  %14.1f  %14.1f%n",
+                    size, plain, forced, forced - plain, batched);
+            }
+        } finally {
+            new File(BENCH_FILE_PATH).delete();
+        }
+    }
+
+    /**
+     * Build a piece table document of roughly the given size in megabytes.
+     */
+    private static Document createDocument(int megabytes) throws Exception {
+        StringBuilder text = new StringBuilder(megabytes * 1024 * 1024);
+        int line = 0;
+        while (text.length() < megabytes * 1024 * 1024) {
+            text.append("Line ").append(line++).append(": the quick brown fox jumps over the lazy dog\n");
+        }
+        return PieceTableTest.createDocument(text.toString());
+    }
+
+    /**
+     * Average time of one save in milliseconds. A negative force interval
+     * never forces, zero always forces and a positive one batches forces.
+     */
+    private static double timeSaves(Document doc, long forceInterval) throws Exception {
+        Class<?> writerClass = Class.forName("DocumentWriter");
+        Object writer = writerClass.getConstructor(Charset.class).newInstance(StandardCharsets.UTF_8);
+        Method saveMethod = writerClass.getMethod("save", Document.class, File.class);
+        Method intervalMethod = writerClass.getMethod("setForceInterval", long.class);
+        // An interval longer than the run means no save is ever forced
+        intervalMethod.invoke(writer, forceInterval < 0 ? Long.MAX_VALUE : forceInterval);
+
+        File file = new File(BENCH_FILE_PATH);
+        saveMethod.invoke(writer, doc, file);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            saveMethod.invoke(writer, doc, file);
+        }
+        return (System.nanoTime() - start) / 1e6 / ROUNDS;
+    }
+}
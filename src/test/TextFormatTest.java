@@ -0,0 +1,175 @@
+package test;
+
+import javax.swing.text.Document;
+import java.io.File;
+import java.lang.reflect.Method;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import javax.swing.SwingWorker;
+
+/**
+ * Test class for charset and line ending detection on open, and for saving
+ * files back in the format they were opened in.
+ */
+public class TextFormatTest {
+    // Simple assertion methods
+    private static void assertTrue(String message, boolean condition) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+        System.out.println("PASS: " + message);
+    }
+
+    private static void assertEquals(String message, Object expected, Object actual) {
+        if (expected == null && actual == null) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        if (expected != null && expected.equals(actual)) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        throw new AssertionError(message + " expected:<" + expected + "> but was:<" + actual + ">");
+    }
+
+    // Test file path
+    private static final String TEST_FILE_PATH = System.getProperty("java.io.tmpdir") + "/texteditor_test_format.txt";
+
+    /**
+     * Main method to run the tests.
+     */
+    public static void main(String[] args) {
+        System.out.println("Running text format tests...");
+
+        try {
+            testPlainAscii();
+            testUtf8WithBomAndCrlf();
+            testUtf16WithBom();
+            testUtf16WithoutBom();
+            testOldMacLineEndings();
+            testInvalidUtf8();
+            testInvalidPastSample();
+
+            System.out.println("All text format tests passed!");
+        } catch (AssertionError e) {
+            System.err.println("TEST FAILED: " + e.getMessage());
+            System.exit(1);
+        } catch (Exception e) {
+            System.err.println("TEST ERROR: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(2);
+        } finally {
+            new File(TEST_FILE_PATH).delete();
+        }
+    }
+
+    /**
+     * Load the bytes through a FileLoader using reflection, returning the
+     * loaded text and format.
+     */
+    private static Object[] load(byte[] bytes) throws Exception {
+        Files.write(new File(TEST_FILE_PATH).toPath(), bytes);
+        Class<?> loaderClass = Class.forName("FileLoader");
+        SwingWorker<?, ?> loader = (SwingWorker<?, ?>) loaderClass.getConstructor(File.class)
+            .newInstance(new File(TEST_FILE_PATH));
+        loader.run();
+        CharBuffer text = (CharBuffer) loader.get();
+        Object format = loaderClass.getMethod("getFormat").invoke(loader);
+        return new Object[] {text, format};
+    }
+
+    private static String describe(Object format) throws Exception {
+        Class<?> formatClass = format.getClass();
+        return formatClass.getMethod("getCharset").invoke(format)
+            + (((Boolean) formatClass.getMethod("hasByteOrderMark").invoke(format)) ? " BOM " : " ")
+            + formatClass.getMethod("getLineEnding").invoke(format);
+    }
+
+    /**
+     * Open the bytes, check what was detected, then save the text in the
+     * detected format and check the same bytes are written back.
+     */
+    private static void roundTrip(String name, byte[] bytes, String expectedText, String expectedFormat)
+            throws Exception {
+        Object[] loaded = load(bytes);
+        assertEquals(name + ": text should be decoded with LF line endings", expectedText, loaded[0].toString());
+        assertEquals(name + ": format should be detected", expectedFormat, describe(loaded[1]));
+
+        Document doc = PieceTableTest.createDocument(loaded[0].toString());
+        Class<?> writerClass = Class.forName("DocumentWriter");
+        Object writer = writerClass.getConstructor(Charset.class).newInstance(Charset.defaultCharset());
+        Class<?> formatClass = Class.forName("TextFormat");
+        writerClass.getMethod("setFormat", formatClass).invoke(writer, loaded[1]);
+        Method saveMethod = writerClass.getMethod("save", Document.class, File.class);
+        saveMethod.invoke(writer, doc, new File(TEST_FILE_PATH));
+
+        byte[] saved = Files.readAllBytes(new File(TEST_FILE_PATH).toPath());
+        assertTrue(name + ": saving should write the same bytes back", Arrays.equals(bytes, saved));
+    }
+
+    private static void testPlainAscii() throws Exception {
+        roundTrip("ASCII", "one\ntwo\n".getBytes(StandardCharsets.US_ASCII), "one\ntwo\n",
+            (Charset.defaultCharset().equals(StandardCharsets.US_ASCII) ? "UTF-8" : Charset.defaultCharset().name())
+                + " LF");
+    }
+
+    private static void testUtf8WithBomAndCrlf() throws Exception {
+        byte[] text = "caf\u00e9\r\nna\u00efve\r\n".getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = new byte[text.length + 3];
+        bytes[0] = (byte) 0xEF;
+        bytes[1] = (byte) 0xBB;
+        bytes[2] = (byte) 0xBF;
+        System.arraycopy(text, 0, bytes, 3, text.length);
+        roundTrip("UTF-8 with BOM", bytes, "caf\u00e9\nna\u00efve\n", "UTF-8 BOM CRLF");
+    }
+
+    private static void testUtf16WithBom() throws Exception {
+        byte[] text = "\ufeffline \u4e00\r\nline two".getBytes(StandardCharsets.UTF_16LE);
+        roundTrip("UTF-16LE with BOM", text, "line \u4e00\nline two", "UTF-16LE BOM CRLF");
+    }
+
+    private static void testUtf16WithoutBom() throws Exception {
+        byte[] text = "plain text\nin UTF-16\n".getBytes(StandardCharsets.UTF_16BE);
+        roundTrip("UTF-16BE without BOM", text, "plain text\nin UTF-16\n", "UTF-16BE LF");
+    }
+
+    private static void testOldMacLineEndings() throws Exception {
+        roundTrip("CR", "a\rb\rc".getBytes(StandardCharsets.UTF_8), "a\nb\nc", "UTF-8 CR");
+    }
+
+    private static void testInvalidUtf8() throws Exception {
+        byte[] bytes = "price: 10\u00a3\n".getBytes(StandardCharsets.ISO_8859_1);
+        String expectedCharset = Charset.defaultCharset().equals(StandardCharsets.UTF_8)
+            || Charset.defaultCharset().equals(StandardCharsets.US_ASCII)
+            ? "ISO-8859-1" : Charset.defaultCharset().name();
+        roundTrip("Not UTF-8", bytes, "price: 10\u00a3\n", expectedCharset + " LF");
+    }
+
+    /**
+     * Test files that look like UTF-8 in the bytes detection samples but
+     * have bytes further on that are not, which must be saved back as they
+     * were rather than as replacement chars.
+     */
+    private static void testInvalidPastSample() throws Exception {
+        StringBuilder ascii = new StringBuilder();
+        while (ascii.length() < 3 * 8 * 1024) {
+            ascii.append("plain ascii line\n");
+        }
+        Charset fallback = Charset.defaultCharset().equals(StandardCharsets.UTF_8)
+            || Charset.defaultCharset().equals(StandardCharsets.US_ASCII)
+            ? StandardCharsets.ISO_8859_1 : Charset.defaultCharset();
+
+        byte[] bytes = (ascii + "price: 10\u00a3\n").getBytes(StandardCharsets.ISO_8859_1);
+        roundTrip("ASCII, then not UTF-8", bytes, new String(bytes, fallback), fallback.name() + " LF");
+
+        byte[] utf8 = ("caf\u00e9\n" + ascii).getBytes(StandardCharsets.UTF_8);
+        bytes = Arrays.copyOf(utf8, utf8.length + 3);
+        bytes[utf8.length] = (byte) 0xA3;
+        bytes[utf8.length + 1] = '1';
+        bytes[utf8.length + 2] = '\n';
+        roundTrip("UTF-8, then not", bytes, new String(bytes, fallback), fallback.name() + " LF");
+    }
+}
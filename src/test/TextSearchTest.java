@@ -0,0 +1,318 @@
+package test;
+
+import javax.swing.text.Document;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Test class for finding text in a document segment by segment.
+ */
+public class TextSearchTest {
+    // Simple assertion methods
+    private static void assertTrue(String message, boolean condition) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+        System.out.println("PASS: " + message);
+    }
+
+    private static void assertEquals(String message, Object expected, Object actual) {
+        if (expected == null && actual == null) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        if (expected != null && expected.equals(actual)) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        throw new AssertionError(message + " expected:<" + expected + "> but was:<" + actual + ">");
+    }
+
+    private static Class<?> searchClass;
+
+    /**
+     * Main method to run the tests.
+     */
+    public static void main(String[] args) {
+        System.out.println("Running text search tests...");
+
+        try {
+            searchClass = Class.forName("TextSearch");
+
+            testSimpleMatches();
+            testMatchesAcrossPieces();
+            testManyMatches();
+            testOptions();
+            testOptionsAcrossPieces();
+
+            System.out.println("All text search tests passed!");
+        } catch (AssertionError e) {
+            System.err.println("TEST FAILED: " + e.getMessage());
+            System.exit(1);
+        } catch (Exception e) {
+            System.err.println("TEST ERROR: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+    private static Object newSearch(String pattern) throws Exception {
+        Constructor<?> constructor = searchClass.getConstructor(String.class);
+        return constructor.newInstance(pattern);
+    }
+
+    private static Object newSearch(String pattern, boolean matchCase, boolean wholeWord) throws Exception {
+        Constructor<?> constructor = searchClass.getConstructor(String.class, boolean.class, boolean.class);
+        return constructor.newInstance(pattern, matchCase, wholeWord);
+    }
+
+    private static int findNext(Object search, Document doc, int from) throws Exception {
+        return (Integer) searchClass.getMethod("findNext", Document.class, int.class).invoke(search, doc, from);
+    }
+
+    private static int findPrevious(Object search, Document doc, int before) throws Exception {
+        return (Integer) searchClass.getMethod("findPrevious", Document.class, int.class).invoke(search, doc, before);
+    }
+
+    /**
+     * Find all matches in a snapshot of the document using reflection.
+     */
+    private static List<Integer> findAll(Object search, Document doc) throws Exception {
+        Object snapshot = doc.getClass().getMethod("snapshot").invoke(doc);
+        Class<?> hitsClass = Class.forName("TextSearch$Hits");
+        List<Integer> found = new ArrayList<>();
+        Object hits = Proxy.newProxyInstance(hitsClass.getClassLoader(),
+            new Class<?>[] {hitsClass}, (proxy, method, args) -> found.add((Integer) args[0]));
+        Method findAllMethod = searchClass.getMethod("findAll", Class.forName("TextSnapshot"), hitsClass);
+        findAllMethod.invoke(search, snapshot, hits);
+        return found;
+    }
+
+    // Non-overlapping matches the way String.indexOf finds them
+    private static List<Integer> expectedAll(String text, String pattern) {
+        List<Integer> expected = new ArrayList<>();
+        int index = text.indexOf(pattern);
+        while (index >= 0) {
+            expected.add(index);
+            index = text.indexOf(pattern, index + pattern.length());
+        }
+        return expected;
+    }
+
+    // The last match that ends at or before the given offset
+    private static int expectedPrevious(String text, String pattern, int before) {
+        return before < pattern.length() ? -1 : text.lastIndexOf(pattern, before - pattern.length());
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    // Every occurrence, overlapping ones included, checked char by char
+    private static List<Integer> occurrences(String text, String pattern, boolean matchCase, boolean wholeWord) {
+        List<Integer> found = new ArrayList<>();
+        int m = pattern.length();
+        for (int i = 0; i + m <= text.length(); i++) {
+            if (!text.regionMatches(!matchCase, i, pattern, 0, m)) {
+                continue;
+            }
+            if (wholeWord && isWordChar(pattern.charAt(0)) && i > 0 && isWordChar(text.charAt(i - 1))) {
+                continue;
+            }
+            if (wholeWord && isWordChar(pattern.charAt(m - 1)) && i + m < text.length() && isWordChar(text.charAt(i + m))) {
+                continue;
+            }
+            found.add(i);
+        }
+        return found;
+    }
+
+    // The occurrences that do not overlap the one before, as Find All reports them
+    private static List<Integer> nonOverlapping(List<Integer> occurrences, int length) {
+        List<Integer> found = new ArrayList<>();
+        int next = 0;
+        for (int start : occurrences) {
+            if (start >= next) {
+                found.add(start);
+                next = start + length;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Test finding in a document that is a single piece.
+     */
+    private static void testSimpleMatches() throws Exception {
+        String text = "one two three two one";
+        Document doc = PieceTableTest.createDocument(text);
+        Object search = newSearch("two");
+        assertEquals("Find next from the start", 4, findNext(search, doc, 0));
+        assertEquals("Find next after the first match", 14, findNext(search, doc, 5));
+        assertEquals("Find next past the last match", -1, findNext(search, doc, 15));
+        assertEquals("Find previous from the end", 14, findPrevious(search, doc, text.length()));
+        assertEquals("Find previous before the second match", 4, findPrevious(search, doc, 14));
+        assertEquals("Find previous before the first match", -1, findPrevious(search, doc, 6));
+        assertEquals("Find all", List.of(4, 14), findAll(search, doc));
+
+        Object single = newSearch("e");
+        assertEquals("Single char matches", expectedAll(text, "e"), findAll(single, doc));
+        Object overlapping = newSearch("aa");
+        Document repeated = PieceTableTest.createDocument("aaaaa");
+        assertEquals("Find all should not overlap matches", List.of(0, 2), findAll(overlapping, repeated));
+        assertEquals("Find previous should find the last overlapping match", 3,
+            findPrevious(overlapping, repeated, 5));
+    }
+
+    /**
+     * Test random searches in a document edited into many small pieces, so
+     * that matches span pieces, against String.indexOf and lastIndexOf.
+     */
+    private static void testMatchesAcrossPieces() throws Exception {
+        Random random = new Random(3);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 300000; i++) {
+            text.append((char) ('a' + random.nextInt(3)));
+        }
+        Document doc = PieceTableTest.createDocument(text.toString());
+        // Many inserts and removes leave the text split into short pieces
+        for (int i = 0; i < 5000; i++) {
+            int offset = random.nextInt(doc.getLength());
+            if (random.nextBoolean()) {
+                String insert = "abc\u00e9".substring(random.nextInt(4));
+                doc.insertString(offset, insert, null);
+            } else {
+                doc.remove(offset, Math.min(1 + random.nextInt(3), doc.getLength() - offset));
+            }
+        }
+        String content = doc.getText(0, doc.getLength());
+
+        boolean allMatch = true;
+        for (int i = 0; i < 200; i++) {
+            int start = random.nextInt(content.length() - 10);
+            String pattern = content.substring(start, start + 1 + random.nextInt(8));
+            Object search = newSearch(pattern);
+            int from = random.nextInt(content.length());
+            allMatch &= findNext(search, doc, from) == content.indexOf(pattern, from);
+            allMatch &= findPrevious(search, doc, from) == expectedPrevious(content, pattern, from);
+            if (i % 20 == 0) {
+                allMatch &= findAll(search, doc).equals(expectedAll(content, pattern));
+            }
+        }
+        assertTrue("Matches should be found across pieces", allMatch);
+
+        Object missing = newSearch("abcabcabcd");
+        assertEquals("A missing pattern should not be found", content.indexOf("abcabcabcd"),
+            findNext(missing, doc, 0));
+        assertEquals("A missing pattern should not be found backwards",
+            expectedPrevious(content, "abcabcabcd", content.length()),
+            findPrevious(missing, doc, content.length()));
+    }
+
+    /**
+     * Test ignoring case and matching whole words, alone and together.
+     */
+    private static void testOptions() throws Exception {
+        String text = "Save save SAVE saved _save autosave sAvE-as \u00c9t\u00e9 \u00e9T\u00c9";
+        Document doc = PieceTableTest.createDocument(text);
+        assertEquals("Matching case finds that case only", List.of(0), findAll(newSearch("Save", true, false), doc));
+        assertEquals("Ignoring case finds every case", List.of(0, 5, 10, 15, 22, 31, 36),
+            findAll(newSearch("save", false, false), doc));
+        assertEquals("Ignoring case folds letters beyond ASCII", List.of(44, 48),
+            findAll(newSearch("\u00e9t\u00e9", false, false), doc));
+        assertEquals("Whole words only", List.of(5), findAll(newSearch("save", true, true), doc));
+        assertEquals("Whole words ignoring case", List.of(0, 5, 10, 36),
+            findAll(newSearch("SAVE", false, true), doc));
+        assertEquals("Find next skips parts of words", 36, findNext(newSearch("save", false, true), doc, 11));
+        assertEquals("Find previous skips parts of words", 10,
+            findPrevious(newSearch("save", false, true), doc, 36));
+        assertEquals("A pattern ending in a non-word char needs no boundary after it", List.of(36),
+            findAll(newSearch("save-", false, true), doc));
+        assertEquals("A word at the end of the text", List.of(44, 48),
+            findAll(newSearch("\u00e9t\u00e9", false, true), doc));
+
+        Method matches = searchClass.getMethod("matches", String.class);
+        assertEquals("The selection matches ignoring case", true, matches.invoke(newSearch("save", false, true), "SaVe"));
+        assertEquals("The selection has to be the same case", false, matches.invoke(newSearch("save", true, false), "SaVe"));
+        assertEquals("The selection has to be as long", false, matches.invoke(newSearch("save", false, false), "saved"));
+    }
+
+    /**
+     * Test the options in a document edited into many small pieces, so that
+     * matches and the chars next to them are in different pieces, against
+     * checking every offset char by char.
+     */
+    private static void testOptionsAcrossPieces() throws Exception {
+        Random random = new Random(20);
+        String alphabet = "aAbB_ .\u00e9\u00c9";
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        Document doc = PieceTableTest.createDocument(text.toString());
+        for (int i = 0; i < 3000; i++) {
+            int offset = random.nextInt(doc.getLength());
+            if (random.nextBoolean()) {
+                doc.insertString(offset, alphabet.substring(random.nextInt(alphabet.length())), null);
+            } else {
+                doc.remove(offset, Math.min(1 + random.nextInt(3), doc.getLength() - offset));
+            }
+        }
+        String content = doc.getText(0, doc.getLength());
+
+        boolean allMatch = true;
+        for (int i = 0; i < 80; i++) {
+            int start = random.nextInt(content.length() - 10);
+            String pattern = content.substring(start, start + 1 + random.nextInt(4));
+            boolean matchCase = random.nextBoolean();
+            boolean wholeWord = random.nextBoolean();
+            Object search = newSearch(pattern, matchCase, wholeWord);
+            List<Integer> expected = occurrences(content, pattern, matchCase, wholeWord);
+            int from = random.nextInt(content.length());
+            int next = -1;
+            int previous = -1;
+            for (int offset : expected) {
+                if (offset >= from && next < 0) {
+                    next = offset;
+                }
+                if (offset + pattern.length() <= from) {
+                    previous = offset;
+                }
+            }
+            allMatch &= findNext(search, doc, from) == next;
+            allMatch &= findPrevious(search, doc, from) == previous;
+            allMatch &= findAll(search, doc).equals(nonOverlapping(expected, pattern.length()));
+        }
+        assertTrue("Matches with options should be found across pieces", allMatch);
+    }
+
+    /**
+     * Test finding millions of matches in a large document and report how
+     * long it takes.
+     */
+    private static void testManyMatches() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000000; i++) {
+            text.append("match number ").append(i).append('\n');
+        }
+        Document doc = PieceTableTest.createDocument(text.toString());
+
+        Object search = newSearch("match");
+        long start = System.nanoTime();
+        List<Integer> found = findAll(search, doc);
+        long allMillis = (System.nanoTime() - start) / 1000000;
+        assertEquals("Every line should match", 1000000, found.size());
+
+        Object rare = newSearch("number 999999");
+        start = System.nanoTime();
+        int index = findNext(rare, doc, 0);
+        long nextMillis = (System.nanoTime() - start) / 1000000;
+        assertEquals("The last line should be found", text.indexOf("number 999999"), index);
+        System.out.println("Find all of 1M matches in " + text.length() / 1024 + " KB: " + allMillis
+            + " ms, find next to the end: " + nextMillis + " ms");
+    }
+}
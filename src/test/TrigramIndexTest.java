@@ -0,0 +1,353 @@
+package test;
+
+import javax.swing.event.DocumentListener;
+import javax.swing.text.Document;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Test class for narrowing searches down with the trigram index.
+ */
+public class TrigramIndexTest {
+    // Simple assertion methods
+    private static void assertTrue(String message, boolean condition) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+        System.out.println("PASS: " + message);
+    }
+
+    private static void assertEquals(String message, Object expected, Object actual) {
+        if (expected == null && actual == null) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        if (expected != null && expected.equals(actual)) {
+            System.out.println("PASS: " + message);
+            return;
+        }
+        throw new AssertionError(message + " expected:<" + expected + "> but was:<" + actual + ">");
+    }
+
+    private static final String[] WORDS = {
+        "alpha", "beta", "gamma", "delta", "error", "warn", "info", "request", "took", "ms"
+    };
+
+    /**
+     * Main method to run the tests.
+     */
+    public static void main(String[] args) {
+        System.out.println("Running trigram index tests...");
+
+        try {
+            testRequiredLiteral();
+            testBudget();
+            testNarrowing();
+            testNoMatchMissed();
+            testEdits();
+            testRegex();
+
+            System.out.println("All trigram index tests passed!");
+        } catch (AssertionError e) {
+            System.err.println("TEST FAILED: " + e.getMessage());
+            System.exit(1);
+        } catch (Exception e) {
+            System.err.println("TEST ERROR: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Build an index of the document with small blocks using reflection.
+     */
+    static Object buildIndex(Document doc, int blockSize, int filterBits) throws Exception {
+        Class<?> indexClass = Class.forName("TrigramIndex");
+        Method build = indexClass.getDeclaredMethod("build", Class.forName("TextSnapshot"),
+            int.class, int.class, BooleanSupplier.class);
+        build.setAccessible(true);
+        Object snapshot = doc.getClass().getMethod("snapshot").invoke(doc);
+        BooleanSupplier never = () -> false;
+        return build.invoke(null, snapshot, blockSize, filterBits, never);
+    }
+
+    static Object candidates(Object index, String literal) throws Exception {
+        return index.getClass().getMethod("candidates", String.class).invoke(index, literal);
+    }
+
+    private static String requiredLiteral(String regex) throws Exception {
+        Method method = Class.forName("RegexSearch").getDeclaredMethod("requiredLiteral", Pattern.class);
+        method.setAccessible(true);
+        return (String) method.invoke(null, Pattern.compile(regex, Pattern.MULTILINE));
+    }
+
+    // The total length of the regions
+    private static int covered(Object regions) throws Exception {
+        Class<?> listClass = Class.forName("MatchList");
+        int total = 0;
+        int size = (Integer) listClass.getMethod("size").invoke(regions);
+        for (int i = 0; i < size; i++) {
+            total += (Integer) listClass.getMethod("getEnd", int.class).invoke(regions, i)
+                - (Integer) listClass.getMethod("getStart", int.class).invoke(regions, i);
+        }
+        return total;
+    }
+
+    /**
+     * Find all matches of the text, in the regions if not null, as offsets.
+     */
+    private static List<Integer> findAll(Document doc, String pattern, Object regions) throws Exception {
+        Class<?> searchClass = Class.forName("TextSearch");
+        Class<?> hitsClass = Class.forName("TextSearch$Hits");
+        Object search = searchClass.getConstructor(String.class).newInstance(pattern);
+        List<Integer> found = new ArrayList<>();
+        Object hits = Proxy.newProxyInstance(hitsClass.getClassLoader(), new Class<?>[] {hitsClass},
+            (proxy, method, args) -> found.add((Integer) args[0]));
+        Object snapshot = doc.getClass().getMethod("snapshot").invoke(doc);
+        Class<?> snapshotClass = Class.forName("TextSnapshot");
+        if (regions == null) {
+            searchClass.getMethod("findAll", snapshotClass, hitsClass).invoke(search, snapshot, hits);
+        } else {
+            searchClass.getMethod("findAll", snapshotClass, Class.forName("MatchList"), hitsClass)
+                .invoke(search, snapshot, regions, hits);
+        }
+        return found;
+    }
+
+    private static int find(Document doc, String pattern, String direction, int from, Object regions)
+            throws Exception {
+        Class<?> searchClass = Class.forName("TextSearch");
+        Object search = searchClass.getConstructor(String.class).newInstance(pattern);
+        return (Integer) searchClass.getMethod(direction, Document.class, int.class, Class.forName("MatchList"))
+            .invoke(search, doc, from, regions);
+    }
+
+    private static Document wordDocument(Random random, int words) throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(10) == 0 ? '\n' : ' ');
+            if (random.nextInt(500) == 0) {
+                text.append("needle").append(random.nextInt(100)).append(' ');
+            }
+        }
+        return PieceTableTest.createDocument(text.toString());
+    }
+
+    // Patterns to look for: words, runs across words, rare and absent text
+    private static List<String> patterns(Document doc, Random random) throws Exception {
+        List<String> patterns = new ArrayList<>(List.of("needle", "needle4", "request took", "absent", "alp",
+            "ms\nalpha", "zzz", "needle99 "));
+        for (int i = 0; i < 40; i++) {
+            int length = 3 + random.nextInt(40);
+            int offset = random.nextInt(doc.getLength() - length);
+            patterns.add(doc.getText(offset, length));
+        }
+        return patterns;
+    }
+
+    /**
+     * Test which literals a regex has to contain, and that anything the
+     * index cannot handle gives none.
+     */
+    private static void testRequiredLiteral() throws Exception {
+        assertEquals("A plain word", "request", requiredLiteral("request"));
+        assertEquals("The longest run between other tokens", "ERROR request ",
+            requiredLiteral("ERROR request \\d+ took"));
+        assertEquals("Escaped punctuation is literal", "a.b(c", requiredLiteral("a\\.b\\(c\\d"));
+        assertEquals("An optional char ends the run", "abcd", requiredLiteral("abcdx?efg"));
+        assertEquals("A repeated char ends the run after it", "abcd", requiredLiteral("abcd+efg"));
+        assertEquals("Groups are left out", "tail", requiredLiteral("(?:head)?tail"));
+        assertEquals("Classes break runs", "abc", requiredLiteral("abc[0-9]de"));
+        assertEquals("Anchors break runs", "line", requiredLiteral("^line$"));
+        assertEquals("Alternation gives nothing", null, requiredLiteral("request|response"));
+        assertEquals("Inline flags give nothing", null, requiredLiteral("(?i)request"));
+        assertEquals("Line breaks give nothing", null, requiredLiteral("request\\s+took"));
+        assertEquals("Negated classes give nothing", null, requiredLiteral("request[^x]took"));
+        assertEquals("Short runs give nothing", null, requiredLiteral("ab.cd"));
+        assertEquals("Optional chars are not required", null, requiredLiteral("a?b?c?d?"));
+        assertEquals("Backreferences give nothing", null, requiredLiteral("(abc)\\1"));
+        assertEquals("Quoting gives nothing", null, requiredLiteral("\\Qa|b\\E"));
+    }
+
+    /**
+     * Test that the filters fit in the budget and that too small a budget
+     * or too short a text gets no index.
+     */
+    private static void testBudget() throws Exception {
+        Method filterBits = Class.forName("TrigramIndex").getDeclaredMethod("filterBits", int.class, long.class);
+        filterBits.setAccessible(true);
+        int length = 100 * 1024 * 1024;
+        int blocks = length / (16 * 1024);
+        for (long budget : new long[] {1 << 20, 16 << 20, 64 << 20, 1L << 40}) {
+            int bits = (Integer) filterBits.invoke(null, length, budget);
+            assertTrue("Filters for " + (budget >> 20) + " MB should fit in it",
+                bits > 0 && (long) bits * blocks / 8 <= budget);
+        }
+        assertEquals("Too small a budget should give no index", 0, filterBits.invoke(null, length, 1000L));
+        assertEquals("A zero budget turns indexing off", 0, filterBits.invoke(null, length, 0L));
+        assertEquals("A short text should give no index", 0, filterBits.invoke(null, 1000, 1L << 30));
+    }
+
+    /**
+     * Test that a rare word narrows the search down to a small part of the
+     * text, and text that is nowhere to nothing.
+     */
+    private static void testNarrowing() throws Exception {
+        Document doc = wordDocument(new Random(1), 200000);
+        Object index = buildIndex(doc, 1024, 4096);
+        int length = doc.getLength();
+        int rare = covered(candidates(index, "needle42"));
+        assertTrue("A rare word should narrow the search to under a tenth, was " + rare + " of " + length,
+            rare < length / 10);
+        assertTrue("Text with a trigram that is nowhere should leave little to search",
+            covered(candidates(index, "zzzzzz")) < length / 20);
+        assertTrue("Common text should leave most of it", covered(candidates(index, "alpha")) > length / 2);
+        assertEquals("Text shorter than a trigram cannot be narrowed down", null, candidates(index, "ab"));
+    }
+
+    // Checks that searching in the regions finds what searching everywhere does
+    private static String compare(Document doc, Object index, List<String> patterns, Random random)
+            throws Exception {
+        for (String pattern : patterns) {
+            Object regions = candidates(index, pattern);
+            if (!findAll(doc, pattern, regions).equals(findAll(doc, pattern, null))) {
+                return "find all of \"" + pattern + "\"";
+            }
+            for (int i = 0; i < 5; i++) {
+                int from = random.nextInt(doc.getLength() + 1);
+                if (find(doc, pattern, "findNext", from, regions) != find(doc, pattern, "findNext", from, null)) {
+                    return "find next of \"" + pattern + "\" from " + from;
+                }
+                if (find(doc, pattern, "findPrevious", from, regions)
+                        != find(doc, pattern, "findPrevious", from, null)) {
+                    return "find previous of \"" + pattern + "\" before " + from;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Test that no match is missed, with blocks split over many pieces and
+     * matches across block boundaries.
+     */
+    private static void testNoMatchMissed() throws Exception {
+        Random random = new Random(2);
+        Document doc = wordDocument(random, 50000);
+        for (int i = 0; i < 500; i++) {
+            doc.insertString(random.nextInt(doc.getLength()), WORDS[random.nextInt(WORDS.length)], null);
+        }
+        for (int blockSize : new int[] {64, 1000, 1 << 20}) {
+            Object index = buildIndex(doc, blockSize, 512);
+            assertEquals("Searches in blocks of " + blockSize + " should find every match", null,
+                compare(doc, index, patterns(doc, random), random));
+        }
+    }
+
+    /**
+     * Test that the index keeps finding every match as the document is
+     * edited, including edits that empty whole blocks.
+     */
+    private static void testEdits() throws Exception {
+        Random random = new Random(3);
+        Document doc = wordDocument(random, 50000);
+        Object index = buildIndex(doc, 256, 1024);
+        doc.addDocumentListener((DocumentListener) index);
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 300; i++) {
+                int offset = random.nextInt(doc.getLength());
+                int choice = random.nextInt(30);
+                if (choice < 15) {
+                    String text = random.nextBoolean() ? WORDS[random.nextInt(WORDS.length)] + " "
+                        : "needle" + random.nextInt(100);
+                    doc.insertString(offset, text, null);
+                } else if (choice < 29) {
+                    doc.remove(offset, Math.min(1 + random.nextInt(20), doc.getLength() - offset));
+                } else {
+                    doc.remove(offset, Math.min(1000 + random.nextInt(2000), doc.getLength() - offset));
+                }
+            }
+            doc.insertString(doc.getLength(), " needle7 at the end", null);
+            doc.insertString(0, "needle7 at the start ", null);
+            String mismatch = compare(doc, index, patterns(doc, random), random);
+            if (mismatch != null) {
+                assertEquals("Searches after edits should find every match", null, mismatch);
+            }
+        }
+        assertTrue("Searches after many edits should find every match", true);
+    }
+
+    /**
+     * Find all matches of a regex over chunks of the given size, in the
+     * lines around the regions if not null, as start and end pairs.
+     */
+    private static List<Integer> findRegex(Document doc, String regex, Object regions) throws Exception {
+        Constructor<?> constructor = Class.forName("RegexSearch")
+            .getDeclaredConstructor(Pattern.class, ForkJoinPool.class, int.class);
+        constructor.setAccessible(true);
+        Object search = constructor.newInstance(Pattern.compile(regex, Pattern.MULTILINE),
+            ForkJoinPool.commonPool(), 4096);
+        Class<?> listClass = Class.forName("MatchList");
+        List<Integer> found = new ArrayList<>();
+        Consumer<Object> results = batch -> {
+            try {
+                for (int i = 0; i < (Integer) listClass.getMethod("size").invoke(batch); i++) {
+                    found.add((Integer) listClass.getMethod("getStart", int.class).invoke(batch, i));
+                    found.add((Integer) listClass.getMethod("getEnd", int.class).invoke(batch, i));
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        };
+        BooleanSupplier never = () -> false;
+        Object snapshot = doc.getClass().getMethod("snapshot").invoke(doc);
+        search.getClass().getMethod("findAll", Class.forName("TextSnapshot"), listClass, Consumer.class,
+            BooleanSupplier.class).invoke(search, snapshot, regions, results, never);
+        return found;
+    }
+
+    private static List<Integer> expected(String regex, String text) {
+        List<Integer> expected = new ArrayList<>();
+        Matcher matcher = Pattern.compile(regex, Pattern.MULTILINE).matcher(text);
+        while (matcher.find()) {
+            expected.add(matcher.start());
+            expected.add(matcher.end());
+        }
+        return expected;
+    }
+
+    /**
+     * Test that regex searches narrowed down by the index find every match,
+     * the same as one Matcher over the whole text.
+     */
+    private static void testRegex() throws Exception {
+        Document doc = wordDocument(new Random(4), 100000);
+        Object index = buildIndex(doc, 512, 2048);
+        String[] patterns = {
+            "needle\\d+", "^needle", "needle4\\d$", "\\w+ needle1\\d? \\w+", "(?:alpha )?needle[0-5]",
+            "request took \\w+", "\\bneedle9", "absent\\d", "alpha|needle\\d", "\\w+$"
+        };
+        String mismatch = null;
+        for (String regex : patterns) {
+            Object regions = index.getClass().getMethod("candidates", Pattern.class)
+                .invoke(index, Pattern.compile(regex, Pattern.MULTILINE));
+            List<Integer> all = findRegex(doc, regex, null);
+            // Patterns without a literal to look up are searched everywhere
+            List<Integer> narrowed = regions != null ? findRegex(doc, regex, regions) : all;
+            if (!narrowed.equals(all)
+                    || !all.equals(expected(regex, doc.getText(0, doc.getLength())))) {
+                mismatch = regex;
+            }
+        }
+        assertEquals("Narrowed regex searches should find every match", null, mismatch);
+    }
+}